@@ -0,0 +1,49 @@
+package messageserver.chatbenchmarks;
+
+import Handler.ClientHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One inbound text command through {@link ClientHandler#handleLine}:
+ * parsing, dispatch and the reply, for a logged-in client. PRIVATE goes to
+ * an online recipient and is then discarded by {@link NullMessageStore};
+ * GET_USERS is served from the in-memory directory. Rate limits are off,
+ * or the loop would only measure rejections.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {Fixtures.QUIET_LOG, Fixtures.NO_LIMITS, Fixtures.MEMORY_USERS, Fixtures.NULL_MESSAGES, Fixtures.NO_SEARCH})
+@State(Scope.Thread)
+public class CommandParsingBenchmark {
+
+    @Param({"PRIVATE:user1:" + Fixtures.MESSAGE, "GET_USERS", "NOT_A_COMMAND"})
+    public String command;
+
+    @Param({"1000"})
+    public int registeredUsers;
+
+    private ClientHandler sender;
+    private ClientHandler recipient;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Fixtures.registerUsers(registeredUsers);
+        sender = Fixtures.login(Fixtures.username(0), false);
+        recipient = Fixtures.login(Fixtures.username(1), false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.logout(List.of(sender, recipient));
+    }
+
+    @Benchmark
+    public void handleLine() {
+        sender.handleLine(command);
+    }
+}
@@ -0,0 +1,94 @@
+package messageserver.chatbenchmarks;
+
+import Handler.ClientConnection;
+import Handler.ClientHandler;
+import messageserver.chatserver.ChatServer;
+import messageserver.chatserver.SessionTokens;
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.Protocol.Handshake;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared setup for the benchmarks: users, conversations and logged-in
+ * handlers, with the database replaced by in-memory stores.
+ */
+final class Fixtures {
+    static final String MESSAGE = "see you at the standup in five minutes";
+
+    // Forked JVM arguments: a quiet log, no command rate limits, accounts and messages kept away from MySQL,
+    // and no search index files in the working directory
+    static final String QUIET_LOG = "-Dchat.log.level=ERROR";
+    static final String NO_LIMITS = "-Dchat.limit.enabled=false";
+    static final String MEMORY_USERS = "-Dchat.users=memory";
+    static final String NULL_MESSAGES = "-Dchat.store=messageserver.chatbenchmarks.NullMessageStore";
+    static final String NO_SEARCH = "-Dchat.search.enabled=false";
+
+    private Fixtures() {
+    }
+
+    static String username(int index) {
+        return "user" + index;
+    }
+
+    static List<String> usernames(int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(username(i));
+        }
+        return names;
+    }
+
+    /** Registers {@code user0}..{@code userN-1} in the (in-memory) user store, for GET_USERS. */
+    static void registerUsers(int count) {
+        for (String name : usernames(count)) {
+            ChatServer.registerUser(name, "secret");
+        }
+    }
+
+    /** A handler over a {@link NullConnection}, not logged in. */
+    static ClientHandler handler(String username, boolean binary) {
+        return handler(new NullConnection(username), binary);
+    }
+
+    static ClientHandler handler(ClientConnection connection, boolean binary) {
+        ClientHandler handler = new ClientHandler(connection);
+        if (binary) {
+            handler.handleLine(Handshake.PREFIX + Handshake.BINARY);
+        }
+        return handler;
+    }
+
+    /** A handler logged in through session resumption, which skips the database. */
+    static ClientHandler login(String username, boolean binary) {
+        return login(new NullConnection(username), username, binary);
+    }
+
+    static ClientHandler login(ClientConnection connection, String username, boolean binary) {
+        ClientHandler handler = handler(connection, binary);
+        handler.handleLine("RESUME:" + SessionTokens.issue(username));
+        if (!handler.isConnected()) {
+            throw new IllegalStateException("Could not log in " + username);
+        }
+        return handler;
+    }
+
+    static void logout(List<ClientHandler> handlers) {
+        for (ClientHandler handler : handlers) {
+            handler.onDisconnect(null);
+        }
+    }
+
+    /** A conversation between two users, oldest first, as the database would return it. */
+    static List<ChatMessage> conversation(int messages) {
+        List<ChatMessage> history = new ArrayList<>(messages);
+        long start = 1_700_000_000_000L;
+        for (int i = 0; i < messages; i++) {
+            String sender = username(i & 1);
+            String receiver = username(~i & 1);
+            history.add(new ChatMessage(sender, receiver, MESSAGE + " #" + i, start + i * 1000L, i + 1));
+        }
+        return history;
+    }
+}
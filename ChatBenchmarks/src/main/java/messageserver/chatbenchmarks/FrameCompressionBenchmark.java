@@ -0,0 +1,58 @@
+package messageserver.chatbenchmarks;
+
+import messageserver.chatserver.ServerConfig;
+import messageserver.chatserver.Protocol.BinaryFormat;
+import messageserver.chatserver.Protocol.FrameCompressor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a compressing connection's writer adds per frame: a binary
+ * GET_HISTORY reply and a USERS list through one long-lived deflate
+ * stream, at the default level and a slower one. Compare with
+ * {@link HistoryEncodingBenchmark} for the cost of building the frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {Fixtures.QUIET_LOG, Fixtures.MEMORY_USERS, Fixtures.NULL_MESSAGES, Fixtures.NO_SEARCH})
+@State(Scope.Thread)
+public class FrameCompressionBenchmark {
+
+    @Param({"1", "6"})
+    public int level;
+
+    @Param({"1000"})
+    public int messages;
+
+    @Param({"10000"})
+    public int users;
+
+    private FrameCompressor compressor;
+    private byte[] history;
+    private byte[] userList;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        compressor = new FrameCompressor(level, ServerConfig.COMPRESS_MIN_BYTES);
+        history = BinaryFormat.INSTANCE.history(Fixtures.conversation(messages));
+        userList = BinaryFormat.INSTANCE.users(Fixtures.usernames(users));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        compressor.end();
+    }
+
+    @Benchmark
+    public byte[] history() {
+        return compressor.encode(history);
+    }
+
+    @Benchmark
+    public byte[] users() {
+        return compressor.encode(userList);
+    }
+}
@@ -0,0 +1,49 @@
+package messageserver.chatbenchmarks;
+
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.Protocol.BinaryFormat;
+import messageserver.chatserver.Protocol.TextFormat;
+import messageserver.chatserver.Protocol.WireFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a conversation the way GET_HISTORY replies
+ * ({@code getPrivateMessageHistory}) and history page chunks do, from rows
+ * already in memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {Fixtures.QUIET_LOG, Fixtures.MEMORY_USERS, Fixtures.NULL_MESSAGES, Fixtures.NO_SEARCH})
+@State(Scope.Thread)
+public class HistoryEncodingBenchmark {
+
+    @Param({"50", "1000"})
+    public int messages;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private WireFormat format;
+    private List<ChatMessage> history;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        format = binary ? BinaryFormat.INSTANCE : TextFormat.INSTANCE;
+        history = Fixtures.conversation(messages);
+    }
+
+    @Benchmark
+    public byte[] history() {
+        return format.history(history);
+    }
+
+    @Benchmark
+    public byte[] historyChunk() {
+        return format.historyChunk(history);
+    }
+}
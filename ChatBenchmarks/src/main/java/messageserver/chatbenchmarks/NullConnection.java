@@ -0,0 +1,38 @@
+package messageserver.chatbenchmarks;
+
+import Handler.ClientConnection;
+
+/**
+ * In-memory stand-in for a client socket: every frame is accepted and
+ * thrown away, only its size is counted so the encoding work cannot be
+ * optimised out.
+ */
+final class NullConnection implements ClientConnection {
+    private final String remoteAddress;
+    private long bytesSent;
+    private boolean open = true;
+
+    NullConnection(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    @Override
+    public void send(byte[] frame) {
+        bytesSent += frame.length;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public String remoteAddress() {
+        return remoteAddress;
+    }
+}
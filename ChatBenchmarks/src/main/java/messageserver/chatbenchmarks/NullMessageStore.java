@@ -0,0 +1,69 @@
+package messageserver.chatbenchmarks;
+
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.Storage.MessageStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Message store that accepts everything and keeps nothing, so the
+ * command-path benchmarks measure the server rather than storage and do
+ * not fill the heap over millions of PRIVATE messages. Selected with
+ * {@code -Dchat.store=messageserver.chatbenchmarks.NullMessageStore}.
+ */
+public final class NullMessageStore implements MessageStore {
+
+    @Override
+    public List<ChatMessage> savePrivateMessages(List<ChatMessage> messages) {
+        return messages;
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessages(String user1, String user2) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public long streamPrivateMessages(String user1, String user2, long beforeId, int limit, int chunkRows,
+                                      Consumer<List<ChatMessage>> chunks) {
+        return 0;
+    }
+
+    @Override
+    public int streamPrivateMessagesAfter(String user, String otherUser, long afterId, int limit, int chunkRows,
+                                          Consumer<List<ChatMessage>> chunks) {
+        return 0;
+    }
+
+    @Override
+    public int streamAllPrivateMessagesAfter(long afterId, int limit, int chunkRows, Consumer<List<ChatMessage>> chunks) {
+        return 0;
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessagesById(long[] ids) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public long latestPrivateMessageId() {
+        return 0;
+    }
+
+    @Override
+    public boolean saveRoomMessages(List<ChatMessage> messages) {
+        return true;
+    }
+
+    @Override
+    public long streamRoomMessages(String room, long beforeId, int limit, int chunkRows,
+                                   Consumer<List<ChatMessage>> chunks) {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,65 @@
+package messageserver.chatbenchmarks;
+
+import Handler.ClientHandler;
+import messageserver.chatserver.PresenceEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One presence window: the status changes that {@code broadcastUserStatus}
+ * records, then the flush that fans the combined delta out to every
+ * session. The changing users alternate between online and offline, so
+ * every flush has something to send.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {Fixtures.QUIET_LOG, Fixtures.MEMORY_USERS, Fixtures.NULL_MESSAGES, Fixtures.NO_SEARCH})
+@State(Scope.Thread)
+public class PresenceFanOutBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int sessions;
+
+    @Param({"1", "32"})
+    public int changesPerWindow;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private PresenceEngine engine;
+    private String[] changing;
+    private boolean online;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<ClientHandler> handlers = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            handlers.add(Fixtures.handler(Fixtures.username(i), binary));
+        }
+        // The benchmark flushes by hand; keep the engine's own scheduler out of the way
+        engine = new PresenceEngine(() -> handlers, TimeUnit.HOURS.toMillis(1));
+        changing = new String[changesPerWindow];
+        for (int i = 0; i < changesPerWindow; i++) {
+            changing[i] = "changing" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public void recordAndFlush() {
+        online = !online;
+        for (String username : changing) {
+            engine.record(username, online);
+        }
+        engine.flush();
+    }
+}
@@ -0,0 +1,61 @@
+package messageserver.chatbenchmarks;
+
+import Handler.ClientHandler;
+import messageserver.chatserver.ChatServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recipient lookup and delivery in {@link ChatServer#sendPrivateMessage}
+ * with many sessions online, cycling through every recipient so the
+ * lookups do not all hit the same cache lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {Fixtures.QUIET_LOG, Fixtures.MEMORY_USERS, Fixtures.NULL_MESSAGES, Fixtures.NO_SEARCH})
+@State(Scope.Thread)
+public class PrivateRoutingBenchmark {
+
+    @Param({"10", "10000"})
+    public int onlineUsers;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private final List<ClientHandler> sessions = new ArrayList<>();
+    private String[] recipients;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Fixtures.registerUsers(onlineUsers);
+        recipients = new String[onlineUsers];
+        for (int i = 0; i < onlineUsers; i++) {
+            recipients[i] = Fixtures.username(i);
+            sessions.add(Fixtures.login(recipients[i], binary));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.logout(sessions);
+        sessions.clear();
+    }
+
+    @Benchmark
+    public void deliverOnline() {
+        String recipient = recipients[next];
+        next = next + 1 == recipients.length ? 0 : next + 1;
+        ChatServer.sendPrivateMessage("sender", recipient, Fixtures.MESSAGE);
+    }
+
+    @Benchmark
+    public void recipientOffline() {
+        ChatServer.sendPrivateMessage("sender", "offline-user", Fixtures.MESSAGE);
+    }
+}
@@ -0,0 +1,429 @@
+package messageserver.chatbenchmarks;
+
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.Storage.InMemoryMessageStore;
+import messageserver.chatserver.Storage.LogMessageStore;
+import messageserver.chatserver.Storage.MessageStore;
+import messageserver.chatserver.Storage.SearchIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Not a benchmark: damages the files of the message log and the search
+ * index the way a crash or a stray copy would, reopens them and checks
+ * what recovery kept. Each case runs in its own directory under a
+ * temporary one; the process exits with status 1 if any check failed.
+ *
+ * Log cases: a torn tail, a record whose checksum or id is wrong in the
+ * middle of a segment, a last segment holding only a torn record, and a
+ * segment that overlaps the one before it. Search cases: reopening
+ * intact terms files, and a terms file that is truncated, has a bad
+ * header, overlaps the one before it or was left half-written.
+ * <pre>
+ *   java -cp ChatBenchmarks/target/benchmarks.jar messageserver.chatbenchmarks.RecoveryCheck
+ * </pre>
+ */
+public final class RecoveryCheck {
+    // Small enough that a few hundred messages fill several segments
+    private static final int SEGMENT_BYTES = 4096;
+    private static final int SEARCH_SEGMENT_MESSAGES = 100;
+    private static final int LOG_HEADER_BYTES = 8;
+
+    private final Path root;
+    private int checks;
+    private int failures;
+
+    private RecoveryCheck(Path root) {
+        this.root = root;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (System.getProperty("chat.log.level") == null) {
+            System.setProperty("chat.log.level", "ERROR");
+        }
+        Path root = Files.createTempDirectory("chat-recovery-check");
+        RecoveryCheck check = new RecoveryCheck(root);
+        try {
+            check.logTornTail();
+            check.logChecksumMismatch();
+            check.logIdMismatch();
+            check.logTornOnlySegment();
+            check.logOverlappingSegment();
+            check.searchReopen();
+            check.searchTruncatedFile();
+            check.searchBadHeader();
+            check.searchOverlappingFile();
+            check.searchUnfinishedFile();
+        } finally {
+            deleteRecursively(root);
+        }
+        System.out.printf("%d check(s), %d failed%n", check.checks, check.failures);
+        if (check.failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    // ------------------------------------------------------------ message log
+
+    /** A crash mid-append leaves a length and garbage after the last record. */
+    private void logTornTail() throws IOException {
+        Path dir = root.resolve("log-torn-tail");
+        LogMessageStore store = LogMessageStore.open(dir, 1 << 20, false);
+        save(store, 50);
+        store.close();
+        Path segment = logSegments(dir).get(0);
+        int end = recordEnd(segment);
+        write(segment, end, ByteBuffer.allocate(12).putInt(40).putInt(0x5EED).putInt(7).flip());
+
+        store = LogMessageStore.open(dir, 1 << 20, false);
+        check("torn tail: every intact record kept", ids(store).equals(range(1, 50)));
+        check("torn tail: appends go to a new segment", logSegments(dir).size() == 2);
+        save(store, 1);
+        store.close();
+        check("torn tail: the next message and the old ones survive a reopen",
+              ids(LogMessageStore.open(dir, 1 << 20, false)).equals(range(1, 51)));
+    }
+
+    /** A record whose body no longer matches its checksum ends the log there. */
+    private void logChecksumMismatch() throws IOException {
+        Path dir = root.resolve("log-checksum");
+        LogMessageStore store = LogMessageStore.open(dir, 1 << 20, false);
+        save(store, 50);
+        store.close();
+        Path segment = logSegments(dir).get(0);
+        int offset = recordOffsets(segment).get(19);
+        int length = read(segment, offset, 4).getInt();
+        int last = offset + LOG_HEADER_BYTES + length - 1;
+        write(segment, last, ByteBuffer.wrap(new byte[] {(byte) ~read(segment, last, 1).get()}));
+
+        assertLogStopsBefore(dir, 20, "checksum mismatch");
+    }
+
+    /** A record with a valid checksum but the wrong id (a stale copy, say) ends the log there too. */
+    private void logIdMismatch() throws IOException {
+        Path dir = root.resolve("log-id");
+        LogMessageStore store = LogMessageStore.open(dir, 1 << 20, false);
+        save(store, 50);
+        store.close();
+        Path segment = logSegments(dir).get(0);
+        int offset = recordOffsets(segment).get(19);
+        int length = read(segment, offset, 4).getInt();
+        ByteBuffer body = read(segment, offset + LOG_HEADER_BYTES, length);
+        body.putLong(0, 999);
+        CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        write(segment, offset + 4, ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip());
+        write(segment, offset + LOG_HEADER_BYTES, body);
+
+        assertLogStopsBefore(dir, 20, "id mismatch");
+    }
+
+    private void assertLogStopsBefore(Path dir, long badId, String label) throws IOException {
+        LogMessageStore store = LogMessageStore.open(dir, 1 << 20, false);
+        check(label + ": records before the bad one kept, none after", ids(store).equals(range(1, badId - 1)));
+        check(label + ": the latest id is the last one kept", store.latestPrivateMessageId() == badId - 1);
+        List<ChatMessage> stored = save(store, 1);
+        check(label + ": the next message takes the bad record's id", stored.get(0).id() == badId);
+        store.close();
+        check(label + ": the new message survives a reopen",
+              ids(LogMessageStore.open(dir, 1 << 20, false)).equals(range(1, badId)));
+    }
+
+    /** A last segment whose only record is torn is wiped and reused, since a new one would get its name. */
+    private void logTornOnlySegment() throws IOException {
+        Path dir = root.resolve("log-torn-only");
+        LogMessageStore store = LogMessageStore.open(dir, SEGMENT_BYTES, false);
+        save(store, 200);
+        store.close();
+        List<Path> segments = logSegments(dir);
+        Path last = segments.get(segments.size() - 1);
+        long baseId = baseId(last);
+        // Drop every record but the first, then tear that one
+        int first = recordOffsets(last).get(0);
+        int length = read(last, first, 4).getInt();
+        int end = recordEnd(last);
+        write(last, first + LOG_HEADER_BYTES + length, ByteBuffer.allocate(end - first - LOG_HEADER_BYTES - length));
+        write(last, first + LOG_HEADER_BYTES, ByteBuffer.allocate(8).putLong(-1).flip());
+
+        store = LogMessageStore.open(dir, SEGMENT_BYTES, false);
+        check("torn-only segment: everything before it kept", ids(store).equals(range(1, baseId - 1)));
+        check("torn-only segment: no segment added", logSegments(dir).equals(segments));
+        check("torn-only segment: cleared", recordEnd(last) == 0 && isZero(last));
+        List<ChatMessage> stored = save(store, 1);
+        check("torn-only segment: reused from its first id", stored.get(0).id() == baseId);
+        store.close();
+        check("torn-only segment: the new message survives a reopen",
+              ids(LogMessageStore.open(dir, SEGMENT_BYTES, false)).equals(range(1, baseId)));
+    }
+
+    /** A segment whose first id is already covered by the one before it is skipped, not read twice. */
+    private void logOverlappingSegment() throws IOException {
+        Path dir = root.resolve("log-overlap");
+        LogMessageStore store = LogMessageStore.open(dir, SEGMENT_BYTES, false);
+        save(store, 200);
+        store.close();
+        List<Path> segments = logSegments(dir);
+        check("overlap: the log has at least three segments", segments.size() >= 3);
+        Path copy = logSegment(dir, baseId(segments.get(1)) + 1);
+        Files.copy(segments.get(0), copy);
+
+        store = LogMessageStore.open(dir, SEGMENT_BYTES, false);
+        check("overlap: every message once, in order", ids(store).equals(range(1, 200)));
+        List<ChatMessage> stored = save(store, 1);
+        check("overlap: ids carry on after the newest segment", stored.get(0).id() == 201);
+        store.close();
+    }
+
+    private static List<ChatMessage> save(MessageStore store, int count) {
+        List<ChatMessage> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            batch.add(new ChatMessage(Fixtures.username(i % 4), Fixtures.username(i % 3 + 4), Fixtures.MESSAGE + " " + i,
+                                      1_700_000_000_000L + i));
+        }
+        return store.savePrivateMessages(batch);
+    }
+
+    private static List<Long> ids(MessageStore store) {
+        List<Long> ids = new ArrayList<>();
+        store.streamAllPrivateMessagesAfter(0, Integer.MAX_VALUE, 1000,
+                chunk -> chunk.forEach(message -> ids.add(message.id())));
+        return ids;
+    }
+
+    private static List<Long> range(long first, long last) {
+        List<Long> ids = new ArrayList<>();
+        for (long id = first; id <= last; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private static List<Path> logSegments(Path dir) throws IOException {
+        return list(dir, ".log");
+    }
+
+    private static Path logSegment(Path dir, long baseId) {
+        return dir.resolve(String.format("%020d.log", baseId));
+    }
+
+    private static long baseId(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    /** Offsets of the records in a segment, following the length fields up to the first zero. */
+    private static List<Integer> recordOffsets(Path segment) throws IOException {
+        List<Integer> offsets = new ArrayList<>();
+        int size = (int) Files.size(segment);
+        int offset = 0;
+        while (offset + LOG_HEADER_BYTES <= size) {
+            int length = read(segment, offset, 4).getInt();
+            if (length <= 0 || length > size - offset - LOG_HEADER_BYTES) {
+                break;
+            }
+            offsets.add(offset);
+            offset += LOG_HEADER_BYTES + length;
+        }
+        return offsets;
+    }
+
+    private static int recordEnd(Path segment) throws IOException {
+        List<Integer> offsets = recordOffsets(segment);
+        if (offsets.isEmpty()) {
+            return 0;
+        }
+        int last = offsets.get(offsets.size() - 1);
+        return last + LOG_HEADER_BYTES + read(segment, last, 4).getInt();
+    }
+
+    private static boolean isZero(Path file) throws IOException {
+        for (byte b : Files.readAllBytes(file)) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ----------------------------------------------------------- search index
+
+    /** Intact terms files are mapped as they are, not rewritten. */
+    private void searchReopen() throws IOException {
+        Path dir = root.resolve("search-reopen");
+        MessageStore store = searchStore();
+        Map<String, List<Long>> expected = searches(SearchIndex.open(dir, SEARCH_SEGMENT_MESSAGES, store, false));
+        Map<Path, FileTime> files = modified(dir);
+        check("reopen: sealed segments were written", files.size() >= 5);
+
+        check("reopen: same hits", searches(SearchIndex.open(dir, SEARCH_SEGMENT_MESSAGES, store, false)).equals(expected));
+        check("reopen: terms files untouched", modified(dir).equals(files));
+    }
+
+    private void searchTruncatedFile() throws IOException {
+        assertSearchRebuilt("search-truncated", "truncated terms file", file -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+        });
+    }
+
+    private void searchBadHeader() throws IOException {
+        assertSearchRebuilt("search-header", "bad header", file ->
+                write(file, 4, ByteBuffer.allocate(4).putInt(-1).flip()));
+    }
+
+    /**
+     * Damages the third terms file and checks that it and every one after
+     * it are indexed again from the store, with the same hits as before.
+     */
+    private void assertSearchRebuilt(String name, String label, FileDamage damage) throws IOException {
+        Path dir = root.resolve(name);
+        MessageStore store = searchStore();
+        Map<String, List<Long>> expected = searches(SearchIndex.open(dir, SEARCH_SEGMENT_MESSAGES, store, false));
+        Map<Path, FileTime> files = modified(dir);
+        List<Path> terms = new ArrayList<>(files.keySet());
+        Path damaged = terms.get(2);
+        long size = Files.size(damaged);
+        damage.apply(damaged);
+
+        check(label + ": same hits", searches(SearchIndex.open(dir, SEARCH_SEGMENT_MESSAGES, store, false)).equals(expected));
+        Map<Path, FileTime> reopened = modified(dir);
+        check(label + ": the same terms files", reopened.keySet().equals(files.keySet()));
+        check(label + ": the damaged file written again", Files.size(damaged) == size
+                && read(damaged, 4, 4).getInt() == SEARCH_SEGMENT_MESSAGES);
+        check(label + ": files before it kept as they were",
+              terms.subList(0, 2).stream().allMatch(file -> files.get(file).equals(reopened.get(file))));
+    }
+
+    /** A terms file whose first document is already in the one before it is dropped and indexed again. */
+    private void searchOverlappingFile() throws IOException {
+        Path dir = root.resolve("search-overlap");
+        MessageStore store = searchStore();
+        Map<String, List<Long>> expected = searches(SearchIndex.open(dir, SEARCH_SEGMENT_MESSAGES, store, false));
+        List<Path> terms = list(dir, ".terms");
+        Path copy = dir.resolve(String.format("%020d.terms", baseId(terms.get(terms.size() - 1)) + 1));
+        Files.copy(terms.get(0), copy, StandardCopyOption.COPY_ATTRIBUTES);
+
+        check("overlapping terms file: same hits",
+              searches(SearchIndex.open(dir, SEARCH_SEGMENT_MESSAGES, store, false)).equals(expected));
+        check("overlapping terms file: removed", !Files.exists(copy) && list(dir, ".terms").equals(terms));
+    }
+
+    /** A terms file still under its temporary name was never renamed into place, so it is deleted. */
+    private void searchUnfinishedFile() throws IOException {
+        Path dir = root.resolve("search-unfinished");
+        MessageStore store = searchStore();
+        Map<String, List<Long>> expected = searches(SearchIndex.open(dir, SEARCH_SEGMENT_MESSAGES, store, false));
+        List<Path> terms = list(dir, ".terms");
+        Path unfinished = dir.resolve(String.format("%020d.terms.tmp", store.latestPrivateMessageId() + 1));
+        Files.write(unfinished, new byte[] {0x43, 0x53});
+
+        check("unfinished terms file: same hits",
+              searches(SearchIndex.open(dir, SEARCH_SEGMENT_MESSAGES, store, false)).equals(expected));
+        check("unfinished terms file: deleted", !Files.exists(unfinished) && list(dir, ".terms").equals(terms));
+    }
+
+    private interface FileDamage {
+        void apply(Path file) throws IOException;
+    }
+
+    /** Enough private messages for several sealed segments, between a handful of users. */
+    private static MessageStore searchStore() {
+        MessageStore store = new InMemoryMessageStore();
+        for (int batch = 0; batch < 10; batch++) {
+            List<ChatMessage> messages = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                int n = batch * 100 + i;
+                messages.add(new ChatMessage(Fixtures.username(n % 5), Fixtures.username(n % 7 + 5),
+                                             "word" + n % 13 + " rare" + n + " " + Fixtures.MESSAGE, n));
+            }
+            store.savePrivateMessages(messages);
+        }
+        return store;
+    }
+
+    /** Every hit of a few searches, all pages, as message ids. */
+    private static Map<String, List<Long>> searches(SearchIndex index) {
+        Map<String, List<Long>> results = new LinkedHashMap<>();
+        for (String query : List.of("standup", "word3", "rare42", "word5 minutes")) {
+            for (int user = 0; user < 5; user++) {
+                results.put(user + " " + query, hits(index, Fixtures.username(user), null, query));
+            }
+            results.put("0-5 " + query, hits(index, Fixtures.username(0), Fixtures.username(5), query));
+        }
+        return results;
+    }
+
+    private static List<Long> hits(SearchIndex index, String user, String otherUser, String query) {
+        List<Long> ids = new ArrayList<>();
+        long beforeId = 0;
+        do {
+            SearchIndex.Page page = index.search(user, otherUser, query, beforeId, 50);
+            page.hits().forEach(message -> ids.add(message.id()));
+            beforeId = page.nextBeforeId();
+        } while (beforeId != 0);
+        return ids;
+    }
+
+    private static Map<Path, FileTime> modified(Path dir) throws IOException {
+        Map<Path, FileTime> files = new LinkedHashMap<>();
+        for (Path file : list(dir, ".terms")) {
+            files.put(file, Files.getLastModifiedTime(file));
+        }
+        return files;
+    }
+
+    // ----------------------------------------------------------------- files
+
+    private static List<Path> list(Path dir, String suffix) throws IOException {
+        try (Stream<Path> listing = Files.list(dir)) {
+            return listing.filter(path -> path.getFileName().toString().endsWith(suffix)).sorted().toList();
+        }
+    }
+
+    private static ByteBuffer read(Path file, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.read(buffer, offset);
+        }
+        return buffer.flip();
+    }
+
+    private static void write(Path file, int offset, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(bytes, offset);
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private void check(String what, boolean passed) {
+        checks++;
+        if (passed) {
+            System.out.println("✓ " + what);
+        } else {
+            failures++;
+            System.out.println("✗ " + what);
+        }
+    }
+}
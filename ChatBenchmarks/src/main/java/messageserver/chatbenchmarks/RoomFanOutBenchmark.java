@@ -0,0 +1,133 @@
+package messageserver.chatbenchmarks;
+
+import Handler.ClientConnection;
+import Handler.ClientHandler;
+import messageserver.chatserver.Protocol.Opcode;
+import messageserver.chatserver.Rooms.Room;
+import messageserver.chatserver.Rooms.RoomFrame;
+import messageserver.chatserver.Rooms.RoomRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One post to a room, from {@link Room#broadcast} until every other
+ * member's connection has the frame. {@code post} times the whole
+ * fan-out across {@code threads} delivery lanes; {@code queueOnly} times
+ * what the poster's own thread pays, with the writes finished between
+ * invocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {Fixtures.QUIET_LOG, Fixtures.MEMORY_USERS, Fixtures.NULL_MESSAGES, Fixtures.NO_SEARCH})
+@State(Scope.Thread)
+public class RoomFanOutBenchmark {
+    private static final String ROOM = "bench";
+
+    @Param({"100", "1000", "10000"})
+    public int members;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final List<ClientHandler> sessions = new ArrayList<>();
+    private Room room;
+    private ClientHandler poster;
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RoomRegistry registry = new RoomRegistry(threads, 1);
+        for (int i = 0; i < members; i++) {
+            String username = Fixtures.username(i);
+            ClientHandler session = Fixtures.login(new CountingConnection(username, delivered), username, binary);
+            sessions.add(session);
+            registry.join(ROOM, session);
+        }
+        room = registry.get(ROOM);
+        poster = sessions.get(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.logout(sessions);
+        sessions.clear();
+    }
+
+    @Benchmark
+    public void post() {
+        expected += broadcast();
+        awaitDelivered();
+    }
+
+    @Benchmark
+    public void queueOnly() {
+        expected += broadcast();
+    }
+
+    @TearDown(Level.Invocation)
+    public void awaitDelivered() {
+        while (delivered.get() < expected) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private int broadcast() {
+        return room.broadcast(new RoomFrame(ROOM, format -> format.roomMessage(ROOM, poster.getUsername(), Fixtures.MESSAGE)), poster);
+    }
+
+    /**
+     * Counts the room messages written to every member, so a post can wait
+     * for the last one; login replies and join notices are not counted.
+     */
+    private static final class CountingConnection implements ClientConnection {
+        private static final byte[] TEXT_PREFIX = "ROOM:".getBytes(StandardCharsets.UTF_8);
+
+        private final String remoteAddress;
+        private final AtomicLong frames;
+
+        CountingConnection(String remoteAddress, AtomicLong frames) {
+            this.remoteAddress = remoteAddress;
+            this.frames = frames;
+        }
+
+        @Override
+        public void send(byte[] frame) {
+            if (isRoomMessage(frame)) {
+                frames.incrementAndGet();
+            }
+        }
+
+        private static boolean isRoomMessage(byte[] frame) {
+            if (frame.length > 4 && frame[4] == (byte) Opcode.ROOM_IN) {
+                return true;
+            }
+            return Arrays.equals(frame, 0, Math.min(frame.length, TEXT_PREFIX.length), TEXT_PREFIX, 0, TEXT_PREFIX.length);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public String remoteAddress() {
+            return remoteAddress;
+        }
+    }
+}
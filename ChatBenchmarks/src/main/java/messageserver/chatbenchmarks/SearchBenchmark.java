@@ -0,0 +1,159 @@
+package messageserver.chatbenchmarks;
+
+import messageserver.chatserver.ServerConfig;
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.Storage.InMemoryMessageStore;
+import messageserver.chatserver.Storage.MessageStore;
+import messageserver.chatserver.Storage.SearchIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The search index over a memory store of {@code messages} private
+ * messages among {@link #USERS} users, sealed into segments of
+ * {@code chat.search.segmentMessages} as the server would: one page of
+ * hits for a common word, for a rare one, and for the common word within
+ * one conversation, each read back from the store, and indexing a
+ * write-behind batch.
+ *
+ * Filling the store and indexing it on open are part of the trial setup
+ * and take a while for the larger sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {Fixtures.QUIET_LOG, "-Xmx4g"})
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+    private static final int USERS = 1000;
+    private static final int PAGE_SIZE = 50;
+    private static final int BATCH_SIZE = 100;
+    // Picked with a skew, so a few words are common and most are rare
+    private static final String[] WORDS = vocabulary(5000);
+
+    @Param({"100000", "1000000"})
+    public int messages;
+
+    // Filled once per trial and only read while measuring
+    private SearchIndex history;
+    // Written to while measuring; replaced every iteration so it does not grow without bound
+    private SearchIndex writes;
+    private final List<Path> dirs = new ArrayList<>();
+    private List<ChatMessage> batch;
+    private long nextId;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        MessageStore store = new InMemoryMessageStore();
+        SplittableRandom random = new SplittableRandom(42);
+        List<ChatMessage> messages = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < this.messages; i++) {
+            messages.add(message(random, i));
+            if (messages.size() == BATCH_SIZE) {
+                store.savePrivateMessages(messages);
+                messages.clear();
+            }
+        }
+        store.savePrivateMessages(messages);
+        history = open(store);
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(message(random, i));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void openWrites() throws IOException {
+        writes = open(new InMemoryMessageStore());
+        nextId = 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Path dir : dirs) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public SearchIndex.Page commonWord() {
+        return history.search(user(nextUser()), null, WORDS[0], 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public SearchIndex.Page rareWord() {
+        return history.search(user(nextUser()), null, WORDS[WORDS.length - 1], 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public SearchIndex.Page conversation() {
+        int user = nextUser();
+        return history.search(user(user), user(partner(user)), WORDS[0], 0, PAGE_SIZE);
+    }
+
+    /** The batch as the store would hand it over, with new ids; giving them out is a small part of the cost. */
+    @Benchmark
+    public void indexBatch() {
+        List<ChatMessage> stored = new ArrayList<>(BATCH_SIZE);
+        for (ChatMessage message : batch) {
+            stored.add(new ChatMessage(message.sender(), message.receiver(), message.content(),
+                                       message.timestampMillis(), nextId++));
+        }
+        writes.add(stored);
+    }
+
+    private SearchIndex open(MessageStore store) throws IOException {
+        Path dir = Files.createTempDirectory("chat-search-bench");
+        dirs.add(dir);
+        return SearchIndex.open(dir, ServerConfig.SEARCH_SEGMENT_MESSAGES, store, false);
+    }
+
+    private int nextUser() {
+        next = next + 1 == USERS ? 0 : next + 1;
+        return next;
+    }
+
+    /** Each user always sends to the same partner, so conversations are long enough to page through. */
+    private static int partner(int user) {
+        return (user + 1 + user % 10) % USERS;
+    }
+
+    private static ChatMessage message(SplittableRandom random, int index) {
+        int sender = random.nextInt(USERS);
+        StringBuilder content = new StringBuilder(64);
+        for (int words = 4 + random.nextInt(8); words > 0; words--) {
+            // Squaring skews the choice towards the first words
+            double r = random.nextDouble();
+            content.append(WORDS[(int) (r * r * WORDS.length)]).append(' ');
+        }
+        return new ChatMessage(user(sender), user(partner(sender)), content.toString().trim(),
+                               1_700_000_000_000L + index * 1000L);
+    }
+
+    private static String[] vocabulary(int size) {
+        String[] words = new String[size];
+        for (int i = 0; i < size; i++) {
+            words[i] = "w" + Integer.toString(i, 36);
+        }
+        return words;
+    }
+
+    private static String user(int index) {
+        return "bench" + index;
+    }
+}
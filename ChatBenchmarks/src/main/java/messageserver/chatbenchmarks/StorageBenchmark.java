@@ -0,0 +1,183 @@
+package messageserver.chatbenchmarks;
+
+import messageserver.chatserver.ServerConfig;
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.Database.MySqlMessageStore;
+import messageserver.chatserver.Database.MySqlUserStore;
+import messageserver.chatserver.Storage.InMemoryMessageStore;
+import messageserver.chatserver.Storage.InMemoryUserStore;
+import messageserver.chatserver.Storage.LogMessageStore;
+import messageserver.chatserver.Storage.MessageStore;
+import messageserver.chatserver.Storage.UserStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The same storage workload against each backend: committing a batch of
+ * private messages (what the write-behind queue does), a GET_HISTORY
+ * load, one history page, a SYNC of the two newest messages of one
+ * conversation and of all of a user's conversations, and a login check.
+ *
+ * {@code mysql} needs the database {@code Dbconnection} points at and
+ * writes benchmark rows into it, so it only runs when asked for:
+ * {@code -p backend=memory,log,mysql}. The log honours
+ * {@code -Dchat.store.fsync} and {@code -Dchat.store.segmentBytes}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = Fixtures.QUIET_LOG)
+@State(Scope.Benchmark)
+public class StorageBenchmark {
+    private static final int CONVERSATIONS = 16;
+    private static final int PAGE_SIZE = 50;
+
+    @Param({"memory", "log"})
+    public String backend;
+
+    @Param({"100"})
+    public int batchSize;
+
+    @Param({"2000"})
+    public int messagesPerConversation;
+
+    // Pre-filled once per trial and only read while measuring
+    private MessageStore history;
+    // Written to while measuring; replaced every iteration so it does not grow without bound
+    private MessageStore writes;
+    private UserStore users;
+    private final List<Path> logDirs = new ArrayList<>();
+    private List<ChatMessage> batch;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        history = open();
+        for (int i = 0; i < messagesPerConversation; i++) {
+            history.savePrivateMessages(round(i));
+        }
+        users = backend.equals("mysql") ? new MySqlUserStore() : new InMemoryUserStore();
+        for (int i = 0; i < CONVERSATIONS * 2; i++) {
+            users.registerUser(user(i), "secret");
+        }
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(message(i % CONVERSATIONS, i));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void openWrites() throws IOException {
+        writes = open();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWrites() {
+        writes.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        history.close();
+        for (Path dir : logDirs) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public List<ChatMessage> saveBatch() {
+        return writes.savePrivateMessages(batch);
+    }
+
+    @Benchmark
+    public List<ChatMessage> latestHistory() {
+        int conversation = nextConversation();
+        return history.getPrivateMessages(user(conversation * 2), user(conversation * 2 + 1));
+    }
+
+    @Benchmark
+    public long historyPage(Blackhole blackhole) {
+        int conversation = nextConversation();
+        return history.streamPrivateMessages(user(conversation * 2 + 1), user(conversation * 2), 0, PAGE_SIZE,
+                ServerConfig.HISTORY_CHUNK_ROWS, blackhole::consume);
+    }
+
+    /** What reopening a chat costs once the client has all but the last two messages. */
+    @Benchmark
+    public int syncConversation(Blackhole blackhole) {
+        int conversation = nextConversation();
+        return history.streamPrivateMessagesAfter(user(conversation * 2), user(conversation * 2 + 1), lastTwoRounds(),
+                PAGE_SIZE, ServerConfig.HISTORY_CHUNK_ROWS, blackhole::consume);
+    }
+
+    /** A reconnect's catch-up: the same two messages, found among all of the user's conversations. */
+    @Benchmark
+    public int syncAll(Blackhole blackhole) {
+        int conversation = nextConversation();
+        return history.streamPrivateMessagesAfter(user(conversation * 2), null, lastTwoRounds(),
+                PAGE_SIZE, ServerConfig.HISTORY_CHUNK_ROWS, blackhole::consume);
+    }
+
+    @Benchmark
+    public boolean authenticate() {
+        return users.authenticateUser(user(nextConversation()), "secret");
+    }
+
+    private MessageStore open() throws IOException {
+        return switch (backend) {
+            case "memory" -> new InMemoryMessageStore();
+            case "mysql" -> new MySqlMessageStore();
+            case "log" -> {
+                Path dir = Files.createTempDirectory("chat-log-bench");
+                logDirs.add(dir);
+                yield LogMessageStore.open(dir, ServerConfig.STORE_SEGMENT_BYTES, ServerConfig.STORE_FSYNC);
+            }
+            default -> throw new IllegalArgumentException("Unknown backend: " + backend);
+        };
+    }
+
+    /** The id before the last two rounds of messages, so a sync returns one message per round. */
+    private long lastTwoRounds() {
+        return history.latestPrivateMessageId() - 2L * CONVERSATIONS;
+    }
+
+    private int nextConversation() {
+        next = next + 1 == CONVERSATIONS ? 0 : next + 1;
+        return next;
+    }
+
+    /** One message in every conversation, alternating direction by round. */
+    private static List<ChatMessage> round(int round) {
+        List<ChatMessage> messages = new ArrayList<>(CONVERSATIONS);
+        for (int conversation = 0; conversation < CONVERSATIONS; conversation++) {
+            messages.add(message(conversation, round));
+        }
+        return messages;
+    }
+
+    private static ChatMessage message(int conversation, int round) {
+        String a = user(conversation * 2);
+        String b = user(conversation * 2 + 1);
+        boolean forward = (round & 1) == 0;
+        return new ChatMessage(forward ? a : b, forward ? b : a, Fixtures.MESSAGE + " #" + round,
+                               1_700_000_000_000L + round * 1000L);
+    }
+
+    private static String user(int index) {
+        return "bench" + index;
+    }
+}
@@ -14,28 +14,32 @@ import javafx.scene.text.FontWeight;
 import javafx.stage.Stage;
 
 import java.io.*;
-import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import messageserver.chatclient.Network.HistoryEntry;
+import messageserver.chatclient.Network.ServerConnection;
+import messageserver.chatclient.Network.ServerEvent;
 
 public class ChatListUI extends Application {
+    private static final int MAX_RECONNECT_ATTEMPTS = 6;
+    private static final long RECONNECT_BASE_DELAY_MS = 500;
+    private static final int SYNC_PAGE_SIZE = 200;
     
     private VBox conversationList;
     private String username;
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private ServerConnection connection;
     private Map<String, Integer> unreadCounts = new HashMap<>();
+    private ConversationCache cache;
     private Set<String> onlineUsers = new HashSet<>();
     private volatile boolean isRunning = true;
     private Thread listenerThread;
     private IndividualChatUI currentChatWindow;
     private Stage primaryStage;
     
-    public ChatListUI(Socket socket, BufferedReader in, PrintWriter out, String username) {
-        this.socket = socket;
-        this.in = in;
-        this.out = out;
+    public ChatListUI(ServerConnection connection, String username) {
+        this.connection = connection;
         this.username = username;
+        this.cache = new ConversationCache(username);
     }
     
     @Override
@@ -57,8 +61,9 @@ public class ChatListUI extends Application {
         primaryStage.setScene(scene);
         primaryStage.show();
         
-        out.println("GET_USERS");
-        out.flush();
+        connection.requestUsers();
+        // Only learns the newest message id, so a reconnect can catch up from there
+        connection.requestSync("", 0, 0);
         
         listenerThread = new Thread(this::receiveUpdates);
         listenerThread.setDaemon(true);
@@ -66,14 +71,8 @@ public class ChatListUI extends Application {
         
         primaryStage.setOnCloseRequest(e -> {
             isRunning = false;
-            try {
-                out.println("LOGOUT");
-                if (socket != null && !socket.isClosed()) {
-                    socket.close();
-                }
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
+            connection.logout();
+            connection.close();
             Platform.exit();
             System.exit(0);
         });
@@ -113,47 +112,121 @@ public class ChatListUI extends Application {
     }
     
     private void receiveUpdates() {
+        while (isRunning) {
+            readUntilDisconnected();
+            if (!isRunning || !reconnect()) {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Reconnects with the session token after the connection drops. Waits a
+     * random, growing delay first so that clients cut off together (server
+     * restart, network blip) do not all come back in the same instant.
+     */
+    private boolean reconnect() {
+        for (int attempt = 0; attempt < MAX_RECONNECT_ATTEMPTS && isRunning && connection.hasSessionToken(); attempt++) {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(RECONNECT_BASE_DELAY_MS << attempt));
+                if (connection.resume()) {
+                    System.out.println("[ChatListUI:" + username + "] Reconnected with session token");
+                    connection.requestUsers();
+                    Platform.runLater(() -> connection.requestSync("", cache.globalWatermark(), SYNC_PAGE_SIZE));
+                    return true;
+                }
+                System.err.println("[ChatListUI:" + username + "] Session token rejected, please log in again");
+                return false;
+            } catch (IOException e) {
+                System.err.println("[ChatListUI:" + username + "] Reconnect attempt " + (attempt + 1) + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+    
+    private void readUntilDisconnected() {
         try {
-            String message;
-            while (isRunning && (message = in.readLine()) != null) {
-                final String msg = message;
+            ServerEvent event;
+            while (isRunning && (event = connection.readEvent()) != null) {
+                final ServerEvent msg = event;
                 System.out.println("[ChatListUI:" + username + "] Received: " + msg);
                 
-                if (msg.startsWith("USERS:")) {
-                    String userList = msg.substring(6);
-                    if (!userList.trim().isEmpty()) {
-                        String[] users = userList.split(",");
-                        Platform.runLater(() -> updateUserList(users));
-                    }
-                    
-                } else if (msg.startsWith("ONLINE:")) {
-                    String user = msg.substring(7);
-                    onlineUsers.add(user);
-                    Platform.runLater(() -> refreshConversationList());
-                    
-                } else if (msg.startsWith("OFFLINE:")) {
-                    String user = msg.substring(8);
-                    onlineUsers.remove(user);
-                    Platform.runLater(() -> refreshConversationList());
-                    
-                } else if (msg.startsWith("HISTORY:")) {
-                    if (currentChatWindow != null) {
-                        Platform.runLater(() -> currentChatWindow.handleMessage(msg));
-                    }
-                    
-                } else if (msg.startsWith("PRIVATE:")) {
-                    if (currentChatWindow != null) {
-                        Platform.runLater(() -> currentChatWindow.handleMessage(msg));
-                    } else {
-                        String[] parts = msg.substring(8).split(":", 2);
-                        if (parts.length > 0) {
-                            String sender = parts[0];
+                switch (msg.getType()) {
+                    case USERS:
+                        if (!msg.getUsers().isEmpty()) {
+                            Platform.runLater(() -> updateUserList(msg.getUsers()));
+                        }
+                        break;
+                        
+                    case ONLINE:
+                        onlineUsers.add(msg.getUser());
+                        Platform.runLater(() -> refreshConversationList());
+                        break;
+                        
+                    case OFFLINE:
+                        onlineUsers.remove(msg.getUser());
+                        Platform.runLater(() -> refreshConversationList());
+                        break;
+                        
+                    case PRESENCE_DELTA:
+                        onlineUsers.addAll(msg.getUsers());
+                        onlineUsers.removeAll(msg.getOfflineUsers());
+                        Platform.runLater(() -> refreshConversationList());
+                        break;
+                        
+                    case HISTORY:
+                    case HISTORY_CHUNK:
+                    case HISTORY_END:
+                        if (currentChatWindow != null) {
+                            Platform.runLater(() -> currentChatWindow.handleMessage(msg));
+                        }
+                        break;
+                        
+                    case PRIVATE:
+                        Platform.runLater(() -> cache.addLive(msg.getSender(), msg.getSender(), msg.getContent()));
+                        if (currentChatWindow != null) {
+                            Platform.runLater(() -> currentChatWindow.handleMessage(msg));
+                        } else {
+                            String sender = msg.getSender();
                             Platform.runLater(() -> {
                                 unreadCounts.put(sender, unreadCounts.getOrDefault(sender, 0) + 1);
                                 refreshConversationList();
                             });
                         }
-                    }
+                        break;
+                        
+                    case ACK:
+                        if (currentChatWindow != null) {
+                            Platform.runLater(() -> currentChatWindow.handleMessage(msg));
+                        }
+                        break;
+                        
+                    case SYNC_CHUNK:
+                        Platform.runLater(() -> showSynced(cache.addSynced(msg.getHistory())));
+                        break;
+                        
+                    case AUTH_RESULT:
+                        if ("REPLACED".equals(msg.getUser())) {
+                            // Logged in somewhere else; reconnecting would only log that session out
+                            System.err.println("[ChatListUI:" + username + "] Logged in from another client, disconnected");
+                            isRunning = false;
+                        }
+                        break;
+                        
+                    case SYNC_END:
+                        Platform.runLater(() -> {
+                            cache.finishSync(msg.getUser(), msg.getLastId());
+                            if (msg.hasMore()) {
+                                connection.requestSync(msg.getUser(), msg.getLastId(), SYNC_PAGE_SIZE);
+                            }
+                        });
+                        break;
+                        
+                    default:
+                        break;
                 }
             }
         } catch (IOException e) {
@@ -163,8 +236,25 @@ public class ChatListUI extends Application {
         }
     }
     
-    private void updateUserList(String[] users) {
-        System.out.println("[ChatListUI:" + username + "] Updating user list with " + users.length + " users");
+    /** Shows messages from a SYNC reply in the open chat, or counts them as unread. */
+    private void showSynced(List<HistoryEntry> messages) {
+        boolean counted = false;
+        for (HistoryEntry message : messages) {
+            String otherUser = cache.partnerOf(message);
+            if (currentChatWindow != null && currentChatWindow.getOtherUser().equals(otherUser)) {
+                currentChatWindow.showSynced(message);
+            } else if (!message.sender().equals(username)) {
+                unreadCounts.put(otherUser, unreadCounts.getOrDefault(otherUser, 0) + 1);
+                counted = true;
+            }
+        }
+        if (counted) {
+            refreshConversationList();
+        }
+    }
+    
+    private void updateUserList(List<String> users) {
+        System.out.println("[ChatListUI:" + username + "] Updating user list with " + users.size() + " users");
         conversationList.getChildren().clear();
         
         for (String user : users) {
@@ -310,14 +400,17 @@ public class ChatListUI extends Application {
         unreadCounts.put(otherUser, 0);
         
         Stage chatStage = new Stage();
-        currentChatWindow = new IndividualChatUI(out, username, otherUser, this);
+        currentChatWindow = new IndividualChatUI(connection, username, otherUser, this, cache);
         currentChatWindow.start(chatStage);
         
         primaryStage.hide();
         
-        out.println("GET_HISTORY:" + otherUser);
-        out.flush();
-        System.out.println("[ChatListUI:" + username + "] Sent GET_HISTORY:" + otherUser);
+        if (cache.has(otherUser)) {
+            currentChatWindow.showCached(cache.messages(otherUser), cache.olderCursor(otherUser));
+            connection.requestSync(otherUser, cache.syncedTo(otherUser), SYNC_PAGE_SIZE);
+        } else {
+            currentChatWindow.requestOlderHistory();
+        }
     }
     
     public void onChatClosed() {
@@ -325,20 +418,13 @@ public class ChatListUI extends Application {
         currentChatWindow = null;
         if (primaryStage != null) {
             primaryStage.show();
-            out.println("GET_USERS");
-            out.flush();
+            connection.requestUsers();
         }
     }
     
     @Override
     public void stop() {
         isRunning = false;
-        try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        connection.close();
     }
 }
\ No newline at end of file
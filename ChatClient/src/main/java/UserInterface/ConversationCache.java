@@ -0,0 +1,173 @@
+package UserInterface;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import messageserver.chatclient.Network.HistoryEntry;
+
+/**
+ * The conversations this client has already loaded, so that reopening one,
+ * or coming back after a reconnect, only asks the server for what is new
+ * (SYNC) instead of loading the history again.
+ *
+ * Each conversation keeps the messages that came with ids, from history
+ * pages and SYNC replies, and the messages sent or received live since,
+ * which have no id yet. A later SYNC returns those live messages again
+ * with their ids; they are matched by sender and text and not shown twice.
+ * The live messages of conversations that are not cached are kept too, for
+ * the SYNC after a reconnect, up to {@value #MAX_UNCACHED_LIVE} each.
+ * The global watermark is the newest id this client is caught up to in
+ * every conversation, used to catch up on all of them at once after a
+ * reconnect. Used from the JavaFX application thread only.
+ */
+final class ConversationCache {
+
+    private static final int MAX_UNCACHED_LIVE = 500;
+
+    private static final class Conversation {
+        final List<HistoryEntry> stored = new ArrayList<>(); // oldest first
+        final List<HistoryEntry> live = new ArrayList<>();   // not yet seen in a SYNC reply
+        long syncedTo;                                       // newest id known to be loaded
+        long olderCursor;                                    // beforeId of the next older page, 0 = none
+    }
+
+    private final String username;
+    private final Map<String, Conversation> conversations = new HashMap<>();
+    // Live messages of conversations not cached, oldest first
+    private final Map<String, List<HistoryEntry>> uncachedLive = new HashMap<>();
+    private long globalWatermark;
+
+    ConversationCache(String username) {
+        this.username = username;
+    }
+
+    boolean has(String otherUser) {
+        return conversations.containsKey(otherUser);
+    }
+
+    /** Everything cached for the conversation, oldest first, the live messages last. */
+    List<HistoryEntry> messages(String otherUser) {
+        Conversation conversation = conversations.get(otherUser);
+        List<HistoryEntry> messages = new ArrayList<>(conversation.stored);
+        messages.addAll(conversation.live);
+        return messages;
+    }
+
+    long syncedTo(String otherUser) {
+        return conversations.get(otherUser).syncedTo;
+    }
+
+    long olderCursor(String otherUser) {
+        return conversations.get(otherUser).olderCursor;
+    }
+
+    long globalWatermark() {
+        return globalWatermark;
+    }
+
+    /** The other side of a message this client sent or received. */
+    String partnerOf(HistoryEntry message) {
+        return message.sender().equals(username) ? message.receiver() : message.sender();
+    }
+
+    /**
+     * Adds a history page, newest message first, above what is cached. The
+     * first page of a conversation starts its cache, keeping the messages
+     * seen live that are not in the page yet.
+     */
+    void addPage(String otherUser, List<HistoryEntry> page, long nextBeforeId) {
+        Conversation conversation = conversations.get(otherUser);
+        if (conversation == null) {
+            conversation = new Conversation();
+            conversations.put(otherUser, conversation);
+            if (!page.isEmpty()) {
+                conversation.syncedTo = page.get(0).id();
+            }
+            List<HistoryEntry> live = uncachedLive.remove(otherUser);
+            if (live != null) {
+                conversation.live.addAll(live);
+                for (HistoryEntry entry : page) {
+                    removeLive(conversation.live, entry);
+                }
+            }
+        }
+        for (HistoryEntry entry : page) {
+            conversation.stored.add(0, entry);
+        }
+        conversation.olderCursor = nextBeforeId;
+    }
+
+    /** Remembers a message sent or received live, so the SYNC that returns it again does not show it twice. */
+    void addLive(String otherUser, String sender, String content) {
+        HistoryEntry entry = new HistoryEntry(sender, content, System.currentTimeMillis());
+        Conversation conversation = conversations.get(otherUser);
+        if (conversation != null) {
+            conversation.live.add(entry);
+            return;
+        }
+        List<HistoryEntry> live = uncachedLive.computeIfAbsent(otherUser, user -> new ArrayList<>());
+        if (live.size() == MAX_UNCACHED_LIVE) {
+            live.remove(0);
+        }
+        live.add(entry);
+    }
+
+    /**
+     * Takes in one SYNC chunk and returns the messages in it this client has
+     * not shown yet: those that were not already seen live.
+     */
+    List<HistoryEntry> addSynced(List<HistoryEntry> messages) {
+        List<HistoryEntry> unseen = new ArrayList<>();
+        for (HistoryEntry message : messages) {
+            Conversation conversation = conversations.get(partnerOf(message));
+            if (conversation == null) {
+                List<HistoryEntry> live = uncachedLive.get(partnerOf(message));
+                if (live == null || !removeLive(live, message)) {
+                    unseen.add(message);
+                }
+                continue;
+            }
+            if (message.id() <= conversation.syncedTo) {
+                continue;
+            }
+            conversation.stored.add(message);
+            conversation.syncedTo = message.id();
+            if (!removeLive(conversation.live, message)) {
+                unseen.add(message);
+            }
+        }
+        return unseen;
+    }
+
+    /**
+     * Notes the end of a SYNC reply: the client is caught up to
+     * {@code lastId} in {@code otherUser}'s conversation, or in all of them
+     * when it is empty. Only a SYNC of all conversations moves the global
+     * watermark: a live message may have been dropped on the way (the
+     * server's {@code drop} policy), so being connected does not mean the
+     * others are caught up too.
+     */
+    void finishSync(String otherUser, long lastId) {
+        if (otherUser.isEmpty()) {
+            globalWatermark = Math.max(globalWatermark, lastId);
+            return;
+        }
+        Conversation conversation = conversations.get(otherUser);
+        if (conversation != null) {
+            conversation.syncedTo = Math.max(conversation.syncedTo, lastId);
+        }
+    }
+
+    private static boolean removeLive(List<HistoryEntry> live, HistoryEntry message) {
+        for (Iterator<HistoryEntry> it = live.iterator(); it.hasNext(); ) {
+            HistoryEntry entry = it.next();
+            if (entry.sender().equals(message.sender()) && entry.content().equals(message.content())) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+}
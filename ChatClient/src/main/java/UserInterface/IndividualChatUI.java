@@ -13,26 +13,49 @@ import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
 import javafx.stage.Stage;
 
-import java.io.*;
+import java.time.Instant;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import messageserver.chatclient.Network.HistoryEntry;
+import messageserver.chatclient.Network.ServerConnection;
+import messageserver.chatclient.Network.ServerEvent;
 
 public class IndividualChatUI extends Application {
+    private static final int HISTORY_PAGE_SIZE = 50;
 
     private VBox messageContainer;
     private TextField messageInput;
     private String username;
     private String otherUser;
-    private PrintWriter out;
+    private ServerConnection connection;
     private ChatListUI parentChatList;
+    private ConversationCache cache;
     private DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm");
     private Stage chatStage;
-
-    public IndividualChatUI(PrintWriter out, String username, String otherUser, ChatListUI parentChatList) {
-        this.out = out;
+    private Button loadEarlierBtn;
+    // History page being received, newest message first
+    private final List<HistoryEntry> pendingPage = new ArrayList<>();
+    private long olderCursor = 0;
+    private boolean loadingHistory = false;
+    // Marks of sent messages the server has not acknowledged yet, by SEND number
+    private final NavigableMap<Long, Label> pendingChecks = new TreeMap<>();
+
+    public IndividualChatUI(ServerConnection connection, String username, String otherUser, ChatListUI parentChatList,
+                            ConversationCache cache) {
+        this.connection = connection;
         this.username = username;
         this.otherUser = otherUser;
         this.parentChatList = parentChatList;
+        this.cache = cache;
+    }
+
+    public String getOtherUser() {
+        return otherUser;
     }
 
     @Override
@@ -159,9 +182,47 @@ public class IndividualChatUI extends Application {
         scrollPane.setStyle("-fx-background: #f8f9fa; -fx-border-color: transparent;");
         scrollPane.vvalueProperty().bind(messageContainer.heightProperty());
 
+        loadEarlierBtn = new Button("Load earlier messages");
+        loadEarlierBtn.setMaxWidth(Double.MAX_VALUE);
+        loadEarlierBtn.setStyle(
+            "-fx-background-color: transparent;" +
+            "-fx-text-fill: #111184;" +
+            "-fx-font-size: 13px;" +
+            "-fx-cursor: hand;"
+        );
+        loadEarlierBtn.setOnAction(e -> requestOlderHistory());
+
         return scrollPane;
     }
 
+    /** Asks for the next page of older messages (the newest page on first call). */
+    public void requestOlderHistory() {
+        if (loadingHistory) {
+            return;
+        }
+        loadingHistory = true;
+        pendingPage.clear();
+        connection.requestHistoryPage(otherUser, olderCursor, HISTORY_PAGE_SIZE);
+        System.out.println("[IndividualChatUI:" + username + "] Sent GET_HISTORY_PAGE:" + otherUser + " before " + olderCursor);
+    }
+
+    /** Shows what was cached when the chat was last open; the caller then syncs what came since. */
+    public void showCached(List<HistoryEntry> messages, long olderCursor) {
+        System.out.println("[IndividualChatUI:" + username + "] Showing " + messages.size() + " cached messages");
+        for (HistoryEntry entry : messages) {
+            showEntry(entry);
+        }
+        this.olderCursor = olderCursor;
+        if (olderCursor != 0) {
+            messageContainer.getChildren().add(0, loadEarlierBtn);
+        }
+    }
+
+    /** Adds a message from a SYNC reply below everything shown so far. */
+    public void showSynced(HistoryEntry entry) {
+        showEntry(entry);
+    }
+
     private HBox createInputArea() {
         HBox inputArea = new HBox(12);
         inputArea.setPadding(new Insets(15, 20, 15, 20));
@@ -225,52 +286,100 @@ public class IndividualChatUI extends Application {
 
     private void sendMessage() {
         String message = messageInput.getText().trim();
-        if (!message.isEmpty() && out != null) {
-            out.println("PRIVATE:" + otherUser + ":" + message);
-            out.flush();
-            System.out.println("[IndividualChatUI:" + username + "] Sent: PRIVATE:" + otherUser + ":" + message);
-            Platform.runLater(() -> addMessage(username, message, true));
+        if (!message.isEmpty() && connection != null) {
+            long seq = connection.sendNumbered(otherUser, message);
+            cache.addLive(otherUser, username, message);
+            System.out.println("[IndividualChatUI:" + username + "] Sent: SEND:" + seq + ":" + otherUser + ":" + message);
+            // ○ until the server's ACK says the message is delivered and stored
+            Label checkmark = createCheckmark("○");
+            pendingChecks.put(seq, checkmark);
+            Platform.runLater(() -> messageContainer.getChildren().add(createMessageBox(message, true, LocalTime.now(), checkmark)));
             messageInput.clear();
         }
     }
 
-    public void handleMessage(String message) {
-        System.out.println("[IndividualChatUI:" + username + "] Handling: " + message.substring(0, Math.min(50, message.length())));
-
-        if (message.startsWith("HISTORY:")) {
-            String historyData = message.substring(8);
-            if (!historyData.trim().isEmpty()) {
-                String[] parts = historyData.split("\\|");
-                System.out.println("[IndividualChatUI:" + username + "] Processing " + parts.length + " history messages");
-                for (String histMsg : parts) {
-                    if (!histMsg.trim().isEmpty()) {
-                        parseAndDisplayMessage(histMsg);
-                    }
+    public void handleMessage(ServerEvent message) {
+        System.out.println("[IndividualChatUI:" + username + "] Handling: " + message);
+
+        if (message.getType() == ServerEvent.Type.HISTORY) {
+            if (!message.getHistory().isEmpty()) {
+                System.out.println("[IndividualChatUI:" + username + "] Processing " + message.getHistory().size() + " history messages");
+                for (HistoryEntry histMsg : message.getHistory()) {
+                    displayMessage(histMsg.sender(), histMsg.content());
                 }
             } else {
                 System.out.println("[IndividualChatUI:" + username + "] No history found");
             }
-        } else if (message.startsWith("PRIVATE:")) {
-            parseAndDisplayMessage(message.substring(8));
+        } else if (message.getType() == ServerEvent.Type.HISTORY_CHUNK) {
+            pendingPage.addAll(message.getHistory());
+        } else if (message.getType() == ServerEvent.Type.HISTORY_END) {
+            showHistoryPage(message.getNextBeforeId());
+        } else if (message.getType() == ServerEvent.Type.PRIVATE) {
+            displayMessage(message.getSender(), message.getContent());
+        } else if (message.getType() == ServerEvent.Type.ACK) {
+            markAcknowledged(message.getSeq());
         }
     }
 
-    private void parseAndDisplayMessage(String message) {
-        String[] parts = message.split(":", 3);
-        if (parts.length >= 2) {
-            String sender = parts[0];
-            String content = parts[1];
+    /** ACKs are cumulative: every message sent up to {@code seq} gets its ✓. */
+    private void markAcknowledged(long seq) {
+        NavigableMap<Long, Label> acknowledged = pendingChecks.headMap(seq, true);
+        for (Label checkmark : acknowledged.values()) {
+            checkmark.setText("✓");
+        }
+        acknowledged.clear();
+    }
 
-            if (sender.equals(username) || sender.equals(otherUser)) {
-                System.out.println("[IndividualChatUI:" + username + "] Displaying message from " + sender + ": " + content);
-                addMessage(sender, content, sender.equals(username));
-            } else {
-                System.out.println("[IndividualChatUI:" + username + "] Ignoring message from " + sender + " (not part of this conversation)");
+    /** Puts a finished page above everything shown so far, keeping the oldest message on top. */
+    private void showHistoryPage(long nextBeforeId) {
+        System.out.println("[IndividualChatUI:" + username + "] Showing " + pendingPage.size() + " history messages");
+        messageContainer.getChildren().remove(loadEarlierBtn);
+        for (HistoryEntry entry : pendingPage) {
+            if (entry.sender().equals(username) || entry.sender().equals(otherUser)) {
+                LocalTime time = LocalTime.ofInstant(Instant.ofEpochMilli(entry.timestampMillis()), ZoneId.systemDefault());
+                messageContainer.getChildren().add(0, createMessageBox(entry.content(), entry.sender().equals(username), time));
             }
         }
+        cache.addPage(otherUser, pendingPage, nextBeforeId);
+        pendingPage.clear();
+        olderCursor = nextBeforeId;
+        if (olderCursor != 0) {
+            messageContainer.getChildren().add(0, loadEarlierBtn);
+        }
+        loadingHistory = false;
+    }
+
+    private void showEntry(HistoryEntry entry) {
+        LocalTime time = LocalTime.ofInstant(Instant.ofEpochMilli(entry.timestampMillis()), ZoneId.systemDefault());
+        messageContainer.getChildren().add(createMessageBox(entry.content(), entry.sender().equals(username), time));
+    }
+
+    private void displayMessage(String sender, String content) {
+        if (sender.equals(username) || sender.equals(otherUser)) {
+            System.out.println("[IndividualChatUI:" + username + "] Displaying message from " + sender + ": " + content);
+            addMessage(sender, content, sender.equals(username));
+        } else {
+            System.out.println("[IndividualChatUI:" + username + "] Ignoring message from " + sender + " (not part of this conversation)");
+        }
     }
 
     private void addMessage(String sender, String message, boolean isSent) {
+        messageContainer.getChildren().add(createMessageBox(message, isSent, LocalTime.now()));
+    }
+
+    private HBox createMessageBox(String message, boolean isSent, LocalTime time) {
+        return createMessageBox(message, isSent, time, isSent ? createCheckmark("✓") : null);
+    }
+
+    private Label createCheckmark(String mark) {
+        Label checkmark = new Label(mark);
+        checkmark.setFont(Font.font("System", FontWeight.BOLD, 12));
+        checkmark.setTextFill(Color.WHITE);
+        checkmark.setStyle("-fx-text-fill: white;");
+        return checkmark;
+    }
+
+    private HBox createMessageBox(String message, boolean isSent, LocalTime time, Label checkmark) {
         HBox messageBox = new HBox();
         messageBox.setPadding(new Insets(4, 0, 4, 0));
         messageBox.setMaxWidth(Double.MAX_VALUE);
@@ -291,7 +400,7 @@ public class IndividualChatUI extends Application {
             messageLabel.setTextFill(Color.web("#1a202c"));
         }
 
-        Label timeLabel = new Label(LocalTime.now().format(timeFormatter));
+        Label timeLabel = new Label(time.format(timeFormatter));
         timeLabel.setFont(Font.font("System", 11));
         timeLabel.setTextFill(isSent ? Color.WHITE : Color.web("#718096"));
         if (isSent) {
@@ -309,11 +418,6 @@ public class IndividualChatUI extends Application {
                 "-fx-effect: dropshadow(gaussian, rgba(17,17,132,0.25), 8, 0, 0, 2);"
             );
             messageBox.setAlignment(Pos.CENTER_RIGHT);
-
-            Label checkmark = new Label("✓");
-            checkmark.setFont(Font.font("System", FontWeight.BOLD, 12));
-            checkmark.setTextFill(Color.WHITE);
-            checkmark.setStyle("-fx-text-fill: white;");
             timeBox.getChildren().add(checkmark);
         } else {
             bubble.setStyle(
@@ -326,7 +430,7 @@ public class IndividualChatUI extends Application {
 
         bubble.getChildren().addAll(messageLabel, timeBox);
         messageBox.getChildren().add(bubble);
-        messageContainer.getChildren().add(messageBox);
+        return messageBox;
     }
 
     private void returnToChatList() {
@@ -12,7 +12,7 @@ import javafx.scene.text.FontWeight;
 import javafx.stage.Stage;
 
 import java.io.*;
-import java.net.Socket;
+import messageserver.chatclient.Network.ServerConnection;
 
 public class ModernLoginUI extends Application {
     
@@ -161,15 +161,10 @@ public class ModernLoginUI extends Application {
         
         try {
             // Connect to your ChatServer on port 5000
-            Socket socket = new Socket("localhost", 5000);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            ServerConnection connection = ServerConnection.open("localhost", 5000);
             
-            // Send credentials to server
-            out.println(username + ":" + password);
-            
-            // Wait for server response
-            String response = in.readLine();
+            // Send credentials to server and wait for its response
+            String response = connection.login(username, password);
             
             if ("SUCCESS".equals(response)) {
                 // Close login window
@@ -177,11 +172,11 @@ public class ModernLoginUI extends Application {
                 
                 // Open chat list window
                 Stage chatListStage = new Stage();
-                ChatListUI chatListUI = new ChatListUI(socket, in, out, username);
+                ChatListUI chatListUI = new ChatListUI(connection, username);
                 chatListUI.start(chatListStage);
             } else {
                 showAlert("Error", "Invalid credentials. Please try again.");
-                socket.close();
+                connection.close();
             }
         } catch (IOException ex) {
             showAlert("Connection Error", 
@@ -12,7 +12,7 @@ import javafx.scene.text.FontWeight;
 import javafx.stage.Stage;
 
 import java.io.*;
-import java.net.Socket;
+import messageserver.chatclient.Network.ServerConnection;
 
 public class ModernSignUpUI extends Application {
     
@@ -196,17 +196,12 @@ public class ModernSignUpUI extends Application {
         
         // Connect to server to register
         try {
-            Socket socket = new Socket("localhost", 5000);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            ServerConnection connection = ServerConnection.open("localhost", 5000);
             
-            // Send registration request to server
-            out.println("REGISTER:" + username + ":" + password);
+            // Send registration request to server and wait for its response
+            String response = connection.register(username, password);
             
-            // Wait for server response
-            String response = in.readLine();
-            
-            socket.close();
+            connection.close();
             
             if ("REGISTER_SUCCESS".equals(response)) {
                 showAlert("Success", "Account created successfully!\nYou can now login.", Alert.AlertType.INFORMATION);
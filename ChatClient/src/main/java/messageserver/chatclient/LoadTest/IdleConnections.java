@@ -0,0 +1,183 @@
+package messageserver.chatclient.LoadTest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Logged-in connections that do nothing but stay open ({@code load.idleUsers}),
+ * to see how a server copes with many connections while the simulated users
+ * measure latency, or where it stops accepting more.
+ *
+ * The users ({@code <prefix>idle0..N-1}) log in one after another over the
+ * text protocol, and opening stops at the first connection the server does
+ * not log in within {@link #LOGIN_TIMEOUT_MILLIS}. From its login on, a
+ * single selector thread reads and discards whatever the server sends each
+ * of them (presence updates), so none is dropped as a slow consumer.
+ */
+final class IdleConnections {
+    private static final long LOGIN_TIMEOUT_MILLIS = 10_000;
+
+    private final List<SocketChannel> channels = new ArrayList<>();
+    // Logged in, waiting for the reader thread to register them with its selector
+    private final Queue<SocketChannel> joining = new ConcurrentLinkedQueue<>();
+    private final Selector selector;
+    private final AtomicInteger closedByServer = new AtomicInteger();
+    private String failure;
+    private long openNanos;
+    private volatile boolean stopping;
+    private Thread reader;
+
+    private IdleConnections() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /** Opens up to {@code count} connections, returning once all are logged in or one has failed. */
+    static IdleConnections open(int count) throws IOException {
+        IdleConnections idle = new IdleConnections();
+        idle.reader = new Thread(idle::drainLoop, "load-idle-reader");
+        idle.reader.setDaemon(true);
+        idle.reader.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < count && idle.failure == null; i++) {
+            idle.openOne(i);
+        }
+        idle.openNanos = System.nanoTime() - start;
+        return idle;
+    }
+
+    private void openOne(int index) {
+        String username = LoadConfig.USER_PREFIX + "idle" + index;
+        int port = LoadConfig.port(index);
+        try {
+            if (LoadConfig.REGISTER) {
+                try (SocketChannel channel = connect(port)) {
+                    send(channel, "REGISTER:" + username + ":" + LoadConfig.PASSWORD);
+                    readLine(channel);
+                }
+            }
+            SocketChannel channel = connect(port);
+            send(channel, username + ":" + LoadConfig.PASSWORD);
+            String reply = readLine(channel);
+            if (!"SUCCESS".equals(reply)) {
+                channel.close();
+                failure = username + ": " + (reply == null ? "no answer" : reply);
+                return;
+            }
+            channel.configureBlocking(false);
+            channels.add(channel);
+            joining.add(channel);
+            selector.wakeup();
+        } catch (IOException e) {
+            failure = username + ": " + e.getMessage();
+        }
+    }
+
+    private static SocketChannel connect(int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(LoadConfig.HOST, port), (int) LOGIN_TIMEOUT_MILLIS);
+            channel.socket().setSoTimeout((int) LOGIN_TIMEOUT_MILLIS);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void send(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /** The next line, read a byte at a time so nothing after it is consumed; null at end of stream. */
+    private static String readLine(SocketChannel channel) throws IOException {
+        // A blocking channel's own reads ignore SO_TIMEOUT; its socket stream honours it
+        InputStream in = channel.socket().getInputStream();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.append((char) b);
+        }
+        return b < 0 && line.isEmpty() ? null : line.toString().trim();
+    }
+
+    private void drainLoop() {
+        ByteBuffer discard = ByteBuffer.allocate(64 * 1024);
+        while (!stopping) {
+            try {
+                SocketChannel joined;
+                while ((joined = joining.poll()) != null) {
+                    joined.register(selector, SelectionKey.OP_READ);
+                }
+                selector.select(TimeUnit.SECONDS.toMillis(1));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    discard.clear();
+                    if (channel.read(discard) < 0) {
+                        key.cancel();
+                        channel.close();
+                        closedByServer.incrementAndGet();
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                if (!stopping) {
+                    System.err.println("Idle connections: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    int opened() {
+        return channels.size();
+    }
+
+    int closedByServer() {
+        return closedByServer.get();
+    }
+
+    /** Why opening stopped early, or null if every connection was logged in. */
+    String failure() {
+        return failure;
+    }
+
+    long openMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(openNanos);
+    }
+
+    void close() {
+        stopping = true;
+        selector.wakeup();
+        try {
+            reader.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package messageserver.chatclient.LoadTest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent latency histogram with about 6% resolution.
+ *
+ * Values are kept in microseconds, in log-linear buckets: 16 equal
+ * sub-buckets per power of two. Recording is one atomic increment, so all
+ * reader threads can share a histogram. Percentiles are read from
+ * {@link Snapshot}s, and subtracting two snapshots gives an interval.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void recordNanos(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Smallest value that falls into the bucket. */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    /** Bucket counts at one moment. */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long count : counts) {
+                sum += count;
+            }
+            this.total = sum;
+        }
+
+        public long count() {
+            return total;
+        }
+
+        /** What was recorded after {@code earlier}. */
+        public Snapshot minus(Snapshot earlier) {
+            long[] diff = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                diff[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(diff);
+        }
+
+        /** The value (in ms) below which {@code percentile}% of the samples fall; 0 with no samples. */
+        public double percentileMillis(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return midpoint(i) / 1000.0;
+                }
+            }
+            return maxMillis();
+        }
+
+        public double maxMillis() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return midpoint(i) / 1000.0;
+                }
+            }
+            return 0;
+        }
+
+        private static double midpoint(int bucket) {
+            long low = lowerBound(bucket);
+            return bucket + 1 < BUCKETS ? (low + lowerBound(bucket + 1) - 1) / 2.0 : low;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package messageserver.chatclient.LoadTest;
+
+import java.util.Arrays;
+
+/**
+ * Settings for a load run.
+ *
+ * Every value is a system property, e.g. {@code -Dload.users=5000}; the
+ * generator also accepts them as {@code users=5000} arguments.
+ */
+public final class LoadConfig {
+    public static final String HOST = System.getProperty("load.host", "localhost");
+    // One port, or a comma-separated list to spread users over the nodes of a
+    // cluster: user i always connects to port i mod n
+    public static final String PORT = System.getProperty("load.port", "5000");
+    private static final int[] PORTS = Arrays.stream(PORT.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+
+    // Simulated users: <prefix>0 .. <prefix>N-1, all with the same password,
+    // registered first unless load.register=false
+    public static final int USERS = Integer.getInteger("load.users", 100);
+    public static final String USER_PREFIX = System.getProperty("load.userPrefix", "load");
+    public static final String PASSWORD = System.getProperty("load.password", "load-test");
+    public static final boolean REGISTER = Boolean.parseBoolean(System.getProperty("load.register", "true"));
+    // Extra users (<prefix>idle0 ..) that log in before the others and then
+    // only hold their connection open
+    public static final int IDLE_USERS = Integer.getInteger("load.idleUsers", 0);
+
+    // Commands per second across all users (Poisson arrivals), and the share
+    // of them that are GET_USERS and GET_HISTORY; the rest are PRIVATE
+    public static final double RATE = doubleProperty("load.rate", 100);
+    public static final double GET_USERS_RATIO = doubleProperty("load.getUsersRatio", 0.01);
+    public static final double HISTORY_RATIO = doubleProperty("load.historyRatio", 0.02);
+    public static final int MESSAGE_BYTES = Integer.getInteger("load.messageBytes", 64);
+    // Send PRIVATE messages as numbered SENDs and time the server's ACKs
+    public static final boolean NUMBERED = Boolean.getBoolean("load.numbered");
+
+    // Zipf exponent for choosing who to talk to: 0 = uniform, 1 = a few
+    // users get most of the traffic
+    public static final double SKEW = doubleProperty("load.skew", 1.0);
+
+    // Mean session length before a user disconnects and logs in again
+    // (0 = stay connected), and the share of reconnects that use RESUME
+    public static final double SESSION_SECONDS = doubleProperty("load.sessionSeconds", 0);
+    public static final double RESUME_RATIO = doubleProperty("load.resumeRatio", 0.5);
+
+    // Users start evenly over the ramp; numbers are reset once the warmup
+    // has passed and the run then measures for load.durationSeconds
+    public static final long RAMP_SECONDS = Long.getLong("load.rampSeconds", 10);
+    public static final long WARMUP_SECONDS = Long.getLong("load.warmupSeconds", 10);
+    public static final long DURATION_SECONDS = Long.getLong("load.durationSeconds", 60);
+    public static final long REPORT_SECONDS = Long.getLong("load.reportSeconds", 10);
+
+    // Where to write the run summary as key=value lines (optional)
+    public static final String SUMMARY_FILE = System.getProperty("load.summaryFile");
+
+    public static final long SEED = Long.getLong("load.seed", 42);
+
+    private LoadConfig() {
+    }
+
+    /** The port the user with this index connects to. */
+    static int port(int userIndex) {
+        return PORTS[userIndex % PORTS.length];
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    static String describe() {
+        return USERS + " users" + (IDLE_USERS > 0 ? " (+" + IDLE_USERS + " idle)" : "") + " on " + HOST + ":" + PORT + ", " + RATE + " commands/s, skew " + SKEW
+                + ", GET_USERS " + GET_USERS_RATIO + ", GET_HISTORY " + HISTORY_RATIO + ", message " + MESSAGE_BYTES + " B" + (NUMBERED ? " (numbered)" : "")
+                + ", session " + (SESSION_SECONDS > 0 ? SESSION_SECONDS + " s (resume " + RESUME_RATIO + ")" : "unlimited")
+                + ", protocol " + System.getProperty("chat.protocol", "binary");
+    }
+}
@@ -0,0 +1,224 @@
+package messageserver.chatclient.LoadTest;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator: drives a running chat server with simulated
+ * users over the real protocol and reports throughput and latency.
+ *
+ * <pre>
+ * java -cp ChatClient/target/classes messageserver.chatclient.LoadTest.LoadGenerator \
+ *      users=2000 rate=5000 skew=1.1 sessionSeconds=120 durationSeconds=600 summaryFile=soak.txt
+ * </pre>
+ *
+ * Settings are listed in {@link LoadConfig}. Users log in over the ramp,
+ * numbers are reset when the warmup ends, and an interval line is printed
+ * every {@code load.reportSeconds}. At the end a summary of the measured
+ * period is printed and, with {@code load.summaryFile}, written as
+ * {@code key=value} lines so runs can be compared.
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws InterruptedException {
+        // Arguments become load.* properties before LoadConfig reads them
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split <= 0) {
+                System.err.println("Ignoring argument '" + arg + "' (expected name=value)");
+                continue;
+            }
+            String name = arg.substring(arg.startsWith("--") ? 2 : 0, split);
+            System.setProperty(name.startsWith("load.") || name.startsWith("chat.") ? name : "load." + name,
+                    arg.substring(split + 1));
+        }
+        if (LoadConfig.USERS < 2) {
+            System.err.println("load.users must be at least 2");
+            return;
+        }
+        
+        System.out.println("Load run: " + LoadConfig.describe());
+        IdleConnections idle = null;
+        if (LoadConfig.IDLE_USERS > 0) {
+            try {
+                idle = IdleConnections.open(LoadConfig.IDLE_USERS);
+            } catch (IOException e) {
+                System.err.println("Could not open idle connections: " + e.getMessage());
+                return;
+            }
+            System.out.println("Idle connections: " + idle.opened() + " logged in in " + idle.openMillis() + " ms"
+                    + (idle.failure() != null ? ", then failed: " + idle.failure() : ""));
+        }
+        LoadStats stats = new LoadStats();
+        RecipientPicker recipients = new RecipientPicker(LoadConfig.USERS, LoadConfig.SKEW);
+        AtomicBoolean stopping = new AtomicBoolean(false);
+        
+        long rampNanos = TimeUnit.SECONDS.toNanos(LoadConfig.RAMP_SECONDS);
+        List<Thread> users = new ArrayList<>(LoadConfig.USERS);
+        for (int i = 0; i < LoadConfig.USERS; i++) {
+            SimulatedUser user = new SimulatedUser(i, stats, recipients, stopping, rampNanos * i / LoadConfig.USERS);
+            users.add(Thread.ofVirtual().name("load-user-" + i).start(user));
+        }
+        
+        long start = System.nanoTime();
+        long warmupEnd = start + rampNanos + TimeUnit.SECONDS.toNanos(LoadConfig.WARMUP_SECONDS);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(LoadConfig.DURATION_SECONDS);
+        long reportNanos = TimeUnit.SECONDS.toNanos(Math.max(1, LoadConfig.REPORT_SECONDS));
+        long nextReport = start + reportNanos;
+        LoadStats.Snapshot baseline = null;
+        LoadStats.Snapshot last = stats.snapshot();
+        
+        while (true) {
+            long now = System.nanoTime();
+            long wakeUp = Math.min(nextReport, baseline == null ? Math.min(warmupEnd, end) : end);
+            if (wakeUp - now > 0) {
+                LockSupport.parkNanos(wakeUp - now);
+                continue;
+            }
+            LoadStats.Snapshot current = stats.snapshot();
+            if (baseline == null && now - warmupEnd >= 0) {
+                baseline = current;
+                System.out.println("Warmup over, measuring for " + LoadConfig.DURATION_SECONDS + " s");
+            }
+            if (now - nextReport >= 0) {
+                System.out.println(intervalLine(current.minus(last), (now - start) / 1_000_000_000, baseline == null));
+                last = current;
+                nextReport += reportNanos;
+            }
+            if (now - end >= 0) {
+                break;
+            }
+        }
+        
+        LoadStats.Snapshot measured = stats.snapshot().minus(baseline);
+        stopping.set(true);
+        for (Thread user : users) {
+            user.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        
+        if (idle != null) {
+            idle.close();
+        }
+        
+        String summary = summary(measured, idle);
+        System.out.println();
+        System.out.print(summary);
+        if (LoadConfig.SUMMARY_FILE != null) {
+            writeSummaryFile(measured, idle);
+        }
+    }
+
+    private static String intervalLine(LoadStats.Snapshot interval, long elapsedSeconds, boolean warmingUp) {
+        return String.format(Locale.ROOT,
+                "[%5ds]%s online %d | sent %.0f/s delivered %.0f/s | delivery p50 %.2f ms p99 %.2f ms"
+                        + " | logins %d resumes %d | failures %d disconnects %d",
+                elapsedSeconds, warmingUp ? " (warmup)" : "", interval.online(),
+                interval.rate(interval.privateSent()), interval.rate(interval.privateDelivered()),
+                interval.delivery().percentileMillis(50), interval.delivery().percentileMillis(99),
+                interval.logins(), interval.resumes(), interval.loginFailures(), interval.disconnects());
+    }
+
+    private static String summary(LoadStats.Snapshot run, IdleConnections idle) {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.println("========================================");
+        out.println("LOAD RUN SUMMARY");
+        out.println("========================================");
+        out.println(LoadConfig.describe());
+        out.printf(Locale.ROOT, "Measured:          %.1f s%n", run.nanoTime() / 1e9);
+        out.printf(Locale.ROOT, "Online at end:     %d of %d%n", run.online(), LoadConfig.USERS);
+        if (idle != null) {
+            out.printf(Locale.ROOT, "Idle connections:  %d of %d opened, %d closed by the server%s%n", idle.opened(),
+                    LoadConfig.IDLE_USERS, idle.closedByServer(), idle.failure() != null ? " (" + idle.failure() + ")" : "");
+        }
+        out.printf(Locale.ROOT, "PRIVATE sent:      %d (%.1f/s)%n", run.privateSent(), run.rate(run.privateSent()));
+        out.printf(Locale.ROOT, "PRIVATE delivered: %d (%.1f/s, %.2f%% of sent; offline recipients get none)%n",
+                run.privateDelivered(), run.rate(run.privateDelivered()),
+                run.privateSent() > 0 ? 100.0 * run.privateDelivered() / run.privateSent() : 0);
+        if (LoadConfig.NUMBERED) {
+            out.printf(Locale.ROOT, "PRIVATE acked:     %d (%.2f%% of sent)%n", run.privateAcked(),
+                    run.privateSent() > 0 ? 100.0 * run.privateAcked() / run.privateSent() : 0);
+        }
+        out.printf(Locale.ROOT, "GET_USERS sent:    %d, GET_HISTORY sent: %d%n", run.getUsersSent(), run.historySent());
+        out.printf(Locale.ROOT, "THROTTLED replies: %d%n", run.throttled());
+        out.printf(Locale.ROOT, "Logins:            %d, resumes: %d, failed: %d, register failures: %d, disconnects: %d%n",
+                run.logins(), run.resumes(), run.loginFailures(), run.registerFailures(), run.disconnects());
+        out.println();
+        out.println("Latency (ms)         count      p50      p90      p99    p99.9      max");
+        latencyRow(out, "delivery", run.delivery());
+        if (LoadConfig.NUMBERED) {
+            latencyRow(out, "ack", run.ack());
+        }
+        latencyRow(out, "login", run.login());
+        latencyRow(out, "resume", run.resume());
+        latencyRow(out, "GET_USERS", run.getUsers());
+        latencyRow(out, "GET_HISTORY", run.history());
+        out.println("========================================");
+        out.flush();
+        return text.toString();
+    }
+
+    private static void latencyRow(PrintWriter out, String name, LatencyHistogram.Snapshot latency) {
+        out.printf(Locale.ROOT, "%-14s %11d %8.2f %8.2f %8.2f %8.2f %8.2f%n", name, latency.count(),
+                latency.percentileMillis(50), latency.percentileMillis(90), latency.percentileMillis(99),
+                latency.percentileMillis(99.9), latency.maxMillis());
+    }
+
+    private static void writeSummaryFile(LoadStats.Snapshot run, IdleConnections idle) {
+        List<String> lines = new ArrayList<>();
+        lines.add("config=" + LoadConfig.describe());
+        lines.add("seconds=" + String.format(Locale.ROOT, "%.1f", run.nanoTime() / 1e9));
+        lines.add("users=" + LoadConfig.USERS);
+        lines.add("online=" + run.online());
+        if (idle != null) {
+            lines.add("idle.opened=" + idle.opened());
+            lines.add("idle.closedByServer=" + idle.closedByServer());
+            lines.add("idle.openMs=" + idle.openMillis());
+        }
+        lines.add("private.sent=" + run.privateSent());
+        lines.add("private.delivered=" + run.privateDelivered());
+        lines.add("private.acked=" + run.privateAcked());
+        lines.add("private.sentPerSecond=" + String.format(Locale.ROOT, "%.1f", run.rate(run.privateSent())));
+        lines.add("private.deliveredPerSecond=" + String.format(Locale.ROOT, "%.1f", run.rate(run.privateDelivered())));
+        lines.add("getUsers.sent=" + run.getUsersSent());
+        lines.add("history.sent=" + run.historySent());
+        lines.add("throttled=" + run.throttled());
+        lines.add("logins=" + run.logins());
+        lines.add("resumes=" + run.resumes());
+        lines.add("loginFailures=" + run.loginFailures());
+        lines.add("registerFailures=" + run.registerFailures());
+        lines.add("disconnects=" + run.disconnects());
+        latencyLines(lines, "delivery", run.delivery());
+        latencyLines(lines, "ack", run.ack());
+        latencyLines(lines, "login", run.login());
+        latencyLines(lines, "resume", run.resume());
+        latencyLines(lines, "getUsers", run.getUsers());
+        latencyLines(lines, "history", run.history());
+        try {
+            Files.write(Path.of(LoadConfig.SUMMARY_FILE), lines, StandardCharsets.UTF_8);
+            System.out.println("Summary written to " + LoadConfig.SUMMARY_FILE);
+        } catch (IOException e) {
+            System.err.println("Could not write " + LoadConfig.SUMMARY_FILE + ": " + e.getMessage());
+        }
+    }
+
+    private static void latencyLines(List<String> lines, String name, LatencyHistogram.Snapshot latency) {
+        lines.add(name + ".count=" + latency.count());
+        for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+            lines.add(String.format(Locale.ROOT, "%s.p%sMs=%.3f", name,
+                    percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile),
+                    latency.percentileMillis(percentile)));
+        }
+        lines.add(String.format(Locale.ROOT, "%s.maxMs=%.3f", name, latency.maxMillis()));
+    }
+}
@@ -0,0 +1,64 @@
+package messageserver.chatclient.LoadTest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters and latency histograms shared by every simulated user. */
+final class LoadStats {
+    final LongAdder logins = new LongAdder();
+    final LongAdder resumes = new LongAdder();
+    final LongAdder loginFailures = new LongAdder();
+    final LongAdder registerFailures = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder privateSent = new LongAdder();
+    final LongAdder privateDelivered = new LongAdder();
+    final LongAdder privateAcked = new LongAdder();
+    final LongAdder getUsersSent = new LongAdder();
+    final LongAdder historySent = new LongAdder();
+    // THROTTLED replies: the server's rate limiter rejected commands
+    final LongAdder throttled = new LongAdder();
+    final AtomicInteger online = new AtomicInteger();
+
+    // Sender write -> recipient receive, for PRIVATE messages
+    final LatencyHistogram delivery = new LatencyHistogram();
+    // Sender write -> ACK covering it, for numbered sends
+    final LatencyHistogram ack = new LatencyHistogram();
+    // Request -> reply on the same connection
+    final LatencyHistogram login = new LatencyHistogram();
+    final LatencyHistogram resume = new LatencyHistogram();
+    final LatencyHistogram getUsers = new LatencyHistogram();
+    final LatencyHistogram history = new LatencyHistogram();
+
+    Snapshot snapshot() {
+        return new Snapshot(System.nanoTime(), online.get(), logins.sum(), resumes.sum(), loginFailures.sum(),
+                registerFailures.sum(), disconnects.sum(), privateSent.sum(), privateDelivered.sum(), privateAcked.sum(),
+                getUsersSent.sum(), historySent.sum(), throttled.sum(), delivery.snapshot(), ack.snapshot(), login.snapshot(),
+                resume.snapshot(), getUsers.snapshot(), history.snapshot());
+    }
+
+    /** Everything at one moment; {@link #minus} turns two of them into an interval. */
+    record Snapshot(long nanoTime, int online, long logins, long resumes, long loginFailures, long registerFailures,
+                    long disconnects, long privateSent, long privateDelivered, long privateAcked, long getUsersSent,
+                    long historySent, long throttled, LatencyHistogram.Snapshot delivery,
+                    LatencyHistogram.Snapshot ack, LatencyHistogram.Snapshot login,
+                    LatencyHistogram.Snapshot resume, LatencyHistogram.Snapshot getUsers,
+                    LatencyHistogram.Snapshot history) {
+
+        Snapshot minus(Snapshot earlier) {
+            return new Snapshot(nanoTime - earlier.nanoTime, online, logins - earlier.logins,
+                    resumes - earlier.resumes, loginFailures - earlier.loginFailures,
+                    registerFailures - earlier.registerFailures, disconnects - earlier.disconnects,
+                    privateSent - earlier.privateSent, privateDelivered - earlier.privateDelivered,
+                    privateAcked - earlier.privateAcked,
+                    getUsersSent - earlier.getUsersSent, historySent - earlier.historySent,
+                    throttled - earlier.throttled,
+                    delivery.minus(earlier.delivery), ack.minus(earlier.ack), login.minus(earlier.login), resume.minus(earlier.resume),
+                    getUsers.minus(earlier.getUsers), history.minus(earlier.history));
+        }
+
+        /** Per second, for an interval produced by {@link #minus}. */
+        double rate(long count) {
+            return nanoTime > 0 ? count * 1e9 / nanoTime : 0;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package messageserver.chatclient.LoadTest;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Chooses conversation partners with a Zipf distribution over user
+ * indexes: with exponent s, user k is picked with weight 1 / (k + 1)^s.
+ * An exponent of 0 makes every user equally likely.
+ */
+final class RecipientPicker {
+    private final double[] cumulative;
+
+    RecipientPicker(int users, double exponent) {
+        cumulative = new double[users];
+        double sum = 0;
+        for (int k = 0; k < users; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < users; k++) {
+            cumulative[k] /= sum;
+        }
+    }
+
+    /** A user index other than {@code self}. */
+    int pick(int self, SplittableRandom random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        int user = Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+        return user != self ? user : (user + 1) % cumulative.length;
+    }
+}
@@ -0,0 +1,284 @@
+package messageserver.chatclient.LoadTest;
+
+import messageserver.chatclient.Network.ServerConnection;
+import messageserver.chatclient.Network.ServerEvent;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One simulated user, run on its own virtual thread.
+ *
+ * Registers once, then repeatedly logs in (or resumes), sends a Poisson
+ * stream of PRIVATE / GET_USERS / GET_HISTORY commands until its session
+ * ends, and disconnects. A second virtual thread reads the server's
+ * replies; PRIVATE contents carry the sender's {@code System.nanoTime()},
+ * so the reader can time delivery end to end. With {@code load.numbered}
+ * the messages go out as SENDs and the reader also times each ACK.
+ */
+final class SimulatedUser implements Runnable {
+    // PRIVATE content: "<MARK><sequence> <sentNanos> <padding>"
+    private static final String MARK = "lt#";
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int index;
+    private final String username;
+    private final LoadStats stats;
+    private final RecipientPicker recipients;
+    private final AtomicBoolean stopping;
+    private final long startDelayNanos;
+    private final double meanGapNanos;
+    private final SplittableRandom random;
+    private final String padding;
+    private final Queue<Long> pendingUsers = new ConcurrentLinkedQueue<>();
+    private final Queue<Long> pendingHistory = new ConcurrentLinkedQueue<>();
+    // Numbered sends waiting for an ACK: {seq, sentNanos}, oldest first
+    private final Queue<long[]> pendingAcks = new ConcurrentLinkedQueue<>();
+
+    private ServerConnection connection;
+    private Thread reader;
+    private volatile boolean sessionOpen;
+    private volatile boolean closingOnPurpose;
+    private long sequence;
+
+    SimulatedUser(int index, LoadStats stats, RecipientPicker recipients, AtomicBoolean stopping, long startDelayNanos) {
+        this.index = index;
+        this.username = username(index);
+        this.stats = stats;
+        this.recipients = recipients;
+        this.stopping = stopping;
+        this.startDelayNanos = startDelayNanos;
+        this.meanGapNanos = 1e9 * LoadConfig.USERS / Math.max(LoadConfig.RATE, 1e-9);
+        this.random = new SplittableRandom(LoadConfig.SEED * 31 + index);
+        this.padding = "x".repeat(Math.max(0, LoadConfig.MESSAGE_BYTES - 32));
+    }
+
+    static String username(int index) {
+        return LoadConfig.USER_PREFIX + index;
+    }
+
+    @Override
+    public void run() {
+        sleepUntil(System.nanoTime() + startDelayNanos);
+        if (LoadConfig.REGISTER && !stopping.get()) {
+            register();
+        }
+        boolean resume = false;
+        while (!stopping.get()) {
+            if (!connect(resume)) {
+                stats.loginFailures.increment();
+                resume = false;
+                sleepUntil(System.nanoTime() + RETRY_NANOS);
+                continue;
+            }
+            runSession(sessionEnd());
+            resume = endSession();
+        }
+    }
+
+    private void register() {
+        try {
+            ServerConnection registration = ServerConnection.open(LoadConfig.HOST, LoadConfig.port(index));
+            String status = registration.register(username, LoadConfig.PASSWORD);
+            registration.close();
+            if (!"REGISTER_SUCCESS".equals(status) && !"USERNAME_EXISTS".equals(status)) {
+                stats.registerFailures.increment();
+            }
+        } catch (IOException e) {
+            stats.registerFailures.increment();
+        }
+    }
+
+    /** Logs in, or resumes the last session if asked to and the token is still good. */
+    private boolean connect(boolean resume) {
+        long start = System.nanoTime();
+        try {
+            if (resume && connection != null && connection.resume()) {
+                stats.resume.recordNanos(System.nanoTime() - start);
+                stats.resumes.increment();
+            } else {
+                if (connection != null) {
+                    connection.close();
+                }
+                pendingAcks.clear(); // a new login numbers from 1 again
+                connection = ServerConnection.open(LoadConfig.HOST, LoadConfig.port(index));
+                if (!"SUCCESS".equals(connection.login(username, LoadConfig.PASSWORD))) {
+                    connection.close();
+                    return false;
+                }
+                stats.login.recordNanos(System.nanoTime() - start);
+                stats.logins.increment();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        pendingUsers.clear();
+        pendingHistory.clear();
+        closingOnPurpose = false;
+        sessionOpen = true;
+        stats.online.incrementAndGet();
+        ServerConnection current = connection;
+        reader = Thread.ofVirtual().name("load-reader-" + username).start(() -> readLoop(current));
+        return true;
+    }
+
+    private long sessionEnd() {
+        if (LoadConfig.SESSION_SECONDS <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return System.nanoTime() + (long) (exponential(LoadConfig.SESSION_SECONDS * 1e9));
+    }
+
+    private void runSession(long sessionEnd) {
+        long next = System.nanoTime();
+        while (sessionOpen && !stopping.get()) {
+            next += (long) exponential(meanGapNanos);
+            if (next - sessionEnd > 0) {
+                sleepUntil(sessionEnd);
+                return;
+            }
+            sleepUntil(next);
+            if (!sessionOpen || stopping.get()) {
+                return;
+            }
+            sendCommand();
+        }
+    }
+
+    private void sendCommand() {
+        double choice = random.nextDouble();
+        String partner = username(recipients.pick(index, random));
+        if (choice < LoadConfig.GET_USERS_RATIO) {
+            pendingUsers.add(System.nanoTime());
+            connection.requestUsers();
+            stats.getUsersSent.increment();
+        } else if (choice < LoadConfig.GET_USERS_RATIO + LoadConfig.HISTORY_RATIO) {
+            pendingHistory.add(System.nanoTime());
+            connection.requestHistory(partner);
+            stats.historySent.increment();
+        } else {
+            long now = System.nanoTime();
+            String content = MARK + (sequence++) + " " + now + " " + padding;
+            if (LoadConfig.NUMBERED) {
+                pendingAcks.add(new long[] { connection.sendNumbered(partner, content), now });
+            } else {
+                connection.sendPrivate(partner, content);
+            }
+            stats.privateSent.increment();
+        }
+    }
+
+    /**
+     * Ends the session; returns true if the next one should try RESUME.
+     * Churn either drops the connection (to resume) or logs out properly.
+     */
+    private boolean endSession() {
+        boolean broken = !sessionOpen;
+        boolean resume = !stopping.get() && (broken || random.nextDouble() < LoadConfig.RESUME_RATIO);
+        closingOnPurpose = true;
+        if (!broken && !resume) {
+            connection.logout();
+        }
+        connection.close();
+        joinReader();
+        sessionOpen = false;
+        stats.online.decrementAndGet();
+        return resume;
+    }
+
+    private void joinReader() {
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readLoop(ServerConnection current) {
+        try {
+            ServerEvent event;
+            while ((event = current.readEvent()) != null) {
+                onEvent(event);
+            }
+        } catch (IOException e) {
+            // closed underneath us; handled below
+        }
+        if (!closingOnPurpose) {
+            stats.disconnects.increment();
+        }
+        sessionOpen = false;
+    }
+
+    private void onEvent(ServerEvent event) {
+        long now = System.nanoTime();
+        switch (event.getType()) {
+            case PRIVATE -> {
+                long sentAt = sentNanos(event.getContent());
+                if (sentAt != 0) {
+                    stats.delivery.recordNanos(now - sentAt);
+                }
+                stats.privateDelivered.increment();
+            }
+            case USERS -> recordReply(pendingUsers, stats.getUsers, now);
+            case HISTORY -> recordReply(pendingHistory, stats.history, now);
+            case ACK -> {
+                long[] pending;
+                while ((pending = pendingAcks.peek()) != null && pending[0] <= event.getSeq()) {
+                    pendingAcks.poll();
+                    stats.ack.recordNanos(now - pending[1]);
+                    stats.privateAcked.increment();
+                }
+            }
+            case THROTTLED -> {
+                stats.throttled.increment();
+                // Replies come in order, so the rejected command is the oldest still waiting of its kind
+                switch (event.getUser()) {
+                    case "USERS" -> pendingUsers.poll();
+                    case "HISTORY" -> pendingHistory.poll();
+                    default -> {
+                        // a rejected SEND is cleared by the next cumulative ACK
+                    }
+                }
+            }
+            default -> {
+                // presence, session tokens, SAVED acks: not measured
+            }
+        }
+    }
+
+    private static void recordReply(Queue<Long> pending, LatencyHistogram histogram, long now) {
+        Long sentAt = pending.poll();
+        if (sentAt != null) {
+            histogram.recordNanos(now - sentAt);
+        }
+    }
+
+    private static long sentNanos(String content) {
+        if (content == null || !content.startsWith(MARK)) {
+            return 0;
+        }
+        int start = content.indexOf(' ') + 1;
+        int end = content.indexOf(' ', start);
+        try {
+            return Long.parseLong(content, start, end < 0 ? content.length() : end, 10);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+
+    private double exponential(double mean) {
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+
+    private void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0 && !stopping.get()) {
+            LockSupport.parkNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)));
+        }
+    }
+}
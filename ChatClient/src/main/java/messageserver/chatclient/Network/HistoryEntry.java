@@ -0,0 +1,18 @@
+package messageserver.chatclient.Network;
+
+/**
+ * One message of a conversation history received from the server; {@code id}
+ * is 0 from the old GET_HISTORY, and {@code receiver} is only known (not
+ * null) for messages that came in a SYNC or SEARCH reply. A SEARCH hit's id
+ * is the search index's own, good only as the cursor for the next page.
+ */
+public record HistoryEntry(String sender, String receiver, String content, long timestampMillis, long id) {
+
+    public HistoryEntry(String sender, String content, long timestampMillis) {
+        this(sender, null, content, timestampMillis, 0);
+    }
+
+    public HistoryEntry(String sender, String content, long timestampMillis, long id) {
+        this(sender, null, content, timestampMillis, id);
+    }
+}
@@ -0,0 +1,57 @@
+package messageserver.chatclient.Network;
+
+/**
+ * Opcodes of the binary protocol. Must match the server's
+ * {@code messageserver.chatserver.Protocol.Opcode}.
+ *
+ * Every binary frame is {@code [int length][byte opcode][fields...]}, where
+ * length counts the opcode and fields. Strings are {@code [int byteLength][UTF-8]},
+ * lists are {@code [int count][items...]}.
+ */
+public final class Opcode {
+    // Client → server
+    public static final int AUTH = 0x01;
+    public static final int REGISTER = 0x02;
+    public static final int RESUME = 0x03;
+    public static final int GET_USERS = 0x10;
+    public static final int GET_HISTORY = 0x11;
+    public static final int PRIVATE = 0x12;
+    public static final int LOGOUT = 0x13;
+    public static final int GET_HISTORY_PAGE = 0x14;
+    public static final int SYNC = 0x15;
+    public static final int SEND = 0x16;
+    public static final int JOIN_ROOM = 0x17;
+    public static final int LEAVE_ROOM = 0x18;
+    public static final int ROOM_MESSAGE = 0x19;
+    public static final int GET_ROOM_HISTORY = 0x1A;
+    public static final int SEARCH = 0x1B;
+
+    // Server → client
+    public static final int AUTH_RESULT = 0x81;
+    public static final int USERS = 0x90;
+    public static final int HISTORY = 0x91;
+    public static final int PRIVATE_IN = 0x92;
+    public static final int PRESENCE = 0x93;
+    public static final int PRESENCE_DELTA = 0x94;
+    public static final int SAVED = 0x95;
+    public static final int HISTORY_CHUNK = 0x96;
+    public static final int HISTORY_END = 0x97;
+    public static final int SESSION = 0x98;
+    public static final int THROTTLED = 0x99;
+    public static final int COMPRESSED = 0x9A;
+    public static final int SYNC_CHUNK = 0x9B;
+    public static final int SYNC_END = 0x9C;
+    public static final int ACK = 0x9D;
+    public static final int ROOM_IN = 0x9E;
+    public static final int ROOM_MEMBERS = 0x9F;
+    public static final int ROOM_MEMBER = 0xA0;
+    public static final int ROOM_HISTORY_CHUNK = 0xA1;
+    public static final int ROOM_HISTORY_END = 0xA2;
+    public static final int ROOM_ERROR = 0xA3;
+    public static final int SEARCH_CHUNK = 0xA4;
+    public static final int SEARCH_END = 0xA5;
+    public static final int TEXT_LINE = 0xFF;
+
+    private Opcode() {
+    }
+}
@@ -0,0 +1,677 @@
+package messageserver.chatclient.Network;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Client side of the chat protocol.
+ *
+ * {@link #open} offers the binary protocol with a {@code HELLO:binary} line
+ * and falls back to the original text protocol if the server does not
+ * accept it (older servers reject the HELLO line as bad credentials, so
+ * the fallback reconnects). Set {@code -Dchat.protocol=text} to skip the
+ * offer entirely. Binary connections also offer {@code deflate}, so large
+ * replies may arrive compressed; {@code -Dchat.compress=false} turns that
+ * off.
+ *
+ * After a successful login the server sends a session token; it is kept
+ * here so {@link #resume} can reconnect without the password.
+ *
+ * {@link #sendNumbered} sends a private message as SEND with the next
+ * sequence number and keeps it until an ACK covers it, without waiting
+ * for earlier ones. {@link #resume} sends whatever is still unacknowledged
+ * again, in order; the server drops the copies it already has.
+ */
+public class ServerConnection {
+    private static final String HELLO = "HELLO:";
+
+    // Replaced as a whole by resume() after a reconnect
+    private Socket socket;
+    private InputStream in;
+    private DataInputStream frames;
+    private OutputStream out;
+    private boolean binary;
+    // One inflate stream per connection, matching the server's deflate stream; null if not negotiated.
+    // Not ended on close, since the reader may still be inflating; the JDK frees it once unreachable.
+    private Inflater inflater;
+    private String host;
+    private int port;
+    // SENDs not yet covered by an ACK, oldest first. Numbered and written under
+    // this connection's lock, so they go out in order; the reader only locks the deque.
+    private final ArrayDeque<Unacked> unacked = new ArrayDeque<>();
+    private long nextSeq = 1;
+
+    private record Unacked(long seq, String recipient, String content) {
+    }
+    private volatile String sessionToken;
+
+    private ServerConnection(Socket socket, boolean binary) throws IOException {
+        // Commands are small and written one at a time; without this, Nagle's
+        // algorithm holds one back until the previous one is acknowledged
+        socket.setTcpNoDelay(true);
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.frames = new DataInputStream(in);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.binary = binary;
+    }
+
+    public static ServerConnection open(String host, int port) throws IOException {
+        ServerConnection connection = connect(host, port);
+        connection.host = host;
+        connection.port = port;
+        return connection;
+    }
+
+    private static ServerConnection connect(String host, int port) throws IOException {
+        if (!"text".equalsIgnoreCase(System.getProperty("chat.protocol", "binary"))) {
+            Socket socket = new Socket(host, port);
+            ServerConnection probe = new ServerConnection(socket, false);
+            boolean offerDeflate = Boolean.parseBoolean(System.getProperty("chat.compress", "true"));
+            probe.writeLine(HELLO + (offerDeflate ? "binary,deflate" : "binary"));
+            String reply = probe.readLine();
+            if (reply != null && reply.startsWith(HELLO) && reply.substring(HELLO.length()).contains("binary")) {
+                ServerConnection connection = new ServerConnection(socket, true, probe);
+                if (List.of(reply.substring(HELLO.length()).split(",")).contains("deflate")) {
+                    connection.inflater = new Inflater(true);
+                }
+                return connection;
+            }
+            socket.close();
+            System.out.println("[ServerConnection] Server does not speak binary, using text protocol");
+        }
+        return new ServerConnection(new Socket(host, port), false);
+    }
+
+    // Reuses the probe's streams so no bytes buffered during the handshake are lost
+    private ServerConnection(Socket socket, boolean binary, ServerConnection probe) {
+        this.socket = socket;
+        this.in = probe.in;
+        this.frames = probe.frames;
+        this.out = probe.out;
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** Sends credentials and returns the server's answer (SUCCESS, FAIL, ...). */
+    public String login(String username, String password) throws IOException {
+        if (binary) {
+            writeFrame(frame(Opcode.AUTH).string(username).string(password));
+        } else {
+            writeLine(username + ":" + password);
+        }
+        return readStatus();
+    }
+
+    /** Registers a new account and returns REGISTER_SUCCESS, USERNAME_EXISTS, ... */
+    public String register(String username, String password) throws IOException {
+        if (binary) {
+            writeFrame(frame(Opcode.REGISTER).string(username).string(password));
+        } else {
+            writeLine("REGISTER:" + username + ":" + password);
+        }
+        return readStatus();
+    }
+
+    /**
+     * Reconnects with the session token from the last login. Returns true
+     * once the server has accepted it; this connection then uses the new
+     * socket. Returns false if there is no token or the server rejected it.
+     */
+    public boolean resume() throws IOException {
+        String token = sessionToken;
+        if (token == null) {
+            return false;
+        }
+        ServerConnection fresh = connect(host, port);
+        if (fresh.binary) {
+            fresh.writeFrame(frame(Opcode.RESUME).string(token));
+        } else {
+            fresh.writeLine("RESUME:" + token);
+        }
+        if (!"SUCCESS".equals(fresh.readStatus())) {
+            fresh.close();
+            sessionToken = null;
+            return false;
+        }
+        synchronized (this) {
+            close();
+            socket = fresh.socket;
+            in = fresh.in;
+            frames = fresh.frames;
+            out = fresh.out;
+            binary = fresh.binary;
+            inflater = fresh.inflater;
+            List<Unacked> resend;
+            synchronized (unacked) {
+                resend = new ArrayList<>(unacked);
+            }
+            for (Unacked message : resend) {
+                writeSend(message);
+            }
+        }
+        return true;
+    }
+
+    public boolean hasSessionToken() {
+        return sessionToken != null;
+    }
+
+    private String readStatus() throws IOException {
+        ServerEvent event = readEvent();
+        return event == null ? null : event.getStatus();
+    }
+
+    public void requestUsers() {
+        send(binary ? frame(Opcode.GET_USERS) : null, "GET_USERS");
+    }
+
+    public void requestHistory(String otherUser) {
+        send(binary ? frame(Opcode.GET_HISTORY).string(otherUser) : null, "GET_HISTORY:" + otherUser);
+    }
+
+    /** Asks for up to {@code limit} messages older than {@code beforeId} (0 = the newest ones). */
+    public void requestHistoryPage(String otherUser, long beforeId, int limit) {
+        send(binary ? frame(Opcode.GET_HISTORY_PAGE).string(otherUser).int64(beforeId).int32(limit) : null,
+             "GET_HISTORY_PAGE:" + otherUser + ":" + beforeId + ":" + limit);
+    }
+
+    /**
+     * Asks for the messages newer than {@code afterId} with {@code otherUser},
+     * or in every conversation when it is empty, oldest first, up to
+     * {@code limit}. A limit of 0 only asks where the newest message is.
+     */
+    public void requestSync(String otherUser, long afterId, int limit) {
+        send(binary ? frame(Opcode.SYNC).string(otherUser).int64(afterId).int32(limit) : null,
+             "SYNC:" + otherUser + ":" + afterId + ":" + limit);
+    }
+
+    /**
+     * Searches the private messages with {@code otherUser}, or every
+     * conversation when it is empty, for the ones containing every word of
+     * {@code query}: up to {@code limit} hits older than {@code beforeId}
+     * (0 = the newest ones), newest first.
+     */
+    public void search(String otherUser, String query, long beforeId, int limit) {
+        send(binary ? frame(Opcode.SEARCH).string(otherUser).int64(beforeId).int32(limit).string(query) : null,
+             "SEARCH:" + otherUser + ":" + beforeId + ":" + limit + ":" + query);
+    }
+
+    public void sendPrivate(String recipient, String content) {
+        send(binary ? frame(Opcode.PRIVATE).string(recipient).string(content) : null,
+             "PRIVATE:" + recipient + ":" + content);
+    }
+
+    /**
+     * Sends a private message without waiting for the ones before it and
+     * returns its sequence number; an ACK of this number or a higher one
+     * means the server has delivered and stored it.
+     */
+    public synchronized long sendNumbered(String recipient, String content) {
+        Unacked message = new Unacked(nextSeq++, recipient, content);
+        synchronized (unacked) {
+            unacked.add(message);
+        }
+        writeSend(message);
+        return message.seq();
+    }
+
+    /** How many numbered sends are still waiting for an ACK. */
+    public int unackedCount() {
+        synchronized (unacked) {
+            return unacked.size();
+        }
+    }
+
+    private void acknowledge(long seq) {
+        synchronized (unacked) {
+            while (!unacked.isEmpty() && unacked.peekFirst().seq() <= seq) {
+                unacked.removeFirst();
+            }
+        }
+    }
+
+    private void writeSend(Unacked message) {
+        send(binary ? frame(Opcode.SEND).int64(message.seq()).string(message.recipient()).string(message.content()) : null,
+             "SEND:" + message.seq() + ":" + message.recipient() + ":" + message.content());
+    }
+
+    /** Joins a room (creating it if it is empty); the reply is ROOM_MEMBERS or ROOM_ERROR. */
+    public void joinRoom(String room) {
+        send(binary ? frame(Opcode.JOIN_ROOM).string(room) : null, "JOIN:" + room);
+    }
+
+    public void leaveRoom(String room) {
+        send(binary ? frame(Opcode.LEAVE_ROOM).string(room) : null, "LEAVE:" + room);
+    }
+
+    /** Posts to a room this user is in; the other members get it as ROOM_MESSAGE, the sender does not. */
+    public void sendRoomMessage(String room, String content) {
+        send(binary ? frame(Opcode.ROOM_MESSAGE).string(room).string(content) : null, "ROOM:" + room + ":" + content);
+    }
+
+    /** Asks for up to {@code limit} room messages older than {@code beforeId} (0 = the newest ones). */
+    public void requestRoomHistory(String room, long beforeId, int limit) {
+        send(binary ? frame(Opcode.GET_ROOM_HISTORY).string(room).int64(beforeId).int32(limit) : null,
+             "GET_ROOM_HISTORY:" + room + ":" + beforeId + ":" + limit);
+    }
+
+    public void logout() {
+        send(binary ? frame(Opcode.LOGOUT) : null, "LOGOUT");
+    }
+
+    private void send(FrameBuilder frame, String line) {
+        try {
+            if (binary) {
+                writeFrame(frame);
+            } else {
+                writeLine(line);
+            }
+        } catch (IOException e) {
+            System.err.println("[ServerConnection] Send failed: " + e.getMessage());
+        }
+    }
+
+    /** Blocks for the next message from the server; null once the connection is closed. */
+    public ServerEvent readEvent() throws IOException {
+        ServerEvent event = binary ? readBinaryEvent() : readTextEvent();
+        if (event != null && event.getType() == ServerEvent.Type.SESSION) {
+            sessionToken = event.getContent();
+        } else if (event != null && event.getType() == ServerEvent.Type.ACK) {
+            acknowledge(event.getSeq());
+        }
+        return event;
+    }
+
+    private static List<String> splitNames(String names) {
+        List<String> users = new ArrayList<>();
+        for (String user : names.split(",")) {
+            if (!user.trim().isEmpty()) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    private ServerEvent readTextEvent() throws IOException {
+        String msg = readLine();
+        if (msg == null) {
+            return null;
+        }
+        if (msg.startsWith("USERS:")) {
+            return ServerEvent.users(splitNames(msg.substring(6)));
+        } else if (msg.startsWith("ONLINE:")) {
+            return ServerEvent.presence(msg.substring(7), true);
+        } else if (msg.startsWith("OFFLINE:")) {
+            return ServerEvent.presence(msg.substring(8), false);
+        } else if (msg.startsWith("HISTORY:")) {
+            List<HistoryEntry> history = new ArrayList<>();
+            String historyData = msg.substring(8);
+            if (!historyData.trim().isEmpty()) {
+                for (String entry : historyData.split("\\|")) {
+                    // Format: sender:message:timestamp
+                    String[] parts = entry.split(":", 3);
+                    if (parts.length >= 2) {
+                        history.add(new HistoryEntry(parts[0], parts[1], parseTimestamp(parts.length > 2 ? parts[2] : null)));
+                    }
+                }
+            }
+            return ServerEvent.history(history);
+        } else if (msg.startsWith("HISTORY_MSG:")) {
+            // Format: id:timestampMillis:sender:content
+            String[] parts = msg.substring(12).split(":", 4);
+            try {
+                HistoryEntry entry = new HistoryEntry(parts[2], parts[3], Long.parseLong(parts[1]), Long.parseLong(parts[0]));
+                return ServerEvent.historyChunk(List.of(entry));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("HISTORY_END:")) {
+            int split = msg.lastIndexOf(':');
+            try {
+                return ServerEvent.historyEnd(msg.substring(12, split), Long.parseLong(msg.substring(split + 1)));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("SYNC_MSG:")) {
+            // Format: id:timestampMillis:sender:receiver:content
+            String[] parts = msg.substring(9).split(":", 5);
+            try {
+                HistoryEntry entry = new HistoryEntry(parts[2], parts[3], parts[4], Long.parseLong(parts[1]), Long.parseLong(parts[0]));
+                return ServerEvent.syncChunk(List.of(entry));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("SYNC_END:")) {
+            // Format: otherUser:lastId:more
+            String[] parts = msg.substring(9).split(":");
+            try {
+                return ServerEvent.syncEnd(parts[0], Long.parseLong(parts[1]), Boolean.parseBoolean(parts[2]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("SEARCH_HIT:")) {
+            // Format: id:timestampMillis:sender:receiver:content
+            String[] parts = msg.substring(11).split(":", 5);
+            try {
+                HistoryEntry entry = new HistoryEntry(parts[2], parts[3], parts[4], Long.parseLong(parts[1]), Long.parseLong(parts[0]));
+                return ServerEvent.searchChunk(List.of(entry));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("SEARCH_END:")) {
+            int split = msg.lastIndexOf(':');
+            try {
+                return ServerEvent.searchEnd(msg.substring(11, split), Long.parseLong(msg.substring(split + 1)));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("SESSION:")) {
+            return ServerEvent.session(msg.substring(8));
+        } else if (msg.startsWith("SAVED:")) {
+            int split = msg.lastIndexOf(':');
+            try {
+                return ServerEvent.saved(msg.substring(6, split), Integer.parseInt(msg.substring(split + 1)));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("ACK:")) {
+            try {
+                return ServerEvent.ack(Long.parseLong(msg.substring(4)));
+            } catch (NumberFormatException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("THROTTLED:")) {
+            int split = msg.lastIndexOf(':');
+            try {
+                return ServerEvent.throttled(msg.substring(10, split), Long.parseLong(msg.substring(split + 1)));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("PRIVATE:")) {
+            String[] parts = msg.substring(8).split(":", 2);
+            return ServerEvent.privateMessage(parts[0], parts.length > 1 ? parts[1] : "");
+        } else if (msg.startsWith("ROOM:")) {
+            // Format: room:sender:content
+            String[] parts = msg.substring(5).split(":", 3);
+            return parts.length == 3 ? ServerEvent.roomMessage(parts[0], parts[1], parts[2]) : ServerEvent.unknown(msg);
+        } else if (msg.startsWith("ROOM_MEMBERS:")) {
+            // Format: room:online,...:offline,...
+            String[] parts = msg.substring(13).split(":", -1);
+            return parts.length == 3 ? ServerEvent.roomMembers(parts[0], splitNames(parts[1]), splitNames(parts[2]))
+                                     : ServerEvent.unknown(msg);
+        } else if (msg.startsWith("ROOM_JOINED:") || msg.startsWith("ROOM_LEFT:")) {
+            boolean joined = msg.startsWith("ROOM_JOINED:");
+            String[] parts = msg.substring(joined ? 12 : 10).split(":", 2);
+            return parts.length == 2 ? ServerEvent.roomMember(parts[0], parts[1], joined) : ServerEvent.unknown(msg);
+        } else if (msg.startsWith("ROOM_MSG:")) {
+            // Format: room:id:timestampMillis:sender:content
+            String[] parts = msg.substring(9).split(":", 5);
+            try {
+                HistoryEntry entry = new HistoryEntry(parts[3], parts[4], Long.parseLong(parts[2]), Long.parseLong(parts[1]));
+                return ServerEvent.roomHistoryChunk(parts[0], List.of(entry));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("ROOM_HISTORY_END:")) {
+            int split = msg.lastIndexOf(':');
+            try {
+                return ServerEvent.roomHistoryEnd(msg.substring(17, split), Long.parseLong(msg.substring(split + 1)));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                return ServerEvent.unknown(msg);
+            }
+        } else if (msg.startsWith("ROOM_ERROR:")) {
+            int split = msg.lastIndexOf(':');
+            return split > 10 ? ServerEvent.roomError(msg.substring(11, split), msg.substring(split + 1)) : ServerEvent.unknown(msg);
+        } else if (msg.equals("SUCCESS") || msg.equals("FAIL") || msg.startsWith("REGISTER_") || msg.equals("USERNAME_EXISTS")
+                || msg.equals("REPLACED")) {
+            return ServerEvent.authResult(msg);
+        }
+        return ServerEvent.unknown(msg);
+    }
+
+    private ServerEvent readBinaryEvent() throws IOException {
+        int length;
+        try {
+            length = frames.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        int opcode = frames.readUnsignedByte();
+        switch (opcode) {
+            case Opcode.AUTH_RESULT:
+                return ServerEvent.authResult(readString());
+            case Opcode.USERS:
+                return ServerEvent.users(readStringList());
+            case Opcode.HISTORY: {
+                int count = frames.readInt();
+                List<HistoryEntry> history = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    history.add(new HistoryEntry(readString(), readString(), frames.readLong()));
+                }
+                return ServerEvent.history(history);
+            }
+            case Opcode.HISTORY_CHUNK: {
+                int count = frames.readInt();
+                List<HistoryEntry> history = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long id = frames.readLong();
+                    history.add(new HistoryEntry(readString(), readString(), frames.readLong(), id));
+                }
+                return ServerEvent.historyChunk(history);
+            }
+            case Opcode.HISTORY_END:
+                return ServerEvent.historyEnd(readString(), frames.readLong());
+            case Opcode.SYNC_CHUNK: {
+                int count = frames.readInt();
+                List<HistoryEntry> messages = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long id = frames.readLong();
+                    messages.add(new HistoryEntry(readString(), readString(), readString(), frames.readLong(), id));
+                }
+                return ServerEvent.syncChunk(messages);
+            }
+            case Opcode.SYNC_END:
+                return ServerEvent.syncEnd(readString(), frames.readLong(), frames.readBoolean());
+            case Opcode.SEARCH_CHUNK: {
+                int count = frames.readInt();
+                List<HistoryEntry> hits = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long id = frames.readLong();
+                    hits.add(new HistoryEntry(readString(), readString(), readString(), frames.readLong(), id));
+                }
+                return ServerEvent.searchChunk(hits);
+            }
+            case Opcode.SEARCH_END:
+                return ServerEvent.searchEnd(readString(), frames.readLong());
+            case Opcode.PRIVATE_IN:
+                return ServerEvent.privateMessage(readString(), readString());
+            case Opcode.PRESENCE:
+                return ServerEvent.presence(readString(), frames.readBoolean());
+            case Opcode.PRESENCE_DELTA:
+                return ServerEvent.presenceDelta(readStringList(), readStringList());
+            case Opcode.SESSION:
+                return ServerEvent.session(readString());
+            case Opcode.SAVED:
+                return ServerEvent.saved(readString(), frames.readInt());
+            case Opcode.THROTTLED:
+                return ServerEvent.throttled(readString(), frames.readLong());
+            case Opcode.ACK:
+                return ServerEvent.ack(frames.readLong());
+            case Opcode.ROOM_IN:
+                return ServerEvent.roomMessage(readString(), readString(), readString());
+            case Opcode.ROOM_MEMBERS:
+                return ServerEvent.roomMembers(readString(), readStringList(), readStringList());
+            case Opcode.ROOM_MEMBER:
+                return ServerEvent.roomMember(readString(), readString(), frames.readBoolean());
+            case Opcode.ROOM_HISTORY_CHUNK: {
+                String room = readString();
+                int count = frames.readInt();
+                List<HistoryEntry> history = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long id = frames.readLong();
+                    history.add(new HistoryEntry(readString(), readString(), frames.readLong(), id));
+                }
+                return ServerEvent.roomHistoryChunk(room, history);
+            }
+            case Opcode.ROOM_HISTORY_END:
+                return ServerEvent.roomHistoryEnd(readString(), frames.readLong());
+            case Opcode.ROOM_ERROR:
+                return ServerEvent.roomError(readString(), readString());
+            case Opcode.TEXT_LINE:
+                return ServerEvent.unknown(readString());
+            case Opcode.COMPRESSED:
+                return readCompressedEvent(length - 1);
+            default:
+                frames.skipNBytes(length - 1);
+                return ServerEvent.unknown("opcode " + opcode);
+        }
+    }
+
+    /** Inflates one COMPRESSED frame and decodes the frame inside it. */
+    private ServerEvent readCompressedEvent(int length) throws IOException {
+        if (inflater == null) {
+            throw new IOException("compressed frame on a connection that did not negotiate deflate");
+        }
+        byte[] compressed = new byte[length];
+        frames.readFully(compressed);
+        inflater.setInput(compressed);
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream(length * 4);
+        byte[] chunk = new byte[8192];
+        try {
+            int n;
+            // The server sync-flushes every frame, so this ends with the whole inner frame
+            while ((n = inflater.inflate(chunk)) > 0) {
+                inflated.write(chunk, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed frame", e);
+        }
+        DataInputStream outer = frames;
+        frames = new DataInputStream(new ByteArrayInputStream(inflated.toByteArray()));
+        try {
+            return readBinaryEvent();
+        } finally {
+            frames = outer;
+        }
+    }
+
+    private static long parseTimestamp(String value) {
+        try {
+            return value == null ? 0 : Timestamp.valueOf(value.trim()).getTime();
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    private List<String> readStringList() throws IOException {
+        int count = frames.readInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString());
+        }
+        return values;
+    }
+
+    private String readString() throws IOException {
+        byte[] bytes = new byte[frames.readInt()];
+        frames.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private synchronized void writeLine(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private synchronized void writeFrame(FrameBuilder frame) throws IOException {
+        frame.writeTo(out);
+        out.flush();
+    }
+
+    private static FrameBuilder frame(int opcode) {
+        return new FrameBuilder(opcode);
+    }
+
+    public void close() {
+        try {
+            if (!socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    /** Collects one outgoing binary frame. */
+    private static class FrameBuilder {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream data = new DataOutputStream(bytes);
+
+        FrameBuilder(int opcode) {
+            bytes.write(opcode);
+        }
+
+        FrameBuilder string(String value) {
+            try {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                data.writeInt(utf8.length);
+                data.write(utf8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        FrameBuilder int32(int value) {
+            try {
+                data.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        FrameBuilder int64(long value) {
+            try {
+                data.writeLong(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            DataOutputStream prefix = new DataOutputStream(out);
+            prefix.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+}
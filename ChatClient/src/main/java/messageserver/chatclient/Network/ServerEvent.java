@@ -0,0 +1,257 @@
+package messageserver.chatclient.Network;
+
+import java.util.List;
+
+/**
+ * One message from the server, decoded from either the text or the binary
+ * protocol so the UI does not have to care which one is in use.
+ */
+public class ServerEvent {
+
+    public enum Type { AUTH_RESULT, USERS, ONLINE, OFFLINE, PRESENCE_DELTA, HISTORY, HISTORY_CHUNK, HISTORY_END, SYNC_CHUNK, SYNC_END, SEARCH_CHUNK, SEARCH_END, PRIVATE, SAVED, ACK,
+                       ROOM_MESSAGE, ROOM_MEMBERS, ROOM_JOINED, ROOM_LEFT, ROOM_HISTORY_CHUNK, ROOM_HISTORY_END, ROOM_ERROR, SESSION, THROTTLED, UNKNOWN }
+
+    private final Type type;
+    private final String user;       // AUTH_RESULT status, ONLINE/OFFLINE user, PRIVATE sender, SAVED recipient, HISTORY_END other user,
+                                     // SYNC_END and SEARCH_END other user ("" = every conversation), THROTTLED limit (PRIVATE, ROOM, HISTORY, USERS, OTHER),
+                                     // ROOM_MESSAGE sender, ROOM_JOINED/ROOM_LEFT member
+    private final String content;    // PRIVATE and ROOM_MESSAGE content, ROOM_ERROR reason, SESSION token, UNKNOWN raw line
+    private final List<String> users;     // USERS, users that came online in a PRESENCE_DELTA, online ROOM_MEMBERS
+    private final List<String> offline;   // PRESENCE_DELTA users that went offline, offline ROOM_MEMBERS
+    private String room;             // every ROOM_* event
+    private final List<HistoryEntry> history;
+    private int count;               // SAVED: messages committed
+    private long nextBeforeId;       // HISTORY_END, ROOM_HISTORY_END, SEARCH_END: cursor for the next older page, 0 if none
+    private long retryAfterMillis;   // THROTTLED: roughly when the server will accept that command again
+    private long lastId;             // SYNC_END: afterId for the next SYNC
+    private boolean more;            // SYNC_END: the reply hit its limit and newer messages remain
+    private long seq;                // ACK: every SEND numbered up to this one is delivered and stored
+
+    private ServerEvent(Type type, String user, String content, List<String> users, List<HistoryEntry> history) {
+        this(type, user, content, users, List.of(), history);
+    }
+
+    private ServerEvent(Type type, String user, String content, List<String> users, List<String> offline,
+                        List<HistoryEntry> history) {
+        this.type = type;
+        this.user = user;
+        this.content = content;
+        this.users = users;
+        this.offline = offline;
+        this.history = history;
+    }
+
+    public static ServerEvent authResult(String status) {
+        return new ServerEvent(Type.AUTH_RESULT, status, null, List.of(), List.of());
+    }
+
+    public static ServerEvent users(List<String> users) {
+        return new ServerEvent(Type.USERS, null, null, users, List.of());
+    }
+
+    public static ServerEvent presence(String user, boolean online) {
+        return new ServerEvent(online ? Type.ONLINE : Type.OFFLINE, user, null, List.of(), List.of());
+    }
+
+    public static ServerEvent presenceDelta(List<String> online, List<String> offline) {
+        return new ServerEvent(Type.PRESENCE_DELTA, null, null, online, offline, List.of());
+    }
+
+    public static ServerEvent history(List<HistoryEntry> history) {
+        return new ServerEvent(Type.HISTORY, null, null, List.of(), history);
+    }
+
+    /** Part of a history page, newest message first. */
+    public static ServerEvent historyChunk(List<HistoryEntry> history) {
+        return new ServerEvent(Type.HISTORY_CHUNK, null, null, List.of(), history);
+    }
+
+    public static ServerEvent historyEnd(String otherUser, long nextBeforeId) {
+        ServerEvent event = new ServerEvent(Type.HISTORY_END, otherUser, null, List.of(), List.of());
+        event.nextBeforeId = nextBeforeId;
+        return event;
+    }
+
+    /** Part of a SYNC reply, oldest message first; every entry has its receiver. */
+    public static ServerEvent syncChunk(List<HistoryEntry> messages) {
+        return new ServerEvent(Type.SYNC_CHUNK, null, null, List.of(), messages);
+    }
+
+    public static ServerEvent syncEnd(String otherUser, long lastId, boolean more) {
+        ServerEvent event = new ServerEvent(Type.SYNC_END, otherUser, null, List.of(), List.of());
+        event.lastId = lastId;
+        event.more = more;
+        return event;
+    }
+
+    /** Part of a SEARCH reply, newest hit first; every entry has its receiver, and its id is a search cursor. */
+    public static ServerEvent searchChunk(List<HistoryEntry> hits) {
+        return new ServerEvent(Type.SEARCH_CHUNK, null, null, List.of(), hits);
+    }
+
+    public static ServerEvent searchEnd(String otherUser, long nextBeforeId) {
+        ServerEvent event = new ServerEvent(Type.SEARCH_END, otherUser, null, List.of(), List.of());
+        event.nextBeforeId = nextBeforeId;
+        return event;
+    }
+
+    public static ServerEvent privateMessage(String sender, String content) {
+        return new ServerEvent(Type.PRIVATE, sender, content, List.of(), List.of());
+    }
+
+    public static ServerEvent saved(String recipient, int count) {
+        ServerEvent event = new ServerEvent(Type.SAVED, recipient, null, List.of(), List.of());
+        event.count = count;
+        return event;
+    }
+
+    public static ServerEvent ack(long seq) {
+        ServerEvent event = new ServerEvent(Type.ACK, null, null, List.of(), List.of());
+        event.seq = seq;
+        return event;
+    }
+
+    public static ServerEvent roomMessage(String room, String sender, String content) {
+        ServerEvent event = new ServerEvent(Type.ROOM_MESSAGE, sender, content, List.of(), List.of());
+        event.room = room;
+        return event;
+    }
+
+    /** The reply to a JOIN: the room's members, online and offline. */
+    public static ServerEvent roomMembers(String room, List<String> online, List<String> offline) {
+        ServerEvent event = new ServerEvent(Type.ROOM_MEMBERS, null, null, online, offline, List.of());
+        event.room = room;
+        return event;
+    }
+
+    public static ServerEvent roomMember(String room, String username, boolean joined) {
+        ServerEvent event = new ServerEvent(joined ? Type.ROOM_JOINED : Type.ROOM_LEFT, username, null, List.of(), List.of());
+        event.room = room;
+        return event;
+    }
+
+    /** Part of a room history page, newest message first. */
+    public static ServerEvent roomHistoryChunk(String room, List<HistoryEntry> history) {
+        ServerEvent event = new ServerEvent(Type.ROOM_HISTORY_CHUNK, null, null, List.of(), history);
+        event.room = room;
+        return event;
+    }
+
+    public static ServerEvent roomHistoryEnd(String room, long nextBeforeId) {
+        ServerEvent event = new ServerEvent(Type.ROOM_HISTORY_END, null, null, List.of(), List.of());
+        event.room = room;
+        event.nextBeforeId = nextBeforeId;
+        return event;
+    }
+
+    /** A room command was refused: INVALID_NAME, NOT_MEMBER or TOO_MANY_ROOMS. */
+    public static ServerEvent roomError(String room, String reason) {
+        ServerEvent event = new ServerEvent(Type.ROOM_ERROR, null, reason, List.of(), List.of());
+        event.room = room;
+        return event;
+    }
+
+    public static ServerEvent session(String token) {
+        return new ServerEvent(Type.SESSION, null, token, List.of(), List.of());
+    }
+
+    /** The server's rate limiter is rejecting this kind of command; some recent ones were dropped. */
+    public static ServerEvent throttled(String limit, long retryAfterMillis) {
+        ServerEvent event = new ServerEvent(Type.THROTTLED, limit, null, List.of(), List.of());
+        event.retryAfterMillis = retryAfterMillis;
+        return event;
+    }
+
+    public static ServerEvent unknown(String line) {
+        return new ServerEvent(Type.UNKNOWN, null, line, List.of(), List.of());
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getStatus() {
+        return user;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getSender() {
+        return user;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public List<String> getUsers() {
+        return users;
+    }
+
+    public List<String> getOfflineUsers() {
+        return offline;
+    }
+
+    public List<HistoryEntry> getHistory() {
+        return history;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getNextBeforeId() {
+        return nextBeforeId;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public long getLastId() {
+        return lastId;
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case USERS: return "USERS (" + users.size() + " users)";
+            case PRESENCE_DELTA: return "PRESENCE (+" + users.size() + " / -" + offline.size() + ")";
+            case HISTORY: return "HISTORY (" + history.size() + " messages)";
+            case HISTORY_CHUNK: return "HISTORY_CHUNK (" + history.size() + " messages)";
+            case HISTORY_END: return "HISTORY_END:" + user + " (next before " + nextBeforeId + ")";
+            case SYNC_CHUNK: return "SYNC_CHUNK (" + history.size() + " messages)";
+            case SYNC_END: return "SYNC_END:" + user + " (last id " + lastId + (more ? ", more" : "") + ")";
+            case SEARCH_CHUNK: return "SEARCH_CHUNK (" + history.size() + " hits)";
+            case SEARCH_END: return "SEARCH_END:" + user + " (next before " + nextBeforeId + ")";
+            case PRIVATE: return "PRIVATE from " + user;
+            case SAVED: return "SAVED " + count + " to " + user;
+            case ACK: return "ACK " + seq;
+            case ROOM_MESSAGE: return "ROOM " + room + " from " + user;
+            case ROOM_MEMBERS: return "ROOM_MEMBERS " + room + " (" + users.size() + " online, " + offline.size() + " offline)";
+            case ROOM_JOINED: return "ROOM_JOINED " + room + ":" + user;
+            case ROOM_LEFT: return "ROOM_LEFT " + room + ":" + user;
+            case ROOM_HISTORY_CHUNK: return "ROOM_HISTORY_CHUNK " + room + " (" + history.size() + " messages)";
+            case ROOM_HISTORY_END: return "ROOM_HISTORY_END " + room + " (next before " + nextBeforeId + ")";
+            case ROOM_ERROR: return "ROOM_ERROR " + room + ":" + content;
+            case SESSION: return "SESSION (token received)";
+            case THROTTLED: return "THROTTLED " + user + " (retry in " + retryAfterMillis + " ms)";
+            case UNKNOWN: return content;
+            default: return type + ":" + user;
+        }
+    }
+}
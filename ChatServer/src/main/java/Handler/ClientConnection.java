@@ -0,0 +1,36 @@
+package Handler;
+
+import messageserver.chatserver.Protocol.FrameCompressor;
+
+/**
+ * The transport underneath a {@link ClientHandler}.
+ *
+ * The handler only knows how to queue an encoded frame and close the
+ * connection; the blocking socket transport and the NIO transport each
+ * provide their own implementation and feed inbound text lines to
+ * {@link ClientHandler#handleLine} and binary frames to
+ * {@link ClientHandler#handleFrame}.
+ */
+public interface ClientConnection {
+
+    /** Queues one already-encoded frame (text line or binary) for the client. */
+    void send(byte[] frame);
+
+    /**
+     * Compresses frames queued after this call with {@code compressor};
+     * everything queued before it, such as the HELLO reply, goes out as
+     * it is. The connection ends the compressor when it closes. Transports
+     * that cannot compress just end it.
+     */
+    default void enableCompression(FrameCompressor compressor) {
+        compressor.end();
+    }
+
+    /** Closes the underlying socket. Safe to call more than once. */
+    void close();
+
+    boolean isOpen();
+
+    /** host:port of the remote side, for logging. */
+    String remoteAddress();
+}
@@ -1,190 +1,681 @@
 package Handler;
 
-import java.io.*;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import messageserver.chatserver.ChatServer;
-import messageserver.chatserver.Database.Dbconnection;
+import messageserver.chatserver.CommandLimiter;
+import messageserver.chatserver.PresenceEngine;
+import messageserver.chatserver.SendSequence;
+import messageserver.chatserver.ServerConfig;
+import messageserver.chatserver.SessionTokens;
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.Database.UserDirectory;
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Metrics.Metrics;
+import messageserver.chatserver.Metrics.Metrics.Command;
+import messageserver.chatserver.Protocol.BinaryFormat;
+import messageserver.chatserver.Protocol.FrameCompressor;
+import messageserver.chatserver.Protocol.FrameReader;
+import messageserver.chatserver.Protocol.Handshake;
+import messageserver.chatserver.Protocol.Opcode;
+import messageserver.chatserver.Protocol.TextFormat;
+import messageserver.chatserver.Protocol.WireFormat;
+import messageserver.chatserver.Rooms.Room;
+import messageserver.chatserver.Rooms.RoomFrame;
+import messageserver.chatserver.Rooms.RoomRegistry;
+import messageserver.chatserver.Storage.MessageStore;
+import messageserver.chatserver.Storage.SearchIndex;
 
-public class ClientHandler extends Thread {
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+public class ClientHandler {
+    private static final LongAdder RESENDS_DROPPED = Metrics.counter("chat_send_duplicates_total",
+            "SENDs dropped because the same number was already accepted (resends after a reconnect)");
+    
+    private final ClientConnection connection;
     private String username;
     private volatile boolean isRunning = true;
+    private volatile boolean authenticated = false;
+    private volatile WireFormat format = TextFormat.INSTANCE;
+    private volatile CommandLimiter limiter;
+    private volatile SendSequence sendSequence;
+    private boolean greeted = false;
+    private final AtomicBoolean cleanedUp = new AtomicBoolean(false);
     
-    public ClientHandler(Socket socket) {
-        this.socket = socket;
+    public ClientHandler(ClientConnection connection) {
+        this.connection = connection;
     }
     
-    public void run() {
-        try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-            
-            // Authentication or Registration
-            String credentials = in.readLine();
-            if (credentials == null) {
-                System.err.println("  ✗ No credentials received");
-                socket.close();
+    /**
+     * Entry point for every inbound text line, whichever transport read it.
+     * An optional HELLO line comes first, then the credentials (or
+     * registration) handshake, then chat commands. Lines for one client are
+     * always delivered one at a time and in order.
+     */
+    public void handleLine(String line) {
+        if (!isRunning) {
+            return;
+        }
+        if (!authenticated) {
+            if (!greeted && Handshake.isHello(line)) {
+                handleHello(line);
                 return;
             }
-            
-            System.out.println("  [Auth] Received credentials: " + credentials);
-            
-            // Check if it's a registration request FIRST
-            if (credentials.startsWith("REGISTER:")) {
-                handleRegistration(credentials.substring(9));
-                return; // Close connection after registration
+            handleCredentials(line);
+            return;
+        }
+        Log.trace("  [{}] Received command: {}", username, line);
+        handleClientMessage(line);
+    }
+    
+    /**
+     * Entry point for binary frames, once the client has negotiated binary
+     * mode. Fields are read straight from the frame; nothing is split.
+     */
+    public void handleFrame(FrameReader frame) {
+        if (!isRunning) {
+            return;
+        }
+        try {
+            int opcode = frame.readByte();
+            if (!authenticated) {
+                if (opcode == Opcode.AUTH) {
+                    authenticate(frame.readString(), frame.readString());
+                } else if (opcode == Opcode.RESUME) {
+                    resume(frame.readString());
+                } else if (opcode == Opcode.REGISTER) {
+                    register(frame.readString(), frame.readString());
+                } else {
+                    Log.warn("  ✗ Expected AUTH or REGISTER frame, got opcode {}", opcode);
+                    rejectCredentials();
+                }
+                return;
             }
-            
-            // Normal authentication (only if not a REGISTER request)
-            String[] parts = credentials.split(":", 2);
-            if (parts.length < 2) {
-                System.err.println("  ✗ Invalid credentials format");
-                out.println("FAIL");
-                socket.close();
+            if (!admit(commandKind(opcode))) {
                 return;
             }
             
-            username = parts[0];
-            String password = parts[1];
-            
-            System.out.println("  [Auth] Attempting to authenticate user: " + username);
-            
-            if (Dbconnection.authenticateUser(username, password)) {
-                System.out.println("  ✓ Authentication SUCCESS for: " + username);
-                out.println("SUCCESS");
-                out.flush();
-                
-                ChatServer.addClient(this);
-                ChatServer.broadcastUserStatus(username, true);
-                
-                // Handle messages
-                String message;
-                while (isRunning && (message = in.readLine()) != null) {
-                    System.out.println("  [" + username + "] Received command: " + message);
-                    handleClientMessage(message);
-                }
-            } else {
-                System.err.println("  ✗ Authentication FAILED for: " + username);
-                out.println("FAIL");
-                socket.close();
+            switch (opcode) {
+                case Opcode.GET_USERS -> handleGetUsers();
+                case Opcode.GET_HISTORY -> handleGetHistory(frame.readString());
+                case Opcode.GET_HISTORY_PAGE -> handleGetHistoryPage(frame.readString(), frame.readLong(), frame.readInt());
+                case Opcode.SYNC -> handleSync(frame.readString(), frame.readLong(), frame.readInt());
+                case Opcode.SEARCH -> handleSearch(frame.readString(), frame.readLong(), frame.readInt(), frame.readString());
+                case Opcode.PRIVATE -> handlePrivate(frame.readString(), frame.readString());
+                case Opcode.SEND -> handleSend(frame.readLong(), frame.readString(), frame.readString());
+                case Opcode.JOIN_ROOM -> handleJoinRoom(frame.readString());
+                case Opcode.LEAVE_ROOM -> handleLeaveRoom(frame.readString());
+                case Opcode.ROOM_MESSAGE -> handleRoomMessage(frame.readString(), frame.readString());
+                case Opcode.GET_ROOM_HISTORY -> handleGetRoomHistory(frame.readString(), frame.readLong(), frame.readInt());
+                case Opcode.LOGOUT -> handleLogout();
+                default -> Log.warn("    ✗ Unknown opcode: {}", opcode);
             }
-        } catch (IOException e) {
-            System.out.println("  [" + username + "] Client disconnected: " + e.getMessage());
-        } finally {
-            cleanup();
+        } catch (IllegalArgumentException e) {
+            Log.warn("    ✗ Malformed frame from {}: {}", connection.remoteAddress(), e.getMessage());
+            connection.close();
         }
     }
     
-    private void handleRegistration(String credentials) {
-        try {
-            String[] parts = credentials.split(":", 2);
+    /** Called by the transport once the socket has been closed or has failed. */
+    public void onDisconnect(String reason) {
+        if (reason != null) {
+            Log.info("  [{}] Client disconnected: {}", username, reason);
+        }
+        cleanup();
+    }
+    
+    private void handleHello(String line) {
+        greeted = true;
+        List<String> accepted = Handshake.accepted(line);
+        Log.debug("  [Hello] Client offered {}, accepted {}", line, accepted);
+        // The reply is always a text line; binary starts right after it
+        connection.send(TextFormat.INSTANCE.line(Handshake.reply(accepted)));
+        if (accepted.contains(Handshake.BINARY)) {
+            format = BinaryFormat.INSTANCE;
+        }
+        FrameCompressor compressor = Handshake.compressorFor(accepted);
+        if (compressor != null) {
+            // Only after the reply: the client reads it before it knows whether to inflate
+            connection.enableCompression(compressor);
+        }
+    }
+    
+    private void handleCredentials(String credentials) {
+        Log.trace("  [Auth] Received credentials line");
+        
+        // Check if it's a registration request FIRST
+        if (credentials.startsWith("REGISTER:")) {
+            String[] parts = credentials.substring(9).split(":", 2);
             if (parts.length < 2) {
-                System.err.println("  ✗ Invalid registration format");
-                out.println("REGISTER_FAIL");
-                socket.close();
+                Log.warn("  ✗ Invalid registration format");
+                isRunning = false;
+                connection.send(format.authResult("REGISTER_FAIL"));
+                connection.close();
                 return;
             }
-            
-            String username = parts[0];
-            String password = parts[1];
-            
-            System.out.println("  [Register] Attempting to register user: " + username);
-            
-            if (Dbconnection.registerUser(username, password)) {
-                System.out.println("  ✓ Registration SUCCESS for: " + username);
-                out.println("REGISTER_SUCCESS");
-            } else {
-                System.err.println("  ✗ Registration FAILED for: " + username + " (username exists)");
-                out.println("USERNAME_EXISTS");
-            }
-            
-            out.flush();
-            socket.close();
-            
-        } catch (IOException e) {
-            System.err.println("  ✗ Registration error: " + e.getMessage());
+            register(parts[0], parts[1]);
+            return; // Close connection after registration
+        }
+        
+        // Reconnect with a session token instead of a password
+        if (credentials.startsWith("RESUME:")) {
+            resume(credentials.substring(7));
+            return;
+        }
+        
+        // Normal authentication (only if not a REGISTER request)
+        String[] parts = credentials.split(":", 2);
+        if (parts.length < 2) {
+            Log.warn("  ✗ Invalid credentials format");
+            rejectCredentials();
+            return;
+        }
+        
+        authenticate(parts[0], parts[1]);
+    }
+    
+    private void authenticate(String username, String password) {
+        long start = System.nanoTime();
+        this.username = username;
+        Log.debug("  [Auth] Attempting to authenticate user: {}", username);
+        
+        if (ChatServer.authenticateUser(username, password)) {
+            Log.info("  ✓ Authentication SUCCESS for: {}", username);
+            completeLogin(false);
+        } else {
+            Log.warn("  ✗ Authentication FAILED for: {}", username);
+            this.username = null;
+            rejectCredentials();
+        }
+        Command.AUTH.record(start);
+    }
+    
+    /** Checks a session token in memory; no database query. */
+    private void resume(String token) {
+        long start = System.nanoTime();
+        String tokenUser = SessionTokens.verify(token);
+        if (tokenUser == null) {
+            Log.warn("  ✗ Session token rejected from {}", connection.remoteAddress());
+            rejectCredentials();
+        } else {
+            this.username = tokenUser;
+            Log.info("  ✓ Session resumed for: {}", tokenUser);
+            completeLogin(true);
+        }
+        Command.RESUME.record(start);
+    }
+    
+    private void completeLogin(boolean resumed) {
+        limiter = ServerConfig.LIMITS_ENABLED ? new CommandLimiter(username) : null;
+        sendSequence = ChatServer.sendSequence(username, resumed);
+        connection.send(format.authResult("SUCCESS"));
+        connection.send(format.session(SessionTokens.issue(username)));
+        authenticated = true;
+        
+        ChatServer.addClient(this);
+        ChatServer.broadcastUserStatus(username, true);
+    }
+    
+    private void rejectCredentials() {
+        isRunning = false;
+        connection.send(format.authResult("FAIL"));
+        connection.close();
+    }
+    
+    private void register(String username, String password) {
+        long start = System.nanoTime();
+        isRunning = false;
+        Log.debug("  [Register] Attempting to register user: {}", username);
+        
+        if (!isStorableName(username)) {
+            Log.warn("  ✗ Registration FAILED: username over {} bytes", MessageStore.MAX_NAME_BYTES);
+            connection.send(format.authResult("REGISTER_FAIL"));
+        } else if (ChatServer.registerUser(username, password)) {
+            Log.info("  ✓ Registration SUCCESS for: {}", username);
+            connection.send(format.authResult("REGISTER_SUCCESS"));
+        } else {
+            Log.warn("  ✗ Registration FAILED for: {} (username exists)", username);
+            connection.send(format.authResult("USERNAME_EXISTS"));
         }
+        
+        connection.close();
+        Command.REGISTER.record(start);
     }
     
     private void handleClientMessage(String message) {
+        if (!admit(commandKind(message))) {
+            return;
+        }
         
         if (message.equals("GET_USERS")) {
-            System.out.println("    → Processing GET_USERS request");
-            String userList = ChatServer.getAllUsers();
-            String response = "USERS:" + userList;
-            sendMessage(response);
-            System.out.println("    → Sent: " + response);
-            
+            handleGetUsers();
+        
+        } else if (message.startsWith("GET_HISTORY_PAGE:")) {
+            String[] parts = message.substring(17).split(":");
+            try {
+                handleGetHistoryPage(parts[0], Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Log.warn("    ✗ Invalid GET_HISTORY_PAGE format");
+            }
+        
+        } else if (message.startsWith("SYNC:")) {
+            String[] parts = message.substring(5).split(":");
+            try {
+                handleSync(parts[0], Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Log.warn("    ✗ Invalid SYNC format");
+            }
+        
+        } else if (message.startsWith("SEARCH:")) {
+            // The query comes last, so it may contain ':'
+            String[] parts = message.substring(7).split(":", 4);
+            try {
+                handleSearch(parts[0], Long.parseLong(parts[1]), Integer.parseInt(parts[2]), parts[3]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Log.warn("    ✗ Invalid SEARCH format");
+            }
+        
         } else if (message.startsWith("GET_HISTORY:")) {
-            String otherUser = message.substring(12);
-            System.out.println("    → Processing GET_HISTORY for chat with: " + otherUser);
-            
-            String history = Dbconnection.getPrivateMessageHistory(username, otherUser);
-            String response = "HISTORY:" + history;
-            sendMessage(response);
-            System.out.println("    → Sent history (" + history.length() + " chars)");
-            
+            handleGetHistory(message.substring(12));
+        
         } else if (message.startsWith("PRIVATE:")) {
             String[] parts = message.substring(8).split(":", 2);
             if (parts.length == 2) {
-                String recipient = parts[0];
-                String content = parts[1];
-                
-                System.out.println("    → Processing PRIVATE message");
-                System.out.println("      From: " + username);
-                System.out.println("      To: " + recipient);
-                System.out.println("      Content: " + content);
-                
-                // Save to database
-                Dbconnection.savePrivateMessage(username, recipient, content);
-                
-                // Send to recipient if online
-                ChatServer.sendPrivateMessage(username, recipient, content);
+                handlePrivate(parts[0], parts[1]);
             } else {
-                System.err.println("    ✗ Invalid PRIVATE message format");
+                Log.warn("    ✗ Invalid PRIVATE message format");
             }
-            
+        
+        } else if (message.startsWith("SEND:")) {
+            String[] parts = message.substring(5).split(":", 3);
+            try {
+                handleSend(Long.parseLong(parts[0]), parts[1], parts[2]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Log.warn("    ✗ Invalid SEND format");
+            }
+        
+        } else if (message.startsWith("ROOM:")) {
+            String[] parts = message.substring(5).split(":", 2);
+            if (parts.length == 2) {
+                handleRoomMessage(parts[0], parts[1]);
+            } else {
+                Log.warn("    ✗ Invalid ROOM message format");
+            }
+        
+        } else if (message.startsWith("JOIN:")) {
+            handleJoinRoom(message.substring(5));
+        
+        } else if (message.startsWith("LEAVE:")) {
+            handleLeaveRoom(message.substring(6));
+        
+        } else if (message.startsWith("GET_ROOM_HISTORY:")) {
+            String[] parts = message.substring(17).split(":");
+            try {
+                handleGetRoomHistory(parts[0], Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Log.warn("    ✗ Invalid GET_ROOM_HISTORY format");
+            }
+        
         } else if (message.equals("LOGOUT")) {
-            System.out.println("    → Processing LOGOUT");
-            isRunning = false;
-            cleanup();
+            handleLogout();
         } else {
-            System.err.println("    ✗ Unknown command: " + message);
+            Log.warn("    ✗ Unknown command: {}", message);
         }
     }
     
-    public void sendMessage(String message) {
-        if (out != null && !socket.isClosed()) {
-            out.println(message);
-            out.flush();
-            System.out.println("    [→ " + username + "] Sent: " + message.substring(0, Math.min(50, message.length())) + (message.length() > 50 ? "..." : ""));
+    /**
+     * Charges a command to this session's rate limits (if they are on)
+     * before any of it is parsed. Rejected commands are dropped; the client is sent THROTTLED
+     * now and then, and disconnected if it keeps going.
+     */
+    private boolean admit(CommandLimiter.Kind kind) {
+        if (kind == null || limiter == null) {
+            return true;
+        }
+        switch (limiter.check(kind)) {
+            case ALLOW -> {
+                return true;
+            }
+            case THROTTLE -> send(format.throttled(kind.name(), limiter.retryAfterMillis(kind)), "THROTTLED", kind);
+            case DISCONNECT -> cleanup();
+            case DROP -> {
+                // the client was told less than a second ago
+            }
+        }
+        return false;
+    }
+    
+    /** The limit a text command counts against; null for LOGOUT, which is never limited. */
+    private static CommandLimiter.Kind commandKind(String line) {
+        if (line.startsWith("PRIVATE:") || line.startsWith("SEND:")) {
+            return CommandLimiter.Kind.PRIVATE;
+        } else if (line.startsWith("ROOM:")) {
+            return CommandLimiter.Kind.ROOM;
+        } else if (line.startsWith("GET_HISTORY") || line.startsWith("GET_ROOM_HISTORY:") || line.startsWith("SYNC:")
+                   || line.startsWith("SEARCH:")) {
+            return CommandLimiter.Kind.HISTORY;
+        } else if (line.equals("GET_USERS")) {
+            return CommandLimiter.Kind.USERS;
+        } else if (line.equals("LOGOUT")) {
+            return null;
+        }
+        return CommandLimiter.Kind.OTHER;
+    }
+    
+    private static CommandLimiter.Kind commandKind(int opcode) {
+        return switch (opcode) {
+            case Opcode.PRIVATE, Opcode.SEND -> CommandLimiter.Kind.PRIVATE;
+            case Opcode.ROOM_MESSAGE -> CommandLimiter.Kind.ROOM;
+            case Opcode.GET_HISTORY, Opcode.GET_HISTORY_PAGE, Opcode.SYNC, Opcode.GET_ROOM_HISTORY, Opcode.SEARCH ->
+                    CommandLimiter.Kind.HISTORY;
+            case Opcode.GET_USERS -> CommandLimiter.Kind.USERS;
+            case Opcode.LOGOUT -> null;
+            default -> CommandLimiter.Kind.OTHER;
+        };
+    }
+    
+    private void handleGetUsers() {
+        long start = System.nanoTime();
+        Log.debug("    → Processing GET_USERS request");
+        UserDirectory.Snapshot users = ChatServer.getAllUsers();
+        send(users.encodedFor(format), "USERS", users.size());
+        Command.GET_USERS.record(start);
+    }
+    
+    private void handleGetHistory(String otherUser) {
+        long start = System.nanoTime();
+        Log.debug("    → Processing GET_HISTORY for chat with: {}", otherUser);
+        
+        List<ChatMessage> history = ChatServer.getPrivateHistory(username, otherUser);
+        send(format.history(history), "HISTORY", history.size());
+        Command.GET_HISTORY.record(start);
+    }
+    
+    /** Streams one page of history straight from the store, a chunk per write. */
+    private void handleGetHistoryPage(String otherUser, long beforeId, int limit) {
+        long start = System.nanoTime();
+        int pageSize = Math.max(1, Math.min(limit, ServerConfig.HISTORY_MAX_PAGE));
+        Log.debug("    → Processing GET_HISTORY_PAGE with {} (before {}, limit {})", otherUser, beforeId, pageSize);
+        
+        long nextBeforeId = ChatServer.streamPrivateHistory(username, otherUser, beforeId, pageSize,
+                ServerConfig.HISTORY_CHUNK_ROWS, chunk -> send(format.historyChunk(chunk), "HISTORY_CHUNK", chunk.size()));
+        send(format.historyEnd(otherUser, nextBeforeId), "HISTORY_END", nextBeforeId);
+        Command.GET_HISTORY_PAGE.record(start);
+    }
+    
+    /**
+     * Streams the messages newer than {@code afterId} in the conversation
+     * with {@code otherUser}, or in all of this user's conversations when it
+     * is empty, oldest first. A limit of 0 sends no messages and just
+     * tells the client where the newest one is.
+     */
+    private void handleSync(String otherUser, long afterId, int limit) {
+        long start = System.nanoTime();
+        int pageSize = Math.max(0, Math.min(limit, ServerConfig.HISTORY_MAX_PAGE));
+        Log.debug("    → Processing SYNC with {} (after {}, limit {})", otherUser.isEmpty() ? "everyone" : otherUser, afterId, pageSize);
+        
+        // Read before the messages: every message at or below it is stored, and anything stored from now on
+        // gets a higher id. Rows above it are held back for the next SYNC, since with several servers writing
+        // there may still be a message below one of them that is not committed yet
+        long latest = ChatServer.latestPrivateMessageId();
+        long[] lastSent = {afterId};
+        boolean[] capped = {false};
+        int count = pageSize == 0 ? 0 : ChatServer.streamPrivateMessagesAfter(username, otherUser.isEmpty() ? null : otherUser,
+                afterId, pageSize, ServerConfig.HISTORY_CHUNK_ROWS, chunk -> {
+                    int committed = chunk.size();
+                    while (committed > 0 && chunk.get(committed - 1).id() > latest) {
+                        committed--;
+                    }
+                    if (committed < chunk.size()) {
+                        capped[0] = true;
+                    }
+                    if (committed > 0) {
+                        lastSent[0] = chunk.get(committed - 1).id();
+                        send(format.syncChunk(chunk.subList(0, committed)), "SYNC_CHUNK", committed);
+                    }
+                });
+        boolean more = pageSize > 0 && count == pageSize && !capped[0];
+        // A failed read leaves the client where it was, so it asks again next time
+        long lastId = more || count < 0 ? lastSent[0] : Math.max(lastSent[0], latest);
+        send(format.syncEnd(otherUser, lastId, more), "SYNC_END", lastId);
+        Command.SYNC.record(start);
+    }
+    
+    /**
+     * Sends one page of this user's private messages that contain every
+     * word of {@code query}, newest first, from the conversation with
+     * {@code otherUser} or from all of them when it is empty.
+     */
+    private void handleSearch(String otherUser, long beforeId, int limit, String query) {
+        long start = System.nanoTime();
+        int pageSize = Math.max(1, Math.min(limit, ServerConfig.HISTORY_MAX_PAGE));
+        Log.debug("    → Processing SEARCH in {} (before {}, limit {})", otherUser.isEmpty() ? "everyone" : otherUser, beforeId, pageSize);
+        Log.trace("      Query: {}", query);
+        
+        SearchIndex.Page page = ChatServer.searchPrivateMessages(username, otherUser.isEmpty() ? null : otherUser,
+                query, beforeId, pageSize);
+        MessageStore.streamChunks(page.hits(), ServerConfig.HISTORY_CHUNK_ROWS,
+                chunk -> send(format.searchChunk(chunk), "SEARCH_CHUNK", chunk.size()));
+        send(format.searchEnd(otherUser, page.nextBeforeId()), "SEARCH_END", page.nextBeforeId());
+        Command.SEARCH.record(start);
+    }
+    
+    private void handlePrivate(String recipient, String content) {
+        long start = System.nanoTime();
+        Log.debug("    → Processing PRIVATE message from {} to {}", username, recipient);
+        Log.trace("      Content: {}", content);
+        
+        if (!isStorableName(recipient)) {
+            Log.warn("    ✗ PRIVATE from {} refused: recipient name over {} bytes", username, MessageStore.MAX_NAME_BYTES);
+            Command.PRIVATE.record(start);
+            return;
+        }
+        // Send to recipient if online, then queue for the database
+        ChatServer.sendPrivateMessage(username, recipient, content);
+        ChatServer.persistPrivateMessage(username, recipient, content);
+        Command.PRIVATE.record(start);
+    }
+    
+    /** True if every store can keep {@code name} as a sender or receiver. */
+    private static boolean isStorableName(String name) {
+        // Up to three UTF-8 bytes per char, so short names need no encoding
+        return name.length() * 3 <= MessageStore.MAX_NAME_BYTES
+                || name.getBytes(StandardCharsets.UTF_8).length <= MessageStore.MAX_NAME_BYTES;
+    }
+    
+    /**
+     * A private message numbered by the client. A number already accepted is
+     * a resend and is dropped; if that message is already stored the client
+     * is acknowledged again, since the first ACK may have been lost with the
+     * connection. Otherwise the ACK follows once the write-behind queue has
+     * committed it.
+     */
+    private void handleSend(long seq, String recipient, String content) {
+        long start = System.nanoTime();
+        SendSequence sequence = sendSequence;
+        SendSequence.Accept accept = sequence.accept(seq);
+        if (accept == SendSequence.Accept.DUPLICATE) {
+            Log.debug("    ⚠ Dropped resent SEND {} from {}", seq, username);
+            RESENDS_DROPPED.increment();
+            if (sequence.finished() >= seq) {
+                sendAck(sequence);
+            }
+            Command.SEND.record(start);
+            return;
+        }
+        if (!isStorableName(recipient)) {
+            // No account can have that name; settled without saving so later acks are not held back
+            Log.warn("    ✗ SEND {} from {} refused: recipient name over {} bytes", seq, username, MessageStore.MAX_NAME_BYTES);
+            ChatServer.refuseSend(username, recipient, sequence, seq);
+            Command.SEND.record(start);
+            return;
+        }
+        Log.debug("    → Processing SEND {} from {} to {}", seq, username, recipient);
+        Log.trace("      Content: {}", content);
+        
+        // A retry was delivered the first time; only saving it failed
+        if (accept == SendSequence.Accept.NEW) {
+            ChatServer.sendPrivateMessage(username, recipient, content);
+        } else {
+            Log.info("  → Saving SEND {} from {} again after a store error", seq, username);
+        }
+        ChatServer.persistPrivateMessage(username, recipient, content, sequence, seq);
+        Command.SEND.record(start);
+    }
+    
+    /**
+     * Joins a room, creating it if nobody is in it yet, and replies with its
+     * members; a JOIN for a room the user is already in just repeats the list.
+     */
+    private void handleJoinRoom(String room) {
+        long start = System.nanoTime();
+        Log.debug("    → Processing JOIN of room {}", room);
+        if (!RoomRegistry.isValidName(room)) {
+            send(format.roomError(room, "INVALID_NAME"), "ROOM_ERROR", room);
+        } else if (ChatServer.joinRoom(room, this) == RoomRegistry.Join.TOO_MANY_ROOMS) {
+            send(format.roomError(room, "TOO_MANY_ROOMS"), "ROOM_ERROR", room);
         } else {
-            System.err.println("    [✗ " + username + "] Cannot send - socket closed");
+            sendRoomMembers(room);
+        }
+        Command.JOIN_ROOM.record(start);
+    }
+    
+    private void sendRoomMembers(String room) {
+        Room joined = ChatServer.getRoom(room);
+        List<String> online = new ArrayList<>();
+        List<String> offline = new ArrayList<>();
+        if (joined != null) {
+            for (String member : joined.members()) {
+                (ChatServer.isOnline(member) ? online : offline).add(member);
+            }
         }
+        send(format.roomMembers(room, online, offline), "ROOM_MEMBERS", online.size() + offline.size());
+    }
+    
+    /** Leaves a room; the reply is the same ROOM_LEFT the remaining members get. */
+    private void handleLeaveRoom(String room) {
+        long start = System.nanoTime();
+        Log.debug("    → Processing LEAVE of room {}", room);
+        if (ChatServer.leaveRoom(room, this)) {
+            send(format.roomMember(room, username, false), "ROOM_LEFT", room);
+        } else {
+            send(format.roomError(room, "NOT_MEMBER"), "ROOM_ERROR", room);
+        }
+        Command.LEAVE_ROOM.record(start);
+    }
+    
+    /** Posts to a room; the members get it from the delivery threads, and it is stored like a PRIVATE. */
+    private void handleRoomMessage(String room, String content) {
+        long start = System.nanoTime();
+        Log.debug("    → Processing ROOM message from {} to {}", username, room);
+        Log.trace("      Content: {}", content);
+        
+        if (!ChatServer.postToRoom(room, this, content)) {
+            send(format.roomError(room, "NOT_MEMBER"), "ROOM_ERROR", room);
+        }
+        Command.ROOM_MESSAGE.record(start);
+    }
+    
+    /** Streams one page of a room's history, like GET_HISTORY_PAGE; members only. */
+    private void handleGetRoomHistory(String room, long beforeId, int limit) {
+        long start = System.nanoTime();
+        int pageSize = Math.max(1, Math.min(limit, ServerConfig.HISTORY_MAX_PAGE));
+        Log.debug("    → Processing GET_ROOM_HISTORY of {} (before {}, limit {})", room, beforeId, pageSize);
+        
+        Room target = ChatServer.getRoom(room);
+        if (target == null || !target.isMember(username)) {
+            send(format.roomError(room, "NOT_MEMBER"), "ROOM_ERROR", room);
+        } else {
+            long nextBeforeId = ChatServer.streamRoomHistory(room, beforeId, pageSize, ServerConfig.HISTORY_CHUNK_ROWS,
+                    chunk -> send(format.roomHistoryChunk(room, chunk), "ROOM_HISTORY_CHUNK", chunk.size()));
+            send(format.roomHistoryEnd(room, nextBeforeId), "ROOM_HISTORY_END", nextBeforeId);
+        }
+        Command.GET_ROOM_HISTORY.record(start);
+    }
+    
+    private void handleLogout() {
+        long start = System.nanoTime();
+        Log.debug("    → Processing LOGOUT");
+        ChatServer.revokeSessions(username);
+        isRunning = false;
+        cleanup();
+        Command.LOGOUT.record(start);
+    }
+    
+    /** Delivers a private message from another user in this client's format. */
+    public void sendPrivate(String sender, String content) {
+        send(format.privateMessage(sender, content), "PRIVATE from", sender);
+    }
+    
+    public void sendSaved(String recipient, int count) {
+        send(format.saved(recipient, count), "SAVED for", recipient);
+    }
+    
+    /** Acknowledges this session's SENDs up to the highest one stored; ignored if it belongs to an earlier login. */
+    public void sendAck(SendSequence sequence) {
+        if (sequence == sendSequence) {
+            long seq = sequence.finished();
+            send(format.ack(seq), "ACK", seq);
+        }
+    }
+    
+    public void sendPresenceDelta(PresenceEngine.PresenceDelta delta) {
+        send(delta.encodedFor(format), "presence batch", delta.size());
+    }
+    
+    /** Delivers a room message or membership change, encoded for this client's format at most once per room frame. */
+    public void sendRoomFrame(RoomFrame frame) {
+        send(frame.encodedFor(format), "room frame for", frame.room());
+    }
+    
+    /** {@code what} and {@code detail} only describe the frame in the debug log. */
+    private void send(byte[] frame, String what, Object detail) {
+        if (connection.isOpen()) {
+            connection.send(frame);
+            Log.debug("    [→ {}] Sent: {} ({})", username, what, detail);
+        } else {
+            Log.debug("    [✗ {}] Cannot send - socket closed", username);
+        }
+    }
+    
+    /**
+     * A newer login took over this username: tells the client, so it does
+     * not reconnect and take the session back, and closes once that is
+     * written. The user stays online through the newer session.
+     */
+    public void closeReplaced() {
+        send(format.authResult("REPLACED"), "AUTH_RESULT", "REPLACED");
+        isRunning = false;
+        connection.close();
     }
     
     private void cleanup() {
         isRunning = false;
-        ChatServer.removeClient(this);
-        if (username != null) {
-            ChatServer.broadcastUserStatus(username, false);
+        if (!cleanedUp.compareAndSet(false, true)) {
+            return;
         }
-        try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (authenticated && ChatServer.removeClient(this)) {
+            ChatServer.broadcastUserStatus(username, false);
         }
+        connection.close();
     }
     
     public String getUsername() {
         return username;
     }
     
+    public boolean isRunning() {
+        return isRunning;
+    }
+    
+    /** True if the rate limiter rejected one of this session's commands within the last second. */
+    public boolean isThrottled() {
+        CommandLimiter current = limiter;
+        return current != null && current.isThrottled();
+    }
+    
     public boolean isConnected() {
-        return isRunning && socket != null && !socket.isClosed();
+        return isRunning && connection.isOpen();
     }
-}
\ No newline at end of file
+}
@@ -1,114 +1,404 @@
 package messageserver.chatserver;
 
 import Handler.ClientHandler;
+import messageserver.chatserver.Cluster.ClusterNode;
+import messageserver.chatserver.Database.ChatMessage;
 import messageserver.chatserver.Database.Dbconnection;
+import messageserver.chatserver.Database.UserDirectory;
+import messageserver.chatserver.Database.WriteBehindQueue;
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Metrics.Metrics;
+import messageserver.chatserver.Network.NioServer;
+import messageserver.chatserver.Network.SocketConnection;
+import messageserver.chatserver.Rooms.Room;
+import messageserver.chatserver.Rooms.RoomFrame;
+import messageserver.chatserver.Rooms.RoomRegistry;
+import messageserver.chatserver.Storage.MessageStore;
+import messageserver.chatserver.Storage.SearchIndex;
+import messageserver.chatserver.Storage.Stores;
+import messageserver.chatserver.Storage.UserStore;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 public class ChatServer {
-    private static final int PORT = 5000;
-    private static List<ClientHandler> clients = new ArrayList<>();
+    private static final int PORT = ServerConfig.PORT;
+    // Online sessions keyed by username. Routing a message is one hash lookup
+    // and never takes a server-wide lock, however many users are online.
+    private static final ConcurrentMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    // Numbering of each user's SENDs; outlives the connection so a resumed session can resend safely
+    private static final ConcurrentMap<String, SendSequence> sendSequences = new ConcurrentHashMap<>();
+    private static final PresenceEngine presence = new PresenceEngine(sessions::values, ServerConfig.PRESENCE_WINDOW_MS);
+    private static final RoomRegistry rooms = new RoomRegistry(ServerConfig.ROOM_FANOUT_THREADS, ServerConfig.ROOM_MAX_PER_USER);
+    private static final UserStore users = Stores.openUserStore(ServerConfig.USERS);
+    private static final UserDirectory userDirectory = new UserDirectory(users::getAllUsernames);
+    private static final MessageStore messages = Stores.openMessageStore(ServerConfig.STORE);
+    // Null when chat.search.enabled is false
+    private static final SearchIndex search = Stores.openSearchIndex(messages);
+    private static final MessageStore store = Stores.withRecentCache(Stores.withSearchIndex(messages, search));
+    private static final WriteBehindQueue persistence = new WriteBehindQueue(store, ServerConfig.PERSIST_QUEUE_SIZE,
+            ServerConfig.PERSIST_BATCH_SIZE, ServerConfig.PERSIST_FLUSH_MS,
+            ServerConfig.PERSIST_ACK ? ChatServer::confirmSaved : null, ChatServer::acknowledgeSends);
+    // Who is logged in on the other nodes of a cluster; inert unless chat.cluster.port is set
+    private static final ClusterNode cluster = new ClusterNode(ServerConfig.CLUSTER_HOST, ServerConfig.CLUSTER_PORT,
+            ServerConfig.CLUSTER_SEEDS, ChatServer::deliverForwarded, ChatServer::deliverForwardedToRoom,
+            new ClusterNode.RoomMembership() {
+                @Override
+                public void changed(String room, String username, boolean joined) {
+                    remoteMemberChanged(room, username, joined);
+                }
+
+                @Override
+                public Map<String, List<String>> snapshot() {
+                    return rooms.memberships();
+                }
+            },
+            ChatServer::remoteStatusChanged, userDirectory::add, userDirectory::invalidate);
+    
+    static {
+        Metrics.gauge("chat_sessions_online", "Logged-in sessions", sessions::size);
+        Metrics.gauge("chat_sessions_throttled", "Logged-in sessions with a command rate-limited in the last second",
+                () -> sessions.values().stream().filter(ClientHandler::isThrottled).count());
+        Metrics.gauge("chat_persist_queue_messages", "Private and room messages waiting to be written", persistence::getQueuedMessages);
+        Metrics.gauge("chat_rooms", "Rooms with at least one member", rooms::size);
+    }
     
     public static void main(String[] args) {
-        System.out.println("╔════════════════════════════════════════╗");
-        System.out.println("║       CHAT SERVER STARTING UP...      ║");
-        System.out.println("╚════════════════════════════════════════╝\n");
+        Log.info("╔════════════════════════════════════════╗");
+        Log.info("║       CHAT SERVER STARTING UP...      ║");
+        Log.info("╚════════════════════════════════════════╝");
         
-        if (!Dbconnection.testConnection()) {
-            System.err.println("\n❌ SERVER STARTUP FAILED!");
-            System.err.println("Cannot start server without database connection.");
-            System.err.println("Please fix the database issues and try again.\n");
+        Metrics.start(ServerConfig.METRICS_HOST, ServerConfig.METRICS_PORT);
+        if (ServerConfig.LIMITS_ENABLED) {
+            CommandLimiter.logLimits();
+        }
+        
+        if (ServerConfig.usesMySql() && !Dbconnection.testConnection()) {
+            Log.error("❌ SERVER STARTUP FAILED!");
+            Log.error("Cannot start server without database connection.");
+            Log.error("Please fix the database issues and try again.");
             return;
         }
         
-        System.out.println("Starting TCP server on port " + PORT + "...");
+        try {
+            cluster.start();
+        } catch (IOException e) {
+            Log.error("❌ Cannot listen for cluster nodes on port {}: {}", ServerConfig.CLUSTER_PORT, e.getMessage());
+            return;
+        }
+        
+        Log.info("Starting TCP server on port {} ({} transport, {} threads)...",
+                PORT, ServerConfig.TRANSPORT, ServerConfig.THREADS);
         
+        if (ServerConfig.isNioTransport()) {
+            runNioServer();
+        } else {
+            runBlockingServer();
+        }
+    }
+    
+    private static void runBlockingServer() {
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("✓ Server socket created successfully");
-            System.out.println("\n╔════════════════════════════════════════╗");
-            System.out.println("║   ✓ CHAT SERVER RUNNING ON PORT " + PORT + "  ║");
-            System.out.println("║   Waiting for client connections...   ║");
-            System.out.println("╚════════════════════════════════════════╝\n");
+            Log.info("✓ Server socket created successfully");
+            printRunningBanner();
+            
+            Thread.Builder clientThreads = ServerConfig.useVirtualThreads()
+                    ? Thread.ofVirtual().name("client-", 0)
+                    : Thread.ofPlatform().name("client-", 0);
             
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("→ New client connected: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
-                ClientHandler handler = new ClientHandler(clientSocket);
-                handler.start();
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        throw e;
+                    }
+                    // Usually out of file descriptors: keep serving the open sessions and retry
+                    Log.warn("⚠ Accept failed: {}; retrying in 1000 ms", e.getMessage());
+                    Thread.sleep(1000);
+                    continue;
+                }
+                Log.info("→ New client connected: {}", clientSocket.getRemoteSocketAddress());
+                clientSocket.setTcpNoDelay(true);
+                clientThreads.start(new SocketConnection(clientSocket, clientThreads));
             }
         } catch (IOException e) {
-            System.err.println("✗ Server error: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("✗ Server error: {}", e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
     
-    public static synchronized void addClient(ClientHandler client) {
-        clients.add(client);
-        System.out.println("✓ Client added: " + client.getUsername() + " (Total: " + clients.size() + ")");
-        System.out.println("  Current online users: " + getOnlineUsers());
+    private static void runNioServer() {
+        try {
+            ExecutorService workers = ServerConfig.useVirtualThreads()
+                    ? Executors.newVirtualThreadPerTaskExecutor()
+                    : Executors.newFixedThreadPool(ServerConfig.NIO_WORKER_THREADS);
+            NioServer server = new NioServer(PORT, ServerConfig.NIO_EVENT_LOOPS, workers);
+            server.start();
+            printRunningBanner();
+            server.run();
+        } catch (IOException e) {
+            Log.error("✗ Server error: {}", e.getMessage(), e);
+        }
     }
     
-    public static synchronized void removeClient(ClientHandler client) {
-        clients.remove(client);
-        System.out.println("✗ Client removed: " + client.getUsername() + " (Total: " + clients.size() + ")");
+    private static void printRunningBanner() {
+        Log.info("╔════════════════════════════════════════╗");
+        Log.info("║   ✓ CHAT SERVER RUNNING ON PORT {}  ║", PORT);
+        Log.info("║   Waiting for client connections...   ║");
+        Log.info("╚════════════════════════════════════════╝");
     }
     
-    public static String getAllUsers() {
-        String allUsers = Dbconnection.getAllUsernames();
-        System.out.println("  [getAllUsers] Returning: " + allUsers);
-        return allUsers;
+    public static void addClient(ClientHandler client) {
+        ClientHandler previous = sessions.put(client.getUsername(), client);
+        if (previous != null && previous != client) {
+            Log.warn("  ⚠ {} logged in again; closing the older session", client.getUsername());
+            previous.closeReplaced();
+        }
+        presence.sessionJoined(client);
+        rooms.sessionOnline(client);
+        Log.info("✓ Client added: {} (Total: {})", client.getUsername(), sessions.size());
     }
     
-    public static synchronized String getOnlineUsers() {
-        return clients.stream()
-                     .map(ClientHandler::getUsername)
-                     .collect(Collectors.joining(","));
+    /**
+     * Removes the client's session if it is still the one registered for its
+     * username. Returns false when a newer login has already replaced it.
+     */
+    public static boolean removeClient(ClientHandler client) {
+        boolean removed = sessions.remove(client.getUsername(), client);
+        if (removed) {
+            rooms.sessionOffline(client);
+            Log.info("✗ Client removed: {} (Total: {})", client.getUsername(), sessions.size());
+        }
+        return removed;
     }
     
-    public static synchronized void sendPrivateMessage(String sender, String recipient, String message) {
-        String formattedMessage = "PRIVATE:" + sender + ":" + message;
-        
-        System.out.println("  [sendPrivateMessage] From: " + sender + ", To: " + recipient);
-        System.out.println("  [sendPrivateMessage] Message: " + message);
-        
-        boolean delivered = false;
-        for (ClientHandler client : clients) {
-            if (client.getUsername().equals(recipient)) {
-                client.sendMessage(formattedMessage);
-                System.out.println("  ✓ Delivered to " + recipient);
-                delivered = true;
-                break;
-            }
+    public static boolean authenticateUser(String username, String password) {
+        return users.authenticateUser(username, password);
+    }
+    
+    /** Creates the account and adds it to the directory GET_USERS is served from. */
+    public static boolean registerUser(String username, String password) {
+        if (!users.registerUser(username, password)) {
+            return false;
         }
+        userDirectory.add(username);
+        cluster.userRegistered(username);
+        return true;
+    }
+    
+    /** Revokes the user's session tokens here and on the other cluster nodes (LOGOUT). */
+    public static void revokeSessions(String username) {
+        cluster.tokensRevoked(username, SessionTokens.revoke(username));
+    }
+    
+    /** All registered users, from the in-memory directory rather than the user store. */
+    public static UserDirectory.Snapshot getAllUsers() {
+        UserDirectory.Snapshot directory = userDirectory.snapshot();
+        Log.debug("  [getAllUsers] Returning {} users (version {})", directory.size(), directory.version());
+        return directory;
+    }
+    
+    public static String getOnlineUsers() {
+        return String.join(",", sessions.keySet());
+    }
+    
+    /** True if the user is logged in here or on another cluster node. */
+    public static boolean isOnline(String username) {
+        return sessions.containsKey(username) || cluster.isOnlineElsewhere(username);
+    }
+    
+    public static void sendPrivateMessage(String sender, String recipient, String message) {
+        Log.debug("  [sendPrivateMessage] From: {}, To: {}", sender, recipient);
+        Log.trace("  [sendPrivateMessage] Message: {}", message);
         
-        if (!delivered) {
-            System.out.println("  ⚠ User " + recipient + " is offline. Message saved to database only.");
+        ClientHandler client = sessions.get(recipient);
+        if (client != null) {
+            client.sendPrivate(sender, message);
+            Log.debug("  ✓ Delivered to {}", recipient);
+        } else if (cluster.forwardPrivate(sender, recipient, message)) {
+            Log.debug("  → Forwarded to {} on another node", recipient);
+        } else {
+            Log.debug("  ⚠ User {} is offline. Message will only be stored.", recipient);
         }
     }
     
-    public static synchronized void broadcastUserStatus(String username, boolean isOnline) {
-        String statusMessage = isOnline ? "ONLINE:" + username : "OFFLINE:" + username;
-        
-        System.out.println("  [broadcastUserStatus] User: " + username + ", Status: " + (isOnline ? "online" : "offline"));
-        
-        for (ClientHandler client : clients) {
-            if (!client.getUsername().equals(username)) {
-                client.sendMessage(statusMessage);
-                System.out.println("    → Sent status to " + client.getUsername());
-            }
+    /** The latest messages between two users, oldest first, from whichever store is configured. */
+    public static List<ChatMessage> getPrivateHistory(String user, String otherUser) {
+        return store.getPrivateMessages(user, otherUser);
+    }
+    
+    /** Streams one page of a conversation; see {@link MessageStore#streamPrivateMessages}. */
+    public static long streamPrivateHistory(String user, String otherUser, long beforeId, int limit, int chunkRows,
+                                            Consumer<List<ChatMessage>> chunks) {
+        return store.streamPrivateMessages(user, otherUser, beforeId, limit, chunkRows, chunks);
+    }
+    
+    /** Streams the messages of a SYNC; see {@link MessageStore#streamPrivateMessagesAfter}. */
+    public static int streamPrivateMessagesAfter(String user, String otherUser, long afterId, int limit, int chunkRows,
+                                                 Consumer<List<ChatMessage>> chunks) {
+        return store.streamPrivateMessagesAfter(user, otherUser, afterId, limit, chunkRows, chunks);
+    }
+    
+    public static long latestPrivateMessageId() {
+        return store.latestPrivateMessageId();
+    }
+    
+    /** A page of {@code user}'s private messages matching {@code query}; see {@link SearchIndex#search}. Empty when search is off. */
+    public static SearchIndex.Page searchPrivateMessages(String user, String otherUser, String query, long beforeId, int limit) {
+        if (search == null) {
+            return new SearchIndex.Page(List.of(), 0);
         }
+        return search.search(user, otherUser, query, beforeId, limit);
     }
     
-    public static synchronized void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client != sender) {
-                client.sendMessage(message);
-            }
+    /** Queues a private message for the next group commit; delivery does not wait for it. */
+    public static void persistPrivateMessage(String sender, String recipient, String message) {
+        persistence.enqueue(new ChatMessage(sender, recipient, message, System.currentTimeMillis()));
+    }
+    
+    /** Same, for message number {@code seq} of the sender's SENDs; the sender is acknowledged once it is stored. */
+    public static void persistPrivateMessage(String sender, String recipient, String message, SendSequence sequence, long seq) {
+        persistence.enqueue(new ChatMessage(sender, recipient, message, System.currentTimeMillis()), sequence, seq);
+    }
+    
+    /** Settles a SEND the server will not store, in order with the sender's other SENDs. */
+    public static void refuseSend(String sender, String recipient, SendSequence sequence, long seq) {
+        persistence.enqueueRefused(new ChatMessage(sender, recipient, "", System.currentTimeMillis()), sequence, seq);
+    }
+    
+    /** The SEND numbering of a user who has just logged in: a new one after a password login, the last one after RESUME. */
+    public static SendSequence sendSequence(String username, boolean resumed) {
+        if (resumed) {
+            return sendSequences.computeIfAbsent(username, user -> new SendSequence());
+        }
+        SendSequence fresh = new SendSequence();
+        sendSequences.put(username, fresh);
+        return fresh;
+    }
+    
+    private static void acknowledgeSends(String sender, SendSequence sequence) {
+        ClientHandler client = sessions.get(sender);
+        if (client != null) {
+            client.sendAck(sequence);
+        }
+    }
+    
+    private static void confirmSaved(String sender, String recipient, int count) {
+        ClientHandler client = sessions.get(sender);
+        if (client != null) {
+            client.sendSaved(recipient, count);
+        }
+    }
+    
+    /**
+     * Records a login or logout; clients hear about it with the next
+     * presence batch, and the other cluster nodes right away. A user who
+     * logs out here but is still logged in on another node stays online.
+     */
+    public static void broadcastUserStatus(String username, boolean isOnline) {
+        Log.debug("  [broadcastUserStatus] User: {}, Status: {}", username, isOnline ? "online" : "offline");
+        if (isOnline) {
+            cluster.sessionUp(username);
+        } else {
+            cluster.sessionDown(username);
         }
+        presence.record(username, isOnline || cluster.isOnlineElsewhere(username));
+    }
+    
+    /** A message another node forwarded to a user logged in here. */
+    private static boolean deliverForwarded(String sender, String recipient, String message) {
+        ClientHandler client = sessions.get(recipient);
+        if (client == null) {
+            return false;
+        }
+        client.sendPrivate(sender, message);
+        return true;
+    }
+    
+    private static void remoteStatusChanged(String username) {
+        presence.record(username, isOnline(username));
+    }
+    
+    /** The room, or null if nobody is in it. */
+    public static Room getRoom(String room) {
+        return rooms.get(room);
+    }
+    
+    /** Adds the client's user to a room and tells the members already there. */
+    public static RoomRegistry.Join joinRoom(String room, ClientHandler client) {
+        RoomRegistry.Join result = rooms.join(room, client);
+        if (result == RoomRegistry.Join.JOINED) {
+            announceMember(room, client.getUsername(), true, client);
+            cluster.roomMemberChanged(room, client.getUsername(), true);
+        }
+        return result;
+    }
+    
+    /** Takes the client's user out of a room and tells the members left in it; false if they were not in it. */
+    public static boolean leaveRoom(String room, ClientHandler client) {
+        if (!rooms.leave(room, client.getUsername())) {
+            return false;
+        }
+        announceMember(room, client.getUsername(), false, client);
+        cluster.roomMemberChanged(room, client.getUsername(), false);
+        return true;
+    }
+    
+    /** A user joined or left a room through another cluster node: the same change here, told to the members here. */
+    private static void remoteMemberChanged(String room, String username, boolean joined) {
+        if (joined ? rooms.addMember(room, username) : rooms.leave(room, username)) {
+            announceMember(room, username, joined, null);
+        }
+    }
+    
+    private static void announceMember(String room, String username, boolean joined, ClientHandler except) {
+        Room target = rooms.get(room);
+        if (target != null) {
+            target.broadcast(new RoomFrame(room, format -> format.roomMember(room, username, joined)), except);
+        }
+    }
+    
+    /**
+     * Hands a room message to the room's online members here, the sender's
+     * session excepted, and on the other cluster nodes, then queues it for
+     * the store. The poster's thread only queues one task per delivery
+     * lane. False if the sender is not in the room.
+     */
+    public static boolean postToRoom(String room, ClientHandler sender, String message) {
+        Room target = rooms.get(room);
+        String username = sender.getUsername();
+        if (target == null || !target.isMember(username)) {
+            return false;
+        }
+        int recipients = target.broadcast(new RoomFrame(room, format -> format.roomMessage(room, username, message)), sender);
+        Log.debug("  [postToRoom] {} → {} ({} online members)", username, room, recipients);
+        cluster.forwardRoom(room, username, message);
+        persistence.enqueueRoomMessage(new ChatMessage(username, room, message, System.currentTimeMillis()));
+        return true;
+    }
+    
+    /** A room message posted on another node, for this node's members of the room. */
+    private static void deliverForwardedToRoom(String room, String sender, String message) {
+        Room target = rooms.get(room);
+        if (target != null) {
+            target.broadcast(new RoomFrame(room, format -> format.roomMessage(room, sender, message)), null);
+        }
+    }
+    
+    /** Streams one page of a room's messages; see {@link MessageStore#streamRoomMessages}. */
+    public static long streamRoomHistory(String room, long beforeId, int limit, int chunkRows,
+                                         Consumer<List<ChatMessage>> chunks) {
+        return store.streamRoomMessages(room, beforeId, limit, chunkRows, chunks);
     }
-}
\ No newline at end of file
+}
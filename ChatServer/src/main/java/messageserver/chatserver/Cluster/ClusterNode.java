@@ -0,0 +1,518 @@
+package messageserver.chatserver.Cluster;
+
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Metrics.Metrics;
+import messageserver.chatserver.Protocol.FrameReader;
+import messageserver.chatserver.Protocol.FrameWriter;
+import messageserver.chatserver.ServerConfig;
+import messageserver.chatserver.SessionTokens;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * This server's place in a cluster of chat servers that share their users.
+ *
+ * Every node keeps a directory of which user is logged in on which other
+ * node. Nodes dial each other over plain TCP ({@code chat.cluster.port});
+ * each link carries frames one way, from the node that dialed it (see
+ * {@link PeerLink}), and the node that accepts it dials back, so every
+ * pair of nodes ends up with a link in each direction. The accepting node
+ * first sends a random challenge, and the dialing node must answer it in
+ * HELLO with an HMAC under {@code chat.session.secret}; until it has,
+ * nothing it sends is acted on. A new node only
+ * needs one running node in {@code chat.cluster.seeds}: the PEERS frame it
+ * gets back names the others, and it dials those too.
+ *
+ * Logins and logouts are sent to every peer as SESSION_UP / SESSION_DOWN.
+ * A PRIVATE message for a user on another node is forwarded over the link
+ * to that node, which delivers it to its local session; the sender's node
+ * stores it as usual, so all nodes must share their message and user
+ * stores. A room message goes to every peer, which hands it to its own
+ * members of the room. Joins and leaves go to every peer as ROOM_JOINED /
+ * ROOM_LEFT, and a new link starts with MEMBERS, every membership the
+ * dialing node knows, so each node knows every room's members; a leave
+ * sent while a link was down is not repeated. LOGOUT's token revocations
+ * go to every peer as REVOKED, and a new link repeats all of them, so a
+ * revoked token is refused on every node. A registration is announced as USER_ADDED so every node's user
+ * list stays current; since those sent while a link was down are lost,
+ * a node reloads its list from the shared store whenever a peer connects. When a link from a peer closes, or stays silent for five
+ * heartbeats, everyone on that peer is taken off the directory until it
+ * reconnects and sends a new snapshot.
+ *
+ * With {@code chat.cluster.port=0} (the default) the node is standalone:
+ * nothing listens, and every method returns at once.
+ */
+public final class ClusterNode {
+
+    /** Hands a forwarded message to the recipient's local session; false if the recipient is not logged in here. */
+    @FunctionalInterface
+    public interface LocalDelivery {
+        boolean deliver(String sender, String recipient, String content);
+    }
+
+    /** Hands a room message posted on another node to this node's members of the room. */
+    @FunctionalInterface
+    public interface RoomDelivery {
+        void deliver(String room, String sender, String content);
+    }
+
+    /** This node's room membership, kept in step with the other nodes'. */
+    public interface RoomMembership {
+        /** A user joined ({@code joined}) or left a room through another node. */
+        void changed(String room, String username, boolean joined);
+
+        /** Every room known here and its members, for a node that just linked up. */
+        Map<String, List<String>> snapshot();
+    }
+
+    private static final LongAdder FORWARDED = Metrics.counter("chat_cluster_forwarded_total",
+            "Private messages forwarded to the node the recipient is logged in on");
+    private static final LongAdder RECEIVED = Metrics.counter("chat_cluster_received_total",
+            "Private messages forwarded here by other nodes and delivered");
+    private static final LongAdder ROOM_FORWARDED = Metrics.counter("chat_cluster_room_forwarded_total",
+            "Room messages sent on to the other nodes");
+
+    private final String nodeId;
+    private final int port;
+    private final List<String> seeds;
+    private final LocalDelivery delivery;
+    private final RoomDelivery roomDelivery;
+    private final RoomMembership roomMembership;
+    private final Consumer<String> remoteStatusChanged;
+    private final Consumer<String> remoteRegistration;
+    private final Runnable registrationsMissed;
+
+    private final ConcurrentMap<String, PeerLink> links = new ConcurrentHashMap<>();
+    // The accepted connection each peer currently sends on; an older one may still be timing out
+    private final ConcurrentMap<String, Socket> inbound = new ConcurrentHashMap<>();
+    // Users logged in on other nodes, and which node
+    private final ConcurrentMap<String, String> remoteSessions = new ConcurrentHashMap<>();
+
+    private final ReentrantLock sessionLock = new ReentrantLock();
+    private final Set<String> localUsers = new HashSet<>(); // guarded by sessionLock
+
+    /**
+     * {@code remoteStatusChanged} is told about every user who logs in or
+     * out on another node, so presence can be recomputed for them;
+     * {@code remoteRegistration} about every user registered on another
+     * node, and {@code registrationsMissed} runs when a peer connects, as
+     * some may have been missed while its link was down.
+     */
+    public ClusterNode(String host, int port, String seeds, LocalDelivery delivery, RoomDelivery roomDelivery,
+                       RoomMembership roomMembership, Consumer<String> remoteStatusChanged,
+                       Consumer<String> remoteRegistration, Runnable registrationsMissed) {
+        this.nodeId = host + ":" + port;
+        this.port = port;
+        this.seeds = Arrays.stream(seeds.split(",")).map(String::trim).filter(seed -> !seed.isEmpty()).toList();
+        this.delivery = delivery;
+        this.roomDelivery = roomDelivery;
+        this.roomMembership = roomMembership;
+        this.remoteStatusChanged = remoteStatusChanged;
+        this.remoteRegistration = remoteRegistration;
+        this.registrationsMissed = registrationsMissed;
+        if (isEnabled()) {
+            Metrics.gauge("chat_cluster_peers", "Cluster nodes this node has a live link to",
+                    () -> links.values().stream().filter(PeerLink::isConnected).count());
+            Metrics.gauge("chat_cluster_remote_sessions", "Users logged in on other cluster nodes", remoteSessions::size);
+        }
+    }
+
+    public boolean isEnabled() {
+        return port > 0;
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    /** Starts listening for peers and dials the seeds; does nothing on a standalone node. */
+    public void start() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!SessionTokens.hasSharedSecret()) {
+            throw new IOException("chat.session.secret must be set, to the same value on every node");
+        }
+        ServerSocket listener = new ServerSocket(port, 50, InetAddress.getByName(ServerConfig.CLUSTER_BIND));
+        Thread acceptor = new Thread(() -> acceptLoop(listener), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (String seed : seeds) {
+            addPeer(seed);
+        }
+        Log.info("✓ Cluster node {} listening on port {}, seeds: {}", nodeId, port, seeds.isEmpty() ? "none" : seeds);
+    }
+
+    /** Announces a local login to every peer. */
+    public void sessionUp(String username) {
+        if (!isEnabled()) {
+            return;
+        }
+        sessionLock.lock();
+        try {
+            localUsers.add(username);
+            sendToAll(new FrameWriter(NodeOpcode.SESSION_UP).writeString(username).toFrame());
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /** Announces a local logout to every peer. */
+    public void sessionDown(String username) {
+        if (!isEnabled()) {
+            return;
+        }
+        sessionLock.lock();
+        try {
+            localUsers.remove(username);
+            sendToAll(new FrameWriter(NodeOpcode.SESSION_DOWN).writeString(username).toFrame());
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /** Announces a user registered here to every peer. */
+    public void userRegistered(String username) {
+        if (!isEnabled()) {
+            return;
+        }
+        sendToAll(new FrameWriter(NodeOpcode.USER_ADDED).writeString(username).toFrame());
+    }
+
+    /** True if the user is logged in on another node, as far as this node has heard. */
+    public boolean isOnlineElsewhere(String username) {
+        return isEnabled() && remoteSessions.containsKey(username);
+    }
+
+    /**
+     * Sends a private message to the node the recipient is logged in on.
+     * Returns false if no node has them or that node is unreachable right
+     * now; the message is then only stored, as for an offline user.
+     */
+    public boolean forwardPrivate(String sender, String recipient, String content) {
+        if (!isEnabled()) {
+            return false;
+        }
+        String node = remoteSessions.get(recipient);
+        PeerLink link = node == null ? null : links.get(node);
+        if (link == null) {
+            return false;
+        }
+        byte[] frame = new FrameWriter(NodeOpcode.PRIVATE, sender.length() + recipient.length() + content.length() + 12)
+                .writeString(sender).writeString(recipient).writeString(content).toFrame();
+        if (!link.send(frame)) {
+            return false;
+        }
+        FORWARDED.increment();
+        return true;
+    }
+
+    /** Sends a room message to every other node, for their members of the room. */
+    public void forwardRoom(String room, String sender, String content) {
+        if (!isEnabled() || links.isEmpty()) {
+            return;
+        }
+        sendToAll(new FrameWriter(NodeOpcode.ROOM, room.length() + sender.length() + content.length() + 12)
+                .writeString(room).writeString(sender).writeString(content).toFrame());
+        ROOM_FORWARDED.increment();
+    }
+
+    /**
+     * Announces a join ({@code joined}) or leave made here to every peer;
+     * under the session lock, so a link opening at the same time gets it
+     * either in its MEMBERS frame or after it.
+     */
+    public void roomMemberChanged(String room, String username, boolean joined) {
+        if (!isEnabled()) {
+            return;
+        }
+        sessionLock.lock();
+        try {
+            sendToAll(new FrameWriter(joined ? NodeOpcode.ROOM_JOINED : NodeOpcode.ROOM_LEFT)
+                    .writeString(room).writeString(username).toFrame());
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /**
+     * Tells every peer that the user's session tokens issued up to
+     * {@code issuedUpTo} are revoked; under the session lock for the same
+     * reason as {@link #roomMemberChanged}.
+     */
+    public void tokensRevoked(String username, long issuedUpTo) {
+        if (!isEnabled()) {
+            return;
+        }
+        sessionLock.lock();
+        try {
+            sendToAll(revokedFrame(Map.of(username, issuedUpTo)));
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /** Dials a node unless it is this one or already has a link. */
+    private void addPeer(String peerId) {
+        if (peerId.equals(nodeId) || links.containsKey(peerId)) {
+            return;
+        }
+        PeerLink link;
+        try {
+            link = new PeerLink(peerId, this);
+        } catch (RuntimeException e) {
+            Log.warn("⚠ Ignoring cluster node {}: expected host:port", peerId);
+            return;
+        }
+        if (links.putIfAbsent(peerId, link) == null) {
+            link.start();
+        }
+    }
+
+    /**
+     * Builds the opening frames for a new link to {@code peerId} and hands
+     * them to {@code open}, all under the session lock: HELLO answering the
+     * peer's {@code challenge}, the other peers, everyone logged in here,
+     * every room membership and every token revocation known here.
+     */
+    void greet(String peerId, String challenge, Consumer<List<byte[]>> open) {
+        sessionLock.lock();
+        try {
+            List<String> peers = new ArrayList<>(links.keySet());
+            peers.remove(peerId);
+            open.accept(List.of(
+                    new FrameWriter(NodeOpcode.HELLO).writeString(nodeId)
+                            .writeString(SessionTokens.proveNode(nodeId, challenge)).toFrame(),
+                    listFrame(NodeOpcode.PEERS, peers),
+                    listFrame(NodeOpcode.SESSIONS, localUsers),
+                    membersFrame(roomMembership.snapshot()),
+                    revokedFrame(SessionTokens.revocations())));
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private void sendToAll(byte[] frame) {
+        for (PeerLink link : links.values()) {
+            link.send(frame);
+        }
+    }
+
+    private void acceptLoop(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                Thread reader = new Thread(() -> serve(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                Log.error("✗ Cluster listener failed: {}", e.getMessage(), e);
+                return;
+            }
+        }
+    }
+
+    /** Reads one peer's link until it closes, then forgets the peer's users. */
+    private void serve(Socket socket) {
+        String peer = null;
+        String reason = "end of stream";
+        try (socket) {
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, ServerConfig.CLUSTER_HEARTBEAT_MS * 5));
+            String challenge = SessionTokens.challenge();
+            socket.getOutputStream().write(new FrameWriter(NodeOpcode.CHALLENGE).writeString(challenge).toFrame());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            byte[] frame;
+            while ((frame = readFrame(in)) != null) {
+                FrameReader reader = new FrameReader(frame, 0, frame.length);
+                int opcode = reader.readByte();
+                if (peer == null) {
+                    if (opcode != NodeOpcode.HELLO) {
+                        throw new IOException("expected HELLO, got opcode " + opcode);
+                    }
+                    String nodeId = reader.readString();
+                    if (!SessionTokens.verifyNode(nodeId, challenge, reader.readString())) {
+                        Log.warn("⚠ Rejected cluster link from {} claiming to be {}: bad HELLO signature",
+                                socket.getRemoteSocketAddress(), nodeId);
+                        return;
+                    }
+                    peer = nodeId;
+                    Socket previous = inbound.put(peer, socket);
+                    if (previous != null) {
+                        previous.close();
+                    }
+                    Log.info("✓ Cluster link from {}", peer);
+                    registrationsMissed.run();
+                    addPeer(peer); // dial back
+                    continue;
+                }
+                handle(peer, opcode, reader);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            reason = e.getMessage();
+        } finally {
+            if (peer != null && inbound.remove(peer, socket)) {
+                int dropped = dropSessions(peer);
+                Log.warn("⚠ Cluster link from {} closed ({}); {} remote users offline", peer, reason, dropped);
+            }
+        }
+    }
+
+    private void handle(String peer, int opcode, FrameReader reader) {
+        switch (opcode) {
+            case NodeOpcode.PEERS -> {
+                for (String peerId : readList(reader)) {
+                    addPeer(peerId);
+                }
+            }
+            case NodeOpcode.SESSIONS -> replaceSessions(peer, readList(reader));
+            case NodeOpcode.SESSION_UP -> {
+                String username = reader.readString();
+                if (!peer.equals(remoteSessions.put(username, peer))) {
+                    remoteStatusChanged.accept(username);
+                }
+            }
+            case NodeOpcode.SESSION_DOWN -> {
+                String username = reader.readString();
+                if (remoteSessions.remove(username, peer)) {
+                    remoteStatusChanged.accept(username);
+                }
+            }
+            case NodeOpcode.PRIVATE -> {
+                String sender = reader.readString();
+                String recipient = reader.readString();
+                String content = reader.readString();
+                if (delivery.deliver(sender, recipient, content)) {
+                    RECEIVED.increment();
+                } else {
+                    Log.debug("  ⚠ Forwarded message for {} arrived after they left {}", recipient, nodeId);
+                }
+            }
+            case NodeOpcode.ROOM -> {
+                String room = reader.readString();
+                String sender = reader.readString();
+                String content = reader.readString();
+                roomDelivery.deliver(room, sender, content);
+            }
+            case NodeOpcode.USER_ADDED -> remoteRegistration.accept(reader.readString());
+            case NodeOpcode.ROOM_JOINED, NodeOpcode.ROOM_LEFT -> {
+                String room = reader.readString();
+                roomMembership.changed(room, reader.readString(), opcode == NodeOpcode.ROOM_JOINED);
+            }
+            case NodeOpcode.REVOKED -> {
+                int count = reader.readInt();
+                for (int i = 0; i < count; i++) {
+                    String username = reader.readString();
+                    SessionTokens.revokeUpTo(username, reader.readLong());
+                }
+            }
+            case NodeOpcode.MEMBERS -> {
+                int rooms = reader.readInt();
+                for (int i = 0; i < rooms; i++) {
+                    String room = reader.readString();
+                    for (String username : readList(reader)) {
+                        roomMembership.changed(room, username, true);
+                    }
+                }
+            }
+            case NodeOpcode.PING -> {
+            }
+            default -> Log.warn("⚠ Unknown cluster opcode {} from {}", opcode, peer);
+        }
+    }
+
+    /** Makes {@code users} the full list of who is logged in on {@code peer}. */
+    private void replaceSessions(String peer, List<String> users) {
+        Set<String> current = new HashSet<>(users);
+        for (Map.Entry<String, String> entry : remoteSessions.entrySet()) {
+            String username = entry.getKey();
+            if (entry.getValue().equals(peer) && !current.contains(username) && remoteSessions.remove(username, peer)) {
+                remoteStatusChanged.accept(username);
+            }
+        }
+        for (String username : users) {
+            if (!peer.equals(remoteSessions.put(username, peer))) {
+                remoteStatusChanged.accept(username);
+            }
+        }
+        Log.info("  Cluster node {} has {} users online", peer, users.size());
+    }
+
+    private int dropSessions(String peer) {
+        int dropped = 0;
+        for (Map.Entry<String, String> entry : remoteSessions.entrySet()) {
+            if (entry.getValue().equals(peer) && remoteSessions.remove(entry.getKey(), peer)) {
+                remoteStatusChanged.accept(entry.getKey());
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    private static byte[] listFrame(int opcode, Iterable<String> items) {
+        List<String> list = new ArrayList<>();
+        items.forEach(list::add);
+        FrameWriter writer = new FrameWriter(opcode, list.size() * 16).writeInt(list.size());
+        for (String item : list) {
+            writer.writeString(item);
+        }
+        return writer.toFrame();
+    }
+
+    private static byte[] membersFrame(Map<String, List<String>> memberships) {
+        FrameWriter writer = new FrameWriter(NodeOpcode.MEMBERS, memberships.size() * 64).writeInt(memberships.size());
+        memberships.forEach((room, members) -> {
+            writer.writeString(room).writeInt(members.size());
+            for (String member : members) {
+                writer.writeString(member);
+            }
+        });
+        return writer.toFrame();
+    }
+
+    private static byte[] revokedFrame(Map<String, Long> revocations) {
+        FrameWriter writer = new FrameWriter(NodeOpcode.REVOKED, revocations.size() * 32).writeInt(revocations.size());
+        revocations.forEach((username, issuedUpTo) -> writer.writeString(username).writeLong(issuedUpTo));
+        return writer.toFrame();
+    }
+
+    private static List<String> readList(FrameReader reader) {
+        int count = reader.readInt();
+        List<String> items = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            items.add(reader.readString());
+        }
+        return items;
+    }
+
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > ServerConfig.MAX_LINE_BYTES) {
+            throw new IOException("invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,30 @@
+package messageserver.chatserver.Cluster;
+
+/**
+ * Opcodes of the links between cluster nodes. Frames have the same layout
+ * as client frames ({@code [int length][byte opcode][fields...]}, strings
+ * as {@code [int length][UTF-8 bytes]}) and lists are {@code [int count]}
+ * followed by the items. A link carries frames one way only, from the
+ * node that dialed it, except for the CHALLENGE the accepting node sends
+ * first; the dialing node's first frame is always HELLO, which answers it.
+ */
+public final class NodeOpcode {
+    public static final int HELLO = 0x01;        // nodeId of the sender, as host:port others can dial; proof (HMAC of the challenge)
+    public static final int PEERS = 0x02;        // [nodeId]: every other node the sender has a link to
+    public static final int SESSIONS = 0x03;     // [username]: everyone logged in on the sender, replacing what was known
+    public static final int SESSION_UP = 0x04;   // username
+    public static final int SESSION_DOWN = 0x05; // username
+    public static final int PING = 0x06;         // sent on an idle link so the receiver can tell it is alive
+    public static final int CHALLENGE = 0x07;    // random nonce, from the accepting node: HELLO must sign it
+    public static final int MEMBERS = 0x08;      // [room, [username]]: every room membership the sender knows, added to the receiver's
+
+    public static final int PRIVATE = 0x10;      // sender, recipient, content
+    public static final int ROOM = 0x11;         // room, sender, content: for the receiver's members of the room
+    public static final int USER_ADDED = 0x12;   // username: registered on the sender, for the receiver's user list
+    public static final int ROOM_JOINED = 0x13;  // room, username: joined through the sender
+    public static final int ROOM_LEFT = 0x14;    // room, username: left through the sender
+    public static final int REVOKED = 0x15;      // [username, long issuedUpTo]: session tokens revoked on the sender
+
+    private NodeOpcode() {
+    }
+}
@@ -0,0 +1,193 @@
+package messageserver.chatserver.Cluster;
+
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Protocol.FrameReader;
+import messageserver.chatserver.Protocol.FrameWriter;
+import messageserver.chatserver.ServerConfig;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connection this node dials to one peer; it only ever sends.
+ *
+ * Frames are queued and written by the link's own thread, so routing a
+ * message never waits on the network. When the connection drops, or the
+ * queue passes {@code chat.cluster.queueBytes} because the peer stopped
+ * reading, whatever is queued is thrown away and the link redials with a
+ * growing delay. Every new connection waits for the peer's challenge and
+ * starts with HELLO answering it, then PEERS and a full
+ * SESSIONS snapshot, so the peer rebuilds its view of this node from
+ * scratch; only forwarded PRIVATE messages are lost in between, and those
+ * are already stored by this node.
+ */
+final class PeerLink {
+    private static final int CONNECT_TIMEOUT_MS = 2_000;
+    private static final long RETRY_MIN_MS = 100;
+    private static final long RETRY_MAX_MS = 10_000;
+    private static final int MAX_BATCH = 256;
+    private static final byte[] PING = new FrameWriter(NodeOpcode.PING, 0).toFrame();
+
+    /** One connection's queue; replaced on every reconnect. */
+    private static final class Outbound {
+        final Socket socket;
+        final LinkedBlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        final AtomicLong bytes = new AtomicLong();
+
+        Outbound(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    private final String peerId;
+    private final InetSocketAddress address;
+    private final ClusterNode node;
+    private final Thread thread;
+    private volatile Outbound outbound; // null while not connected
+
+    PeerLink(String peerId, ClusterNode node) {
+        int colon = peerId.lastIndexOf(':');
+        this.peerId = peerId;
+        this.address = new InetSocketAddress(peerId.substring(0, colon), Integer.parseInt(peerId.substring(colon + 1)));
+        this.node = node;
+        this.thread = new Thread(this::run, "cluster-link-" + peerId);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    String peerId() {
+        return peerId;
+    }
+
+    boolean isConnected() {
+        return outbound != null;
+    }
+
+    /** Queues a frame for the peer; false if the link is down right now. */
+    boolean send(byte[] frame) {
+        Outbound current = outbound;
+        if (current == null) {
+            return false;
+        }
+        if (current.bytes.addAndGet(frame.length) > ServerConfig.CLUSTER_QUEUE_BYTES) {
+            Log.warn("⚠ Cluster link to {} is {} bytes behind; reconnecting", peerId, current.bytes.get());
+            closeQuietly(current.socket); // the writer fails and redials with a fresh snapshot
+            return false;
+        }
+        current.frames.add(frame);
+        return true;
+    }
+
+    /** Queues the opening frames of a new connection and makes it the one {@link #send} uses. */
+    private void open(Outbound connection, List<byte[]> greeting) {
+        for (byte[] frame : greeting) {
+            connection.bytes.addAndGet(frame.length);
+            connection.frames.add(frame);
+        }
+        outbound = connection;
+    }
+
+    private void run() {
+        long delay = RETRY_MIN_MS;
+        boolean reported = false;
+        while (true) {
+            Socket socket = new Socket();
+            Outbound connection = new Outbound(socket);
+            try {
+                socket.connect(address, CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                String challenge = readChallenge(socket);
+                // Under the node's session lock: no SESSION_UP/DOWN can fall between the snapshot and the link going live
+                node.greet(peerId, challenge, greeting -> open(connection, greeting));
+                Log.info("✓ Cluster link to {} up", peerId);
+                delay = RETRY_MIN_MS;
+                reported = false;
+                write(connection);
+            } catch (IOException e) {
+                if (outbound == connection) {
+                    Log.warn("⚠ Cluster link to {} lost: {}", peerId, e.getMessage());
+                } else if (!reported) {
+                    Log.warn("⚠ Cannot reach cluster node {}: {}; retrying", peerId, e.getMessage());
+                    reported = true;
+                }
+            } finally {
+                outbound = null;
+                closeQuietly(socket);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay = Math.min(delay * 2, RETRY_MAX_MS);
+        }
+    }
+
+    /** Reads the CHALLENGE the peer sends as soon as it accepts the connection. */
+    private static String readChallenge(Socket socket) throws IOException {
+        socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+        byte[] frame = ClusterNode.readFrame(new DataInputStream(socket.getInputStream()));
+        socket.setSoTimeout(0);
+        if (frame == null) {
+            throw new IOException("closed before sending a challenge");
+        }
+        try {
+            FrameReader reader = new FrameReader(frame, 0, frame.length);
+            if (reader.readByte() != NodeOpcode.CHALLENGE) {
+                throw new IOException("expected CHALLENGE");
+            }
+            return reader.readString();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("malformed CHALLENGE: " + e.getMessage());
+        }
+    }
+
+    /** Writes queued frames until the connection fails; sends a PING whenever the link has been idle for a heartbeat. */
+    private void write(Outbound connection) throws IOException {
+        OutputStream out = new BufferedOutputStream(connection.socket.getOutputStream(), 64 * 1024);
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            byte[] first;
+            try {
+                first = connection.frames.poll(ServerConfig.CLUSTER_HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+            if (first == null) {
+                out.write(PING);
+                out.flush();
+                continue;
+            }
+            batch.add(first);
+            connection.frames.drainTo(batch, MAX_BATCH - 1);
+            long written = 0;
+            for (byte[] frame : batch) {
+                out.write(frame);
+                written += frame.length;
+            }
+            out.flush();
+            connection.bytes.addAndGet(-written);
+            batch.clear();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
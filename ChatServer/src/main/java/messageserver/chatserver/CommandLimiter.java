@@ -0,0 +1,197 @@
+package messageserver.chatserver;
+
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Metrics.Metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets that stop one session from flooding the server with commands.
+ *
+ * Every command after login takes a token from the session's bucket
+ * ({@code chat.limit.session}). PRIVATE, room messages, history reads
+ * and SEARCH, and GET_USERS also take one from a bucket of their own,
+ * so a client that floods history requests can still send messages. A limit is
+ * {@code rate/burst}: tokens added per second and the most that can be
+ * saved up; {@code 0} means unlimited. Buckets refill from the clock when
+ * a command arrives, so an idle session costs nothing.
+ *
+ * A rejected command is dropped before its fields are parsed. The client
+ * hears about it with a THROTTLED reply at most once per second, and a
+ * client that is still sending after {@code chat.limit.maxRejected}
+ * rejections in a row is disconnected. One instance per session; a
+ * session's commands are checked one at a time.
+ */
+public final class CommandLimiter {
+    private static final long NOTICE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Limit SESSION = Limit.parse("chat.limit.session", ServerConfig.LIMIT_SESSION);
+    private static final LongAdder DISCONNECTS = Metrics.counter("chat_throttle_disconnects_total",
+            "Clients disconnected for sending too many throttled commands in a row");
+
+    /** What a command is charged to besides the session bucket. */
+    public enum Kind {
+        PRIVATE("chat.limit.private", ServerConfig.LIMIT_PRIVATE),
+        ROOM("chat.limit.room", ServerConfig.LIMIT_ROOM),
+        HISTORY("chat.limit.history", ServerConfig.LIMIT_HISTORY),
+        USERS("chat.limit.users", ServerConfig.LIMIT_USERS),
+        OTHER(null, "0");
+
+        private final Limit limit;
+        private final LongAdder rejected;
+
+        Kind(String property, String limit) {
+            this.limit = Limit.parse(property, limit);
+            String name = name().toLowerCase(Locale.ROOT);
+            this.rejected = Metrics.counter("chat_throttled_" + name + "_total",
+                    "Commands rejected by the rate limiter: " + name);
+        }
+    }
+
+    /** What to do with a command. */
+    public enum Verdict {
+        ALLOW,
+        /** Reject it and send the client a THROTTLED reply. */
+        THROTTLE,
+        /** Reject it silently; the client was told less than a second ago. */
+        DROP,
+        /** Reject it and close the connection. */
+        DISCONNECT
+    }
+
+    /** Tokens per second and bucket size; a rate of 0 means unlimited. */
+    private record Limit(double perSecond, double burst) {
+
+        /** {@code rate/burst}, or just {@code rate} for a burst of one second's worth. */
+        static Limit parse(String property, String value) {
+            try {
+                int slash = value.indexOf('/');
+                double perSecond = Double.parseDouble(slash < 0 ? value : value.substring(0, slash));
+                double burst = slash < 0 ? perSecond : Double.parseDouble(value.substring(slash + 1));
+                return new Limit(Math.max(0, perSecond), Math.max(1, burst));
+            } catch (NumberFormatException e) {
+                Log.warn("⚠ Ignoring {}={}: expected rate/burst, e.g. 20/40", property, value);
+                return new Limit(0, 1);
+            }
+        }
+
+        boolean unlimited() {
+            return perSecond <= 0;
+        }
+
+        @Override
+        public String toString() {
+            return unlimited() ? "unlimited" : number(perSecond) + "/s, burst " + number(burst);
+        }
+
+        private static String number(double value) {
+            return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+        }
+    }
+
+    private static final class Bucket {
+        private final Limit limit;
+        private double tokens;
+        private long refilledAt;
+
+        Bucket(Limit limit, long now) {
+            this.limit = limit;
+            this.tokens = limit.burst();
+            this.refilledAt = now;
+        }
+
+        boolean hasToken(long now) {
+            if (limit.unlimited()) {
+                return true;
+            }
+            tokens = Math.min(limit.burst(), tokens + (now - refilledAt) * limit.perSecond() / 1e9);
+            refilledAt = now;
+            return tokens >= 1;
+        }
+
+        void take() {
+            tokens--;
+        }
+
+        long millisUntilToken() {
+            return limit.unlimited() || tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * 1000 / limit.perSecond());
+        }
+    }
+
+    private final String username;
+    private final Bucket session;
+    private final Bucket[] buckets = new Bucket[Kind.values().length];
+    private int rejectedInARow;
+    // Throttled from the first rejection until a second passes without one
+    private volatile boolean throttled;
+    private volatile long lastRejectedAt;
+    private long rejectedWhileThrottled;
+    private long lastNoticeAt;
+
+    public CommandLimiter(String username) {
+        long now = System.nanoTime();
+        this.username = username;
+        this.session = new Bucket(SESSION, now);
+        for (Kind kind : Kind.values()) {
+            buckets[kind.ordinal()] = new Bucket(kind.limit, now);
+        }
+        this.lastNoticeAt = now - NOTICE_INTERVAL_NANOS;
+    }
+
+    /** Charges one command of this kind; takes no tokens unless it is allowed. */
+    public Verdict check(Kind kind) {
+        long now = System.nanoTime();
+        Bucket own = buckets[kind.ordinal()];
+        boolean ownHasToken = own.hasToken(now);
+        boolean sessionHasToken = session.hasToken(now);
+        if (ownHasToken && sessionHasToken) {
+            own.take();
+            session.take();
+            rejectedInARow = 0;
+            if (throttled && now - lastRejectedAt >= NOTICE_INTERVAL_NANOS) {
+                throttled = false;
+                Log.info("  [{}] No longer throttled after {} rejected commands", username, rejectedWhileThrottled);
+            }
+            return Verdict.ALLOW;
+        }
+
+        kind.rejected.increment();
+        int rejected = ++rejectedInARow;
+        lastRejectedAt = now;
+        if (throttled) {
+            rejectedWhileThrottled++;
+        } else {
+            throttled = true;
+            rejectedWhileThrottled = 1;
+            Log.warn("  ⚠ Throttling {}: {} over the {} limit ({})", username, kind,
+                    ownHasToken ? "session" : kind.name().toLowerCase(Locale.ROOT), ownHasToken ? SESSION : kind.limit);
+        }
+        if (ServerConfig.LIMIT_MAX_REJECTED > 0 && rejected > ServerConfig.LIMIT_MAX_REJECTED) {
+            DISCONNECTS.increment();
+            Log.warn("  ✗ Disconnecting {}: {} throttled commands in a row", username, rejected);
+            return Verdict.DISCONNECT;
+        }
+        if (now - lastNoticeAt >= NOTICE_INTERVAL_NANOS) {
+            lastNoticeAt = now;
+            return Verdict.THROTTLE;
+        }
+        return Verdict.DROP;
+    }
+
+    /** How long until a command of this kind would be allowed again, for the THROTTLED reply. */
+    public long retryAfterMillis(Kind kind) {
+        return Math.max(buckets[kind.ordinal()].millisUntilToken(), session.millisUntilToken());
+    }
+
+    /** True if one of the session's commands was rejected within the last second. */
+    public boolean isThrottled() {
+        return throttled && System.nanoTime() - lastRejectedAt < NOTICE_INTERVAL_NANOS;
+    }
+
+    /** Logs the configured limits once at startup. */
+    public static void logLimits() {
+        Log.info("✓ Command limits: session {}, private {}, room {}, history {}, users {}", SESSION,
+                Kind.PRIVATE.limit, Kind.ROOM.limit, Kind.HISTORY.limit, Kind.USERS.limit);
+    }
+}
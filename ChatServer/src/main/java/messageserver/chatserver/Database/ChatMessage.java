@@ -0,0 +1,9 @@
+package messageserver.chatserver.Database;
+
+/** One stored private message; {@code id} is 0 until the row has been written. */
+public record ChatMessage(String sender, String receiver, String content, long timestampMillis, long id) {
+
+    public ChatMessage(String sender, String receiver, String content, long timestampMillis) {
+        this(sender, receiver, content, timestampMillis, 0);
+    }
+}
@@ -0,0 +1,113 @@
+package messageserver.chatserver.Database;
+
+import messageserver.chatserver.Logging.Log;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The highest private message id at or below which every message is
+ * committed, when several servers insert into one table.
+ *
+ * With one writer, {@code MAX(id)} is such an id: batches commit in id
+ * order. With several, a transaction can take ids below another's and
+ * commit after it, so {@code MAX(id)} may be above a row that is not
+ * visible yet; a SYNC that reported it would make the client skip that
+ * row for good. Instead this walks the ids above the last watermark and
+ * stops at the first one missing. A missing id is either a transaction
+ * still open or one that rolled back (or an id the server never used);
+ * a gap that stays open for {@code gapWaitMillis} is taken to be the
+ * latter and passed. On first use the walk starts {@link #LOOKBACK_ROWS}
+ * rows below the newest, so transactions already open then are waited
+ * for too.
+ *
+ * The walk reads only new ids through the primary key and runs at most
+ * once per {@link #REFRESH_MILLIS}; callers in between, and callers that
+ * arrive while another thread is walking, get the last value. The walk
+ * holds a {@link ReentrantLock} rather than a monitor, so a virtual thread
+ * waiting on JDBC inside it does not pin its carrier.
+ */
+final class CommittedIdWatermark {
+    private static final int SCAN_ROWS = 1000;
+    private static final int LOOKBACK_ROWS = 10_000;
+    private static final long REFRESH_MILLIS = 50;
+
+    private final long gapWaitNanos;
+    // Ids go up by this much (auto_increment_increment); read on first use
+    private long step;
+    // First missing id of each gap seen above the watermark -> System.nanoTime() when it was first seen
+    private final TreeMap<Long, Long> gaps = new TreeMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Written under lock; read without it by callers that find the lock taken
+    private volatile long watermark = -1; // -1 until the first walk
+    private long refreshedAt;
+
+    CommittedIdWatermark(long gapWaitMillis) {
+        this.gapWaitNanos = TimeUnit.MILLISECONDS.toNanos(gapWaitMillis);
+    }
+
+    /** The watermark; 0 if it has never been read. */
+    long get() {
+        long last = watermark;
+        if (last >= 0 && !lock.tryLock()) {
+            // Someone is walking already; an older watermark is still a safe one
+            return last;
+        }
+        if (last < 0) {
+            lock.lock();
+        }
+        try {
+            return refresh();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long refresh() {
+        long now = System.nanoTime();
+        if (watermark >= 0 && now - refreshedAt < TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS)) {
+            return watermark;
+        }
+        refreshedAt = now;
+        if (watermark < 0) {
+            long base = Dbconnection.getPrivateMessageIdBelowLatest(LOOKBACK_ROWS);
+            if (base < 0) {
+                return 0;
+            }
+            step = Math.max(1, Dbconnection.getAutoIncrementStep());
+            watermark = base;
+            Log.info("  ✓ SYNC watermark starts at id {} (ids step by {})", base, step);
+        }
+        advance(now);
+        return watermark;
+    }
+
+    private void advance(long now) {
+        while (true) {
+            long[] ids = Dbconnection.getPrivateMessageIdsAfter(watermark, SCAN_ROWS);
+            if (ids == null) {
+                return;
+            }
+            boolean advancing = true;
+            long previous = watermark;
+            for (long id : ids) {
+                long expected = previous + step;
+                if (id > expected) {
+                    Long seen = gaps.putIfAbsent(expected, now);
+                    if (advancing && (seen == null || now - seen < gapWaitNanos)) {
+                        advancing = false;
+                    }
+                }
+                if (advancing) {
+                    watermark = id;
+                }
+                previous = id;
+            }
+            gaps.headMap(watermark, true).clear();
+            if (!advancing || ids.length < SCAN_ROWS) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package messageserver.chatserver.Database;
+
+import messageserver.chatserver.Logging.Log;
+
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of MySQL connections.
+ *
+ * Connections are opened lazily up to {@code maxSize} and handed out as
+ * {@link PooledConnection}s; closing one returns it to the pool instead of
+ * closing the socket. Each physical connection keeps its own small cache
+ * of prepared statements, so the usual query is a map lookup plus one
+ * round trip. Idle connections are checked with {@link Connection#isValid}
+ * before reuse and closed by a housekeeping thread once they have been
+ * idle for too long.
+ */
+public final class ConnectionPool {
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long acquireTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private final long validateAfterNanos;
+    private final int statementCacheSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // Most recently returned first, so the warmest connections are reused
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService housekeeper;
+    private int total;     // open physical connections, idle or leased
+    private int opening;   // slots reserved by threads currently connecting
+    private boolean closed;
+
+    // Metrics, guarded by lock
+    private long acquired;
+    private long waitNanosTotal;
+    private long waitNanosMax;
+    private long timeouts;
+    private long created;
+    private long discarded;
+
+    public ConnectionPool(String url, String user, String password, int maxSize, long acquireTimeoutMillis,
+                          long idleTimeoutMillis, long validateAfterMillis, int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterMillis);
+        this.statementCacheSize = statementCacheSize;
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "db-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 4);
+        housekeeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the acquire timeout if all of
+     * them are in use. Use it in try-with-resources so it always goes back.
+     */
+    public PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        long remaining = acquireTimeoutNanos;
+        while (true) {
+            PooledConnection candidate = null;
+            boolean openNew = false;
+            lock.lock();
+            try {
+                while (idle.isEmpty() && total + opening >= maxSize && !closed) {
+                    if (remaining <= 0) {
+                        timeouts++;
+                        throw new SQLTransientConnectionException("Timed out after "
+                                + TimeUnit.NANOSECONDS.toMillis(acquireTimeoutNanos) + " ms waiting for a database connection ("
+                                + total + " open, all in use)");
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+                if (closed) {
+                    throw new SQLNonTransientConnectionException("Connection pool is closed");
+                }
+                if (!idle.isEmpty()) {
+                    candidate = idle.pollFirst();
+                } else {
+                    opening++;
+                    openNew = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLTransientConnectionException("Interrupted waiting for a database connection", e);
+            } finally {
+                lock.unlock();
+            }
+
+            if (openNew) {
+                candidate = open();
+            } else if (!isUsable(candidate)) {
+                discard(candidate);
+                remaining = acquireTimeoutNanos - (System.nanoTime() - start);
+                continue;
+            }
+            candidate.leased = true;
+            recordAcquire(System.nanoTime() - start);
+            return candidate;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        try {
+            Connection physical = DriverManager.getConnection(url, user, password);
+            PooledConnection conn = new PooledConnection(physical);
+            lock.lock();
+            try {
+                total++;
+                created++;
+            } finally {
+                lock.unlock();
+            }
+            return conn;
+        } finally {
+            lock.lock();
+            try {
+                opening--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Connections that sat idle for a while are pinged before reuse. */
+    private boolean isUsable(PooledConnection conn) {
+        if (System.nanoTime() - conn.lastUsedNanos < validateAfterNanos) {
+            return true;
+        }
+        try {
+            return conn.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void recordAcquire(long waitNanos) {
+        lock.lock();
+        try {
+            acquired++;
+            waitNanosTotal += waitNanos;
+            waitNanosMax = Math.max(waitNanosMax, waitNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(PooledConnection conn) {
+        boolean healthy = !conn.broken && resetState(conn);
+        conn.lastUsedNanos = System.nanoTime();
+        if (!healthy) {
+            discard(conn);
+            return;
+        }
+        lock.lock();
+        try {
+            if (!closed) {
+                idle.addFirst(conn);
+                available.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        discard(conn);
+    }
+
+    /** Undoes anything a caller may have changed so the next borrower starts clean. */
+    private static boolean resetState(PooledConnection conn) {
+        try {
+            if (conn.physical.isClosed()) {
+                return false;
+            }
+            if (!conn.physical.getAutoCommit()) {
+                conn.physical.rollback();
+                conn.physical.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection conn) {
+        conn.closePhysical();
+        lock.lock();
+        try {
+            total--;
+            discarded++;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictIdle() {
+        ArrayDeque<PooledConnection> expired = new ArrayDeque<>();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Iterator<PooledConnection> it = idle.iterator();
+            while (it.hasNext()) {
+                PooledConnection conn = it.next();
+                if (now - conn.lastUsedNanos >= idleTimeoutNanos) {
+                    it.remove();
+                    expired.add(conn);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (PooledConnection conn : expired) {
+            discard(conn);
+        }
+        if (!expired.isEmpty()) {
+            Log.debug("  [DB Pool] Closed {} idle connection(s); {}", expired.size(), stats());
+        }
+    }
+
+    /** Closes every idle connection; leased ones are closed when returned. */
+    public void close() {
+        ArrayDeque<PooledConnection> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        housekeeper.shutdownNow();
+        for (PooledConnection conn : toClose) {
+            discard(conn);
+        }
+    }
+
+    public PoolStats stats() {
+        lock.lock();
+        try {
+            return new PoolStats(total - idle.size(), idle.size(), maxSize, acquired, timeouts, created, discarded,
+                    acquired == 0 ? 0 : waitNanosTotal / acquired / 1000, waitNanosMax / 1000);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Point-in-time pool counters; wait times are in microseconds. */
+    public record PoolStats(int active, int idle, int maxSize, long acquired, long timeouts, long created,
+                            long discarded, long avgWaitMicros, long maxWaitMicros) {
+        @Override
+        public String toString() {
+            return "active=" + active + " idle=" + idle + " max=" + maxSize + " acquired=" + acquired
+                    + " timeouts=" + timeouts + " created=" + created + " discarded=" + discarded
+                    + " avgWait=" + avgWaitMicros + "µs maxWait=" + maxWaitMicros + "µs";
+        }
+    }
+
+    /**
+     * A borrowed connection. {@link #close} hands it back to the pool;
+     * statements from {@link #prepare} are cached and must not be closed
+     * by the caller. With the cache turned off they are closed when the
+     * connection is handed back.
+     */
+    public final class PooledConnection implements AutoCloseable {
+        private final Connection physical;
+        private final Map<String, PreparedStatement> statements;
+        // Prepared while the statement cache is off; closed on release
+        private final List<PreparedStatement> uncached = new ArrayList<>();
+        private long lastUsedNanos = System.nanoTime();
+        private boolean leased;
+        private boolean broken;
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= statementCacheSize) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        /** Returns the cached statement for {@code sql}, preparing it on first use. */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return prepare(sql, Statement.NO_GENERATED_KEYS);
+        }
+
+        /** Same, for an INSERT whose generated keys are read back; always use this one for that {@code sql}. */
+        public PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+            return prepare(sql, Statement.RETURN_GENERATED_KEYS);
+        }
+
+        private PreparedStatement prepare(String sql, int generatedKeys) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null || stmt.isClosed()) {
+                try {
+                    stmt = physical.prepareStatement(sql, generatedKeys);
+                } catch (SQLException e) {
+                    broken = true;
+                    throw e;
+                }
+                if (statementCacheSize > 0) {
+                    statements.put(sql, stmt);
+                } else {
+                    uncached.add(stmt);
+                }
+            } else {
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+
+        /** Direct access for the rare caller that needs the plain JDBC connection. */
+        public Connection unwrap() {
+            return physical;
+        }
+
+        /** Makes the pool throw this connection away instead of reusing it. */
+        public void markBroken() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            if (!leased) {
+                return;
+            }
+            leased = false;
+            closeUncached();
+            release(this);
+        }
+
+        private void closeUncached() {
+            for (PreparedStatement stmt : uncached) {
+                closeQuietly(stmt);
+            }
+            uncached.clear();
+        }
+
+        private void closePhysical() {
+            closeUncached();
+            for (PreparedStatement stmt : statements.values()) {
+                closeQuietly(stmt);
+            }
+            statements.clear();
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                // Already gone
+            }
+        }
+    }
+
+    private static void closeQuietly(Statement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // Nothing useful to do
+        }
+    }
+}
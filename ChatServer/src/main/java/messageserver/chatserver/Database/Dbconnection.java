@@ -1,253 +1,731 @@
 package messageserver.chatserver.Database;
 
+import messageserver.chatserver.Database.ConnectionPool.PooledConnection;
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Metrics.Metrics;
+import messageserver.chatserver.Metrics.Metrics.DbCall;
+import messageserver.chatserver.Protocol.TextFormat;
+import messageserver.chatserver.ServerConfig;
+import messageserver.chatserver.Storage.StoreUnavailableException;
+
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public class Dbconnection {
     private static final String URL = "jdbc:mysql://localhost:3306/chat_app";
     private static final String USER = "root";
     private static final String PASSWORD = "Sheran@1234";
+    private static final int MAX_ROWS_PER_INSERT = 64;
+    
+    // Server-side prepared statements, so the statements cached by the pool are parsed once per connection;
+    // cursor fetch, so a statement with a fetch size streams rows instead of buffering the whole result
+    private static final ConnectionPool POOL = new ConnectionPool(URL + "?useServerPrepStmts=true&useCursorFetch=true", USER, PASSWORD,
+            ServerConfig.DB_POOL_SIZE, ServerConfig.DB_ACQUIRE_TIMEOUT_MS, ServerConfig.DB_IDLE_TIMEOUT_MS,
+            ServerConfig.DB_VALIDATE_AFTER_MS, ServerConfig.DB_STATEMENT_CACHE);
+    
+    static {
+        Metrics.gauge("chat_db_pool_active", "Pooled connections in use", () -> POOL.stats().active());
+        Metrics.gauge("chat_db_pool_idle", "Pooled connections waiting to be borrowed", () -> POOL.stats().idle());
+        Metrics.gauge("chat_db_pool_timeouts", "Times a query gave up waiting for a connection", () -> POOL.stats().timeouts());
+    }
     
     public static boolean testConnection() {
-        System.out.println("========================================");
-        System.out.println("TESTING DATABASE CONNECTION...");
-        System.out.println("========================================");
-        System.out.println("Database URL: " + URL);
-        System.out.println("Database User: " + USER);
+        Log.info("========================================");
+        Log.info("TESTING DATABASE CONNECTION...");
+        Log.info("========================================");
+        Log.info("Database URL: {}", URL);
+        Log.info("Database User: {}", USER);
         
         try {
             Class.forName("com.mysql.cj.jdbc.Driver");
-            System.out.println("✓ MySQL Driver loaded successfully");
-            
-            Connection conn = DriverManager.getConnection(URL, USER, PASSWORD);
-            System.out.println("✓ Database connection SUCCESSFUL!");
-            
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) as count FROM users");
-            if (rs.next()) {
-                System.out.println("✓ Users table accessible. Total users: " + rs.getInt("count"));
-            }
-            
-            rs = stmt.executeQuery("SELECT COUNT(*) as count FROM private_messages");
-            if (rs.next()) {
-                System.out.println("✓ Private messages table accessible. Total messages: " + rs.getInt("count"));
-            }
+            Log.info("✓ MySQL Driver loaded successfully");
             
-            // List all users
-            rs = stmt.executeQuery("SELECT username FROM users");
-            System.out.print("✓ Registered users: ");
-            while (rs.next()) {
-                System.out.print(rs.getString("username") + " ");
+            try (PooledConnection conn = POOL.acquire();
+                 Statement stmt = conn.unwrap().createStatement()) {
+                Log.info("✓ Database connection SUCCESSFUL!");
+                
+                try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) as count FROM users")) {
+                    if (rs.next()) {
+                        Log.info("✓ Users table accessible. Total users: {}", rs.getInt("count"));
+                    }
+                }
+                
+                try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) as count FROM private_messages")) {
+                    if (rs.next()) {
+                        Log.info("✓ Private messages table accessible. Total messages: {}", rs.getInt("count"));
+                    }
+                }
+                
+                // List all users
+                List<String> registered = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery("SELECT username FROM users")) {
+                    while (rs.next()) {
+                        registered.add(rs.getString("username"));
+                    }
+                }
+                Log.info("✓ Registered users: {}", String.join(" ", registered));
             }
-            System.out.println();
-            
-            conn.close();
-            System.out.println("========================================");
-            System.out.println("DATABASE STATUS: READY ✓");
-            System.out.println("========================================\n");
+            Log.info("✓ Connection pool ready (max {} connections)", ServerConfig.DB_POOL_SIZE);
+            Log.info("========================================");
+            Log.info("DATABASE STATUS: READY ✓");
+            Log.info("========================================");
             return true;
             
         } catch (ClassNotFoundException e) {
-            System.err.println("✗ MySQL Driver NOT FOUND!");
-            System.err.println("  Please add mysql-connector-java.jar to your project libraries");
-            e.printStackTrace();
+            Log.error("✗ MySQL Driver NOT FOUND!");
+            Log.error("  Please add mysql-connector-java.jar to your project libraries", e);
             return false;
         } catch (SQLException e) {
-            System.err.println("✗ Database connection FAILED!");
-            System.err.println("  Error Code: " + e.getErrorCode());
-            System.err.println("  SQL State: " + e.getSQLState());
-            System.err.println("  Message: " + e.getMessage());
-            System.err.println("\nPossible issues:");
-            System.err.println("  1. MySQL server is not running");
-            System.err.println("  2. Database 'chat_app' does not exist");
-            System.err.println("  3. Username or password is incorrect");
-            System.err.println("  4. Database tables are not created");
-            e.printStackTrace();
+            Log.error("✗ Database connection FAILED!");
+            Log.error("  Error Code: {}", e.getErrorCode());
+            Log.error("  SQL State: {}", e.getSQLState());
+            Log.error("  Message: {}", e.getMessage());
+            Log.error("Possible issues:");
+            Log.error("  1. MySQL server is not running");
+            Log.error("  2. Database 'chat_app' does not exist");
+            Log.error("  3. Username or password is incorrect");
+            Log.error("  4. Database tables are not created", e);
             return false;
         }
     }
     
-    public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(URL, USER, PASSWORD);
+    /** Borrows a pooled connection; close it (try-with-resources) to give it back. */
+    public static PooledConnection getConnection() throws SQLException {
+        return POOL.acquire();
+    }
+    
+    public static ConnectionPool.PoolStats getPoolStats() {
+        return POOL.stats();
     }
     
     public static boolean authenticateUser(String username, String password) {
         String query = "SELECT * FROM users WHERE username=? AND password=?";
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query)) {
-            stmt.setString(1, username);
-            stmt.setString(2, password);
-            ResultSet rs = stmt.executeQuery();
-            boolean authenticated = rs.next();
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare(query);
+                stmt.setString(1, username);
+                stmt.setString(2, password);
+                ResultSet rs = stmt.executeQuery();
+                boolean authenticated = rs.next();
             
-            if (authenticated) {
-                System.out.println("    ✓ DB: User '" + username + "' authenticated successfully");
-            } else {
-                System.out.println("    ✗ DB: Invalid credentials for user '" + username + "'");
-            }
+                if (authenticated) {
+                    Log.debug("    ✓ DB: User '{}' authenticated successfully", username);
+                } else {
+                    Log.debug("    ✗ DB: Invalid credentials for user '{}'", username);
+                }
             
-            return authenticated;
+                return authenticated;
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
         } catch (SQLException e) {
-            System.err.println("    ✗ DB Error during authentication: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("    ✗ DB Error during authentication: {}", e.getMessage(), e);
             return false;
+        } finally {
+            DbCall.AUTHENTICATE.record(start);
         }
     }
     
     public static String getAllUsernames() {
-        StringBuilder usernames = new StringBuilder();
+        return String.join(",", getUsernameList());
+    }
+    
+    public static List<String> getUsernameList() {
+        List<String> usernames = new ArrayList<>();
         String query = "SELECT username FROM users ORDER BY username";
         
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(query)) {
-            
-            int count = 0;
-            while (rs.next()) {
-                if (usernames.length() > 0) {
-                    usernames.append(",");
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try (ResultSet rs = conn.prepare(query).executeQuery()) {
+                while (rs.next()) {
+                    usernames.add(rs.getString("username"));
                 }
-                usernames.append(rs.getString("username"));
-                count++;
+            } catch (SQLException e) {
+                throw lost(conn, e);
             }
             
-            System.out.println("    ✓ DB: Retrieved " + count + " users: " + usernames.toString());
+            Log.debug("    ✓ DB: Retrieved {} users", usernames.size());
             
         } catch (SQLException e) {
-            System.err.println("    ✗ DB Error getting usernames: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("    ✗ DB Error getting usernames: {}", e.getMessage(), e);
+        } finally {
+            DbCall.LOAD_USERS.record(start);
         }
         
-        return usernames.toString();
+        return usernames;
     }
     
     public static void savePrivateMessage(String sender, String receiver, String message) {
         String query = "INSERT INTO private_messages (sender, receiver, message) VALUES (?, ?, ?)";
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query)) {
-            stmt.setString(1, sender);
-            stmt.setString(2, receiver);
-            stmt.setString(3, message);
-            int rows = stmt.executeUpdate();
-            System.out.println("    ✓ DB: Private message saved from " + sender + " to " + receiver + " (rows: " + rows + ")");
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare(query);
+                stmt.setString(1, sender);
+                stmt.setString(2, receiver);
+                stmt.setString(3, message);
+                int rows = stmt.executeUpdate();
+                Log.debug("    ✓ DB: Private message saved from {} to {} (rows: {})", sender, receiver, rows);
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
+        } catch (SQLException e) {
+            Log.error("    ✗ DB Error saving private message: {}", e.getMessage(), e);
+        } finally {
+            DbCall.SAVE_MESSAGE.record(start);
+        }
+    }
+    
+    /**
+     * Inserts the messages, in order, as one transaction, and returns them
+     * with the ids the table gave them; null if the transaction failed.
+     * Rows go out in multi-row INSERTs whose sizes are powers of two, so
+     * only a handful of distinct statements ever land in the statement cache.
+     * Throws {@link StoreUnavailableException} if the database could not be
+     * reached or the connection was lost.
+     */
+    public static List<ChatMessage> savePrivateMessages(List<ChatMessage> messages) {
+        return insertBatch(messages, "INSERT INTO private_messages (sender, receiver, message, timestamp) VALUES ",
+                true, "private", DbCall.SAVE_BATCH);
+    }
+    
+    /** Same, into the {@code messages} table, where each message's receiver is its room; false if it failed. */
+    public static boolean saveRoomMessages(List<ChatMessage> messages) {
+        return insertBatch(messages, "INSERT INTO messages (sender, room, message, timestamp) VALUES ",
+                false, "room", DbCall.SAVE_ROOM_MESSAGES) != null;
+    }
+    
+    /** Inserts the messages; returns them with their generated ids if {@code keys}, else as they came. */
+    private static List<ChatMessage> insertBatch(List<ChatMessage> messages, String insert, boolean keys, String kind,
+                                                 DbCall call) {
+        long start = System.nanoTime();
+        List<ChatMessage> stored = keys ? new ArrayList<>(messages.size()) : messages;
+        try (PooledConnection conn = getConnection()) {
+            try {
+                conn.unwrap().setAutoCommit(false);
+                int offset = 0;
+                while (offset < messages.size()) {
+                    int rows = Math.min(MAX_ROWS_PER_INSERT, Integer.highestOneBit(messages.size() - offset));
+                    String sql = multiRowInsert(insert, rows);
+                    PreparedStatement stmt = keys ? conn.prepareReturningKeys(sql) : conn.prepare(sql);
+                    List<ChatMessage> slice = messages.subList(offset, offset + rows);
+                    int param = 1;
+                    for (ChatMessage message : slice) {
+                        stmt.setString(param++, message.sender());
+                        stmt.setString(param++, message.receiver());
+                        stmt.setString(param++, message.content());
+                        stmt.setTimestamp(param++, new Timestamp(message.timestampMillis()));
+                    }
+                    stmt.executeUpdate();
+                    if (keys) {
+                        try (ResultSet generated = stmt.getGeneratedKeys()) {
+                            for (ChatMessage message : slice) {
+                                if (!generated.next()) {
+                                    throw new SQLException("Fewer generated keys than rows inserted");
+                                }
+                                stored.add(new ChatMessage(message.sender(), message.receiver(), message.content(),
+                                                           message.timestampMillis(), generated.getLong(1)));
+                            }
+                        }
+                    }
+                    offset += rows;
+                }
+                conn.unwrap().commit();
+                Log.debug("    ✓ DB: Committed {} {} message(s)", messages.size(), kind);
+                return stored;
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
         } catch (SQLException e) {
-            System.err.println("    ✗ DB Error saving private message: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("    ✗ DB Error saving {} {} message(s): {}", messages.size(), kind, e.getMessage());
+            if (unreachable(e)) {
+                // The rows were rolled back with the transaction; the caller can try the batch again
+                throw new StoreUnavailableException("Database unreachable: " + e.getMessage(), e);
+            }
+            return null;
+        } finally {
+            call.record(start);
+        }
+    }
+    
+    private static String multiRowInsert(String insert, int rows) {
+        StringBuilder sql = new StringBuilder(insert);
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
         }
+        return sql.toString();
     }
     
     public static String getPrivateMessageHistory(String user1, String user2) {
         StringBuilder history = new StringBuilder();
-        String query = "SELECT sender, receiver, message, timestamp FROM private_messages " +
+        for (ChatMessage message : getPrivateMessages(user1, user2)) {
+            if (history.length() > 0) {
+                history.append("|");
+            }
+            TextFormat.appendHistoryEntry(history, message);
+        }
+        return history.toString();
+    }
+    
+    /** The latest {@code chat.history.legacyLimit} messages of a conversation, oldest first. */
+    public static List<ChatMessage> getPrivateMessages(String user1, String user2) {
+        List<ChatMessage> history = new ArrayList<>();
+        String query = "SELECT * FROM (SELECT id, sender, receiver, message, timestamp FROM private_messages " +
                       "WHERE (sender=? AND receiver=?) OR (sender=? AND receiver=?) " +
-                      "ORDER BY timestamp ASC";
+                      "ORDER BY id DESC LIMIT ?) latest ORDER BY id ASC";
         
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query)) {
-            stmt.setString(1, user1);
-            stmt.setString(2, user2);
-            stmt.setString(3, user2);
-            stmt.setString(4, user1);
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare(query);
+                stmt.setString(1, user1);
+                stmt.setString(2, user2);
+                stmt.setString(3, user2);
+                stmt.setString(4, user1);
+                stmt.setInt(5, ServerConfig.HISTORY_LEGACY_LIMIT);
             
-            ResultSet rs = stmt.executeQuery();
-            int count = 0;
-            while (rs.next()) {
-                if (history.length() > 0) {
-                    history.append("|");
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    history.add(readMessage(rs));
                 }
-                // Format: sender:message:timestamp
-                history.append(rs.getString("sender"))
-                       .append(":")
-                       .append(rs.getString("message"))
-                       .append(":")
-                       .append(rs.getTimestamp("timestamp"));
-                count++;
-            }
             
-            System.out.println("    ✓ DB: Retrieved " + count + " messages between " + user1 + " and " + user2);
-            if (count > 0) {
-                System.out.println("    ✓ DB: History preview: " + history.toString().substring(0, Math.min(100, history.length())) + "...");
+                Log.debug("    ✓ DB: Retrieved {} messages between {} and {}", history.size(), user1, user2);
+            } catch (SQLException e) {
+                throw lost(conn, e);
             }
+        } catch (SQLException e) {
+            Log.error("    ✗ DB Error getting message history: {}", e.getMessage(), e);
+        } finally {
+            DbCall.HISTORY.record(start);
+        }
+        
+        return history;
+    }
+    
+    /**
+     * Streams up to {@code limit} messages of a conversation older than
+     * {@code beforeId} (0 = from the newest), newest first, handing them to
+     * {@code chunks} {@code chunkRows} at a time as they come off the
+     * server-side cursor. Memory use is one chunk, however long the
+     * conversation is. Returns the id to pass as {@code beforeId} for the
+     * next older page, or 0 when there are no older messages.
+     */
+    public static long streamPrivateMessages(String user1, String user2, long beforeId, int limit, int chunkRows,
+                                             Consumer<List<ChatMessage>> chunks) {
+        String query = "SELECT id, sender, receiver, message, timestamp FROM private_messages " +
+                      "WHERE ((sender=? AND receiver=?) OR (sender=? AND receiver=?)) AND id < ? " +
+                      "ORDER BY id DESC LIMIT ?";
+        
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare(query);
+                stmt.setFetchSize(chunkRows);
+                stmt.setString(1, user1);
+                stmt.setString(2, user2);
+                stmt.setString(3, user2);
+                stmt.setString(4, user1);
+                stmt.setLong(5, beforeId > 0 ? beforeId : Long.MAX_VALUE);
+                stmt.setInt(6, limit + 1); // one extra row tells us whether an older page exists
             
+                long nextBeforeId = streamPage(stmt, limit, chunkRows, chunks);
+                Log.debug("    ✓ DB: Streamed messages between {} and {} (next before id {})", user1, user2, nextBeforeId);
+                return nextBeforeId;
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
         } catch (SQLException e) {
-            System.err.println("    ✗ DB Error getting message history: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("    ✗ DB Error streaming message history: {}", e.getMessage(), e);
+            return 0;
+        } finally {
+            DbCall.HISTORY_PAGE.record(start);
         }
+    }
+    
+    /** Same as {@link #streamPrivateMessages}, for the messages of a room; an index on {@code (room, id)} keeps it one range scan. */
+    public static long streamRoomMessages(String room, long beforeId, int limit, int chunkRows,
+                                          Consumer<List<ChatMessage>> chunks) {
+        String query = "SELECT id, sender, room AS receiver, message, timestamp FROM messages " +
+                      "WHERE room=? AND id < ? ORDER BY id DESC LIMIT ?";
         
-        return history.toString();
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare(query);
+                stmt.setFetchSize(chunkRows);
+                stmt.setString(1, room);
+                stmt.setLong(2, beforeId > 0 ? beforeId : Long.MAX_VALUE);
+                stmt.setInt(3, limit + 1);
+            
+                long nextBeforeId = streamPage(stmt, limit, chunkRows, chunks);
+                Log.debug("    ✓ DB: Streamed messages of room {} (next before id {})", room, nextBeforeId);
+                return nextBeforeId;
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
+        } catch (SQLException e) {
+            Log.error("    ✗ DB Error streaming room history: {}", e.getMessage(), e);
+            return 0;
+        } finally {
+            DbCall.ROOM_HISTORY.record(start);
+        }
+    }
+    
+    /**
+     * Hands the rows of a page query run with {@code LIMIT limit + 1} to
+     * {@code chunks}; returns the id of the last row handed over if the
+     * extra row showed there is an older page, otherwise 0.
+     */
+    private static long streamPage(PreparedStatement stmt, int limit, int chunkRows,
+                                   Consumer<List<ChatMessage>> chunks) throws SQLException {
+        List<ChatMessage> chunk = new ArrayList<>(chunkRows);
+        long oldestSent = 0;
+        boolean hasOlder = false;
+        int sent = 0;
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                if (sent == limit) {
+                    hasOlder = true;
+                    break;
+                }
+                ChatMessage message = readMessage(rs);
+                chunk.add(message);
+                oldestSent = message.id();
+                sent++;
+                if (chunk.size() == chunkRows) {
+                    chunks.accept(List.copyOf(chunk));
+                    chunk.clear();
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.accept(List.copyOf(chunk));
+        }
+        return hasOlder ? oldestSent : 0;
     }
     
-    public static void saveMessage(String sender, String message) {
-        String query = "INSERT INTO messages (sender, message) VALUES (?, ?)";
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(query)) {
-            stmt.setString(1, sender);
-            stmt.setString(2, message);
-            stmt.executeUpdate();
-            System.out.println("    ✓ DB: Group message saved from " + sender);
+    /**
+     * Streams up to {@code limit} messages with an id above {@code afterId},
+     * oldest first: those between {@code user} and {@code otherUser}, or
+     * all of {@code user}'s when {@code otherUser} is null. The second form
+     * is two range scans (as sender, as receiver) merged by id, so
+     * indexes on {@code (sender, id)} and {@code (receiver, id)} keep it
+     * proportional to what is new. Returns how many messages were streamed,
+     * or -1 if the query failed.
+     */
+    public static int streamPrivateMessagesAfter(String user, String otherUser, long afterId, int limit, int chunkRows,
+                                                 Consumer<List<ChatMessage>> chunks) {
+        String columns = "SELECT id, sender, receiver, message, timestamp FROM private_messages ";
+        String query = otherUser != null
+                ? columns + "WHERE ((sender=? AND receiver=?) OR (sender=? AND receiver=?)) AND id > ? ORDER BY id LIMIT ?"
+                : "(" + columns + "WHERE sender=? AND id > ? ORDER BY id LIMIT ?) UNION ALL " +
+                  "(" + columns + "WHERE receiver=? AND sender<>? AND id > ? ORDER BY id LIMIT ?) ORDER BY id LIMIT ?";
+        List<ChatMessage> chunk = new ArrayList<>(chunkRows);
+        int sent = 0;
+    
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare(query);
+                stmt.setFetchSize(chunkRows);
+                if (otherUser != null) {
+                    stmt.setString(1, user);
+                    stmt.setString(2, otherUser);
+                    stmt.setString(3, otherUser);
+                    stmt.setString(4, user);
+                    stmt.setLong(5, afterId);
+                    stmt.setInt(6, limit);
+                } else {
+                    stmt.setString(1, user);
+                    stmt.setLong(2, afterId);
+                    stmt.setInt(3, limit);
+                    stmt.setString(4, user);
+                    stmt.setString(5, user);
+                    stmt.setLong(6, afterId);
+                    stmt.setInt(7, limit);
+                    stmt.setInt(8, limit);
+                }
+    
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        chunk.add(readMessage(rs));
+                        sent++;
+                        if (chunk.size() == chunkRows) {
+                            chunks.accept(List.copyOf(chunk));
+                            chunk.clear();
+                        }
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    chunks.accept(List.copyOf(chunk));
+                }
+    
+                Log.debug("    ✓ DB: Synced {} messages of {} after id {}", sent, user, afterId);
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
+        } catch (SQLException e) {
+            Log.error("    ✗ DB Error syncing messages: {}", e.getMessage(), e);
+            return -1;
+        } finally {
+            DbCall.SYNC.record(start);
+        }
+    
+        return sent;
+    }
+    
+    /** Up to {@code limit} private messages of every user with an id above {@code afterId}, oldest first, in chunks. */
+    public static int streamAllPrivateMessagesAfter(long afterId, int limit, int chunkRows,
+                                                    Consumer<List<ChatMessage>> chunks) {
+        String query = "SELECT id, sender, receiver, message, timestamp FROM private_messages WHERE id > ? ORDER BY id LIMIT ?";
+        List<ChatMessage> chunk = new ArrayList<>(chunkRows);
+        int sent = 0;
+    
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare(query);
+                stmt.setFetchSize(chunkRows);
+                stmt.setLong(1, afterId);
+                stmt.setInt(2, limit);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        chunk.add(readMessage(rs));
+                        sent++;
+                        if (chunk.size() == chunkRows) {
+                            chunks.accept(List.copyOf(chunk));
+                            chunk.clear();
+                        }
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    chunks.accept(List.copyOf(chunk));
+                }
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
+        } catch (SQLException e) {
+            Log.error("    ✗ DB Error reading messages after id {}: {}", afterId, e.getMessage(), e);
+            return -1;
+        } finally {
+            DbCall.SYNC.record(start);
+        }
+        return sent;
+    }
+    
+    /**
+     * The private messages with these ids, in the same order; missing ids
+     * are left out, and so is everything if the table cannot be read. The
+     * id list is padded to a power of two with its last id, so only a
+     * handful of distinct statements ever land in the statement cache.
+     */
+    public static List<ChatMessage> getPrivateMessagesById(long[] ids) {
+        if (ids.length == 0) {
+            return new ArrayList<>();
+        }
+        int params = Integer.highestOneBit(ids.length) == ids.length ? ids.length : Integer.highestOneBit(ids.length) << 1;
+        StringBuilder query = new StringBuilder("SELECT id, sender, receiver, message, timestamp FROM private_messages WHERE id IN (");
+        for (int i = 0; i < params; i++) {
+            query.append(i == 0 ? "?" : ", ?");
+        }
+        query.append(')');
+        Map<Long, ChatMessage> byId = new HashMap<>();
+        // Timed as part of the search that asks for them
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare(query.toString());
+                for (int i = 0; i < params; i++) {
+                    stmt.setLong(i + 1, ids[Math.min(i, ids.length - 1)]);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        ChatMessage message = readMessage(rs);
+                        byId.put(message.id(), message);
+                    }
+                }
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
+        } catch (SQLException e) {
+            Log.error("    ✗ DB Error reading {} message(s) by id: {}", ids.length, e.getMessage(), e);
+        }
+        List<ChatMessage> found = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            ChatMessage message = byId.get(id);
+            if (message != null) {
+                found.add(message);
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * The highest private message id, 0 if the table is empty or cannot be
+     * read. Every message at or below it is committed only while this is
+     * the one server writing; see {@link CommittedIdWatermark}.
+     */
+    public static long getLatestPrivateMessageId() {
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare("SELECT MAX(id) FROM private_messages");
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0;
+                }
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
         } catch (SQLException e) {
-            System.err.println("    ✗ DB Error saving message: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("    ✗ DB Error reading the latest message id: {}", e.getMessage(), e);
+            return 0;
+        } finally {
+            DbCall.SYNC.record(start);
         }
     }
+
+    /** The lowest of the newest {@code rows} private message ids, 0 if there are none, -1 if it cannot be read. */
+    static long getPrivateMessageIdBelowLatest(int rows) {
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare(
+                        "SELECT MIN(id) FROM (SELECT id FROM private_messages ORDER BY id DESC LIMIT ?) recent");
+                stmt.setInt(1, rows);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0;
+                }
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
+        } catch (SQLException e) {
+            Log.error("    ✗ DB Error reading recent message ids: {}", e.getMessage(), e);
+            return -1;
+        } finally {
+            DbCall.SYNC.record(start);
+        }
+    }
+
+    /** The first {@code limit} private message ids above {@code afterId}, in order; null if they cannot be read. */
+    static long[] getPrivateMessageIdsAfter(long afterId, int limit) {
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare(
+                        "SELECT id FROM private_messages WHERE id > ? ORDER BY id LIMIT ?");
+                stmt.setLong(1, afterId);
+                stmt.setInt(2, limit);
+                long[] ids = new long[limit];
+                int count = 0;
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        ids[count++] = rs.getLong(1);
+                    }
+                }
+                return Arrays.copyOf(ids, count);
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
+        } catch (SQLException e) {
+            Log.error("    ✗ DB Error reading message ids after {}: {}", afterId, e.getMessage(), e);
+            return null;
+        } finally {
+            DbCall.SYNC.record(start);
+        }
+    }
+
+    /** How far apart consecutive auto-increment ids are ({@code auto_increment_increment}); 1 if it cannot be read. */
+    static long getAutoIncrementStep() {
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement stmt = conn.prepare("SELECT @@auto_increment_increment");
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 1;
+                }
+            } catch (SQLException e) {
+                throw lost(conn, e);
+            }
+        } catch (SQLException e) {
+            Log.warn("  ⚠ Could not read auto_increment_increment, assuming 1: {}", e.getMessage());
+            return 1;
+        }
+    }
+    
+    /**
+     * Makes the pool throw {@code conn} away rather than lend it again if
+     * {@code e} says the link to the server is gone (SQLState class 08);
+     * returns {@code e} for the caller to rethrow.
+     */
+    /** No connection could be had, or it was lost: nothing to do with the rows themselves. */
+    private static boolean unreachable(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLTransientConnectionException || e instanceof SQLRecoverableException
+                || (state != null && state.startsWith("08"));
+    }
     
+    private static SQLException lost(PooledConnection conn, SQLException e) {
+        String state = e.getSQLState();
+        if (state != null && state.startsWith("08")) {
+            conn.markBroken();
+        }
+        return e;
+    }
+    
+    private static ChatMessage readMessage(ResultSet rs) throws SQLException {
+        return new ChatMessage(rs.getString("sender"),
+                               rs.getString("receiver"),
+                               rs.getString("message"),
+                               rs.getTimestamp("timestamp").getTime(),
+                               rs.getLong("id"));
+    }
     
     // Add this method to your Dbconnection.java class
 
     public static boolean registerUser(String username, String password) {
         // First check if username already exists
         String checkQuery = "SELECT username FROM users WHERE username=?";
-        try (Connection conn = getConnection();
-             PreparedStatement checkStmt = conn.prepareStatement(checkQuery)) {
+        long start = System.nanoTime();
+        try (PooledConnection conn = getConnection()) {
+            try {
+                PreparedStatement checkStmt = conn.prepare(checkQuery);
 
-            checkStmt.setString(1, username);
-            ResultSet rs = checkStmt.executeQuery();
+                checkStmt.setString(1, username);
+                ResultSet rs = checkStmt.executeQuery();
 
-            if (rs.next()) {
-                System.out.println("    ✗ DB: Username '" + username + "' already exists");
-                return false;
-            }
+                if (rs.next()) {
+                    Log.debug("    ✗ DB: Username '{}' already exists", username);
+                    return false;
+                }
 
-            // Username doesn't exist, proceed with registration
-            String insertQuery = "INSERT INTO users (username, password) VALUES (?, ?)";
-            try (PreparedStatement insertStmt = conn.prepareStatement(insertQuery)) {
+                // Username doesn't exist, proceed with registration
+                String insertQuery = "INSERT INTO users (username, password) VALUES (?, ?)";
+                PreparedStatement insertStmt = conn.prepare(insertQuery);
                 insertStmt.setString(1, username);
                 insertStmt.setString(2, password);
                 int rows = insertStmt.executeUpdate();
 
                 if (rows > 0) {
-                    System.out.println("    ✓ DB: User '" + username + "' registered successfully");
+                    Log.debug("    ✓ DB: User '{}' registered successfully", username);
                     return true;
                 } else {
-                    System.out.println("    ✗ DB: Failed to register user '" + username + "'");
+                    Log.warn("    ✗ DB: Failed to register user '{}'", username);
                     return false;
                 }
+            } catch (SQLException e) {
+                throw lost(conn, e);
             }
-
         } catch (SQLException e) {
-            System.err.println("    ✗ DB Error during registration: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("    ✗ DB Error during registration: {}", e.getMessage(), e);
             return false;
+        } finally {
+            DbCall.REGISTER.record(start);
         }
     }
-
-    public static List<String> getMessageHistory() {
-        List<String> messages = new ArrayList<>();
-        String query = "SELECT sender, message, timestamp FROM messages ORDER BY timestamp";
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(query)) {
-            while (rs.next()) {
-                String msg = "[" + rs.getTimestamp("timestamp") + "] " +
-                           rs.getString("sender") + ": " + rs.getString("message");
-                messages.add(msg);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return messages;
-    }
     
     
 }
\ No newline at end of file
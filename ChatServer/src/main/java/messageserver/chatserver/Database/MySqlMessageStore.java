@@ -0,0 +1,67 @@
+package messageserver.chatserver.Database;
+
+import messageserver.chatserver.ServerConfig;
+import messageserver.chatserver.Storage.MessageStore;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/** Messages in the {@code private_messages} and {@code messages} (room) tables, through {@link Dbconnection}. */
+public class MySqlMessageStore implements MessageStore {
+    // In a cluster several servers insert at once, so MAX(id) may be above a row not yet committed
+    private final CommittedIdWatermark watermark = ServerConfig.CLUSTER_PORT > 0
+            ? new CommittedIdWatermark(ServerConfig.SYNC_GAP_WAIT_MS) : null;
+
+    @Override
+    public List<ChatMessage> savePrivateMessages(List<ChatMessage> messages) {
+        return Dbconnection.savePrivateMessages(messages);
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessages(String user1, String user2) {
+        return Dbconnection.getPrivateMessages(user1, user2);
+    }
+
+    @Override
+    public long streamPrivateMessages(String user1, String user2, long beforeId, int limit, int chunkRows,
+                                      Consumer<List<ChatMessage>> chunks) {
+        return Dbconnection.streamPrivateMessages(user1, user2, beforeId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public int streamPrivateMessagesAfter(String user, String otherUser, long afterId, int limit, int chunkRows,
+                                          Consumer<List<ChatMessage>> chunks) {
+        return Dbconnection.streamPrivateMessagesAfter(user, otherUser, afterId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public int streamAllPrivateMessagesAfter(long afterId, int limit, int chunkRows, Consumer<List<ChatMessage>> chunks) {
+        return Dbconnection.streamAllPrivateMessagesAfter(afterId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessagesById(long[] ids) {
+        return Dbconnection.getPrivateMessagesById(ids);
+    }
+
+    @Override
+    public long latestPrivateMessageId() {
+        return watermark != null ? watermark.get() : Dbconnection.getLatestPrivateMessageId();
+    }
+
+    @Override
+    public boolean saveRoomMessages(List<ChatMessage> messages) {
+        return Dbconnection.saveRoomMessages(messages);
+    }
+
+    @Override
+    public long streamRoomMessages(String room, long beforeId, int limit, int chunkRows,
+                                   Consumer<List<ChatMessage>> chunks) {
+        return Dbconnection.streamRoomMessages(room, beforeId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public void close() {
+        // Pooled connections are left to the JVM's exit
+    }
+}
@@ -0,0 +1,24 @@
+package messageserver.chatserver.Database;
+
+import messageserver.chatserver.Storage.UserStore;
+
+import java.util.List;
+
+/** Accounts in the {@code users} table, through {@link Dbconnection}. */
+public class MySqlUserStore implements UserStore {
+
+    @Override
+    public boolean authenticateUser(String username, String password) {
+        return Dbconnection.authenticateUser(username, password);
+    }
+
+    @Override
+    public boolean registerUser(String username, String password) {
+        return Dbconnection.registerUser(username, password);
+    }
+
+    @Override
+    public List<String> getAllUsernames() {
+        return Dbconnection.getUsernameList();
+    }
+}
@@ -0,0 +1,131 @@
+package messageserver.chatserver.Database;
+
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Protocol.WireFormat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Sorted in-memory copy of every registered username.
+ *
+ * Loaded from the user store on first use and then kept current by
+ * {@link #add} whenever a registration succeeds, so GET_USERS never has to
+ * query the users table. Readers get an immutable, versioned
+ * {@link Snapshot}; each snapshot encodes its USERS reply at most once per
+ * wire format and hands the same bytes to every client until the next
+ * registration replaces it.
+ */
+public class UserDirectory {
+    // Same order (and uniqueness) as MySQL's default case-insensitive collation
+    private static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER;
+
+    private final Supplier<List<String>> loader;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Snapshot current;
+    // Last version handed out, guarded by lock; keeps rising across reloads
+    private long version;
+
+    public UserDirectory(Supplier<List<String>> loader) {
+        this.loader = loader;
+    }
+
+    public Snapshot snapshot() {
+        Snapshot snapshot = current;
+        return snapshot != null ? snapshot : load();
+    }
+
+    private Snapshot load() {
+        lock.lock();
+        try {
+            if (current != null) {
+                return current;
+            }
+            List<String> users = new ArrayList<>(loader.get());
+            users.sort(ORDER);
+            Snapshot snapshot = new Snapshot(++version, Collections.unmodifiableList(users));
+            // An empty result may just be a failed query; try again next time
+            if (!users.isEmpty()) {
+                current = snapshot;
+                Log.info("  ✓ User directory loaded: {} users", users.size());
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a newly registered user; readers see it with the next snapshot.
+     * Until the directory has been loaded there is nothing to add to: the
+     * first load reads the user from the store.
+     */
+    public void add(String username) {
+        lock.lock();
+        try {
+            Snapshot base = current;
+            if (base == null) {
+                return;
+            }
+            int index = Collections.binarySearch(base.users, username, ORDER);
+            if (index >= 0) {
+                return;
+            }
+            List<String> users = new ArrayList<>(base.users.size() + 1);
+            users.addAll(base.users);
+            users.add(-index - 1, username);
+            current = new Snapshot(++version, Collections.unmodifiableList(users));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the cached copy so the next reader loads it again from the user
+     * store; for when registrations may have been missed (a cluster peer
+     * reconnecting).
+     */
+    public void invalidate() {
+        lock.lock();
+        try {
+            current = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** One immutable version of the directory. */
+    public static final class Snapshot {
+        private final long version;
+        private final List<String> users;
+        private final Map<WireFormat, byte[]> encoded = new ConcurrentHashMap<>(2);
+
+        private Snapshot(long version, List<String> users) {
+            this.version = version;
+            this.users = users;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public List<String> users() {
+            return users;
+        }
+
+        public int size() {
+            return users.size();
+        }
+
+        /** The USERS reply in this format, encoded on first use and shared afterwards. */
+        public byte[] encodedFor(WireFormat format) {
+            return encoded.computeIfAbsent(format, f -> f.users(users));
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package messageserver.chatserver.Database;
+
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.SendSequence;
+import messageserver.chatserver.Storage.MessageStore;
+import messageserver.chatserver.Storage.StoreUnavailableException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+
+/**
+ * Persists private and room messages in the background, after they have
+ * been delivered.
+ *
+ * Messages wait in a bounded queue; a single writer thread takes whatever
+ * has arrived (up to {@code batchSize}, or whatever came in within
+ * {@code flushMillis} of the first message) and hands it to the
+ * {@link MessageStore} as one batch (for MySQL, one transaction of
+ * multi-row INSERTs). Because there is exactly one writer
+ * and the queue is FIFO, rows reach the table in the order they were
+ * sent, so every conversation and room keeps its order. When the queue is full,
+ * {@link #enqueue} blocks the sending client until the writer catches up.
+ * Messages that came with a SEND number are reported to the
+ * {@link SendListener} once their batch is done, one call per sender and
+ * batch, so a sender gets one acknowledgement per commit however many
+ * messages it covers. A numbered message the store could not save is not
+ * acknowledged, and neither is anything after it, until the client has
+ * sent it again and it is saved. While the store cannot be reached at all
+ * the writer keeps retrying the same batch, waiting longer each time, and
+ * the queue fills up behind it.
+ */
+public final class WriteBehindQueue {
+
+    /** Told, after each commit, how many of a sender's messages to one recipient are now stored. */
+    public interface CommitListener {
+        void committed(String sender, String recipient, int count);
+    }
+
+    /**
+     * Told, after each batch, that a sender's SENDs are stored up to a new
+     * highest number ({@link SendSequence#finished}).
+     */
+    public interface SendListener {
+        void finished(String sender, SendSequence sequence);
+    }
+
+    private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Waits between tries of a batch while the store cannot be reached
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5_000;
+
+    private record Conversation(String sender, String recipient) {
+    }
+
+    // sequence is null for messages that came without a SEND number; a room message's receiver is its room.
+    // A refused SEND is not saved, only settled in its place in the queue.
+    private record Pending(ChatMessage message, boolean room, boolean refused, SendSequence sequence, long seq) {
+    }
+
+    private final MessageStore store;
+    private final BlockingQueue<Pending> queue;
+    private final int batchSize;
+    private final long flushNanos;
+    private final CommitListener listener;
+    private final SendListener sendListener;
+    private final Thread writer;
+    private volatile boolean stopping = false;
+
+    public WriteBehindQueue(MessageStore store, int capacity, int batchSize, long flushMillis, CommitListener listener,
+                            SendListener sendListener) {
+        this.store = store;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.batchSize = Math.max(1, batchSize);
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.listener = listener;
+        this.sendListener = sendListener;
+        this.writer = new Thread(this::writeLoop, "message-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "message-writer-shutdown"));
+    }
+
+    /** Queues a message for the next commit, waiting if the queue is full. */
+    public void enqueue(ChatMessage message) {
+        enqueue(new Pending(message, false, false, null, 0));
+    }
+
+    /** Same, for message number {@code seq} of the sender's SENDs. */
+    public void enqueue(ChatMessage message, SendSequence sequence, long seq) {
+        enqueue(new Pending(message, false, false, sequence, seq));
+    }
+
+    /**
+     * Settles SEND {@code seq}, which the server refused, after everything
+     * queued before it, so it neither holds back later acks nor lets one
+     * cover an earlier SEND that is not stored yet. Nothing is saved.
+     */
+    public void enqueueRefused(ChatMessage message, SendSequence sequence, long seq) {
+        enqueue(new Pending(message, false, true, sequence, seq));
+    }
+
+    /** Same, for a message posted to the room named by its receiver. */
+    public void enqueueRoomMessage(ChatMessage message) {
+        enqueue(new Pending(message, true, false, null, 0));
+    }
+
+    private void enqueue(Pending pending) {
+        ChatMessage message = pending.message();
+        if (queue.offer(pending)) {
+            return;
+        }
+        Log.warn("  ⚠ [WriteBehind] Queue full ({} messages), {} waits for the store", queue.size(), message.sender());
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.error("  ✗ [WriteBehind] Interrupted, message from {} not saved", message.sender());
+        }
+    }
+
+    public int getQueuedMessages() {
+        return queue.size();
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        // Not interruptible on purpose: a JDBC call cut short by an interrupt would lose the batch
+        while (!stopping || !queue.isEmpty()) {
+            Pending first = poll(IDLE_POLL_NANOS);
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            collect(batch);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /** Adds whatever else arrives within the flush window, up to the batch size. */
+    private void collect(List<Pending> batch) {
+        long deadline = System.nanoTime() + flushNanos;
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || remaining <= 0 || stopping) {
+                return;
+            }
+            Pending next = poll(remaining);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private Pending poll(long nanos) {
+        try {
+            return queue.poll(nanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        List<ChatMessage> messages = new ArrayList<>(batch.size());
+        List<ChatMessage> roomMessages = new ArrayList<>();
+        for (Pending pending : batch) {
+            if (!pending.refused()) {
+                (pending.room() ? roomMessages : messages).add(pending.message());
+            }
+        }
+        // Compared by identity: the same text sent twice is two messages
+        Set<ChatMessage> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (!messages.isEmpty()) {
+            notifyCommitted(save(messages, store::savePrivateMessages, dropped));
+        }
+        if (!roomMessages.isEmpty()) {
+            save(roomMessages, rows -> store.saveRoomMessages(rows) ? rows : null, dropped);
+        }
+        notifyFinished(batch, dropped);
+    }
+
+    /**
+     * Saves the messages as one batch and returns those that were stored,
+     * as the store returned them; the others are added to {@code dropped}.
+     * {@code saver} returns what it stored, in order, or null if nothing.
+     */
+    private List<ChatMessage> save(List<ChatMessage> messages, UnaryOperator<List<ChatMessage>> saver,
+                                   Set<ChatMessage> dropped) {
+        List<ChatMessage> saved = new ArrayList<>(messages.size());
+        int next = 0;
+        try {
+            List<ChatMessage> stored = saveWhenReachable(messages, saver);
+            if (stored != null) {
+                // The store left these out on purpose; saving them alone would not go differently
+                dropMissing(messages, stored, dropped);
+                return stored;
+            }
+            // One bad row must not lose the whole batch: retry them one by one
+            for (; next < messages.size(); next++) {
+                ChatMessage message = messages.get(next);
+                List<ChatMessage> one = saveWhenReachable(List.of(message), saver);
+                if (one != null && !one.isEmpty()) {
+                    saved.add(one.get(0));
+                } else {
+                    drop(message, dropped);
+                }
+            }
+        } catch (StoreUnavailableException e) {
+            // Shutting down with the store still out of reach
+            for (; next < messages.size(); next++) {
+                drop(messages.get(next), dropped);
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Calls {@code saver} until the store can be reached, backing off
+     * between tries, so an outage costs one attempt per wait instead of one
+     * per row. Gives up, rethrowing, once the queue is stopping.
+     */
+    private List<ChatMessage> saveWhenReachable(List<ChatMessage> messages, UnaryOperator<List<ChatMessage>> saver) {
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+        while (true) {
+            try {
+                return saver.apply(messages);
+            } catch (StoreUnavailableException e) {
+                if (stopping) {
+                    throw e;
+                }
+                Log.warn("  ⚠ [WriteBehind] Store unreachable, retrying {} message(s) in {} ms", messages.size(), backoffMillis);
+                // Woken early by shutdown
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoffMillis));
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    /** Adds to {@code dropped} every message that has no counterpart in {@code stored}, which keeps their order. */
+    private static void dropMissing(List<ChatMessage> messages, List<ChatMessage> stored, Set<ChatMessage> dropped) {
+        int next = 0;
+        for (ChatMessage message : messages) {
+            if (next < stored.size() && sameMessage(message, stored.get(next))) {
+                next++;
+            } else {
+                drop(message, dropped);
+            }
+        }
+    }
+
+    /** The stored copy has its id; everything else is as it was sent. */
+    private static boolean sameMessage(ChatMessage message, ChatMessage stored) {
+        return message.timestampMillis() == stored.timestampMillis() && message.sender().equals(stored.sender())
+                && message.receiver().equals(stored.receiver()) && message.content().equals(stored.content());
+    }
+
+    private static void drop(ChatMessage message, Set<ChatMessage> dropped) {
+        Log.error("  ✗ [WriteBehind] Dropped message from {} to {}", message.sender(), message.receiver());
+        dropped.add(message);
+    }
+
+    private void notifyCommitted(List<ChatMessage> saved) {
+        if (listener == null || saved.isEmpty()) {
+            return;
+        }
+        Map<Conversation, Integer> counts = new LinkedHashMap<>();
+        for (ChatMessage message : saved) {
+            counts.merge(new Conversation(message.sender(), message.receiver()), 1, Integer::sum);
+        }
+        counts.forEach((conversation, count) -> listener.committed(conversation.sender(), conversation.recipient(), count));
+    }
+
+    private void notifyFinished(List<Pending> batch, Set<ChatMessage> dropped) {
+        if (sendListener == null) {
+            return;
+        }
+        Map<SendSequence, String> senders = null;
+        for (Pending pending : batch) {
+            if (pending.sequence() != null) {
+                if (senders == null) {
+                    senders = new LinkedHashMap<>();
+                }
+                pending.sequence().settle(pending.seq(), !dropped.contains(pending.message()));
+                senders.putIfAbsent(pending.sequence(), pending.message().sender());
+            }
+        }
+        if (senders != null) {
+            senders.forEach((sequence, sender) -> {
+                if (sequence.advance()) {
+                    sendListener.finished(sender, sequence);
+                }
+            });
+        }
+    }
+
+    /** Stops the writer once everything already queued has been committed, then closes the store. */
+    public void shutdown() {
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            Log.error("  ✗ [WriteBehind] {} messages not saved at shutdown", queue.size());
+        }
+        store.close();
+    }
+}
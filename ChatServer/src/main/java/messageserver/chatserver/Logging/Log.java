@@ -0,0 +1,252 @@
+package messageserver.chatserver.Logging;
+
+import messageserver.chatserver.ServerConfig;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, level-gated server log.
+ *
+ * Calls take a template with {@code {}} placeholders plus arguments. A call
+ * below the configured {@code chat.log.level} returns after one comparison
+ * with a static final flag; an enabled call only stores the template and
+ * argument references in a lock-free {@link LogRing}. The text is built
+ * (and {@code toString()} called on the arguments) by a background writer
+ * thread, which prints whole batches at once and sleeps while there is
+ * nothing to print, until the next call wakes it. If the writer falls behind
+ * and the ring fills up, new events are dropped and a count of them is
+ * logged, so logging never slows the chat path down.
+ *
+ * Arguments must not be changed after the call; pass immutable values.
+ * A trailing {@link Throwable} argument with no placeholder left is
+ * printed with its stack trace.
+ */
+public final class Log {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+    private static final Level LEVEL = Level.valueOf(ServerConfig.LOG_LEVEL.trim().toUpperCase());
+    private static final boolean WARN = LEVEL.compareTo(Level.WARN) >= 0;
+    private static final boolean INFO = LEVEL.compareTo(Level.INFO) >= 0;
+    private static final boolean DEBUG = LEVEL.compareTo(Level.DEBUG) >= 0;
+    private static final boolean TRACE = LEVEL.compareTo(Level.TRACE) >= 0;
+
+    // Only a safety net: whoever publishes to an empty ring wakes the writer
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_BATCH = 1024;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final LogRing<Event> ring = new LogRing<>(ServerConfig.LOG_BUFFER_SIZE);
+    // Straight to the file descriptors: the writer batches, so the synchronized System.out adds nothing
+    private static final PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), false, StandardCharsets.UTF_8);
+    private static final PrintStream err = new PrintStream(new FileOutputStream(FileDescriptor.err), false, StandardCharsets.UTF_8);
+    private static final Thread writer = startWriter();
+    private static volatile boolean stopping = false;
+    // Set by the writer before it parks on an empty ring, so publishers know to unpark it
+    private static volatile boolean writerParked = false;
+
+    private Log() {
+    }
+
+    private record Event(Level level, long timeMillis, String thread, String template, Object[] args) {
+    }
+
+    public static boolean isDebugEnabled() {
+        return DEBUG;
+    }
+
+    public static boolean isTraceEnabled() {
+        return TRACE;
+    }
+
+    public static void error(String template, Object... args) {
+        enqueue(Level.ERROR, template, args);
+    }
+
+    public static void warn(String template) {
+        if (WARN) enqueue(Level.WARN, template, null);
+    }
+
+    public static void warn(String template, Object a) {
+        if (WARN) enqueue(Level.WARN, template, new Object[] { a });
+    }
+
+    public static void warn(String template, Object a, Object b) {
+        if (WARN) enqueue(Level.WARN, template, new Object[] { a, b });
+    }
+
+    public static void warn(String template, Object a, Object b, Object c) {
+        if (WARN) enqueue(Level.WARN, template, new Object[] { a, b, c });
+    }
+
+    public static void warn(String template, Object... args) {
+        if (WARN) enqueue(Level.WARN, template, args);
+    }
+
+    public static void info(String template) {
+        if (INFO) enqueue(Level.INFO, template, null);
+    }
+
+    public static void info(String template, Object a) {
+        if (INFO) enqueue(Level.INFO, template, new Object[] { a });
+    }
+
+    public static void info(String template, Object a, Object b) {
+        if (INFO) enqueue(Level.INFO, template, new Object[] { a, b });
+    }
+
+    public static void info(String template, Object a, Object b, Object c) {
+        if (INFO) enqueue(Level.INFO, template, new Object[] { a, b, c });
+    }
+
+    public static void info(String template, Object... args) {
+        if (INFO) enqueue(Level.INFO, template, args);
+    }
+
+    public static void debug(String template) {
+        if (DEBUG) enqueue(Level.DEBUG, template, null);
+    }
+
+    public static void debug(String template, Object a) {
+        if (DEBUG) enqueue(Level.DEBUG, template, new Object[] { a });
+    }
+
+    public static void debug(String template, Object a, Object b) {
+        if (DEBUG) enqueue(Level.DEBUG, template, new Object[] { a, b });
+    }
+
+    public static void debug(String template, Object a, Object b, Object c) {
+        if (DEBUG) enqueue(Level.DEBUG, template, new Object[] { a, b, c });
+    }
+
+    public static void debug(String template, Object... args) {
+        if (DEBUG) enqueue(Level.DEBUG, template, args);
+    }
+
+    public static void trace(String template, Object a) {
+        if (TRACE) enqueue(Level.TRACE, template, new Object[] { a });
+    }
+
+    public static void trace(String template, Object a, Object b) {
+        if (TRACE) enqueue(Level.TRACE, template, new Object[] { a, b });
+    }
+
+    public static void trace(String template, Object... args) {
+        if (TRACE) enqueue(Level.TRACE, template, args);
+    }
+
+    private static void enqueue(Level level, String template, Object[] args) {
+        ring.offer(new Event(level, System.currentTimeMillis(), Thread.currentThread().getName(), template, args));
+        if (writerParked) {
+            writerParked = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // ---- writer thread ----
+
+    private static Thread startWriter() {
+        Thread thread = new Thread(Log::writeLoop, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::shutdown, "log-writer-shutdown"));
+        return thread;
+    }
+
+    private static void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (!stopping) {
+            if (drain(line) == 0) {
+                writerParked = true;
+                // Checked again after the flag is up: an event offered before it would not unpark us
+                if (ring.isEmpty() && !stopping) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    /** Writes up to one batch; returns how many events were written. */
+    private static int drain(StringBuilder line) {
+        int written = 0;
+        boolean wroteErr = false;
+        Event event;
+        while (written < MAX_BATCH && (event = ring.poll()) != null) {
+            line.setLength(0);
+            format(line, event);
+            PrintStream target = event.level().compareTo(Level.WARN) <= 0 ? err : out;
+            target.append(line);
+            Throwable thrown = trailingThrowable(event);
+            if (thrown != null) {
+                thrown.printStackTrace(target);
+            }
+            wroteErr |= target == err;
+            written++;
+        }
+        long dropped = ring.takeDropped();
+        if (dropped > 0) {
+            err.append("⚠ [log] ").append(String.valueOf(dropped)).append(" log messages dropped (buffer full)\n");
+            wroteErr = true;
+        }
+        if (written > 0) {
+            out.flush();
+        }
+        if (wroteErr) {
+            err.flush();
+        }
+        return written;
+    }
+
+    private static void format(StringBuilder line, Event event) {
+        TIME.formatTo(Instant.ofEpochMilli(event.timeMillis()), line);
+        line.append(' ').append(event.level()).append(' ').append('[').append(event.thread()).append("] ");
+        String template = event.template();
+        Object[] args = event.args();
+        int argIndex = 0;
+        int from = 0;
+        int at;
+        while (args != null && argIndex < args.length && (at = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, at).append(args[argIndex++]);
+            from = at + 2;
+        }
+        line.append(template, from, template.length()).append('\n');
+    }
+
+    private static Throwable trailingThrowable(Event event) {
+        Object[] args = event.args();
+        if (args == null || args.length == 0 || !(args[args.length - 1] instanceof Throwable thrown)) {
+            return null;
+        }
+        int placeholders = 0;
+        for (int at = event.template().indexOf("{}"); at >= 0; at = event.template().indexOf("{}", at + 2)) {
+            placeholders++;
+        }
+        return placeholders < args.length ? thrown : null;
+    }
+
+    /** Writes everything still buffered; called on JVM shutdown. */
+    public static void shutdown() {
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        StringBuilder line = new StringBuilder(256);
+        while (!ring.isEmpty() && drain(line) > 0) {
+            // keep draining
+        }
+        out.flush();
+        err.flush();
+    }
+}
@@ -0,0 +1,62 @@
+package messageserver.chatserver.Logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring of log events.
+ *
+ * Producers claim a slot with a CAS on {@code tail} and publish the event
+ * with a release store; nobody ever blocks. When the ring is full the
+ * event is dropped and counted instead of making the caller wait. Only
+ * the writer thread calls {@link #poll}.
+ */
+final class LogRing<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long head;
+
+    LogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /** Returns false (and counts the drop) when the ring is full. */
+    boolean offer(T event) {
+        long claimed;
+        do {
+            claimed = tail.get();
+            if (claimed - head >= slots.length()) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+        slots.setRelease((int) claimed & mask, event);
+        return true;
+    }
+
+    /** Next event, or null if there is none yet. Writer thread only. */
+    T poll() {
+        long current = head;
+        int index = (int) current & mask;
+        T event = slots.getAcquire(index);
+        if (event == null) {
+            return null; // empty, or the producer has claimed the slot but not published yet
+        }
+        slots.setRelease(index, null);
+        head = current + 1;
+        return event;
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /** Events dropped since the last call. */
+    long takeDropped() {
+        return dropped.getAndSet(0);
+    }
+}
@@ -0,0 +1,205 @@
+package messageserver.chatserver.Metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram with about 6% resolution.
+ *
+ * Values go into log-linear buckets, 16 equal sub-buckets per power of
+ * two, so the bucket array is fixed and {@link #record} is two atomic adds
+ * with no allocation; it is cheap enough to leave on in production.
+ * Percentiles are computed when somebody reads them.
+ *
+ * {@link #snapshot} counts everything since start, for the scrape
+ * endpoint, whose reader takes rates itself. The JMX attributes cover
+ * only recent samples: the reads keep a mark that moves once a minute,
+ * and report what was recorded since the mark before it, between one
+ * and two minutes' worth while something polls them.
+ */
+public final class Histogram implements HistogramMXBean {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final String unit;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    // Guarded by this; JMX reads only
+    private Snapshot windowStart = new Snapshot(new long[BUCKETS], 0);
+    private Snapshot mark = windowStart;
+    private long markNanos = System.nanoTime();
+
+    public Histogram(String unit) {
+        this.unit = unit;
+    }
+
+    public void record(long value) {
+        long clamped = Math.max(0, value);
+        buckets.incrementAndGet(bucket(clamped));
+        sum.add(clamped);
+    }
+
+    /** For latency histograms, which are kept in microseconds. */
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts, sum.sum());
+    }
+
+    /** The samples recorded since the window start, moving the window on if a minute has passed. */
+    private synchronized Snapshot recent() {
+        Snapshot now = snapshot();
+        long nanos = System.nanoTime();
+        if (nanos - markNanos >= WINDOW_NANOS) {
+            windowStart = mark;
+            mark = now;
+            markNanos = nanos;
+        }
+        return now.minus(windowStart);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    // ---- JMX ----
+
+    @Override
+    public String getUnit() {
+        return unit;
+    }
+
+    @Override
+    public long getCount() {
+        return recent().count();
+    }
+
+    @Override
+    public double getMean() {
+        return recent().mean();
+    }
+
+    @Override
+    public long getP50() {
+        return recent().percentile(50);
+    }
+
+    @Override
+    public long getP90() {
+        return recent().percentile(90);
+    }
+
+    @Override
+    public long getP99() {
+        return recent().percentile(99);
+    }
+
+    @Override
+    public long getP999() {
+        return recent().percentile(99.9);
+    }
+
+    @Override
+    public long getMax() {
+        return recent().max();
+    }
+
+    /** Bucket counts at one moment. */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        private Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            this.sum = sum;
+            long total = 0;
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+            this.count = total;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long sum() {
+            return sum;
+        }
+
+        /** How many samples were below {@code bound}; exact when it is a power of two. */
+        public long countBelow(long bound) {
+            long below = 0;
+            for (int i = 0; i < bucket(bound); i++) {
+                below += counts[i];
+            }
+            return below;
+        }
+
+        /** The samples recorded after {@code earlier} was taken. */
+        Snapshot minus(Snapshot earlier) {
+            long[] difference = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(difference, sum - earlier.sum);
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /** Value below which {@code percentile}% of the samples fall; 0 with no samples. */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return representative(i);
+                }
+            }
+            return max();
+        }
+
+        public long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return representative(i);
+                }
+            }
+            return 0;
+        }
+
+        private static long representative(int bucket) {
+            long low = lowerBound(bucket);
+            return bucket + 1 < BUCKETS ? (low + lowerBound(bucket + 1) - 1) / 2 : low;
+        }
+    }
+}
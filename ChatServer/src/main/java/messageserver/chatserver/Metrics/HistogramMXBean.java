@@ -0,0 +1,21 @@
+package messageserver.chatserver.Metrics;
+
+/** JMX view of one {@link Histogram} over the last one to two minutes; values are in {@link #getUnit()}. */
+public interface HistogramMXBean {
+
+    String getUnit();
+
+    long getCount();
+
+    double getMean();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getP999();
+
+    long getMax();
+}
@@ -0,0 +1,262 @@
+package messageserver.chatserver.Metrics;
+
+import messageserver.chatserver.Logging.Log;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Server-wide instruments.
+ *
+ * Commands and database calls each own a latency histogram, reached
+ * through their enum constant so recording needs no lookup:
+ * {@code Metrics.Command.PRIVATE.record(start)}. Counters are
+ * {@link LongAdder}s; gauges are read from suppliers only when somebody
+ * looks. Nothing on the recording side allocates or locks.
+ *
+ * {@link #start} publishes everything over JMX (domain
+ * {@value #DOMAIN}) and, if configured, as Prometheus-style text on
+ * {@code http://<chat.metrics.host>:<chat.metrics.port>/metrics}.
+ */
+public final class Metrics {
+    public static final String DOMAIN = "messageserver.chatserver";
+
+    /** Client commands, from the moment they are parsed until the reply is queued. */
+    public enum Command {
+        AUTH, RESUME, REGISTER, GET_USERS, GET_HISTORY, GET_HISTORY_PAGE, SYNC, PRIVATE, SEND,
+        JOIN_ROOM, LEAVE_ROOM, ROOM_MESSAGE, GET_ROOM_HISTORY, SEARCH, LOGOUT;
+
+        private final Histogram latency = new Histogram("µs");
+
+        public void record(long startNanos) {
+            latency.recordNanos(System.nanoTime() - startNanos);
+        }
+
+        public Histogram latency() {
+            return latency;
+        }
+    }
+
+    /** Calls into the message store and search index; for MySQL including the wait for a pooled connection. */
+    public enum DbCall {
+        AUTHENTICATE, REGISTER, LOAD_USERS, SAVE_MESSAGE, SAVE_BATCH, HISTORY, HISTORY_PAGE, SYNC,
+        SAVE_ROOM_MESSAGES, ROOM_HISTORY, SEARCH_INDEX, SEARCH;
+
+        private final Histogram latency = new Histogram("µs");
+
+        public void record(long startNanos) {
+            latency.recordNanos(System.nanoTime() - startNanos);
+        }
+
+        public Histogram latency() {
+            return latency;
+        }
+    }
+
+    private record Counter(String help, LongAdder value) {
+    }
+
+    private record Gauge(String help, LongSupplier value) {
+    }
+
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+    // Frames handed to client outbound queues, and what happened to the ones that did not fit
+    public static final LongAdder OUTBOUND_BYTES = counter("chat_outbound_bytes_total", "Bytes queued for clients");
+    public static final LongAdder OUTBOUND_FRAMES = counter("chat_outbound_frames_total", "Frames queued for clients");
+    public static final LongAdder OUTBOUND_DROPPED_FRAMES = counter("chat_outbound_dropped_frames_total",
+            "Frames dropped because a client's queue was full");
+    public static final LongAdder SLOW_CLIENT_DISCONNECTS = counter("chat_slow_client_disconnects_total",
+            "Clients disconnected for not reading");
+
+    // Sessions that received one presence batch, and one room frame
+    public static final Histogram PRESENCE_FANOUT = new Histogram("sessions");
+    public static final Histogram ROOM_FANOUT = new Histogram("sessions");
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+
+    // Scrape buckets: 4 µs to about 67 s, and 0 to about a million sessions
+    private static final long[] LATENCY_BOUNDS = powersOfFour(1, 13);
+    private static final long[] FANOUT_BOUNDS = powersOfFour(0, 10);
+
+    private Metrics() {
+    }
+
+    /** The counter called {@code name}, created on first use; keep the returned adder in a static field. */
+    public static LongAdder counter(String name, String help) {
+        return counters.computeIfAbsent(name, key -> new Counter(help, new LongAdder())).value();
+    }
+
+    /** Adds a value that is read on demand (JMX attribute and scrape line {@code name}). */
+    public static void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /** Registers the JMX beans and starts the scrape endpoint; later calls do nothing. */
+    public static void start(String httpHost, int httpPort) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (Command command : Command.values()) {
+                server.registerMBean(command.latency, name("Command", command.name()));
+            }
+            for (DbCall call : DbCall.values()) {
+                server.registerMBean(call.latency, name("DbCall", call.name()));
+            }
+            server.registerMBean(PRESENCE_FANOUT, name("FanOut", "presence"));
+            server.registerMBean(ROOM_FANOUT, name("FanOut", "room"));
+            server.registerMBean(new ServerValues(), new ObjectName(DOMAIN + ":type=Server"));
+        } catch (JMException e) {
+            Log.error("✗ Could not register metrics with JMX: {}", e.getMessage(), e);
+        }
+        if (httpPort > 0) {
+            MetricsHttpServer.start(httpHost, httpPort);
+        }
+    }
+
+    private static ObjectName name(String type, String name) throws MalformedObjectNameException {
+        return new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+    }
+
+    // ---- text exposition ----
+
+    /**
+     * Everything in the Prometheus text format. Histograms are cumulative
+     * since start, with buckets at powers of four; latencies are reported
+     * in seconds.
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder(32 * 1024);
+        header(out, "chat_command_latency_seconds", "Time to handle one client command", "histogram");
+        for (Command command : Command.values()) {
+            histogram(out, "chat_command_latency_seconds", "command", command.name(), command.latency.snapshot(),
+                      LATENCY_BOUNDS, false);
+        }
+        header(out, "chat_db_call_seconds", "Time of one database call, including the pool wait", "histogram");
+        for (DbCall call : DbCall.values()) {
+            histogram(out, "chat_db_call_seconds", "call", call.name(), call.latency.snapshot(), LATENCY_BOUNDS, false);
+        }
+        header(out, "chat_presence_fanout_sessions", "Sessions that received one presence batch", "histogram");
+        histogram(out, "chat_presence_fanout_sessions", null, null, PRESENCE_FANOUT.snapshot(), FANOUT_BOUNDS, true);
+        header(out, "chat_room_fanout_sessions", "Sessions that received one room message or membership change", "histogram");
+        histogram(out, "chat_room_fanout_sessions", null, null, ROOM_FANOUT.snapshot(), FANOUT_BOUNDS, true);
+
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            header(out, counter.getKey(), counter.getValue().help(), "counter");
+            out.append(counter.getKey()).append(' ').append(counter.getValue().value().sum()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            header(out, gauge.getKey(), gauge.getValue().help(), "gauge");
+            out.append(gauge.getKey()).append(' ').append(gauge.getValue().value().getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * One histogram's buckets, sum and count. Latencies are kept in whole
+     * microseconds, rounded down, so one below {@code bound} took at most
+     * {@code bound}; session counts are exact, so one below {@code bound}
+     * is at most {@code bound - 1}.
+     */
+    private static void histogram(StringBuilder out, String name, String label, String value,
+                                  Histogram.Snapshot snapshot, long[] bounds, boolean sessions) {
+        double scale = sessions ? 1 : 1e-6;
+        String labels = label == null ? "" : label + "=\"" + value + "\",";
+        for (long bound : bounds) {
+            out.append(name).append("_bucket{").append(labels).append("le=\"")
+               .append(format((sessions ? bound - 1 : bound) * scale)).append("\"} ")
+               .append(snapshot.countBelow(bound)).append('\n');
+        }
+        out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(snapshot.count()).append('\n');
+        String plain = label == null ? "" : "{" + label + "=\"" + value + "\"}";
+        out.append(name).append("_sum").append(plain).append(' ').append(format(snapshot.sum() * scale)).append('\n');
+        out.append(name).append("_count").append(plain).append(' ').append(snapshot.count()).append('\n');
+    }
+
+    private static long[] powersOfFour(int from, int to) {
+        long[] powers = new long[to - from + 1];
+        for (int i = 0; i < powers.length; i++) {
+            powers[i] = 1L << (2 * (from + i));
+        }
+        return powers;
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /** The counters and gauges as one JMX bean with a read-only attribute each. */
+    private static final class ServerValues implements DynamicMBean {
+
+        private Long read(String attribute) throws AttributeNotFoundException {
+            Counter counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.value().sum();
+            }
+            Gauge gauge = gauges.get(attribute);
+            if (gauge == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return gauge.value().getAsLong();
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            return read(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, read(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // skipped, as the DynamicMBean contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>(counters.size() + gauges.size());
+            counters.forEach((name, counter) -> attributes.add(
+                    new MBeanAttributeInfo(name, "java.lang.Long", counter.help(), true, false, false)));
+            gauges.forEach((name, gauge) -> attributes.add(
+                    new MBeanAttributeInfo(name, "java.lang.Long", gauge.help(), true, false, false)));
+            return new MBeanInfo(getClass().getName(), "Chat server counters and gauges",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package messageserver.chatserver.Metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import messageserver.chatserver.Logging.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@link Metrics#render()} on {@code GET /metrics} from the JDK's
+ * built-in HTTP server, on one daemon thread, so a scraper or
+ * {@code curl} can read the numbers without JMX.
+ */
+final class MetricsHttpServer {
+
+    private MetricsHttpServer() {
+    }
+
+    static void start(String host, int port) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+            server.createContext("/metrics", exchange -> {
+                try (exchange) {
+                    if (!"GET".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+            Log.info("✓ Metrics on http://{}:{}/metrics", host, port);
+        } catch (IOException e) {
+            Log.error("✗ Could not start the metrics endpoint on {}:{}: {}", host, port, e.getMessage());
+        }
+    }
+}
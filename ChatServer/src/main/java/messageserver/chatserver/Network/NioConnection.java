@@ -0,0 +1,416 @@
+package messageserver.chatserver.Network;
+
+import Handler.ClientConnection;
+import Handler.ClientHandler;
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Protocol.FrameCompressor;
+import messageserver.chatserver.Protocol.FrameReader;
+import messageserver.chatserver.Protocol.Handshake;
+import messageserver.chatserver.ServerConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking client connection owned by one {@link NioEventLoop}.
+ *
+ * Inbound bytes are split into lines (or binary frames, once the client has
+ * negotiated them with HELLO) on the loop thread and handed to the
+ * {@link ClientHandler} through a per-connection {@link SerialExecutor},
+ * so blocking work (JDBC) never runs on a selector. A client whose commands
+ * pile up faster than they run stops being read (OP_READ is cleared) until
+ * half of them have run, so the socket buffers push back on it instead of
+ * the heap. Outbound lines go into
+ * a bounded {@link OutboundQueue} from any thread; the loop drains what
+ * it holds in memory and writes everything pending with one gathering
+ * write when the socket is ready. An idle connection only holds its
+ * (empty) queues, not a thread.
+ */
+public final class NioConnection implements ClientConnection {
+    private static final int INITIAL_PARTIAL_BUFFER = 256;
+    // Partial line/frame buffers bigger than this are released once complete
+    private static final int RETAINED_PARTIAL_BUFFER = 4096;
+    private static final int MAX_GATHER = 64;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final int MAX_QUEUED_COMMANDS = Math.max(1, ServerConfig.NIO_MAX_QUEUED_COMMANDS);
+    private static final int RESUME_READS_AT = MAX_QUEUED_COMMANDS / 2;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final SerialExecutor inbound;
+    private final ClientHandler handler;
+    private final String remoteAddress;
+
+    // Loop thread only
+    private SelectionKey key;
+    private byte[] partial;
+    private int partialLength;
+    private boolean binary;
+    private boolean firstLine = true;
+    private boolean readsPaused;
+    private FrameCompressor compressor;
+    private long compressFrom;
+    private long writtenFrames;
+    private boolean closeAfterFlush;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private final List<byte[]> batch = new ArrayList<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    private final OutboundQueue outbound;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    // Frames accepted by the queue, from any thread
+    private final AtomicLong queuedFrames = new AtomicLong();
+    // Commands handed to the inbound executor that have not finished yet
+    private final AtomicInteger queuedCommands = new AtomicInteger();
+
+    public NioConnection(SocketChannel channel, NioEventLoop loop, Executor workers) {
+        this.channel = channel;
+        this.loop = loop;
+        this.inbound = new SerialExecutor(workers);
+        this.remoteAddress = describe(channel);
+        this.outbound = new OutboundQueue(remoteAddress, this::scheduleFlush);
+        this.handler = new ClientHandler(this);
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    // ---------------------------------------------------------------- reads
+
+    void onReadable(ByteBuffer readBuffer) {
+        try {
+            while (true) {
+                readBuffer.clear();
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    closeNow(null);
+                    return;
+                }
+                if (n == 0) {
+                    return;
+                }
+                onBytes(readBuffer.array(), n);
+                if (closed.get() || readsPaused) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            closeNow(e.getMessage());
+        }
+    }
+
+    private void onBytes(byte[] data, int length) {
+        int position = 0;
+        while (position < length && !closed.get()) {
+            position = binary ? consumeFrame(data, position, length) : consumeLine(data, position, length);
+        }
+    }
+
+    /** Text mode: dispatches at most one complete line, returns the new position. */
+    private int consumeLine(byte[] data, int position, int length) {
+        int newline = position;
+        while (newline < length && data[newline] != '\n') {
+            newline++;
+        }
+        if (newline == length) {
+            appendPartial(data, position, length - position);
+            return length;
+        }
+
+        String line;
+        if (partialLength == 0) {
+            line = decode(data, position, newline - position);
+        } else {
+            appendPartial(data, position, newline - position);
+            if (closed.get()) {
+                return length;
+            }
+            line = decode(partial, 0, partialLength);
+            resetPartial();
+        }
+        if (firstLine && Handshake.isHello(line) && Handshake.requestsBinary(line)) {
+            // Everything after the HELLO line is binary; switch before reading on
+            binary = true;
+        }
+        firstLine = false;
+        dispatch(() -> handler.handleLine(line));
+        return newline + 1;
+    }
+
+    /** Binary mode: dispatches at most one complete frame, returns the new position. */
+    private int consumeFrame(byte[] data, int position, int length) {
+        if (partialLength == 0 && length - position >= 4) {
+            int frameLength = readInt(data, position);
+            if (!checkFrameLength(frameLength)) {
+                return length;
+            }
+            if (length - position - 4 >= frameLength) {
+                byte[] frame = Arrays.copyOfRange(data, position + 4, position + 4 + frameLength);
+                dispatchFrame(frame);
+                return position + 4 + frameLength;
+            }
+        }
+
+        // Frame spans reads: collect it in the partial buffer
+        if (partialLength < 4) {
+            int take = Math.min(4 - partialLength, length - position);
+            appendPartial(data, position, take);
+            position += take;
+            if (partialLength < 4 || !checkFrameLength(readInt(partial, 0))) {
+                return position;
+            }
+        }
+        int total = 4 + readInt(partial, 0);
+        int take = Math.min(total - partialLength, length - position);
+        appendPartial(data, position, take);
+        position += take;
+        if (partialLength == total) {
+            byte[] frame = Arrays.copyOfRange(partial, 4, total);
+            resetPartial();
+            dispatchFrame(frame);
+        }
+        return position;
+    }
+
+    private void dispatchFrame(byte[] frame) {
+        dispatch(() -> handler.handleFrame(new FrameReader(frame, 0, frame.length)));
+    }
+
+    /** Loop thread: queues a command, pausing reads once too many are waiting. */
+    private void dispatch(Runnable command) {
+        if (queuedCommands.incrementAndGet() >= MAX_QUEUED_COMMANDS && !readsPaused && key != null && key.isValid()) {
+            // The rest of this read is still dispatched; the next one waits
+            readsPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            Log.debug("⚠ Pausing reads from {}: {} commands queued", remoteAddress, queuedCommands.get());
+        }
+        inbound.execute(() -> {
+            try {
+                command.run();
+            } finally {
+                if (queuedCommands.decrementAndGet() == RESUME_READS_AT) {
+                    loop.execute(this::resumeReads);
+                }
+            }
+        });
+    }
+
+    /** Loop thread: reads again once the backlog has come down. */
+    private void resumeReads() {
+        if (!readsPaused || queuedCommands.get() > RESUME_READS_AT || key == null || !key.isValid()) {
+            return;
+        }
+        readsPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        Log.debug("→ Resuming reads from {}", remoteAddress);
+    }
+
+    private boolean checkFrameLength(int frameLength) {
+        if (frameLength < 1 || frameLength > ServerConfig.MAX_LINE_BYTES) {
+            Log.warn("✗ Invalid frame length {} from {}, closing", frameLength, remoteAddress);
+            closeNow("invalid frame");
+            return false;
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] data, int at) {
+        return ((data[at] & 0xFF) << 24) | ((data[at + 1] & 0xFF) << 16)
+                | ((data[at + 2] & 0xFF) << 8) | (data[at + 3] & 0xFF);
+    }
+
+    private void appendPartial(byte[] data, int offset, int length) {
+        int needed = partialLength + length;
+        if (needed > ServerConfig.MAX_LINE_BYTES + 4) {
+            Log.warn("✗ Line from {} exceeds {} bytes, closing", remoteAddress, ServerConfig.MAX_LINE_BYTES);
+            closeNow("line too long");
+            return;
+        }
+        if (partial == null) {
+            partial = new byte[Math.max(INITIAL_PARTIAL_BUFFER, needed)];
+        } else if (needed > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(needed, partial.length * 2));
+        }
+        System.arraycopy(data, offset, partial, partialLength, length);
+        partialLength = needed;
+    }
+
+    private void resetPartial() {
+        partialLength = 0;
+        if (partial.length > RETAINED_PARTIAL_BUFFER) {
+            partial = null;
+        }
+    }
+
+    private static String decode(byte[] data, int offset, int length) {
+        if (length > 0 && data[offset + length - 1] == '\r') {
+            length--;
+        }
+        return new String(data, offset, length, StandardCharsets.UTF_8);
+    }
+
+    // --------------------------------------------------------------- writes
+
+    @Override
+    public void send(byte[] frame) {
+        if (closed.get()) {
+            return;
+        }
+        OutboundQueue.OfferResult result = outbound.offer(frame);
+        if (result == OutboundQueue.OfferResult.DISCONNECT) {
+            loop.execute(() -> closeNow("slow consumer"));
+        } else if (result == OutboundQueue.OfferResult.QUEUED) {
+            queuedFrames.incrementAndGet();
+            scheduleFlush();
+        }
+    }
+
+    @Override
+    public void enableCompression(FrameCompressor compressor) {
+        long from = queuedFrames.get();
+        loop.execute(() -> {
+            if (closed.get()) {
+                compressor.end();
+                return;
+            }
+            this.compressor = compressor;
+            compressFrom = from;
+        });
+    }
+
+    /** Any thread: makes the loop flush soon, once however often it is asked. */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    /** Loop thread: writes as much of the queue as the socket accepts. */
+    private void flush() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (pending.isEmpty()) {
+                    if (outbound.poll(batch, MAX_BATCH_BYTES) == 0) {
+                        break;
+                    }
+                    for (byte[] frame : batch) {
+                        boolean compress = compressor != null && writtenFrames >= compressFrom;
+                        writtenFrames++;
+                        pending.add(ByteBuffer.wrap(compress ? compressor.encode(frame) : frame));
+                    }
+                    batch.clear();
+                }
+
+                int count = 0;
+                for (ByteBuffer buffer : pending) {
+                    gather[count++] = buffer;
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                channel.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+
+                while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                    pending.poll();
+                }
+                if (!pending.isEmpty()) {
+                    // Socket buffer is full; continue when it drains
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (outbound.hasFailed()) {
+                closeNow("spill failed");
+            } else if (closeAfterFlush && outbound.isEmpty()) {
+                // Otherwise spilled frames are still being read back; their refill flushes again
+                closeNow(null);
+            }
+        } catch (IOException e) {
+            closeNow(e.getMessage());
+        }
+    }
+
+    // -------------------------------------------------------------- closing
+
+    /** Closes once everything already queued has been written. */
+    @Override
+    public void close() {
+        loop.execute(() -> {
+            outbound.close();
+            if ((outbound.isEmpty() && pending.isEmpty()) || key == null || !key.isValid()) {
+                closeNow(null);
+            } else {
+                closeAfterFlush = true;
+                flush();
+            }
+        });
+    }
+
+    /** Loop thread (or before registration): closes immediately. */
+    void closeNow(String reason) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.debug("✗ Could not close {}: {}", remoteAddress, e.getMessage());
+        }
+        outbound.discard();
+        pending.clear();
+        partial = null;
+        if (compressor != null) {
+            compressor.end();
+            compressor = null;
+        }
+        inbound.execute(() -> handler.onDisconnect(reason));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    @Override
+    public String remoteAddress() {
+        return remoteAddress;
+    }
+
+    private static String describe(SocketChannel channel) {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package messageserver.chatserver.Network;
+
+import messageserver.chatserver.Logging.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many {@link NioConnection}s.
+ *
+ * All channel reads, writes, registrations and closes happen on this
+ * thread. Other threads hand work over with {@link #execute(Runnable)},
+ * which queues the task and wakes the selector.
+ */
+public class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by every connection on this loop, only touched by the loop thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final String name;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public NioEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    public void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void register(NioConnection connection) {
+        execute(() -> {
+            try {
+                SelectionKey key = connection.channel().register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(key);
+            } catch (IOException e) {
+                Log.error("✗ Could not register connection {}: {}", connection.remoteAddress(), e.getMessage());
+                connection.closeNow(e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        connection.onReadable(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                Log.error("✗ Event loop {} error: {}", name, e.getMessage());
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("✗ Event loop {} task failed: {}", name, e.getMessage(), e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.error("✗ Event loop {} could not close its selector", name, e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package messageserver.chatserver.Network;
+
+import messageserver.chatserver.Logging.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Non-blocking transport: a {@link ServerSocketChannel} accept loop that
+ * spreads connections round-robin over a few {@link NioEventLoop}s.
+ *
+ * Connections cost a few hundred bytes while idle instead of a thread, so
+ * one process can hold tens of thousands of mostly quiet chat sessions.
+ * Commands still run through {@link Handler.ClientHandler} on the worker pool.
+ */
+public class NioServer {
+    // Pause after a failed accept (usually out of file descriptors) before trying again
+    private static final long ACCEPT_RETRY_MILLIS = 1000;
+
+    private final int port;
+    private final NioEventLoop[] loops;
+    private final ExecutorService workers;
+    private ServerSocketChannel server;
+
+    public NioServer(int port, int eventLoops, ExecutorService workers) throws IOException {
+        this.port = port;
+        this.workers = workers;
+        this.loops = new NioEventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop("chat-nio-" + i);
+        }
+    }
+
+    /** Binds the port and starts the event loops. */
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+        Log.info("✓ NIO transport: {} event loops", loops.length);
+    }
+
+    /**
+     * Accepts connections until the process exits. A failed accept (such as
+     * running out of file descriptors) leaves the connection waiting in the
+     * backlog and is retried, so the sessions already open keep working.
+     */
+    public void run() throws IOException {
+        try {
+            int next = 0;
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException e) {
+                    if (!server.isOpen()) {
+                        throw e;
+                    }
+                    Log.warn("⚠ Accept failed: {}; retrying in {} ms", e.getMessage(), ACCEPT_RETRY_MILLIS);
+                    pauseBeforeRetry();
+                    continue;
+                }
+                Log.info("→ New client connected: {}", channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                NioEventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.register(new NioConnection(channel, loop, workers));
+            }
+        } finally {
+            server.close();
+            for (NioEventLoop loop : loops) {
+                loop.shutdown();
+            }
+            workers.shutdown();
+        }
+    }
+
+    private static void pauseBeforeRetry() throws IOException {
+        try {
+            Thread.sleep(ACCEPT_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting to accept", e);
+        }
+    }
+}
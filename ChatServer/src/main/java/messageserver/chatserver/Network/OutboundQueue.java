@@ -0,0 +1,422 @@
+package messageserver.chatserver.Network;
+
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Metrics.Metrics;
+import messageserver.chatserver.ServerConfig;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one client.
+ *
+ * Senders only ever append under a short lock and never touch the socket,
+ * so a client that stops reading cannot stall anybody else. Once the
+ * queue holds more than {@code maxBytes}, the configured
+ * {@link OverflowPolicy} decides what happens to further frames.
+ *
+ * Spilled frames are written to and read back from the spill file on a
+ * per-queue {@link SerialExecutor} over a shared pool, never on a sender's
+ * thread, the selector or under the lock: {@link #poll} and {@link #take}
+ * only move frames that are already in memory, and the queue calls its
+ * {@code onRefill} callback when more have been read back.
+ */
+public class OutboundQueue {
+
+    public enum OverflowPolicy {
+        /** Discard frames that do not fit. */
+        DROP,
+        /** Tell the caller to disconnect the client. */
+        DISCONNECT,
+        /** Append overflow to a temp file and replay it once memory drains. */
+        SPILL;
+
+        public static OverflowPolicy fromConfig(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    public enum OfferResult { QUEUED, DROPPED, DISCONNECT }
+
+    private static final AtomicInteger SPILL_THREADS = new AtomicInteger();
+    private static final Executor SPILL_POOL = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "outbound-spill-" + SPILL_THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private final String owner;
+    private final Runnable onRefill;
+
+    private long queuedBytes;
+    private long droppedFrames;
+    private boolean closed;
+    private boolean discarded;
+    // While spilling, every new frame goes behind the spilled ones: to
+    // toSpill, then to the file, then back to frames
+    private boolean spilling;
+    private boolean spillFailed;
+    private final ArrayDeque<byte[]> toSpill = new ArrayDeque<>();
+    private long spilledBytes;
+    private boolean pumpScheduled;
+    private SerialExecutor spillIo;
+    // Spill I/O thread only
+    private SpillFile spill;
+
+    public OutboundQueue(String owner) {
+        this(owner, () -> { });
+    }
+
+    /**
+     * {@code onRefill} runs, off the lock, whenever spilled frames have been
+     * read back into memory, and when a spill ends.
+     */
+    public OutboundQueue(String owner, Runnable onRefill) {
+        this(owner, ServerConfig.OUTBOUND_MAX_BYTES, OverflowPolicy.fromConfig(ServerConfig.OUTBOUND_POLICY), onRefill);
+    }
+
+    public OutboundQueue(String owner, long maxBytes, OverflowPolicy policy, Runnable onRefill) {
+        this.owner = owner;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.onRefill = onRefill;
+    }
+
+    public OfferResult offer(byte[] frame) {
+        OfferResult result = enqueue(frame);
+        switch (result) {
+            case QUEUED -> {
+                Metrics.OUTBOUND_FRAMES.increment();
+                Metrics.OUTBOUND_BYTES.add(frame.length);
+            }
+            case DROPPED -> Metrics.OUTBOUND_DROPPED_FRAMES.increment();
+            case DISCONNECT -> Metrics.SLOW_CLIENT_DISCONNECTS.increment();
+        }
+        return result;
+    }
+
+    private OfferResult enqueue(byte[] frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return OfferResult.DROPPED;
+            }
+            if (spillFailed) {
+                return OfferResult.DISCONNECT;
+            }
+            if (!spilling && queuedBytes + frame.length <= maxBytes) {
+                frames.add(frame);
+                queuedBytes += frame.length;
+                notEmpty.signal();
+                return OfferResult.QUEUED;
+            }
+            return overflow(frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private OfferResult overflow(byte[] frame) {
+        switch (policy) {
+            case DROP:
+                if (droppedFrames++ == 0) {
+                    Log.warn("  ⚠ [{}] Outbound queue full ({} bytes), dropping frames", owner, queuedBytes);
+                }
+                return OfferResult.DROPPED;
+            case SPILL:
+                if (spilledBytes + frame.length + 4 > ServerConfig.OUTBOUND_SPILL_MAX_BYTES) {
+                    Log.warn("  ✗ [{}] Spill file over {} bytes, disconnecting", owner, ServerConfig.OUTBOUND_SPILL_MAX_BYTES);
+                    return OfferResult.DISCONNECT;
+                }
+                if (!spilling) {
+                    spilling = true;
+                    Log.warn("  ⚠ [{}] Outbound queue full ({} bytes), spilling to disk", owner, queuedBytes);
+                }
+                toSpill.add(frame);
+                spilledBytes += frame.length + 4;
+                schedulePumpLocked();
+                return OfferResult.QUEUED;
+            default:
+                Log.warn("  ✗ [{}] Outbound queue over {} bytes, disconnecting slow client", owner, maxBytes);
+                return OfferResult.DISCONNECT;
+        }
+    }
+
+    /**
+     * Moves queued frames into {@code batch} without blocking, up to about
+     * {@code maxBatchBytes}. Returns the number of bytes moved: 0 if none
+     * are in memory, even while spilled ones are being read back.
+     */
+    public int poll(List<byte[]> batch, int maxBatchBytes) {
+        lock.lock();
+        try {
+            return drainLocked(batch, maxBatchBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #poll} but waits until at least one frame is available.
+     * Returns 0 only once the queue has been closed and fully drained, or
+     * its spill file has failed.
+     */
+    public int take(List<byte[]> batch, int maxBatchBytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !spillFailed && (spilling || !closed)) {
+                if (spilling) {
+                    schedulePumpLocked();
+                }
+                notEmpty.await();
+            }
+            return drainLocked(batch, maxBatchBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drainLocked(List<byte[]> batch, int maxBatchBytes) {
+        if (spillFailed) {
+            return 0;
+        }
+        int bytes = 0;
+        byte[] frame;
+        while (bytes < maxBatchBytes && (frame = frames.poll()) != null) {
+            batch.add(frame);
+            bytes += frame.length;
+        }
+        queuedBytes -= bytes;
+        if (spilling && queuedBytes <= maxBytes / 2) {
+            schedulePumpLocked();
+        }
+        return bytes;
+    }
+
+    private void schedulePumpLocked() {
+        if (pumpScheduled) {
+            return;
+        }
+        pumpScheduled = true;
+        if (spillIo == null) {
+            spillIo = new SerialExecutor(SPILL_POOL);
+        }
+        spillIo.execute(this::pump);
+    }
+
+    /**
+     * Spill I/O thread: appends the frames waiting in {@code toSpill} to the
+     * spill file and reads back as many as fit in memory, until there is
+     * nothing to write and no room to read into. Ends the spill once the
+     * file has been read to the end.
+     */
+    private void pump() {
+        List<byte[]> writes = new ArrayList<>();
+        List<byte[]> reads = new ArrayList<>();
+        boolean ended = false;
+        while (true) {
+            long room;
+            lock.lock();
+            try {
+                if (discarded) {
+                    pumpScheduled = false;
+                    break;
+                }
+                writes.addAll(toSpill);
+                toSpill.clear();
+                room = maxBytes - queuedBytes;
+                boolean unread = spill != null && !spill.isDrained();
+                if (writes.isEmpty() && !unread) {
+                    // Everything spilled is back in memory; new frames can go there directly
+                    spilling = false;
+                    spilledBytes = 0;
+                    pumpScheduled = false;
+                    ended = true;
+                    notEmpty.signalAll();
+                    break;
+                }
+                if (writes.isEmpty() && room <= 0) {
+                    pumpScheduled = false;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            long readBytes = 0;
+            try {
+                if (spill == null) {
+                    spill = new SpillFile();
+                    Log.debug("  → [{}] Spilling to {}", owner, spill.path);
+                }
+                for (byte[] frame : writes) {
+                    spill.append(frame);
+                }
+                writes.clear();
+                byte[] frame;
+                while (readBytes < room && (frame = spill.next()) != null) {
+                    reads.add(frame);
+                    readBytes += frame.length;
+                }
+            } catch (IOException e) {
+                Log.error("  ✗ [{}] Spill failed, disconnecting: {}", owner, e.getMessage());
+                lock.lock();
+                try {
+                    spillFailed = true;
+                    spilling = false;
+                    toSpill.clear();
+                    pumpScheduled = false;
+                    notEmpty.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                onRefill.run();
+                break;
+            }
+            if (!reads.isEmpty()) {
+                lock.lock();
+                try {
+                    if (!discarded) {
+                        frames.addAll(reads);
+                        queuedBytes += readBytes;
+                        notEmpty.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                reads.clear();
+                onRefill.run();
+            }
+        }
+        if (spill != null) {
+            spill.delete();
+            spill = null;
+        }
+        if (ended) {
+            // A writer waiting to close once the queue is empty can now do so
+            onRefill.run();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty() && !spilling;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** True once the spill file could not be written or read; the client should be disconnected. */
+    public boolean hasFailed() {
+        lock.lock();
+        try {
+            return spillFailed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops accepting frames; already queued frames can still be drained. */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Closes and throws away everything still queued; a spill file is deleted on the spill I/O thread. */
+    public void discard() {
+        lock.lock();
+        try {
+            closed = true;
+            discarded = true;
+            frames.clear();
+            toSpill.clear();
+            queuedBytes = 0;
+            if (spilling) {
+                spilling = false;
+                schedulePumpLocked();
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Length-prefixed frames appended to a temp file and read back in order. */
+    private static class SpillFile {
+        private final Path path;
+        private final DataOutputStream writer;
+        private DataInputStream reader;
+        private long written;
+        private long read;
+
+        SpillFile() throws IOException {
+            path = Files.createTempFile("chat-spill-", ".bin");
+            writer = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        }
+
+        void append(byte[] frame) throws IOException {
+            writer.writeInt(frame.length);
+            writer.write(frame);
+            written++;
+        }
+
+        byte[] next() throws IOException {
+            if (read == written) {
+                return null;
+            }
+            writer.flush();
+            if (reader == null) {
+                reader = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+            }
+            byte[] frame = new byte[reader.readInt()];
+            reader.readFully(frame);
+            read++;
+            return frame;
+        }
+
+        boolean isDrained() {
+            return read == written;
+        }
+
+        void delete() {
+            try {
+                writer.close();
+                if (reader != null) {
+                    reader.close();
+                }
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                Log.error("  ✗ Could not delete spill file {}: {}", path, e.getMessage());
+            }
+        }
+    }
+}
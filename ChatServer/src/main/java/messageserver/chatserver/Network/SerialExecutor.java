@@ -0,0 +1,56 @@
+package messageserver.chatserver.Network;
+
+import messageserver.chatserver.Logging.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in submission order, on a shared pool.
+ *
+ * Each NIO connection owns one of these so its commands never run
+ * concurrently or out of order, without tying up a pool thread while
+ * the connection is idle.
+ */
+public class SerialExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Executor pool;
+
+    public SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            pool.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.error("✗ Error while handling client command: {}", e.getMessage(), e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // A task may have been queued after the last poll but before the reset
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
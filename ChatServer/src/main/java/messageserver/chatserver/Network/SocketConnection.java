@@ -0,0 +1,185 @@
+package messageserver.chatserver.Network;
+
+import Handler.ClientConnection;
+import Handler.ClientHandler;
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Protocol.FrameCompressor;
+import messageserver.chatserver.Protocol.FrameReader;
+import messageserver.chatserver.Protocol.Handshake;
+import messageserver.chatserver.ServerConfig;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Blocking transport: one thread per connection blocked on the socket,
+ * handing each text line (or binary frame, after a binary HELLO) to the
+ * {@link ClientHandler}.
+ *
+ * Outbound lines go through an {@link OutboundQueue} drained by a second,
+ * per-connection writer thread, so senders never block on this socket.
+ * The writer takes everything queued at once and flushes it in one go.
+ */
+public final class SocketConnection implements ClientConnection, Runnable {
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private final Socket socket;
+    private final Thread.Builder threads;
+    private final ClientHandler handler;
+    private final OutboundQueue outbound;
+    private volatile boolean closing = false;
+    // Frames accepted by the queue, counted by senders and by the writer
+    private final AtomicLong queuedFrames = new AtomicLong();
+    private long writtenFrames; // writer thread only
+    // Set once HELLO has negotiated it: compressFrom first, so the writer sees both
+    private volatile long compressFrom;
+    private volatile FrameCompressor compressor;
+
+    public SocketConnection(Socket socket, Thread.Builder threads) {
+        this.socket = socket;
+        this.threads = threads;
+        this.outbound = new OutboundQueue(remoteAddress());
+        this.handler = new ClientHandler(this);
+    }
+
+    @Override
+    public void run() {
+        String disconnectReason = null;
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            DataInputStream frames = new DataInputStream(in);
+            threads.start(this::writeLoop);
+
+            String line = readLine(in);
+            if (line == null) {
+                Log.warn("  ✗ No credentials received");
+            }
+            // Only the very first line may switch the connection to binary frames
+            boolean binary = line != null && Handshake.isHello(line) && Handshake.requestsBinary(line);
+            while (line != null && handler.isRunning()) {
+                handler.handleLine(line);
+                line = handler.isRunning() && !binary ? readLine(in) : null;
+            }
+            while (binary && handler.isRunning()) {
+                byte[] frame = readFrame(frames);
+                if (frame == null) {
+                    break;
+                }
+                handler.handleFrame(new FrameReader(frame, 0, frame.length));
+            }
+        } catch (IOException e) {
+            disconnectReason = e.getMessage();
+        } finally {
+            handler.onDisconnect(disconnectReason);
+        }
+    }
+
+    /** Reads one UTF-8 line without a reader, so the stream can switch to frames. */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() >= ServerConfig.MAX_LINE_BYTES) {
+                throw new IOException("line too long");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > ServerConfig.MAX_LINE_BYTES) {
+            throw new IOException("invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), MAX_BATCH_BYTES);
+            while (outbound.take(batch, MAX_BATCH_BYTES) > 0) {
+                FrameCompressor frameCompressor = compressor;
+                for (byte[] frame : batch) {
+                    boolean compress = frameCompressor != null && writtenFrames >= compressFrom;
+                    writtenFrames++;
+                    out.write(compress ? frameCompressor.encode(frame) : frame);
+                }
+                batch.clear();
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Peer went away; the reader side reports the disconnect
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeNow();
+            FrameCompressor frameCompressor = compressor;
+            if (frameCompressor != null) {
+                frameCompressor.end();
+            }
+        }
+    }
+
+    @Override
+    public void send(byte[] frame) {
+        OutboundQueue.OfferResult result = outbound.offer(frame);
+        if (result == OutboundQueue.OfferResult.QUEUED) {
+            queuedFrames.incrementAndGet();
+        } else if (result == OutboundQueue.OfferResult.DISCONNECT) {
+            closeNow();
+        }
+    }
+
+    @Override
+    public void enableCompression(FrameCompressor compressor) {
+        compressFrom = queuedFrames.get();
+        this.compressor = compressor;
+    }
+
+    /** Closes once the writer has sent everything already queued. */
+    @Override
+    public void close() {
+        closing = true;
+        outbound.close();
+    }
+
+    private void closeNow() {
+        closing = true;
+        outbound.discard();
+        try {
+            if (!socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            Log.debug("✗ Could not close {}: {}", remoteAddress(), e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closing && !socket.isClosed();
+    }
+
+    @Override
+    public String remoteAddress() {
+        return socket.getInetAddress() + ":" + socket.getPort();
+    }
+}
@@ -0,0 +1,128 @@
+package messageserver.chatserver;
+
+import Handler.ClientHandler;
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Metrics.Metrics;
+import messageserver.chatserver.Protocol.WireFormat;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Batches online/offline changes and fans them out once per window.
+ *
+ * Logins and logouts only record the user's latest state. Every
+ * {@code chat.presence.windowMs} the engine compares those states with
+ * what it last announced and sends every session a single presence-delta
+ * frame, encoded once per wire format and shared by all recipients. A user
+ * who comes online and goes offline again inside one window produces no
+ * event at all. Sessions that joined during the window get a snapshot of
+ * everyone online instead.
+ */
+public final class PresenceEngine {
+    private final ConcurrentMap<String, Boolean> changes = new ConcurrentHashMap<>();
+    private final Queue<ClientHandler> joined = new ConcurrentLinkedQueue<>();
+    private final Supplier<Collection<ClientHandler>> sessions;
+    private final ScheduledExecutorService scheduler;
+
+    // Flusher thread only: users whose ONLINE state has been announced
+    private final Set<String> published = new HashSet<>();
+
+    public PresenceEngine(Supplier<Collection<ClientHandler>> sessions, long windowMillis) {
+        this.sessions = sessions;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flushSafely, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Records a status change; it goes out with the next window. */
+    public void record(String username, boolean online) {
+        changes.put(username, online);
+    }
+
+    /** Queues a presence snapshot for a session that just logged in. */
+    public void sessionJoined(ClientHandler client) {
+        joined.add(client);
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            Log.error("✗ Presence flush failed: {}", e.getMessage(), e);
+        }
+    }
+
+    /** Sends out everything recorded since the last window. Runs on the scheduler; never call it concurrently. */
+    public void flush() {
+        List<String> online = new ArrayList<>();
+        List<String> offline = new ArrayList<>();
+        for (String username : new ArrayList<>(changes.keySet())) {
+            Boolean isOnline = changes.remove(username);
+            if (isOnline == null || published.contains(username) == isOnline) {
+                continue; // flapped back to the announced state
+            }
+            if (isOnline) {
+                published.add(username);
+                online.add(username);
+            } else {
+                published.remove(username);
+                offline.add(username);
+            }
+        }
+
+        Set<ClientHandler> newcomers = new HashSet<>();
+        ClientHandler client;
+        while ((client = joined.poll()) != null) {
+            newcomers.add(client);
+        }
+
+        if (!online.isEmpty() || !offline.isEmpty()) {
+            PresenceDelta delta = new PresenceDelta(online, offline);
+            int recipients = 0;
+            for (ClientHandler session : sessions.get()) {
+                if (!newcomers.contains(session)) {
+                    session.sendPresenceDelta(delta);
+                    recipients++;
+                }
+            }
+            Metrics.PRESENCE_FANOUT.record(recipients);
+            Log.debug("  [presence] +{} / -{} → {} sessions", online.size(), offline.size(), recipients);
+        }
+
+        if (!newcomers.isEmpty()) {
+            PresenceDelta snapshot = new PresenceDelta(new ArrayList<>(published), List.of());
+            for (ClientHandler newcomer : newcomers) {
+                newcomer.sendPresenceDelta(snapshot);
+            }
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    /** One batch of presence changes, encoded at most once per wire format. */
+    public static class PresenceDelta {
+        private final List<String> online;
+        private final List<String> offline;
+        private final Map<WireFormat, byte[]> encoded = new IdentityHashMap<>(2);
+
+        public PresenceDelta(List<String> online, List<String> offline) {
+            this.online = online;
+            this.offline = offline;
+        }
+
+        public byte[] encodedFor(WireFormat format) {
+            return encoded.computeIfAbsent(format, f -> f.presenceDelta(online, offline));
+        }
+
+        public int size() {
+            return online.size() + offline.size();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package messageserver.chatserver.Protocol;
+
+import messageserver.chatserver.Database.ChatMessage;
+
+import java.util.List;
+
+/** Length-prefixed binary frames; see {@link Opcode} for the layout. */
+public final class BinaryFormat implements WireFormat {
+    public static final BinaryFormat INSTANCE = new BinaryFormat();
+
+    private BinaryFormat() {
+    }
+
+    @Override
+    public byte[] authResult(String status) {
+        return new FrameWriter(Opcode.AUTH_RESULT).writeString(status).toFrame();
+    }
+
+    @Override
+    public byte[] session(String token) {
+        return new FrameWriter(Opcode.SESSION).writeString(token).toFrame();
+    }
+
+    @Override
+    public byte[] users(List<String> usernames) {
+        FrameWriter frame = new FrameWriter(Opcode.USERS, usernames.size() * 12);
+        frame.writeInt(usernames.size());
+        for (String username : usernames) {
+            frame.writeString(username);
+        }
+        return frame.toFrame();
+    }
+
+    @Override
+    public byte[] history(List<ChatMessage> messages) {
+        FrameWriter frame = new FrameWriter(Opcode.HISTORY, messages.size() * 64);
+        frame.writeInt(messages.size());
+        for (ChatMessage message : messages) {
+            frame.writeString(message.sender())
+                 .writeString(message.content())
+                 .writeLong(message.timestampMillis());
+        }
+        return frame.toFrame();
+    }
+
+    @Override
+    public byte[] historyChunk(List<ChatMessage> messages) {
+        FrameWriter frame = new FrameWriter(Opcode.HISTORY_CHUNK, messages.size() * 72);
+        frame.writeInt(messages.size());
+        for (ChatMessage message : messages) {
+            frame.writeLong(message.id())
+                 .writeString(message.sender())
+                 .writeString(message.content())
+                 .writeLong(message.timestampMillis());
+        }
+        return frame.toFrame();
+    }
+
+    @Override
+    public byte[] historyEnd(String otherUser, long nextBeforeId) {
+        return new FrameWriter(Opcode.HISTORY_END).writeString(otherUser).writeLong(nextBeforeId).toFrame();
+    }
+
+    @Override
+    public byte[] syncChunk(List<ChatMessage> messages) {
+        FrameWriter frame = new FrameWriter(Opcode.SYNC_CHUNK, messages.size() * 88);
+        frame.writeInt(messages.size());
+        for (ChatMessage message : messages) {
+            frame.writeLong(message.id())
+                 .writeString(message.sender())
+                 .writeString(message.receiver())
+                 .writeString(message.content())
+                 .writeLong(message.timestampMillis());
+        }
+        return frame.toFrame();
+    }
+
+    @Override
+    public byte[] syncEnd(String otherUser, long lastId, boolean more) {
+        return new FrameWriter(Opcode.SYNC_END).writeString(otherUser).writeLong(lastId).writeBoolean(more).toFrame();
+    }
+
+    @Override
+    public byte[] privateMessage(String sender, String content) {
+        return new FrameWriter(Opcode.PRIVATE_IN, sender.length() + content.length() + 8)
+                .writeString(sender)
+                .writeString(content)
+                .toFrame();
+    }
+
+    @Override
+    public byte[] presence(String username, boolean online) {
+        return new FrameWriter(Opcode.PRESENCE).writeString(username).writeBoolean(online).toFrame();
+    }
+
+    @Override
+    public byte[] roomMessage(String room, String sender, String content) {
+        return new FrameWriter(Opcode.ROOM_IN, room.length() + sender.length() + content.length() + 12)
+                .writeString(room)
+                .writeString(sender)
+                .writeString(content)
+                .toFrame();
+    }
+
+    @Override
+    public byte[] roomMembers(String room, List<String> online, List<String> offline) {
+        FrameWriter frame = new FrameWriter(Opcode.ROOM_MEMBERS, room.length() + (online.size() + offline.size()) * 12);
+        frame.writeString(room);
+        frame.writeInt(online.size());
+        for (String username : online) {
+            frame.writeString(username);
+        }
+        frame.writeInt(offline.size());
+        for (String username : offline) {
+            frame.writeString(username);
+        }
+        return frame.toFrame();
+    }
+
+    @Override
+    public byte[] roomMember(String room, String username, boolean joined) {
+        return new FrameWriter(Opcode.ROOM_MEMBER).writeString(room).writeString(username).writeBoolean(joined).toFrame();
+    }
+
+    @Override
+    public byte[] roomHistoryChunk(String room, List<ChatMessage> messages) {
+        FrameWriter frame = new FrameWriter(Opcode.ROOM_HISTORY_CHUNK, room.length() + messages.size() * 72);
+        frame.writeString(room);
+        frame.writeInt(messages.size());
+        for (ChatMessage message : messages) {
+            frame.writeLong(message.id())
+                 .writeString(message.sender())
+                 .writeString(message.content())
+                 .writeLong(message.timestampMillis());
+        }
+        return frame.toFrame();
+    }
+
+    @Override
+    public byte[] roomHistoryEnd(String room, long nextBeforeId) {
+        return new FrameWriter(Opcode.ROOM_HISTORY_END).writeString(room).writeLong(nextBeforeId).toFrame();
+    }
+
+    @Override
+    public byte[] roomError(String room, String reason) {
+        return new FrameWriter(Opcode.ROOM_ERROR).writeString(room).writeString(reason).toFrame();
+    }
+
+    @Override
+    public byte[] searchChunk(List<ChatMessage> hits) {
+        FrameWriter frame = new FrameWriter(Opcode.SEARCH_CHUNK, hits.size() * 88);
+        frame.writeInt(hits.size());
+        for (ChatMessage hit : hits) {
+            frame.writeLong(hit.id())
+                 .writeString(hit.sender())
+                 .writeString(hit.receiver())
+                 .writeString(hit.content())
+                 .writeLong(hit.timestampMillis());
+        }
+        return frame.toFrame();
+    }
+
+    @Override
+    public byte[] searchEnd(String otherUser, long nextBeforeId) {
+        return new FrameWriter(Opcode.SEARCH_END).writeString(otherUser).writeLong(nextBeforeId).toFrame();
+    }
+
+    @Override
+    public byte[] presenceDelta(List<String> online, List<String> offline) {
+        FrameWriter frame = new FrameWriter(Opcode.PRESENCE_DELTA, (online.size() + offline.size()) * 12);
+        frame.writeInt(online.size());
+        for (String username : online) {
+            frame.writeString(username);
+        }
+        frame.writeInt(offline.size());
+        for (String username : offline) {
+            frame.writeString(username);
+        }
+        return frame.toFrame();
+    }
+
+    @Override
+    public byte[] saved(String recipient, int count) {
+        return new FrameWriter(Opcode.SAVED).writeString(recipient).writeInt(count).toFrame();
+    }
+
+    @Override
+    public byte[] ack(long seq) {
+        return new FrameWriter(Opcode.ACK, 8).writeLong(seq).toFrame();
+    }
+
+    @Override
+    public byte[] throttled(String limit, long retryAfterMillis) {
+        return new FrameWriter(Opcode.THROTTLED).writeString(limit).writeLong(retryAfterMillis).toFrame();
+    }
+
+    @Override
+    public byte[] line(String line) {
+        return new FrameWriter(Opcode.TEXT_LINE, line.length()).writeString(line).toFrame();
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+}
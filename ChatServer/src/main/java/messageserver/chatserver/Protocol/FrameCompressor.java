@@ -0,0 +1,81 @@
+package messageserver.chatserver.Protocol;
+
+import messageserver.chatserver.Metrics.Metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses server-to-client frames for a binary connection that
+ * offered {@code deflate} in its HELLO.
+ *
+ * Frames of at least {@code minBytes} go through one raw deflate stream
+ * that lives as long as the connection, and each is sent as a
+ * {@link Opcode#COMPRESSED} frame holding the output of a sync flush, so
+ * the client can inflate it as soon as it arrives. The stream is never
+ * reset, so it doubles as a dictionary shared with the client: a
+ * compressed frame can refer back to the last 32 KB of earlier ones
+ * (usernames from the USERS list, repeated HISTORY rows). Smaller frames,
+ * such as most PRIVATE messages and presence changes, are sent as they are
+ * and never enter the stream.
+ *
+ * Frames must be encoded in the order they are written, by one thread at
+ * a time; the transports call this from their writer, for the frames
+ * queued after {@link Handler.ClientConnection#enableCompression}.
+ */
+public final class FrameCompressor {
+    private static final int INITIAL_BUFFER = 8 * 1024;
+    private static final int RETAINED_BUFFER = 256 * 1024;
+
+    private static final LongAdder BYTES_IN = Metrics.counter("chat_compress_in_bytes_total",
+            "Frame bytes written to clients through compression");
+    private static final LongAdder BYTES_OUT = Metrics.counter("chat_compress_out_bytes_total",
+            "Compressed bytes written in their place");
+
+    private final Deflater deflater;
+    private final int minBytes;
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+
+    public FrameCompressor(int level, int minBytes) {
+        this.deflater = new Deflater(level, true);
+        this.minBytes = minBytes;
+    }
+
+    /** The frame as it goes on the wire: unchanged below the threshold, otherwise a COMPRESSED frame. */
+    public byte[] encode(byte[] frame) {
+        if (frame.length < minBytes) {
+            return frame;
+        }
+        deflater.setInput(frame);
+        int length = 5; // [int length][opcode] go in front once the size is known
+        while (true) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+            // A sync flush that did not fill the buffer has written everything
+            if (length < buffer.length) {
+                break;
+            }
+        }
+        int frameLength = length - 4;
+        buffer[0] = (byte) (frameLength >>> 24);
+        buffer[1] = (byte) (frameLength >>> 16);
+        buffer[2] = (byte) (frameLength >>> 8);
+        buffer[3] = (byte) frameLength;
+        buffer[4] = (byte) Opcode.COMPRESSED;
+        byte[] compressed = Arrays.copyOf(buffer, length);
+        if (buffer.length > RETAINED_BUFFER) {
+            buffer = new byte[INITIAL_BUFFER];
+        }
+        BYTES_IN.add(frame.length);
+        BYTES_OUT.add(length);
+        return compressed;
+    }
+
+    /** Releases the native stream; call once the connection is closed. */
+    public void end() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,61 @@
+package messageserver.chatserver.Protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads one binary frame (the bytes after the length prefix, starting with
+ * the opcode).
+ * Each string field is decoded directly from the frame bytes; there is no
+ * intermediate line String to split.
+ */
+public final class FrameReader {
+    private final byte[] data;
+    private final int end;
+    private int position;
+
+    public FrameReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    public int readByte() {
+        check(1);
+        return data[position++] & 0xFF;
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public int readInt() {
+        check(4);
+        int value = ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16)
+                | ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    public long readLong() {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public String readString() {
+        int length = readInt();
+        check(length);
+        String value = new String(data, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    public boolean hasRemaining() {
+        return position < end;
+    }
+
+    private void check(int bytes) {
+        // Not position + bytes, which overflows for a length near Integer.MAX_VALUE
+        if (bytes < 0 || bytes > end - position) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+    }
+}
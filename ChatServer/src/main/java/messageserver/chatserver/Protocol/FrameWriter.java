@@ -0,0 +1,94 @@
+package messageserver.chatserver.Protocol;
+
+import java.util.Arrays;
+
+/**
+ * Builds one binary frame. Strings are UTF-8 encoded straight into the
+ * frame buffer, so no intermediate byte arrays are created per field.
+ */
+public final class FrameWriter {
+    private byte[] buffer;
+    private int position;
+
+    public FrameWriter(int opcode) {
+        this(opcode, 64);
+    }
+
+    public FrameWriter(int opcode, int sizeHint) {
+        buffer = new byte[Math.max(16, sizeHint + 5)];
+        position = 4; // length is patched in by toFrame()
+        writeByte(opcode);
+    }
+
+    public FrameWriter writeByte(int value) {
+        ensure(1);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    public FrameWriter writeBoolean(boolean value) {
+        return writeByte(value ? 1 : 0);
+    }
+
+    public FrameWriter writeInt(int value) {
+        ensure(4);
+        putInt(position, value);
+        position += 4;
+        return this;
+    }
+
+    public FrameWriter writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        return writeInt((int) value);
+    }
+
+    public FrameWriter writeString(String value) {
+        int length = value.length();
+        ensure(4 + length * 3);
+        int start = position + 4;
+        int p = start;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[p++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[p++] = (byte) (0xC0 | (c >> 6));
+                buffer[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer[p++] = (byte) (0xF0 | (cp >> 18));
+                buffer[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[p++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[p++] = (byte) '?';
+            } else {
+                buffer[p++] = (byte) (0xE0 | (c >> 12));
+                buffer[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        putInt(position, p - start);
+        position = p;
+        return this;
+    }
+
+    /** Finishes the frame and returns exactly its bytes. */
+    public byte[] toFrame() {
+        putInt(0, position - 4);
+        return position == buffer.length ? buffer : Arrays.copyOf(buffer, position);
+    }
+
+    private void putInt(int at, int value) {
+        buffer[at] = (byte) (value >>> 24);
+        buffer[at + 1] = (byte) (value >>> 16);
+        buffer[at + 2] = (byte) (value >>> 8);
+        buffer[at + 3] = (byte) value;
+    }
+
+    private void ensure(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+}
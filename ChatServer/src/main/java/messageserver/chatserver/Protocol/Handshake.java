@@ -0,0 +1,63 @@
+package messageserver.chatserver.Protocol;
+
+import messageserver.chatserver.ServerConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Optional first line of a connection: {@code HELLO:cap1,cap2,...}.
+ *
+ * The server answers {@code HELLO:} followed by the capabilities it
+ * accepted. Clients that skip it (all older clients) speak the plain text
+ * protocol. When {@code binary} is accepted, both sides switch to binary
+ * frames for everything after the HELLO exchange, starting with auth.
+ * {@code deflate} (binary only, and unless {@code chat.compress=false})
+ * means large frames to the client may arrive compressed; see
+ * {@link FrameCompressor}.
+ */
+public final class Handshake {
+    public static final String PREFIX = "HELLO:";
+    public static final String BINARY = "binary";
+    public static final String DEFLATE = "deflate";
+
+    private static final List<String> SUPPORTED = List.of(BINARY, DEFLATE);
+
+    private Handshake() {
+    }
+
+    public static boolean isHello(String line) {
+        return line.startsWith(PREFIX);
+    }
+
+    /** Capabilities from a HELLO line that this server supports. */
+    public static List<String> accepted(String helloLine) {
+        List<String> accepted = new ArrayList<>();
+        for (String capability : helloLine.substring(PREFIX.length()).split(",")) {
+            String trimmed = capability.trim();
+            if (SUPPORTED.contains(trimmed) && !accepted.contains(trimmed)) {
+                accepted.add(trimmed);
+            }
+        }
+        // Compressed frames need binary framing around them
+        if (!accepted.contains(BINARY) || !ServerConfig.COMPRESS) {
+            accepted.remove(DEFLATE);
+        }
+        return accepted;
+    }
+
+    public static boolean requestsBinary(String helloLine) {
+        return accepted(helloLine).contains(BINARY);
+    }
+
+    /** A compressor for a connection that negotiated {@code deflate}, otherwise null. */
+    public static FrameCompressor compressorFor(List<String> accepted) {
+        return accepted.contains(DEFLATE)
+                ? new FrameCompressor(ServerConfig.COMPRESS_LEVEL, ServerConfig.COMPRESS_MIN_BYTES)
+                : null;
+    }
+
+    public static String reply(List<String> accepted) {
+        return PREFIX + String.join(",", accepted);
+    }
+}
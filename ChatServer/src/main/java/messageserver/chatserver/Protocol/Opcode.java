@@ -0,0 +1,58 @@
+package messageserver.chatserver.Protocol;
+
+/**
+ * Opcodes of the binary protocol.
+ *
+ * Every binary frame is {@code [int length][byte opcode][fields...]}, where
+ * length counts the opcode and fields. Strings are {@code [int byteLength][UTF-8]},
+ * lists are {@code [int count][items...]}. Client-to-server opcodes are below
+ * 0x80, server-to-client opcodes are 0x80 and up. The client keeps its own
+ * copy of this table in {@code messageserver.chatclient.Network.Opcode}.
+ */
+public final class Opcode {
+    // Client → server
+    public static final int AUTH = 0x01;         // username, password
+    public static final int REGISTER = 0x02;     // username, password
+    public static final int RESUME = 0x03;       // session token from an earlier SESSION
+    public static final int GET_USERS = 0x10;
+    public static final int GET_HISTORY = 0x11;  // otherUser
+    public static final int PRIVATE = 0x12;      // recipient, content
+    public static final int LOGOUT = 0x13;
+    public static final int GET_HISTORY_PAGE = 0x14; // otherUser, beforeId (long, 0 = newest), limit (int)
+    public static final int SYNC = 0x15;         // otherUser ("" = every conversation), afterId (long), limit (int)
+    public static final int SEND = 0x16;         // seq (long, 1, 2, 3, ... per login), recipient, content
+    public static final int JOIN_ROOM = 0x17;    // room
+    public static final int LEAVE_ROOM = 0x18;   // room
+    public static final int ROOM_MESSAGE = 0x19; // room, content
+    public static final int GET_ROOM_HISTORY = 0x1A; // room, beforeId (long, 0 = newest), limit (int)
+    public static final int SEARCH = 0x1B;       // otherUser ("" = every conversation), beforeId (long, 0 = newest), limit (int), query
+
+    // Server → client
+    public static final int AUTH_RESULT = 0x81;  // status (SUCCESS, FAIL, REGISTER_SUCCESS, ...)
+    public static final int USERS = 0x90;        // [username]
+    public static final int HISTORY = 0x91;     // [sender, content, timestampMillis]
+    public static final int PRIVATE_IN = 0x92;   // sender, content
+    public static final int PRESENCE = 0x93;     // username, online (byte 0/1)
+    public static final int PRESENCE_DELTA = 0x94; // [online username], [offline username]
+    public static final int SAVED = 0x95;        // recipient, count (int): that many messages are committed
+    public static final int HISTORY_CHUNK = 0x96; // [id (long), sender, content, timestampMillis], newest first
+    public static final int HISTORY_END = 0x97;  // otherUser, nextBeforeId (long, 0 = no older messages)
+    public static final int SESSION = 0x98;      // token to present with RESUME when reconnecting
+    public static final int THROTTLED = 0x99;    // limit (PRIVATE, HISTORY, USERS, OTHER), retryAfterMillis (long)
+    public static final int COMPRESSED = 0x9A;   // raw deflate, sync-flushed: one whole frame (see FrameCompressor)
+    public static final int SYNC_CHUNK = 0x9B;   // [id (long), sender, receiver, content, timestampMillis], oldest first
+    public static final int SYNC_END = 0x9C;     // otherUser, lastId (long), more (byte 0/1)
+    public static final int ACK = 0x9D;          // seq (long): every SEND up to it is delivered and stored
+    public static final int ROOM_IN = 0x9E;      // room, sender, content
+    public static final int ROOM_MEMBERS = 0x9F; // room, [online username], [offline username]: reply to JOIN_ROOM
+    public static final int ROOM_MEMBER = 0xA0;  // room, username, joined (byte 1 = joined, 0 = left)
+    public static final int ROOM_HISTORY_CHUNK = 0xA1; // room, [id (long), sender, content, timestampMillis], newest first
+    public static final int ROOM_HISTORY_END = 0xA2;   // room, nextBeforeId (long, 0 = no older messages)
+    public static final int ROOM_ERROR = 0xA3;   // room, reason (INVALID_NAME, NOT_MEMBER, TOO_MANY_ROOMS)
+    public static final int SEARCH_CHUNK = 0xA4; // [id (long), sender, receiver, content, timestampMillis], newest first
+    public static final int SEARCH_END = 0xA5;   // otherUser, nextBeforeId (long, 0 = no older hits)
+    public static final int TEXT_LINE = 0xFF;    // a text-protocol line with no binary form yet
+
+    private Opcode() {
+    }
+}
@@ -0,0 +1,203 @@
+package messageserver.chatserver.Protocol;
+
+import messageserver.chatserver.Database.ChatMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * The original newline-terminated text protocol, kept for old clients.
+ * Fields are separated with ':' and history entries with '|', so content
+ * containing those characters (or newlines) does not survive intact.
+ */
+public final class TextFormat implements WireFormat {
+    public static final TextFormat INSTANCE = new TextFormat();
+
+    private TextFormat() {
+    }
+
+    @Override
+    public byte[] authResult(String status) {
+        return line(status);
+    }
+
+    @Override
+    public byte[] session(String token) {
+        return line("SESSION:" + token);
+    }
+
+    @Override
+    public byte[] users(List<String> usernames) {
+        return line("USERS:" + String.join(",", usernames));
+    }
+
+    @Override
+    public byte[] history(List<ChatMessage> messages) {
+        StringBuilder history = new StringBuilder("HISTORY:");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                history.append("|");
+            }
+            appendHistoryEntry(history, messages.get(i));
+        }
+        return line(history.toString());
+    }
+
+    /** Format: sender:message:timestamp */
+    public static void appendHistoryEntry(StringBuilder out, ChatMessage message) {
+        out.append(message.sender())
+           .append(":")
+           .append(message.content())
+           .append(":")
+           .append(new Timestamp(message.timestampMillis()));
+    }
+
+    /** One HISTORY_MSG:id:timestampMillis:sender:content line per message, written together. */
+    @Override
+    public byte[] historyChunk(List<ChatMessage> messages) {
+        StringBuilder lines = new StringBuilder(messages.size() * 64);
+        for (ChatMessage message : messages) {
+            lines.append("HISTORY_MSG:")
+                 .append(message.id()).append(':')
+                 .append(message.timestampMillis()).append(':')
+                 .append(message.sender()).append(':')
+                 .append(message.content()).append('\n');
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] historyEnd(String otherUser, long nextBeforeId) {
+        return line("HISTORY_END:" + otherUser + ":" + nextBeforeId);
+    }
+
+    /** One SYNC_MSG:id:timestampMillis:sender:receiver:content line per message, written together. */
+    @Override
+    public byte[] syncChunk(List<ChatMessage> messages) {
+        StringBuilder lines = new StringBuilder(messages.size() * 72);
+        for (ChatMessage message : messages) {
+            lines.append("SYNC_MSG:")
+                 .append(message.id()).append(':')
+                 .append(message.timestampMillis()).append(':')
+                 .append(message.sender()).append(':')
+                 .append(message.receiver()).append(':')
+                 .append(message.content()).append('\n');
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] syncEnd(String otherUser, long lastId, boolean more) {
+        return line("SYNC_END:" + otherUser + ":" + lastId + ":" + more);
+    }
+
+    @Override
+    public byte[] privateMessage(String sender, String content) {
+        return line("PRIVATE:" + sender + ":" + content);
+    }
+
+    @Override
+    public byte[] presence(String username, boolean online) {
+        return line((online ? "ONLINE:" : "OFFLINE:") + username);
+    }
+
+    @Override
+    public byte[] roomMessage(String room, String sender, String content) {
+        return line("ROOM:" + room + ":" + sender + ":" + content);
+    }
+
+    /** ROOM_MEMBERS:room:online,...:offline,... */
+    @Override
+    public byte[] roomMembers(String room, List<String> online, List<String> offline) {
+        return line("ROOM_MEMBERS:" + room + ":" + String.join(",", online) + ":" + String.join(",", offline));
+    }
+
+    @Override
+    public byte[] roomMember(String room, String username, boolean joined) {
+        return line((joined ? "ROOM_JOINED:" : "ROOM_LEFT:") + room + ":" + username);
+    }
+
+    /** One ROOM_MSG:room:id:timestampMillis:sender:content line per message, written together. */
+    @Override
+    public byte[] roomHistoryChunk(String room, List<ChatMessage> messages) {
+        StringBuilder lines = new StringBuilder(messages.size() * 72);
+        for (ChatMessage message : messages) {
+            lines.append("ROOM_MSG:")
+                 .append(room).append(':')
+                 .append(message.id()).append(':')
+                 .append(message.timestampMillis()).append(':')
+                 .append(message.sender()).append(':')
+                 .append(message.content()).append('\n');
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] roomHistoryEnd(String room, long nextBeforeId) {
+        return line("ROOM_HISTORY_END:" + room + ":" + nextBeforeId);
+    }
+
+    @Override
+    public byte[] roomError(String room, String reason) {
+        return line("ROOM_ERROR:" + room + ":" + reason);
+    }
+
+    /** One SEARCH_HIT:id:timestampMillis:sender:receiver:content line per hit, written together. */
+    @Override
+    public byte[] searchChunk(List<ChatMessage> hits) {
+        StringBuilder lines = new StringBuilder(hits.size() * 72);
+        for (ChatMessage hit : hits) {
+            lines.append("SEARCH_HIT:")
+                 .append(hit.id()).append(':')
+                 .append(hit.timestampMillis()).append(':')
+                 .append(hit.sender()).append(':')
+                 .append(hit.receiver()).append(':')
+                 .append(hit.content()).append('\n');
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] searchEnd(String otherUser, long nextBeforeId) {
+        return line("SEARCH_END:" + otherUser + ":" + nextBeforeId);
+    }
+
+    /** Old clients only know single ONLINE:/OFFLINE: lines, so a batch is several lines in one frame. */
+    @Override
+    public byte[] presenceDelta(List<String> online, List<String> offline) {
+        StringBuilder lines = new StringBuilder((online.size() + offline.size()) * 16);
+        for (String username : online) {
+            lines.append("ONLINE:").append(username).append('\n');
+        }
+        for (String username : offline) {
+            lines.append("OFFLINE:").append(username).append('\n');
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] saved(String recipient, int count) {
+        return line("SAVED:" + recipient + ":" + count);
+    }
+
+    @Override
+    public byte[] ack(long seq) {
+        return line("ACK:" + seq);
+    }
+
+    @Override
+    public byte[] throttled(String limit, long retryAfterMillis) {
+        return line("THROTTLED:" + limit + ":" + retryAfterMillis);
+    }
+
+    @Override
+    public byte[] line(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean isBinary() {
+        return false;
+    }
+}
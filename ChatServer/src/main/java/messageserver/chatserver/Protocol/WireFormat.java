@@ -0,0 +1,87 @@
+package messageserver.chatserver.Protocol;
+
+import messageserver.chatserver.Database.ChatMessage;
+
+import java.util.List;
+
+/**
+ * Encodes server-to-client messages for one protocol. Each connection uses
+ * either {@link TextFormat} (the original line protocol) or
+ * {@link BinaryFormat}, chosen by the HELLO handshake.
+ */
+public interface WireFormat {
+
+    /** SUCCESS / FAIL / REGISTER_SUCCESS / USERNAME_EXISTS / REGISTER_FAIL. */
+    byte[] authResult(String status);
+
+    /** A session token the client can use to reconnect without its password. */
+    byte[] session(String token);
+
+    byte[] users(List<String> usernames);
+
+    byte[] history(List<ChatMessage> messages);
+
+    /** Part of a history page, newest message first. */
+    byte[] historyChunk(List<ChatMessage> messages);
+
+    /** Ends a history page; {@code nextBeforeId} is the cursor for the next older page, 0 if there is none. */
+    byte[] historyEnd(String otherUser, long nextBeforeId);
+
+    /** Part of a SYNC reply, oldest message first; each message names both sides, as one reply may span conversations. */
+    byte[] syncChunk(List<ChatMessage> messages);
+
+    /**
+     * Ends a SYNC reply. {@code lastId} is the {@code afterId} for the next
+     * SYNC; {@code more} means the reply stopped at its limit and there are
+     * newer messages still.
+     */
+    byte[] syncEnd(String otherUser, long lastId, boolean more);
+
+    byte[] privateMessage(String sender, String content);
+
+    byte[] presence(String username, boolean online);
+
+    /** A message posted to a room by one of its members. */
+    byte[] roomMessage(String room, String sender, String content);
+
+    /** The reply to a JOIN: everyone in the room, split by whether they are online. */
+    byte[] roomMembers(String room, List<String> online, List<String> offline);
+
+    /** {@code username} joined ({@code joined}) or left the room. */
+    byte[] roomMember(String room, String username, boolean joined);
+
+    /** Part of a room history page, newest message first. */
+    byte[] roomHistoryChunk(String room, List<ChatMessage> messages);
+
+    /** Ends a room history page, like {@link #historyEnd}. */
+    byte[] roomHistoryEnd(String room, long nextBeforeId);
+
+    /** A room command was refused: INVALID_NAME, NOT_MEMBER or TOO_MANY_ROOMS. */
+    byte[] roomError(String room, String reason);
+
+    /** Part of a SEARCH reply, newest hit first; each hit names both sides, like a SYNC chunk. */
+    byte[] searchChunk(List<ChatMessage> hits);
+
+    /** Ends a SEARCH reply; {@code nextBeforeId} is the cursor for the next page of hits, 0 if there is none. */
+    byte[] searchEnd(String otherUser, long nextBeforeId);
+
+    /** A batch of presence changes, sent as one write. */
+    byte[] presenceDelta(List<String> online, List<String> offline);
+
+    /** {@code count} more of this client's messages to {@code recipient} are committed to the database. */
+    byte[] saved(String recipient, int count);
+
+    /** Every SEND numbered up to {@code seq} is done with. */
+    byte[] ack(long seq);
+
+    /**
+     * Commands of this kind are being rejected by the rate limiter; one
+     * would be accepted again in about {@code retryAfterMillis}.
+     */
+    byte[] throttled(String limit, long retryAfterMillis);
+
+    /** A raw text-protocol line, for messages that have no typed encoding. */
+    byte[] line(String line);
+
+    boolean isBinary();
+}
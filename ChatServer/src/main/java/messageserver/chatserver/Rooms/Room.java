@@ -0,0 +1,178 @@
+package messageserver.chatserver.Rooms;
+
+import Handler.ClientHandler;
+import messageserver.chatserver.Metrics.Metrics;
+import messageserver.chatserver.Network.SerialExecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A group room: who is in it, and the sessions of those who are online.
+ *
+ * The online members are split into lanes by username. Each lane is a
+ * copy-on-write array with its own {@link SerialExecutor} on the shared
+ * delivery pool, so {@link #broadcast} only reads one array reference per
+ * lane and queues one task per non-empty lane; the member-by-member
+ * writes happen on the pool, a lane at a time, and never under a lock. A
+ * member is always in the same lane and a lane runs its tasks in order,
+ * so every member gets a room's frames in the order they were posted.
+ * Joining, leaving, logging in and out copy only the member's own lane.
+ *
+ * Membership only changes inside {@link RoomRegistry}, one change per
+ * room at a time.
+ */
+public final class Room {
+    private final String name;
+    private final Set<String> members = ConcurrentHashMap.newKeySet();
+    private final AtomicReferenceArray<ClientHandler[]> lanes;
+    private final SerialExecutor[] deliveries;
+
+    Room(String name, int laneCount, Executor pool) {
+        this.name = name;
+        this.lanes = new AtomicReferenceArray<>(laneCount);
+        this.deliveries = new SerialExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes.set(i, new ClientHandler[0]);
+            deliveries[i] = new SerialExecutor(pool);
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public boolean isMember(String username) {
+        return members.contains(username);
+    }
+
+    /** Everyone in the room, online or not. */
+    public List<String> members() {
+        return new ArrayList<>(members);
+    }
+
+    public int memberCount() {
+        return members.size();
+    }
+
+    /**
+     * Queues {@code frame} for every online member except {@code except}
+     * (null = everyone) and returns how many members it is queued for.
+     */
+    public int broadcast(RoomFrame frame, ClientHandler except) {
+        int exceptLane = except == null ? -1 : laneOf(except.getUsername());
+        int recipients = 0;
+        for (int i = 0; i < deliveries.length; i++) {
+            ClientHandler[] lane = lanes.get(i);
+            int count = lane.length - (i == exceptLane && contains(lane, except) ? 1 : 0);
+            if (count > 0) {
+                deliveries[i].execute(() -> deliver(lane, frame, except));
+                recipients += count;
+            }
+        }
+        Metrics.ROOM_FANOUT.record(recipients);
+        return recipients;
+    }
+
+    private static void deliver(ClientHandler[] lane, RoomFrame frame, ClientHandler except) {
+        for (ClientHandler member : lane) {
+            if (member != except) {
+                member.sendRoomFrame(frame);
+            }
+        }
+    }
+
+    // ---- membership, changed by RoomRegistry only ----
+
+    /** Adds a member, and their session (if any) if it is still running; false if they were already in. */
+    boolean add(String username, ClientHandler session) {
+        if (!members.add(username)) {
+            return false;
+        }
+        if (session != null && session.isRunning()) {
+            online(session);
+        }
+        return true;
+    }
+
+    /** Removes a member and their session; false if they were not in. */
+    boolean remove(String username) {
+        if (!members.remove(username)) {
+            return false;
+        }
+        int lane = laneOf(username);
+        ClientHandler[] current = lanes.get(lane);
+        int index = indexOf(current, username);
+        if (index >= 0) {
+            lanes.set(lane, without(current, index));
+        }
+        return true;
+    }
+
+    /** Delivers to this session from now on, replacing an earlier session of the same member. */
+    void online(ClientHandler session) {
+        if (!members.contains(session.getUsername())) {
+            return;
+        }
+        int lane = laneOf(session.getUsername());
+        ClientHandler[] current = lanes.get(lane);
+        int index = indexOf(current, session.getUsername());
+        ClientHandler[] next;
+        if (index >= 0) {
+            next = current.clone();
+            next[index] = session;
+        } else {
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = session;
+        }
+        lanes.set(lane, next);
+    }
+
+    /** Stops delivering to this session, unless a newer session of the member has replaced it. */
+    void offline(ClientHandler session) {
+        int lane = laneOf(session.getUsername());
+        ClientHandler[] current = lanes.get(lane);
+        int index = indexOf(current, session.getUsername());
+        if (index >= 0 && current[index] == session) {
+            lanes.set(lane, without(current, index));
+        }
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    private int laneOf(String username) {
+        return Math.floorMod(username.hashCode(), deliveries.length);
+    }
+
+    private static int indexOf(ClientHandler[] lane, String username) {
+        for (int i = 0; i < lane.length; i++) {
+            if (lane[i].getUsername().equals(username)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean contains(ClientHandler[] lane, ClientHandler session) {
+        for (ClientHandler member : lane) {
+            if (member == session) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ClientHandler[] without(ClientHandler[] lane, int index) {
+        ClientHandler[] next = new ClientHandler[lane.length - 1];
+        System.arraycopy(lane, 0, next, 0, index);
+        System.arraycopy(lane, index + 1, next, index, lane.length - index - 1);
+        return next;
+    }
+}
@@ -0,0 +1,45 @@
+package messageserver.chatserver.Rooms;
+
+import messageserver.chatserver.Protocol.WireFormat;
+
+import java.util.function.Function;
+
+/**
+ * One frame for the members of a room, encoded at most once per wire
+ * format however many members receive it.
+ *
+ * Several delivery threads serve one room at the same time, so the two
+ * encodings are kept in volatile fields instead of a map. Two threads
+ * that find one missing at the same moment both encode it, which costs
+ * one spare encoding and nothing else.
+ */
+public final class RoomFrame {
+    private final String room;
+    private final Function<WireFormat, byte[]> encoder;
+    private volatile byte[] text;
+    private volatile byte[] binary;
+
+    public RoomFrame(String room, Function<WireFormat, byte[]> encoder) {
+        this.room = room;
+        this.encoder = encoder;
+    }
+
+    public String room() {
+        return room;
+    }
+
+    public byte[] encodedFor(WireFormat format) {
+        if (format.isBinary()) {
+            byte[] frame = binary;
+            if (frame == null) {
+                binary = frame = encoder.apply(format);
+            }
+            return frame;
+        }
+        byte[] frame = text;
+        if (frame == null) {
+            text = frame = encoder.apply(format);
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,179 @@
+package messageserver.chatserver.Rooms;
+
+import Handler.ClientHandler;
+import messageserver.chatserver.Logging.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * The rooms of this node and who is in them.
+ *
+ * A room exists while it has members: the first JOIN creates it and the
+ * last LEAVE drops it (its stored messages stay). Membership belongs to
+ * the user, not the connection, so it survives logouts and reconnects and
+ * is kept in memory only. In a cluster every node holds every membership:
+ * joins and leaves made on other nodes arrive through {@link #addMember}
+ * and {@link #leave}. Every change to a room runs inside the map's
+ * {@code compute} for that room, so changes to one room never overlap
+ * while different rooms change in parallel; posting to a room takes no
+ * lock at all (see {@link Room}).
+ *
+ * Room frames are written to members by a small pool of daemon threads
+ * ({@code chat.room.fanoutThreads}) shared by all rooms; every room has
+ * that many lanes.
+ */
+public final class RoomRegistry {
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    /** What a JOIN did. */
+    public enum Join {
+        JOINED,
+        ALREADY_MEMBER,
+        /** The user is already in {@code chat.room.maxPerUser} rooms. */
+        TOO_MANY_ROOMS
+    }
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // Rooms of each user who is in at least one; changed only inside a room's compute
+    private final ConcurrentMap<String, Set<String>> roomsOf = new ConcurrentHashMap<>();
+    private final ExecutorService pool;
+    private final int lanes;
+    private final int maxPerUser;
+
+    public RoomRegistry(int threads, int maxPerUser) {
+        this.lanes = Math.max(1, threads);
+        this.maxPerUser = maxPerUser;
+        AtomicInteger counter = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(lanes, r -> {
+            Thread thread = new Thread(r, "room-fanout-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Letters, digits, '_' and '-', at most 64 of them. */
+    public static boolean isValidName(String room) {
+        return VALID_NAME.matcher(room).matches();
+    }
+
+    /** The room, or null if nobody is in it. */
+    public Room get(String room) {
+        return rooms.get(room);
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+
+    /** Adds the session's user to the room, creating it if needed; frames reach the session from now on. */
+    public Join join(String room, ClientHandler session) {
+        String username = session.getUsername();
+        Join[] result = {Join.JOINED};
+        rooms.compute(room, (name, existing) -> {
+            Room target = existing != null ? existing : new Room(name, lanes, pool);
+            if (target.isMember(username)) {
+                result[0] = Join.ALREADY_MEMBER;
+            } else if (roomsOf.getOrDefault(username, Set.of()).size() >= maxPerUser) {
+                result[0] = Join.TOO_MANY_ROOMS;
+            } else {
+                target.add(username, session);
+                roomsOf.compute(username, (user, joined) -> {
+                    Set<String> names = joined != null ? joined : ConcurrentHashMap.newKeySet();
+                    names.add(name);
+                    return names;
+                });
+            }
+            return target.isEmpty() ? null : target;
+        });
+        if (result[0] == Join.JOINED) {
+            Log.debug("  [rooms] {} joined {}", username, room);
+        }
+        return result[0];
+    }
+
+    /**
+     * Adds a user who joined through another cluster node, creating the room
+     * if needed; that node has already checked their room limit. False if
+     * they were already in.
+     */
+    public boolean addMember(String room, String username) {
+        boolean[] added = {false};
+        rooms.compute(room, (name, existing) -> {
+            Room target = existing != null ? existing : new Room(name, lanes, pool);
+            if (target.add(username, null)) {
+                added[0] = true;
+                roomsOf.compute(username, (user, joined) -> {
+                    Set<String> names = joined != null ? joined : ConcurrentHashMap.newKeySet();
+                    names.add(name);
+                    return names;
+                });
+            }
+            return target.isEmpty() ? null : target;
+        });
+        if (added[0]) {
+            Log.debug("  [rooms] {} joined {} on another node", username, room);
+        }
+        return added[0];
+    }
+
+    /** Every room and its members, online or not. */
+    public Map<String, List<String>> memberships() {
+        Map<String, List<String>> memberships = new HashMap<>();
+        rooms.forEach((name, room) -> memberships.put(name, room.members()));
+        return memberships;
+    }
+
+    /** Takes the user out of the room; false if they were not in it. */
+    public boolean leave(String room, String username) {
+        boolean[] left = {false};
+        rooms.computeIfPresent(room, (name, existing) -> {
+            if (existing.remove(username)) {
+                left[0] = true;
+                roomsOf.computeIfPresent(username, (user, joined) -> {
+                    joined.remove(name);
+                    return joined.isEmpty() ? null : joined;
+                });
+            }
+            return existing.isEmpty() ? null : existing;
+        });
+        if (left[0]) {
+            Log.debug("  [rooms] {} left {}", username, room);
+        }
+        return left[0];
+    }
+
+    /** The rooms a user is in. */
+    public Set<String> roomsOf(String username) {
+        Set<String> joined = roomsOf.get(username);
+        return joined == null ? Set.of() : Set.copyOf(joined);
+    }
+
+    /** A member logged in: their rooms deliver to this session from now on. */
+    public void sessionOnline(ClientHandler session) {
+        for (String room : roomsOf(session.getUsername())) {
+            rooms.computeIfPresent(room, (name, existing) -> {
+                existing.online(session);
+                return existing;
+            });
+        }
+    }
+
+    /** A member's session ended: their rooms stop delivering to it. */
+    public void sessionOffline(ClientHandler session) {
+        for (String room : roomsOf(session.getUsername())) {
+            rooms.computeIfPresent(room, (name, existing) -> {
+                existing.offline(session);
+                return existing;
+            });
+        }
+    }
+}
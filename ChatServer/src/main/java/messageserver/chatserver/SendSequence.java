@@ -0,0 +1,76 @@
+package messageserver.chatserver;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Where one user's numbered sends (SEND) stand.
+ *
+ * The client numbers its SENDs 1, 2, 3, ... and does not wait for one to
+ * be acknowledged before sending the next. {@link #accept} lets each
+ * number through once, so a message the client sends again after a
+ * reconnect, not knowing that the first copy arrived, is dropped. The
+ * write-behind queue commits in the order messages were accepted, so the
+ * highest finished number acknowledges every one before it as well.
+ *
+ * A message the store failed to save holds the acknowledgements back at
+ * the number before it, even when later ones are stored, so the client
+ * keeps it and sends it again after its next RESUME; {@link #accept} then
+ * lets that one copy through to be stored (not delivered) again.
+ * Kept across RESUME; a password login starts a new one, because the
+ * client numbers from 1 again.
+ */
+public final class SendSequence {
+
+    /** What to do with a SEND: a new message, a retry of one the store failed to save, or a copy to drop. */
+    public enum Accept { NEW, RETRY, DUPLICATE }
+
+    private long accepted;
+    private long stored;
+    private long finished;
+    // Numbers the store failed to save, and those of them queued again; both almost always empty
+    private final TreeSet<Long> failed = new TreeSet<>();
+    private final Set<Long> retrying = new HashSet<>();
+
+    public synchronized Accept accept(long seq) {
+        if (seq > accepted) {
+            accepted = seq;
+            return Accept.NEW;
+        }
+        return failed.contains(seq) && retrying.add(seq) ? Accept.RETRY : Accept.DUPLICATE;
+    }
+
+    /** Records whether SEND {@code seq} was saved; called by the write-behind thread once its batch is done. */
+    public synchronized void settle(long seq, boolean saved) {
+        if (!failed.isEmpty()) {
+            retrying.remove(seq);
+            if (saved) {
+                failed.remove(seq);
+            }
+        }
+        if (saved) {
+            stored = Math.max(stored, seq);
+        } else {
+            failed.add(seq);
+        }
+    }
+
+    /**
+     * Moves the finished number up to the highest stored SEND below the
+     * first one that failed; false if it did not move.
+     */
+    public synchronized boolean advance() {
+        long limit = failed.isEmpty() ? stored : Math.min(stored, failed.first() - 1);
+        if (limit <= finished) {
+            return false;
+        }
+        finished = limit;
+        return true;
+    }
+
+    /** The highest number the client can be told is delivered and stored, with every one before it. */
+    public synchronized long finished() {
+        return finished;
+    }
+}
@@ -0,0 +1,153 @@
+package messageserver.chatserver;
+
+/**
+ * Startup settings for the chat server.
+ *
+ * Every value can be overridden with a system property, e.g.
+ * {@code java -Dchat.transport=nio -jar ChatServer.jar}.
+ */
+public final class ServerConfig {
+    public static final int PORT = Integer.getInteger("chat.port", 5000);
+
+    // "blocking" = one thread per connection, "nio" = selector event loops
+    public static final String TRANSPORT = System.getProperty("chat.transport", "blocking");
+
+    // "platform" = classic threads, "virtual" = one virtual thread per client / command
+    public static final String THREADS = System.getProperty("chat.threads", "platform");
+
+    // NIO transport: number of selector loops and command worker threads
+    public static final int NIO_EVENT_LOOPS = Integer.getInteger("chat.nio.loops",
+            Runtime.getRuntime().availableProcessors());
+    public static final int NIO_WORKER_THREADS = Integer.getInteger("chat.nio.workers",
+            Runtime.getRuntime().availableProcessors() * 4);
+    // Commands a connection may have waiting for a worker before its reads pause
+    public static final int NIO_MAX_QUEUED_COMMANDS = Integer.getInteger("chat.nio.maxQueuedCommands", 256);
+
+    // Per-client outbound queue: bytes held in memory before the overflow
+    // policy kicks in ("drop", "disconnect" or "spill" to a temp file)
+    public static final long OUTBOUND_MAX_BYTES = Long.getLong("chat.outbound.maxBytes", 512 * 1024);
+    public static final String OUTBOUND_POLICY = System.getProperty("chat.outbound.policy", "disconnect");
+    public static final long OUTBOUND_SPILL_MAX_BYTES = Long.getLong("chat.outbound.spillMaxBytes", 64L * 1024 * 1024);
+
+    // Presence changes are collected for this long and sent as one batch
+    public static final long PRESENCE_WINDOW_MS = Long.getLong("chat.presence.windowMs", 200);
+
+    // Database connection pool
+    public static final int DB_POOL_SIZE = Integer.getInteger("chat.db.poolSize", 10);
+    public static final long DB_ACQUIRE_TIMEOUT_MS = Long.getLong("chat.db.acquireTimeoutMs", 5000);
+    public static final long DB_IDLE_TIMEOUT_MS = Long.getLong("chat.db.idleTimeoutMs", 10 * 60 * 1000);
+    public static final long DB_VALIDATE_AFTER_MS = Long.getLong("chat.db.validateAfterMs", 1000);
+    public static final int DB_STATEMENT_CACHE = Integer.getInteger("chat.db.statementCache", 32);
+
+    // Write-behind persistence of private messages: queue capacity, rows per
+    // commit, how long to wait for more rows, and whether senders are told
+    // once their messages are committed
+    public static final int PERSIST_QUEUE_SIZE = Integer.getInteger("chat.persist.queueSize", 10_000);
+    public static final int PERSIST_BATCH_SIZE = Integer.getInteger("chat.persist.batchSize", 500);
+    public static final long PERSIST_FLUSH_MS = Long.getLong("chat.persist.flushMs", 20);
+    public static final boolean PERSIST_ACK = Boolean.getBoolean("chat.persist.ack");
+
+    // Where accounts and messages live. Users: "mysql" or "memory"; messages:
+    // "mysql", "memory", or "log" = the embedded message log in a local
+    // directory, in segment files of this size, forced to disk after every
+    // committed batch unless fsync is turned off. Either may also be the
+    // class name of a UserStore / MessageStore implementation.
+    public static final String USERS = System.getProperty("chat.users", "mysql");
+    public static final String STORE = System.getProperty("chat.store", "mysql");
+    public static final String STORE_DIR = System.getProperty("chat.store.dir", "chat-data");
+    public static final int STORE_SEGMENT_BYTES = Integer.getInteger("chat.store.segmentBytes", 64 * 1024 * 1024);
+    public static final boolean STORE_FSYNC = Boolean.parseBoolean(System.getProperty("chat.store.fsync", "true"));
+
+    // History pages: most messages one GET_HISTORY_PAGE may ask for, rows per
+    // streamed chunk, and how many recent messages the old GET_HISTORY returns
+    public static final int HISTORY_MAX_PAGE = Integer.getInteger("chat.history.maxPage", 500);
+    public static final int HISTORY_CHUNK_ROWS = Integer.getInteger("chat.history.chunkRows", 50);
+    public static final int HISTORY_LEGACY_LIMIT = Integer.getInteger("chat.history.legacyLimit", 1000);
+
+    // With clustering on, how long a missing private message id holds back
+    // the id SYNC reports before it is taken for a rolled-back insert
+    public static final long SYNC_GAP_WAIT_MS = Long.getLong("chat.sync.gapWaitMs", 10_000);
+
+    // Heap budget of the recent-message cache that answers GET_HISTORY for
+    // recently read conversations; 0 turns the cache off
+    public static final long HISTORY_CACHE_BYTES = Long.getLong("chat.history.cacheBytes", 64L * 1024 * 1024);
+
+    // Full-text search over private messages: whether committed messages are
+    // indexed, the index's directory (a temporary one with the memory store,
+    // whose messages do not outlive the process either) and how many
+    // messages one of its segments holds (at most 65536)
+    public static final boolean SEARCH_ENABLED = Boolean.parseBoolean(System.getProperty("chat.search.enabled", "true"));
+    public static final String SEARCH_DIR = System.getProperty("chat.search.dir", "chat-search");
+    public static final int SEARCH_SEGMENT_MESSAGES = Integer.getInteger("chat.search.segmentMessages", 65536);
+
+    // Per-session command limits as rate/burst (commands per second, most
+    // that may be saved up; 0 = unlimited): all commands together, then
+    // PRIVATE, room messages, history reads and searches, and GET_USERS
+    // on their own.
+    // A client still sending after this many rejections in a row is
+    // disconnected (0 = never). chat.limit.enabled=false turns limiting off.
+    public static final boolean LIMITS_ENABLED = Boolean.parseBoolean(System.getProperty("chat.limit.enabled", "true"));
+    public static final String LIMIT_SESSION = System.getProperty("chat.limit.session", "50/100");
+    public static final String LIMIT_PRIVATE = System.getProperty("chat.limit.private", "20/40");
+    public static final String LIMIT_ROOM = System.getProperty("chat.limit.room", "5/20");
+    public static final String LIMIT_HISTORY = System.getProperty("chat.limit.history", "5/20");
+    public static final String LIMIT_USERS = System.getProperty("chat.limit.users", "1/5");
+    public static final int LIMIT_MAX_REJECTED = Integer.getInteger("chat.limit.maxRejected", 1000);
+
+    // Rooms: threads that deliver room frames to members, and how many rooms
+    // one user may be in
+    public static final int ROOM_FANOUT_THREADS = Integer.getInteger("chat.room.fanoutThreads",
+            Runtime.getRuntime().availableProcessors());
+    public static final int ROOM_MAX_PER_USER = Integer.getInteger("chat.room.maxPerUser", 100);
+
+    // Session tokens for password-less reconnects: HMAC key (set the same
+    // value on every instance so tokens survive restarts) and lifetime
+    public static final String SESSION_SECRET = System.getProperty("chat.session.secret");
+    public static final long SESSION_TTL_SECONDS = Long.getLong("chat.session.ttlSeconds", 24 * 60 * 60);
+
+    // Server log: lowest level written (ERROR, WARN, INFO, DEBUG, TRACE) and
+    // how many events may wait for the writer thread before new ones are dropped
+    public static final String LOG_LEVEL = System.getProperty("chat.log.level", "INFO");
+    public static final int LOG_BUFFER_SIZE = Integer.getInteger("chat.log.bufferSize", 16 * 1024);
+
+    // Metrics scrape endpoint (GET /metrics); port 0 turns it off. JMX is always on.
+    public static final String METRICS_HOST = System.getProperty("chat.metrics.host", "127.0.0.1");
+    public static final int METRICS_PORT = Integer.getInteger("chat.metrics.port", 9091);
+
+    // Compression of large frames to binary clients that offer "deflate":
+    // frames of at least minBytes (never below 64) go through one deflate
+    // stream per connection at this level (1 = fastest, 9 = smallest)
+    public static final boolean COMPRESS = Boolean.parseBoolean(System.getProperty("chat.compress", "true"));
+    public static final int COMPRESS_MIN_BYTES = Integer.getInteger("chat.compress.minBytes", 512);
+    public static final int COMPRESS_LEVEL = Integer.getInteger("chat.compress.level", 1);
+
+    // Clustering: the port other nodes dial this one on (0 = standalone), the
+    // host they reach it at (with the port, also the node's id), the address
+    // it listens on (that host unless set), running nodes to join through (host:port,...), how many
+    // bytes may wait for a slow peer before its link is reset, and how often
+    // an idle link is pinged; a link silent for five pings counts as down
+    public static final int CLUSTER_PORT = Integer.getInteger("chat.cluster.port", 0);
+    public static final String CLUSTER_HOST = System.getProperty("chat.cluster.host", "127.0.0.1");
+    public static final String CLUSTER_BIND = System.getProperty("chat.cluster.bind", CLUSTER_HOST);
+    public static final String CLUSTER_SEEDS = System.getProperty("chat.cluster.seeds", "");
+    public static final long CLUSTER_QUEUE_BYTES = Long.getLong("chat.cluster.queueBytes", 16L * 1024 * 1024);
+    public static final long CLUSTER_HEARTBEAT_MS = Long.getLong("chat.cluster.heartbeatMs", 1000);
+
+    // Longest inbound text line accepted before the connection is dropped
+    public static final int MAX_LINE_BYTES = Integer.getInteger("chat.maxLineBytes", 1024 * 1024);
+
+    private ServerConfig() {
+    }
+
+    public static boolean isNioTransport() {
+        return "nio".equalsIgnoreCase(TRANSPORT);
+    }
+
+    public static boolean usesMySql() {
+        return "mysql".equalsIgnoreCase(USERS) || "mysql".equalsIgnoreCase(STORE);
+    }
+
+    public static boolean useVirtualThreads() {
+        return "virtual".equalsIgnoreCase(THREADS);
+    }
+}
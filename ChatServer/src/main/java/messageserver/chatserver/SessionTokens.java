@@ -0,0 +1,149 @@
+package messageserver.chatserver;
+
+import messageserver.chatserver.Logging.Log;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Signed, expiring session tokens for password-less reconnects.
+ *
+ * A token is {@code base64url(username).issuedAt.expiresAt.base64url(hmac)}
+ * with an HMAC-SHA256 over the first three parts, so checking one is pure
+ * CPU work and never touches the database. Tokens survive a server
+ * restart only if every instance is started with the same
+ * {@code chat.session.secret}; without it a random per-process key is used.
+ * LOGOUT revokes every token issued to that user so far (kept in memory
+ * only, and passed on to the other cluster nodes).
+ *
+ * The same key lets cluster nodes prove to each other that they belong to
+ * the cluster ({@link #proveNode}); what they sign cannot be mistaken for a
+ * token, since it holds a NUL byte and a token payload never does.
+ */
+public final class SessionTokens {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Mac PROTOTYPE = createMac();
+    // username -> tokens issued at or before this time are no longer accepted
+    private static final ConcurrentMap<String, Long> revokedUpTo = new ConcurrentHashMap<>();
+
+    private SessionTokens() {
+    }
+
+    private static Mac createMac() {
+        byte[] key;
+        if (ServerConfig.SESSION_SECRET != null && !ServerConfig.SESSION_SECRET.isEmpty()) {
+            key = ServerConfig.SESSION_SECRET.getBytes(StandardCharsets.UTF_8);
+        } else {
+            key = new byte[32];
+            RANDOM.nextBytes(key);
+            Log.warn("⚠ chat.session.secret not set; session tokens will not survive a restart");
+        }
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    /** A new token for a user who has just proved their password. */
+    public static String issue(String username) {
+        long now = System.currentTimeMillis();
+        String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8))
+                + "." + now + "." + (now + ServerConfig.SESSION_TTL_SECONDS * 1000);
+        return payload + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /** Returns the username the token was issued to, or null if it is forged, expired or revoked. */
+    public static String verify(String token) {
+        int signatureStart = token.lastIndexOf('.');
+        if (signatureStart < 0) {
+            return null;
+        }
+        String payload = token.substring(0, signatureStart);
+        String[] parts = payload.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            byte[] signature = DECODER.decode(token.substring(signatureStart + 1));
+            if (!MessageDigest.isEqual(signature, sign(payload))) {
+                return null;
+            }
+            String username = new String(DECODER.decode(parts[0]), StandardCharsets.UTF_8);
+            long issuedAt = Long.parseLong(parts[1]);
+            long expiresAt = Long.parseLong(parts[2]);
+            if (System.currentTimeMillis() >= expiresAt || issuedAt <= revokedUpTo.getOrDefault(username, Long.MIN_VALUE)) {
+                return null;
+            }
+            return username;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /** True if {@code chat.session.secret} is set, so other instances can share the key. */
+    public static boolean hasSharedSecret() {
+        return ServerConfig.SESSION_SECRET != null && !ServerConfig.SESSION_SECRET.isEmpty();
+    }
+
+    /** A random challenge for a cluster node that has just connected. */
+    public static String challenge() {
+        byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        return ENCODER.encodeToString(nonce);
+    }
+
+    /** What node {@code nodeId} answers {@code challenge} with, to prove it holds the key. */
+    public static String proveNode(String nodeId, String challenge) {
+        return ENCODER.encodeToString(sign("node\0" + nodeId + "\0" + challenge));
+    }
+
+    /** Checks a node's answer to the challenge it was sent. */
+    public static boolean verifyNode(String nodeId, String challenge, String proof) {
+        try {
+            return MessageDigest.isEqual(DECODER.decode(proof), sign("node\0" + nodeId + "\0" + challenge));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /** Invalidates every token issued to the user up to now; returns that time, for the other nodes. */
+    public static long revoke(String username) {
+        long now = System.currentTimeMillis();
+        revokeUpTo(username, now);
+        return now;
+    }
+
+    /** Invalidates the user's tokens issued at or before {@code issuedUpTo}, as revoked on another node. */
+    public static void revokeUpTo(String username, long issuedUpTo) {
+        revokedUpTo.merge(username, issuedUpTo, Math::max);
+    }
+
+    /** Every user with revoked tokens, and up to when. */
+    public static Map<String, Long> revocations() {
+        return Map.copyOf(revokedUpTo);
+    }
+
+    private static byte[] sign(String payload) {
+        try {
+            Mac mac = (Mac) PROTOTYPE.clone();
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package messageserver.chatserver.Storage;
+
+import java.util.Arrays;
+
+/**
+ * Where one conversation's messages are in the log, in id order: two
+ * parallel arrays of message ids and packed (segment, offset) locations.
+ * A page of history is a contiguous slice of these arrays.
+ *
+ * One thread appends (under the store's lock); readers need no lock. A
+ * reader reads {@code size} before {@code slots}, and the appender
+ * publishes a grown array before the size that needs it, so the first
+ * {@code size} entries of whatever arrays the reader sees are complete.
+ */
+final class ConversationIndex {
+
+    record Slots(long[] ids, long[] locations) {
+    }
+
+    private volatile Slots slots = new Slots(new long[4], new long[4]);
+    private volatile int size;
+
+    void add(long id, long location) {
+        Slots current = slots;
+        int n = size;
+        if (n == current.ids().length) {
+            current = new Slots(Arrays.copyOf(current.ids(), n * 2), Arrays.copyOf(current.locations(), n * 2));
+            slots = current;
+        }
+        current.ids()[n] = id;
+        current.locations()[n] = location;
+        size = n + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** The arrays holding at least the first {@code size} entries; read {@link #size} first. */
+    Slots slots() {
+        return slots;
+    }
+
+    /** Number of entries with an id below {@code id}, among the first {@code size}. */
+    static int countBefore(Slots slots, int size, long id) {
+        int index = Arrays.binarySearch(slots.ids(), 0, size, id);
+        return index >= 0 ? index : -index - 1;
+    }
+}
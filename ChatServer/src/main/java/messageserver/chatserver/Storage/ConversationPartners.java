@@ -0,0 +1,24 @@
+package messageserver.chatserver.Storage;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Who each user has a conversation with, so the stores that keep
+ * conversations apart can find all of one user's conversations without
+ * looking at everyone else's. Added to by the writer; read from any thread.
+ */
+final class ConversationPartners {
+    private final ConcurrentMap<String, Set<String>> partners = new ConcurrentHashMap<>();
+
+    void add(String sender, String receiver) {
+        partners.computeIfAbsent(sender, user -> ConcurrentHashMap.newKeySet()).add(receiver);
+        partners.computeIfAbsent(receiver, user -> ConcurrentHashMap.newKeySet()).add(sender);
+    }
+
+    /** The users {@code user} has a conversation with, or just {@code otherUser} if that is not null. */
+    Set<String> of(String user, String otherUser) {
+        return otherUser != null ? Set.of(otherUser) : partners.getOrDefault(user, Set.of());
+    }
+}
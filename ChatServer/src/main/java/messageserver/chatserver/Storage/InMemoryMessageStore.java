@@ -0,0 +1,206 @@
+package messageserver.chatserver.Storage;
+
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.ServerConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Messages held on the heap and lost on restart: for running and
+ * profiling the server without a database, and as the baseline the other
+ * stores are benchmarked against.
+ *
+ * Each conversation, and each room, is an append-only array in id order,
+ * and so are all private messages together, for reading them back by id.
+ * Appends take the array's lock; reads take none, using the same
+ * publication order as {@link ConversationIndex} (array before size).
+ */
+public class InMemoryMessageStore implements MessageStore {
+
+    private static final class Conversation {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile ChatMessage[] messages = new ChatMessage[4];
+        private volatile int size;
+
+        /** Stores the message under the next id and returns it as stored; ids rise within a conversation because they are taken under its lock. */
+        ChatMessage add(ChatMessage message, AtomicLong ids) {
+            lock.lock();
+            try {
+                ChatMessage stored = new ChatMessage(message.sender(), message.receiver(), message.content(),
+                                                     message.timestampMillis(), ids.getAndIncrement());
+                append(stored);
+                return stored;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Appends a message that already has an id above all of this array's. */
+        void append(ChatMessage stored) {
+            lock.lock();
+            try {
+                ChatMessage[] current = messages;
+                int n = size;
+                if (n == current.length) {
+                    current = Arrays.copyOf(current, n * 2);
+                    messages = current;
+                }
+                current[n] = stored;
+                size = n + 1;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ConcurrentMap<String, Conversation> conversations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Conversation> rooms = new ConcurrentHashMap<>();
+    private final ConversationPartners partners = new ConversationPartners();
+    // Every private message, in id order; only the write-behind thread appends
+    private final Conversation privateMessages = new Conversation();
+    // Raised only once the message is readable, so a sync never skips one still being added
+    private volatile long latestId;
+
+    @Override
+    public List<ChatMessage> savePrivateMessages(List<ChatMessage> messages) {
+        List<ChatMessage> stored = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            String key = MessageStore.conversationKey(message.sender(), message.receiver());
+            partners.add(message.sender(), message.receiver());
+            ChatMessage saved = conversations.computeIfAbsent(key, k -> new Conversation()).add(message, nextId);
+            privateMessages.append(saved);
+            stored.add(saved);
+            latestId = saved.id();
+        }
+        return stored;
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessages(String user1, String user2) {
+        Conversation conversation = conversations.get(MessageStore.conversationKey(user1, user2));
+        if (conversation == null) {
+            return new ArrayList<>();
+        }
+        int size = conversation.size;
+        ChatMessage[] messages = conversation.messages;
+        return new ArrayList<>(Arrays.asList(messages).subList(Math.max(0, size - ServerConfig.HISTORY_LEGACY_LIMIT), size));
+    }
+
+    @Override
+    public long streamPrivateMessages(String user1, String user2, long beforeId, int limit, int chunkRows,
+                                      Consumer<List<ChatMessage>> chunks) {
+        return streamOlder(conversations.get(MessageStore.conversationKey(user1, user2)), beforeId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public int streamPrivateMessagesAfter(String user, String otherUser, long afterId, int limit, int chunkRows,
+                                          Consumer<List<ChatMessage>> chunks) {
+        List<ChatMessage> newer = new ArrayList<>();
+        for (String partner : partners.of(user, otherUser)) {
+            Conversation conversation = conversations.get(MessageStore.conversationKey(user, partner));
+            if (conversation == null) {
+                continue;
+            }
+            int size = conversation.size;
+            ChatMessage[] messages = conversation.messages;
+            int from = countBefore(messages, size, afterId + 1);
+            newer.addAll(Arrays.asList(messages).subList(from, Math.min(size, from + limit)));
+        }
+        newer.sort(Comparator.comparingLong(ChatMessage::id));
+        return MessageStore.streamChunks(newer.subList(0, Math.min(limit, newer.size())), chunkRows, chunks);
+    }
+
+    @Override
+    public int streamAllPrivateMessagesAfter(long afterId, int limit, int chunkRows, Consumer<List<ChatMessage>> chunks) {
+        int size = privateMessages.size;
+        ChatMessage[] messages = privateMessages.messages;
+        int from = countBefore(messages, size, afterId + 1);
+        return MessageStore.streamChunks(Arrays.asList(messages).subList(from, Math.min(size, from + limit)), chunkRows, chunks);
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessagesById(long[] ids) {
+        int size = privateMessages.size;
+        ChatMessage[] messages = privateMessages.messages;
+        List<ChatMessage> found = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            int index = countBefore(messages, size, id);
+            if (index < size && messages[index].id() == id) {
+                found.add(messages[index]);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public long latestPrivateMessageId() {
+        return latestId;
+    }
+
+    @Override
+    public boolean saveRoomMessages(List<ChatMessage> messages) {
+        for (ChatMessage message : messages) {
+            rooms.computeIfAbsent(message.receiver(), k -> new Conversation()).add(message, nextId);
+        }
+        return true;
+    }
+
+    @Override
+    public long streamRoomMessages(String room, long beforeId, int limit, int chunkRows,
+                                   Consumer<List<ChatMessage>> chunks) {
+        return streamOlder(rooms.get(room), beforeId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /** A history page of {@code conversation} (null = empty), newest first; returns the next page's cursor. */
+    private static long streamOlder(Conversation conversation, long beforeId, int limit, int chunkRows,
+                                    Consumer<List<ChatMessage>> chunks) {
+        if (conversation == null) {
+            return 0;
+        }
+        int size = conversation.size;
+        ChatMessage[] messages = conversation.messages;
+        int next = (beforeId > 0 ? countBefore(messages, size, beforeId) : size) - 1;
+        int stop = Math.max(-1, next - limit);
+        List<ChatMessage> chunk = new ArrayList<>(chunkRows);
+        for (; next > stop; next--) {
+            chunk.add(messages[next]);
+            if (chunk.size() == chunkRows) {
+                chunks.accept(List.copyOf(chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.accept(List.copyOf(chunk));
+        }
+        return next >= 0 ? messages[next + 1].id() : 0;
+    }
+
+    /** Number of messages with an id below {@code id}, among the first {@code size}. */
+    private static int countBefore(ChatMessage[] messages, int size, long id) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (messages[mid].id() < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+}
@@ -0,0 +1,43 @@
+package messageserver.chatserver.Storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Accounts held in a map and lost on restart. Usernames are unique
+ * ignoring case, as with MySQL's default collation.
+ */
+public class InMemoryUserStore implements UserStore {
+
+    private record Account(String username, String password) {
+    }
+
+    private final ConcurrentMap<String, Account> accounts = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean authenticateUser(String username, String password) {
+        Account account = accounts.get(key(username));
+        return account != null && account.password().equals(password);
+    }
+
+    @Override
+    public boolean registerUser(String username, String password) {
+        return accounts.putIfAbsent(key(username), new Account(username, password)) == null;
+    }
+
+    @Override
+    public List<String> getAllUsernames() {
+        List<String> usernames = new ArrayList<>(accounts.size());
+        for (Account account : accounts.values()) {
+            usernames.add(account.username());
+        }
+        return usernames;
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,83 @@
+package messageserver.chatserver.Storage;
+
+import messageserver.chatserver.Database.ChatMessage;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Puts the {@link SearchIndex} on a store's private-message write path:
+ * every batch the store commits is handed to the index right after, with
+ * the ids the store gave it, on the write-behind thread, so it is
+ * searchable by the time its sender is acknowledged. A batch the store
+ * fails to save is not indexed; the write-behind queue retries its
+ * messages one by one, and each one saved then is indexed on its own.
+ * Everything else passes straight through.
+ */
+public final class IndexedMessageStore implements MessageStore {
+    private final MessageStore store;
+    private final SearchIndex index;
+
+    public IndexedMessageStore(MessageStore store, SearchIndex index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    @Override
+    public List<ChatMessage> savePrivateMessages(List<ChatMessage> messages) {
+        List<ChatMessage> stored = store.savePrivateMessages(messages);
+        if (stored != null) {
+            index.add(stored);
+        }
+        return stored;
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessages(String user1, String user2) {
+        return store.getPrivateMessages(user1, user2);
+    }
+
+    @Override
+    public long streamPrivateMessages(String user1, String user2, long beforeId, int limit, int chunkRows,
+                                      Consumer<List<ChatMessage>> chunks) {
+        return store.streamPrivateMessages(user1, user2, beforeId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public int streamPrivateMessagesAfter(String user, String otherUser, long afterId, int limit, int chunkRows,
+                                          Consumer<List<ChatMessage>> chunks) {
+        return store.streamPrivateMessagesAfter(user, otherUser, afterId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public int streamAllPrivateMessagesAfter(long afterId, int limit, int chunkRows, Consumer<List<ChatMessage>> chunks) {
+        return store.streamAllPrivateMessagesAfter(afterId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessagesById(long[] ids) {
+        return store.getPrivateMessagesById(ids);
+    }
+
+    @Override
+    public long latestPrivateMessageId() {
+        return store.latestPrivateMessageId();
+    }
+
+    @Override
+    public boolean saveRoomMessages(List<ChatMessage> messages) {
+        return store.saveRoomMessages(messages);
+    }
+
+    @Override
+    public long streamRoomMessages(String room, long beforeId, int limit, int chunkRows,
+                                   Consumer<List<ChatMessage>> chunks) {
+        return store.streamRoomMessages(room, beforeId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public void close() {
+        // The index's live segment is rebuilt from the store on the next open
+        store.close();
+    }
+}
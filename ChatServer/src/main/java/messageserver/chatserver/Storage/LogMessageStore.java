@@ -0,0 +1,389 @@
+package messageserver.chatserver.Storage;
+
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Metrics.Metrics.DbCall;
+import messageserver.chatserver.ServerConfig;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Embedded, append-only message store: no database server involved.
+ *
+ * Every private message is appended to the current segment file of a log
+ * in {@code chat.store.dir}; when a segment is full the next one is
+ * started. Each conversation keeps an in-memory {@link ConversationIndex}
+ * of where its messages are, so a history page is one contiguous slice of
+ * that index, read back through the segments' memory mappings; one more
+ * covers every private message, to read them back by id.
+ *
+ * Nothing but the segments is written. On open they are scanned in order,
+ * the indexes are rebuilt, and the scan stops at the first torn record;
+ * if the last segment ends in such garbage (a crash mid-write), new
+ * messages go to a fresh segment rather than over it. With
+ * {@code chat.store.fsync} each committed batch is forced to disk before
+ * it becomes visible, so an acknowledged message survives a power cut.
+ * Room messages are records whose receiver is a NUL followed by the room
+ * name. Those of the old server-wide room, with an empty receiver, are
+ * kept but belong to no room.
+ */
+public final class LogMessageStore implements MessageStore {
+    // Starts the receiver, and index key, of a room message; no username starts with it
+    private static final char ROOM_PREFIX = '\u0000';
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final boolean fsync;
+    // Segment number -> segment; a location's high half is the number
+    private final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, ConversationIndex> conversations = new ConcurrentHashMap<>();
+    private final ConversationIndex privateMessages = new ConversationIndex();
+    private final ConversationPartners partners = new ConversationPartners();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    // Raised once a batch is published, so a sync never skips a message that is not readable yet
+    private volatile long latestId;
+    private LogSegment active;
+    private long nextId = 1;
+    private long messageCount;
+
+    private LogMessageStore(Path dir, int segmentBytes, boolean fsync) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+    }
+
+    /** Opens (or creates) the log in {@code dir}, rebuilding the conversation indexes from the segments. */
+    public static LogMessageStore open(Path dir, int segmentBytes, boolean fsync) throws IOException {
+        LogMessageStore store = new LogMessageStore(dir, segmentBytes, fsync);
+        store.recover();
+        return store;
+    }
+
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(dir)) {
+            files = listing.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseId = Long.parseLong(name.substring(0, name.length() - 4));
+            if (baseId < nextId) {
+                Log.warn("  ⚠ [MessageLog] Skipping {}: overlaps the segment before it", name);
+                continue;
+            }
+            int number = segments.size();
+            long[] lastId = {baseId - 1};
+            LogSegment segment = LogSegment.open(file, baseId, (id, offset, sender, receiver) -> {
+                index(sender, receiver).add(id, location(number, offset));
+                if (!isRoom(receiver)) {
+                    privateMessages.add(id, location(number, offset));
+                    partners.add(sender, receiver);
+                    latestId = id;
+                }
+                lastId[0] = id;
+                messageCount++;
+            });
+            segments.add(segment);
+            nextId = lastId[0] + 1;
+            active = segment;
+        }
+        if (active == null) {
+            roll(0);
+        } else if (active.hasGarbageAfterEnd()) {
+            if (active.size() == 0) {
+                // A new segment would get the same name; wipe this one instead
+                Log.warn("  ⚠ [MessageLog] {} holds only a torn record; clearing it", active.path().getFileName());
+                active.clear();
+            } else {
+                Log.warn("  ⚠ [MessageLog] {} ends in a torn record; continuing in a new segment", active.path().getFileName());
+                roll(0);
+            }
+        }
+        Log.info("✓ Message log ready: {} message(s) in {} segment(s), {} conversation(s), recovered in {} ms",
+                messageCount, segments.size(), conversations.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Override
+    public List<ChatMessage> savePrivateMessages(List<ChatMessage> messages) {
+        return append(messages, false, DbCall.SAVE_BATCH);
+    }
+
+    @Override
+    public boolean saveRoomMessages(List<ChatMessage> messages) {
+        return append(messages, true, DbCall.SAVE_ROOM_MESSAGES) != null;
+    }
+
+    /** Appends the messages and returns them with their ids, or null if none was appended. */
+    private List<ChatMessage> append(List<ChatMessage> messages, boolean rooms, DbCall call) {
+        long start = System.nanoTime();
+        appendLock.lock();
+        // Where the batch started, to take it back if it cannot be finished
+        LogSegment startSegment = active;
+        int startSize = active.size();
+        int startSegments = segments.size();
+        long startId = nextId;
+        try {
+            List<Runnable> publish = new ArrayList<>(messages.size());
+            List<ChatMessage> stored = new ArrayList<>(messages.size());
+            long lastPrivateId = 0;
+            for (ChatMessage message : messages) {
+                String receiverName = rooms ? ROOM_PREFIX + message.receiver() : message.receiver();
+                byte[] sender = message.sender().getBytes(StandardCharsets.UTF_8);
+                byte[] receiver = receiverName.getBytes(StandardCharsets.UTF_8);
+                if (sender.length > MAX_NAME_BYTES || receiver.length > MAX_NAME_BYTES) {
+                    Log.error("  ✗ [MessageLog] Username too long, message from {} not saved", message.sender());
+                    continue;
+                }
+                byte[] content = message.content().getBytes(StandardCharsets.UTF_8);
+                long id = nextId;
+                int offset = active.append(id, message.timestampMillis(), sender, receiver, content);
+                if (offset < 0) {
+                    roll(LogSegment.recordBytes(sender, receiver, content));
+                    offset = active.append(id, message.timestampMillis(), sender, receiver, content);
+                }
+                nextId++;
+                long location = location(segments.size() - 1, offset);
+                ConversationIndex index = index(message.sender(), receiverName);
+                if (!rooms) {
+                    // The partner first, so a sync that sees the message also finds the conversation
+                    publish.add(() -> partners.add(message.sender(), message.receiver()));
+                }
+                publish.add(() -> index.add(id, location));
+                if (!rooms) {
+                    publish.add(() -> privateMessages.add(id, location));
+                    lastPrivateId = id;
+                }
+                stored.add(new ChatMessage(message.sender(), message.receiver(), message.content(),
+                                           message.timestampMillis(), id));
+            }
+            if (fsync) {
+                active.force();
+            }
+            // Readers only see a batch once it is on disk
+            publish.forEach(Runnable::run);
+            if (lastPrivateId > 0) {
+                latestId = lastPrivateId;
+            }
+            messageCount += stored.size();
+            Log.debug("    ✓ Log: Appended {} {} message(s)", stored.size(), rooms ? "room" : "private");
+            return !stored.isEmpty() || messages.isEmpty() ? stored : null;
+        } catch (IOException | UncheckedIOException e) {
+            Log.error("    ✗ Log Error saving {} {} message(s): {}", messages.size(), rooms ? "room" : "private", e.getMessage(), e);
+            rollBack(startSegment, startSize, startSegments, startId);
+            return null;
+        } finally {
+            appendLock.unlock();
+            call.record(start);
+        }
+    }
+
+    /**
+     * Takes back a batch that failed partway: nothing of it was published,
+     * so its records are zeroed, segments it started are deleted and its
+     * ids are handed out again. Otherwise the caller's retry would append
+     * the same messages a second time and recovery would bring back both.
+     */
+    private void rollBack(LogSegment startSegment, int startSize, int startSegments, long startId) {
+        while (segments.size() > startSegments) {
+            LogSegment extra = segments.remove(segments.size() - 1);
+            try {
+                extra.truncate(0);
+                Files.deleteIfExists(extra.path());
+            } catch (IOException | UncheckedIOException e) {
+                Log.warn("  ⚠ [MessageLog] Could not delete {}: {}", extra.path().getFileName(), e.getMessage());
+            }
+        }
+        active = startSegment;
+        nextId = startId;
+        try {
+            active.truncate(startSize);
+        } catch (UncheckedIOException e) {
+            Log.error("  ✗ [MessageLog] Could not force the rollback of {}: {}", active.path().getFileName(), e.getMessage());
+        }
+    }
+
+    /** Forces the full segment and starts a new one big enough for at least {@code minBytes}. */
+    private void roll(int minBytes) throws IOException {
+        if (active != null) {
+            active.force();
+        }
+        active = LogSegment.create(dir, nextId, Math.max(segmentBytes, minBytes));
+        segments.add(active);
+        Log.debug("    → Log: Started segment {}", active.path().getFileName());
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessages(String user1, String user2) {
+        long start = System.nanoTime();
+        List<ChatMessage> history = new ArrayList<>();
+        ConversationIndex index = conversations.get(MessageStore.conversationKey(user1, user2));
+        if (index != null) {
+            int size = index.size();
+            ConversationIndex.Slots slots = index.slots();
+            for (int i = Math.max(0, size - ServerConfig.HISTORY_LEGACY_LIMIT); i < size; i++) {
+                history.add(read(slots.locations()[i]));
+            }
+        }
+        Log.debug("    ✓ Log: Retrieved {} messages between {} and {}", history.size(), user1, user2);
+        DbCall.HISTORY.record(start);
+        return history;
+    }
+
+    @Override
+    public long streamPrivateMessages(String user1, String user2, long beforeId, int limit, int chunkRows,
+                                      Consumer<List<ChatMessage>> chunks) {
+        long start = System.nanoTime();
+        long nextBeforeId = streamOlder(conversations.get(MessageStore.conversationKey(user1, user2)), null,
+                beforeId, limit, chunkRows, chunks);
+        Log.debug("    ✓ Log: Streamed messages between {} and {} (next before id {})", user1, user2, nextBeforeId);
+        DbCall.HISTORY_PAGE.record(start);
+        return nextBeforeId;
+    }
+
+    @Override
+    public long streamRoomMessages(String room, long beforeId, int limit, int chunkRows,
+                                   Consumer<List<ChatMessage>> chunks) {
+        long start = System.nanoTime();
+        long nextBeforeId = streamOlder(conversations.get(ROOM_PREFIX + room), room, beforeId, limit, chunkRows, chunks);
+        Log.debug("    ✓ Log: Streamed messages of room {} (next before id {})", room, nextBeforeId);
+        DbCall.ROOM_HISTORY.record(start);
+        return nextBeforeId;
+    }
+
+    /**
+     * A history page from {@code index} (null = empty), newest first;
+     * returns the next page's cursor. Messages of a room are handed over
+     * with the room as their receiver, not its index key.
+     */
+    private long streamOlder(ConversationIndex index, String room, long beforeId, int limit, int chunkRows,
+                             Consumer<List<ChatMessage>> chunks) {
+        if (index == null) {
+            return 0;
+        }
+        int size = index.size();
+        ConversationIndex.Slots slots = index.slots();
+        int next = (beforeId > 0 ? ConversationIndex.countBefore(slots, size, beforeId) : size) - 1;
+        int stop = Math.max(-1, next - limit);
+        List<ChatMessage> chunk = new ArrayList<>(chunkRows);
+        for (; next > stop; next--) {
+            ChatMessage message = read(slots.locations()[next]);
+            chunk.add(room == null ? message
+                    : new ChatMessage(message.sender(), room, message.content(), message.timestampMillis(), message.id()));
+            if (chunk.size() == chunkRows) {
+                chunks.accept(List.copyOf(chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.accept(List.copyOf(chunk));
+        }
+        return next >= 0 ? slots.ids()[next + 1] : 0;
+    }
+
+    @Override
+    public int streamPrivateMessagesAfter(String user, String otherUser, long afterId, int limit, int chunkRows,
+                                          Consumer<List<ChatMessage>> chunks) {
+        long start = System.nanoTime();
+        // Pick the oldest `limit` (id, location) pairs across the conversations first, then read only those
+        List<long[]> newer = new ArrayList<>();
+        for (String partner : partners.of(user, otherUser)) {
+            ConversationIndex index = conversations.get(MessageStore.conversationKey(user, partner));
+            if (index == null) {
+                continue;
+            }
+            int size = index.size();
+            ConversationIndex.Slots slots = index.slots();
+            int from = ConversationIndex.countBefore(slots, size, afterId + 1);
+            for (int i = from; i < Math.min(size, from + limit); i++) {
+                newer.add(new long[] {slots.ids()[i], slots.locations()[i]});
+            }
+        }
+        newer.sort(Comparator.comparingLong(entry -> entry[0]));
+        List<ChatMessage> messages = new ArrayList<>(Math.min(limit, newer.size()));
+        for (int i = 0; i < Math.min(limit, newer.size()); i++) {
+            messages.add(read(newer.get(i)[1]));
+        }
+        int count = MessageStore.streamChunks(messages, chunkRows, chunks);
+        Log.debug("    ✓ Log: Synced {} messages of {} after id {}", count, user, afterId);
+        DbCall.SYNC.record(start);
+        return count;
+    }
+
+    @Override
+    public int streamAllPrivateMessagesAfter(long afterId, int limit, int chunkRows, Consumer<List<ChatMessage>> chunks) {
+        long start = System.nanoTime();
+        int size = privateMessages.size();
+        ConversationIndex.Slots slots = privateMessages.slots();
+        int from = ConversationIndex.countBefore(slots, size, afterId + 1);
+        List<ChatMessage> messages = new ArrayList<>(Math.min(limit, size - from));
+        for (int i = from; i < Math.min(size, from + limit); i++) {
+            messages.add(read(slots.locations()[i]));
+        }
+        int count = MessageStore.streamChunks(messages, chunkRows, chunks);
+        DbCall.SYNC.record(start);
+        return count;
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessagesById(long[] ids) {
+        int size = privateMessages.size();
+        ConversationIndex.Slots slots = privateMessages.slots();
+        List<ChatMessage> found = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            int index = ConversationIndex.countBefore(slots, size, id);
+            if (index < size && slots.ids()[index] == id) {
+                found.add(read(slots.locations()[index]));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public long latestPrivateMessageId() {
+        return latestId;
+    }
+
+    @Override
+    public void close() {
+        appendLock.lock();
+        try {
+            active.force();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private ChatMessage read(long location) {
+        return segments.get((int) (location >>> 32)).read((int) location);
+    }
+
+    /** The index a record belongs to; a room record's receiver is already its key. */
+    private ConversationIndex index(String sender, String receiver) {
+        String key = isRoom(receiver) ? receiver : MessageStore.conversationKey(sender, receiver);
+        return conversations.computeIfAbsent(key, k -> new ConversationIndex());
+    }
+
+    private static boolean isRoom(String receiver) {
+        return receiver.isEmpty() || receiver.charAt(0) == ROOM_PREFIX;
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+}
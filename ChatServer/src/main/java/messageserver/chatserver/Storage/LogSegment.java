@@ -0,0 +1,228 @@
+package messageserver.chatserver.Storage;
+
+import messageserver.chatserver.Database.ChatMessage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+/**
+ * One file of the message log, memory-mapped at its full capacity.
+ *
+ * Records sit end to end from offset 0:
+ * <pre>
+ *   int   body length
+ *   int   CRC32C of the body
+ *   body: long id, long timestamp,
+ *         short sender length, sender (UTF-8),
+ *         short receiver length, receiver (UTF-8),
+ *         int content length, content (UTF-8)
+ * </pre>
+ * The file is created sparse at full size, so unwritten space reads as
+ * zeros and a zero length marks the end. Appending is a copy into the
+ * mapping; reads are absolute gets, safe from any thread.
+ */
+final class LogSegment {
+    static final int HEADER_BYTES = 8;
+    private static final int FIXED_BODY_BYTES = 8 + 8 + 2 + 2 + 4;
+
+    /** Called for every intact record found when a segment is opened. */
+    interface RecordVisitor {
+        void visit(long id, int offset, String sender, String receiver);
+    }
+
+    private final Path path;
+    private final long baseId;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    // Written by the appending thread only (under the store's lock)
+    private int end;
+    private int forcedTo;
+
+    private LogSegment(Path path, long baseId, MappedByteBuffer map, int capacity) {
+        this.path = path;
+        this.baseId = baseId;
+        this.map = map;
+        this.capacity = capacity;
+    }
+
+    static Path fileFor(Path dir, long baseId) {
+        return dir.resolve(String.format("%020d.log", baseId));
+    }
+
+    /** Creates a new, empty segment whose first record will have id {@code baseId}. */
+    static LogSegment create(Path dir, long baseId, int capacity) throws IOException {
+        Path path = fileFor(dir, baseId);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+            file.setLength(capacity);
+            return new LogSegment(path, baseId, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity), capacity);
+        }
+    }
+
+    /**
+     * Maps an existing segment and walks its records, stopping at the
+     * first one that is missing, torn (bad checksum) or out of sequence.
+     * Everything before that point is handed to {@code visitor}.
+     */
+    static LogSegment open(Path path, long baseId, RecordVisitor visitor) throws IOException {
+        LogSegment segment;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+            int capacity = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+            segment = new LogSegment(path, baseId, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity), capacity);
+        }
+        segment.recover(visitor);
+        return segment;
+    }
+
+    private void recover(RecordVisitor visitor) {
+        long expectedId = baseId;
+        int offset = 0;
+        while (offset + HEADER_BYTES <= capacity) {
+            int length = map.getInt(offset);
+            if (length < FIXED_BODY_BYTES || length > capacity - offset - HEADER_BYTES) {
+                break;
+            }
+            int body = offset + HEADER_BYTES;
+            if (map.getInt(offset + 4) != checksum(body, length) || map.getLong(body) != expectedId) {
+                break;
+            }
+            int senderLength = map.getShort(body + 16) & 0xFFFF;
+            int receiverAt = body + 18 + senderLength;
+            visitor.visit(expectedId, offset, string(body + 18, senderLength),
+                          string(receiverAt + 2, map.getShort(receiverAt) & 0xFFFF));
+            expectedId++;
+            offset = body + length;
+        }
+        end = offset;
+        forcedTo = offset;
+    }
+
+    /** True if anything but zeros follows the last intact record, i.e. the tail was torn by a crash. */
+    boolean hasGarbageAfterEnd() {
+        int i = end;
+        for (; i + 8 <= capacity; i += 8) {
+            if (map.getLong(i) != 0) {
+                return true;
+            }
+        }
+        for (; i < capacity; i++) {
+            if (map.get(i) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Zeros the whole segment; only for one that holds no intact record. */
+    void clear() {
+        byte[] zeros = new byte[64 * 1024];
+        for (int i = 0; i < capacity; i += zeros.length) {
+            map.put(i, zeros, 0, Math.min(zeros.length, capacity - i));
+        }
+        map.force();
+        end = 0;
+        forcedTo = 0;
+    }
+
+    /**
+     * Zeros everything from {@code offset} on, so appending continues
+     * there; for taking back a failed batch. Zeros over bytes that were
+     * already forced are forced too.
+     */
+    void truncate(int offset) {
+        int oldEnd = end;
+        byte[] zeros = new byte[Math.min(64 * 1024, Math.max(1, oldEnd - offset))];
+        for (int i = offset; i < oldEnd; i += zeros.length) {
+            map.put(i, zeros, 0, Math.min(zeros.length, oldEnd - i));
+        }
+        end = offset;
+        if (forcedTo > offset) {
+            forcedTo = offset;
+            map.force(offset, oldEnd - offset);
+        }
+    }
+
+    static int recordBytes(byte[] sender, byte[] receiver, byte[] content) {
+        return HEADER_BYTES + FIXED_BODY_BYTES + sender.length + receiver.length + content.length;
+    }
+
+    /** Writes one record after the last; returns its offset, or -1 if it does not fit. */
+    int append(long id, long timestampMillis, byte[] sender, byte[] receiver, byte[] content) {
+        int size = recordBytes(sender, receiver, content);
+        if (size > capacity - end) {
+            return -1;
+        }
+        int offset = end;
+        int body = offset + HEADER_BYTES;
+        int at = body;
+        map.putLong(at, id);
+        map.putLong(at + 8, timestampMillis);
+        at += 16;
+        map.putShort(at, (short) sender.length);
+        map.put(at + 2, sender);
+        at += 2 + sender.length;
+        map.putShort(at, (short) receiver.length);
+        map.put(at + 2, receiver);
+        at += 2 + receiver.length;
+        map.putInt(at, content.length);
+        map.put(at + 4, content);
+        int length = size - HEADER_BYTES;
+        map.putInt(offset + 4, checksum(body, length));
+        // The length goes in last: until it is there, recovery sees the end of the log
+        map.putInt(offset, length);
+        end = offset + size;
+        return offset;
+    }
+
+    /** Forces what was appended since the last call to disk. */
+    void force() {
+        if (end > forcedTo) {
+            map.force(forcedTo, end - forcedTo);
+            forcedTo = end;
+        }
+    }
+
+    ChatMessage read(int offset) {
+        int body = offset + HEADER_BYTES;
+        long id = map.getLong(body);
+        long timestamp = map.getLong(body + 8);
+        int senderLength = map.getShort(body + 16) & 0xFFFF;
+        String sender = string(body + 18, senderLength);
+        int receiverAt = body + 18 + senderLength;
+        int receiverLength = map.getShort(receiverAt) & 0xFFFF;
+        String receiver = string(receiverAt + 2, receiverLength);
+        int contentAt = receiverAt + 2 + receiverLength;
+        String content = string(contentAt + 4, map.getInt(contentAt));
+        return new ChatMessage(sender, receiver, content, timestamp, id);
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        map.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int checksum(int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(map.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    long baseId() {
+        return baseId;
+    }
+
+    int size() {
+        return end;
+    }
+
+    Path path() {
+        return path;
+    }
+}
@@ -0,0 +1,100 @@
+package messageserver.chatserver.Storage;
+
+import messageserver.chatserver.Database.ChatMessage;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Where messages are kept ({@code chat.store}): MySQL, the embedded
+ * message log, memory, or any class implementing this interface. Private
+ * and room messages arrive in batches from the single write-behind thread;
+ * reads come from any client thread.
+ */
+public interface MessageStore {
+
+    /** Longest sender or receiver, in UTF-8 bytes, that every store keeps; the server refuses longer ones. */
+    int MAX_NAME_BYTES = 0xFFFF;
+
+    /**
+     * Stores the messages, in order, and returns those stored, with the ids
+     * they were given; null if none of them could be stored. Throws
+     * {@link StoreUnavailableException}, having stored nothing, if the store
+     * cannot be reached; the batch is then worth trying again as a whole.
+     */
+    List<ChatMessage> savePrivateMessages(List<ChatMessage> messages);
+
+    default boolean savePrivateMessage(ChatMessage message) {
+        return savePrivateMessages(List.of(message)) != null;
+    }
+
+    /** The latest {@code chat.history.legacyLimit} messages of a conversation, oldest first. */
+    List<ChatMessage> getPrivateMessages(String user1, String user2);
+
+    /**
+     * Hands up to {@code limit} messages older than {@code beforeId}
+     * (0 = from the newest) to {@code chunks}, newest first,
+     * {@code chunkRows} at a time. Returns the id to pass as
+     * {@code beforeId} for the next older page, or 0 when there is none.
+     */
+    long streamPrivateMessages(String user1, String user2, long beforeId, int limit, int chunkRows,
+                               Consumer<List<ChatMessage>> chunks);
+
+    /**
+     * Hands up to {@code limit} messages with an id above {@code afterId}
+     * to {@code chunks}, oldest first, {@code chunkRows} at a time: those
+     * between {@code user} and {@code otherUser}, or from all of
+     * {@code user}'s conversations when {@code otherUser} is null. Returns
+     * how many were handed over, or -1 if the store could not be read.
+     */
+    int streamPrivateMessagesAfter(String user, String otherUser, long afterId, int limit, int chunkRows,
+                                   Consumer<List<ChatMessage>> chunks);
+
+    /**
+     * Hands up to {@code limit} private messages of every user with an id
+     * above {@code afterId} to {@code chunks}, oldest first,
+     * {@code chunkRows} at a time, for rebuilding what is derived from them.
+     * Returns how many were handed over, or -1 if the store could not be read.
+     */
+    int streamAllPrivateMessagesAfter(long afterId, int limit, int chunkRows, Consumer<List<ChatMessage>> chunks);
+
+    /** The private messages with these ids, in the same order; an id with no message is left out. */
+    List<ChatMessage> getPrivateMessagesById(long[] ids);
+
+    /**
+     * An id at or below which every private message is stored, 0 if
+     * there is none: the highest, unless several servers write to the
+     * store at once. Every message stored later gets a higher id.
+     */
+    long latestPrivateMessageId();
+
+    /**
+     * Stores messages posted to rooms, in order; each message's receiver is
+     * its room. False if none of them could be stored; may throw
+     * {@link StoreUnavailableException} the same way. Room messages take
+     * ids too but never raise {@link #latestPrivateMessageId}.
+     */
+    boolean saveRoomMessages(List<ChatMessage> messages);
+
+    /**
+     * Same as {@link #streamPrivateMessages}, for the messages posted to
+     * {@code room}; their receiver is the room.
+     */
+    long streamRoomMessages(String room, long beforeId, int limit, int chunkRows, Consumer<List<ChatMessage>> chunks);
+
+    /** Makes everything stored so far durable and releases the store's files or connections. */
+    void close();
+
+    /** The key stores use for a conversation; both directions share it. */
+    static String conversationKey(String user1, String user2) {
+        return user1.compareTo(user2) <= 0 ? user1 + '\u0000' + user2 : user2 + '\u0000' + user1;
+    }
+
+    /** Hands {@code messages} to {@code chunks} in order, {@code chunkRows} at a time; returns how many there were. */
+    static int streamChunks(List<ChatMessage> messages, int chunkRows, Consumer<List<ChatMessage>> chunks) {
+        for (int from = 0; from < messages.size(); from += chunkRows) {
+            chunks.accept(List.copyOf(messages.subList(from, Math.min(messages.size(), from + chunkRows))));
+        }
+        return messages.size();
+    }
+}
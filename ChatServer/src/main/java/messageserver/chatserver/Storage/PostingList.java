@@ -0,0 +1,59 @@
+package messageserver.chatserver.Storage;
+
+import java.util.Arrays;
+
+/**
+ * A growing list of ascending ints: the documents of one key in the live
+ * search segment.
+ *
+ * One thread appends; readers need no lock. As in
+ * {@link ConversationIndex}, a grown array is published before the size
+ * that needs it, so a reader that reads {@code size} first finds that
+ * many complete entries in whatever array it sees next.
+ */
+final class PostingList {
+    private volatile int[] values = new int[2];
+    private volatile int size;
+
+    void add(int value) {
+        int[] current = values;
+        int n = size;
+        if (n == current.length) {
+            current = Arrays.copyOf(current, n * 2);
+            values = current;
+        }
+        current[n] = value;
+        size = n + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int index) {
+        return values[index];
+    }
+
+    /** The entries added so far, ascending, for writing them out. */
+    int[] toArray() {
+        int n = size;
+        return Arrays.copyOf(values, n);
+    }
+
+    /** What is in the list now, newest (highest) first. */
+    SearchSegment.Postings newestFirst() {
+        int n = size;
+        int[] snapshot = values;
+        return new SearchSegment.Postings() {
+            @Override
+            public int size() {
+                return n;
+            }
+
+            @Override
+            public int get(int index) {
+                return snapshot[n - 1 - index];
+            }
+        };
+    }
+}
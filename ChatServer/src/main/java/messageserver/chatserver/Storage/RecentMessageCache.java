@@ -0,0 +1,288 @@
+package messageserver.chatserver.Storage;
+
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Metrics.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the GET_HISTORY answer of recently read conversations in memory,
+ * in front of any {@link MessageStore}.
+ *
+ * Each cached conversation holds its latest {@code chat.history.legacyLimit}
+ * messages in a ring. A miss loads them from the store; after that, every
+ * batch the write-behind queue commits is appended to the rings of the
+ * conversations it touches, so an active conversation is read from the
+ * store once and then served from memory. Conversations are only cached
+ * once somebody reads them. When the estimated size passes
+ * {@code maxBytes}, the least recently read conversations are dropped
+ * until it is back under 90% of the budget.
+ *
+ * Nothing is locked across a store call. Conversations hash to stripes,
+ * each counting the commits started and finished on it; a load keeps
+ * what it read only if no commit to its stripe was under way when it
+ * started and none started before its result was in the map, so a
+ * conversation loaded while a batch is being committed cannot miss that
+ * batch. Until that check passes the loaded entry is not served. Hits
+ * take only the conversation's own lock. History pages, syncs and room
+ * messages pass straight through.
+ */
+public final class RecentMessageCache implements MessageStore {
+    // Rough heap cost of one cached message besides its characters: the record and three strings
+    private static final int MESSAGE_OVERHEAD_BYTES = 160;
+    private static final int STRIPES = 256;
+
+    private static final LongAdder HITS = Metrics.counter("chat_history_cache_hits_total",
+            "GET_HISTORY requests answered from the recent-message cache");
+    private static final LongAdder MISSES = Metrics.counter("chat_history_cache_misses_total",
+            "GET_HISTORY requests that had to load the conversation from the store");
+    private static final LongAdder EVICTIONS = Metrics.counter("chat_history_cache_evictions_total",
+            "Conversations dropped from the recent-message cache to stay within its budget");
+
+    private static final class Conversation {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<ChatMessage> ring;
+        private long bytes;
+        // Set once the load that made it is known not to have missed a commit
+        private boolean ready;
+        private boolean evicted;
+        private volatile long lastRead;
+
+        Conversation(List<ChatMessage> latest) {
+            ring = new ArrayDeque<>(latest);
+            for (ChatMessage message : latest) {
+                bytes += size(message);
+            }
+        }
+    }
+
+    private final MessageStore store;
+    private final long maxBytes;
+    private final int capacity;
+    private final ConcurrentMap<String, Conversation> conversations = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    // Per stripe: commits started, and commits whose cache updates are done
+    private final AtomicLongArray commitsStarted = new AtomicLongArray(STRIPES);
+    private final AtomicLongArray commitsFinished = new AtomicLongArray(STRIPES);
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /** {@code capacity} = messages kept per conversation, the same number GET_HISTORY returns. */
+    public RecentMessageCache(MessageStore store, long maxBytes, int capacity) {
+        this.store = store;
+        this.maxBytes = maxBytes;
+        this.capacity = capacity;
+        Metrics.gauge("chat_history_cache_bytes", "Estimated heap held by the recent-message cache", bytes::get);
+        Metrics.gauge("chat_history_cache_conversations", "Conversations in the recent-message cache", conversations::size);
+        Log.info("✓ Recent-message cache: {} MB, {} messages per conversation", maxBytes / (1024 * 1024), capacity);
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessages(String user1, String user2) {
+        String key = MessageStore.conversationKey(user1, user2);
+        Conversation conversation = conversations.get(key);
+        if (conversation != null) {
+            List<ChatMessage> latest = copy(conversation);
+            if (latest != null) {
+                HITS.increment();
+                return latest;
+            }
+        }
+        MISSES.increment();
+        return load(key, user1, user2);
+    }
+
+    private List<ChatMessage> copy(Conversation conversation) {
+        conversation.lock.lock();
+        try {
+            if (conversation.evicted || !conversation.ready) {
+                return null;
+            }
+            conversation.lastRead = reads.incrementAndGet();
+            return new ArrayList<>(conversation.ring);
+        } finally {
+            conversation.lock.unlock();
+        }
+    }
+
+    private List<ChatMessage> load(String key, String user1, String user2) {
+        int stripe = stripe(key);
+        // Started before finished: equal means every commit counted had finished
+        long started = commitsStarted.get(stripe);
+        boolean quiet = commitsFinished.get(stripe) == started;
+        List<ChatMessage> latest = store.getPrivateMessages(user1, user2);
+        if (!quiet || commitsStarted.get(stripe) != started) {
+            return latest;
+        }
+        Conversation loaded = new Conversation(latest.subList(Math.max(0, latest.size() - capacity), latest.size()));
+        loaded.lastRead = reads.incrementAndGet();
+        if (conversations.putIfAbsent(key, loaded) != null) {
+            return latest;
+        }
+        bytes.addAndGet(loaded.bytes);
+        // A commit that starts from here on finds the entry and appends to it
+        if (commitsStarted.get(stripe) != started) {
+            remove(key, loaded);
+            return latest;
+        }
+        loaded.lock.lock();
+        try {
+            loaded.ready = true;
+        } finally {
+            loaded.lock.unlock();
+        }
+        evictIfOverBudget();
+        return latest;
+    }
+
+    @Override
+    public List<ChatMessage> savePrivateMessages(List<ChatMessage> messages) {
+        BitSet stripes = new BitSet(STRIPES);
+        for (ChatMessage message : messages) {
+            stripes.set(stripe(MessageStore.conversationKey(message.sender(), message.receiver())));
+        }
+        for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+            commitsStarted.incrementAndGet(stripe);
+        }
+        try {
+            List<ChatMessage> stored = store.savePrivateMessages(messages);
+            for (ChatMessage message : stored != null ? stored : messages) {
+                String key = MessageStore.conversationKey(message.sender(), message.receiver());
+                Conversation conversation = conversations.get(key);
+                if (conversation == null) {
+                    continue;
+                }
+                if (stored != null) {
+                    append(conversation, message);
+                } else {
+                    // Some of the batch may be stored and some not; let the next read reload it
+                    remove(key, conversation);
+                }
+            }
+            return stored;
+        } finally {
+            for (int stripe = stripes.nextSetBit(0); stripe >= 0; stripe = stripes.nextSetBit(stripe + 1)) {
+                commitsFinished.incrementAndGet(stripe);
+            }
+            evictIfOverBudget();
+        }
+    }
+
+    private static int stripe(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private void append(Conversation conversation, ChatMessage message) {
+        conversation.lock.lock();
+        try {
+            if (conversation.evicted) {
+                return;
+            }
+            long delta = size(message);
+            conversation.ring.addLast(message);
+            if (conversation.ring.size() > capacity) {
+                delta -= size(conversation.ring.removeFirst());
+            }
+            conversation.bytes += delta;
+            bytes.addAndGet(delta);
+        } finally {
+            conversation.lock.unlock();
+        }
+    }
+
+    private void remove(String key, Conversation conversation) {
+        if (!conversations.remove(key, conversation)) {
+            return;
+        }
+        conversation.lock.lock();
+        try {
+            conversation.evicted = true;
+            bytes.addAndGet(-conversation.bytes);
+        } finally {
+            conversation.lock.unlock();
+        }
+    }
+
+    /** Drops the least recently read conversations until the cache is under 90% of its budget. */
+    private void evictIfOverBudget() {
+        if (bytes.get() <= maxBytes || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, Conversation>> oldestFirst = new ArrayList<>(conversations.entrySet());
+            oldestFirst.sort(Comparator.comparingLong(entry -> entry.getValue().lastRead));
+            long target = maxBytes - maxBytes / 10;
+            for (Map.Entry<String, Conversation> entry : oldestFirst) {
+                if (bytes.get() <= target) {
+                    break;
+                }
+                remove(entry.getKey(), entry.getValue());
+                EVICTIONS.increment();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public long streamPrivateMessages(String user1, String user2, long beforeId, int limit, int chunkRows,
+                                      Consumer<List<ChatMessage>> chunks) {
+        return store.streamPrivateMessages(user1, user2, beforeId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public int streamPrivateMessagesAfter(String user, String otherUser, long afterId, int limit, int chunkRows,
+                                          Consumer<List<ChatMessage>> chunks) {
+        return store.streamPrivateMessagesAfter(user, otherUser, afterId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public int streamAllPrivateMessagesAfter(long afterId, int limit, int chunkRows, Consumer<List<ChatMessage>> chunks) {
+        return store.streamAllPrivateMessagesAfter(afterId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public List<ChatMessage> getPrivateMessagesById(long[] ids) {
+        return store.getPrivateMessagesById(ids);
+    }
+
+    @Override
+    public long latestPrivateMessageId() {
+        return store.latestPrivateMessageId();
+    }
+
+    @Override
+    public boolean saveRoomMessages(List<ChatMessage> messages) {
+        return store.saveRoomMessages(messages);
+    }
+
+    @Override
+    public long streamRoomMessages(String room, long beforeId, int limit, int chunkRows,
+                                   Consumer<List<ChatMessage>> chunks) {
+        return store.streamRoomMessages(room, beforeId, limit, chunkRows, chunks);
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    private static long size(ChatMessage message) {
+        return MESSAGE_OVERHEAD_BYTES + message.sender().length() + message.receiver().length() + message.content().length();
+    }
+
+}
@@ -0,0 +1,268 @@
+package messageserver.chatserver.Storage;
+
+import messageserver.chatserver.Database.ChatMessage;
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.Metrics.Metrics;
+import messageserver.chatserver.Metrics.Metrics.DbCall;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Full-text search over private messages: an inverted index from terms to
+ * the messages that contain them, kept per user, so a search reads only
+ * the asking user's postings however many messages other people have.
+ *
+ * The index holds message ids and postings, not the messages: hits are
+ * read back from the message store by id. Messages are indexed in id
+ * order, and the index remembers the highest id it has reached. With one
+ * server writing, each batch the store commits is indexed right after, on
+ * the write-behind thread, with the ids the store gave it
+ * ({@link IndexedMessageStore}). When several servers share the store
+ * ({@code shared}), a node's own commits are not all there is: it reads
+ * the store instead, from its highest id up to
+ * {@link MessageStore#latestPrivateMessageId}, after each of its batches
+ * and before each search. The same catch-up runs on open, so messages
+ * stored before the index existed, or while it was off, are found too.
+ *
+ * Documents go to the live {@link SearchSegment}, whose postings are in
+ * memory; a full segment is sealed, its ids and postings written once to
+ * a terms file, and a new one is started. A search walks the segments
+ * newest first, intersects the posting lists of its terms in each, and
+ * stops as soon as the page is full, so a recent hit costs the same at
+ * ten million messages as at ten thousand.
+ *
+ * Only sealed segments are on disk. On open they are mapped as they are
+ * and the live one is rebuilt from the store; a damaged terms file is
+ * removed with every one after it, and what they held is indexed again
+ * from the store.
+ */
+public final class SearchIndex {
+    private static final int MAX_QUERY_TERMS = 8;
+    private static final int CATCH_UP_ROWS = 1000;
+
+    /** One page of hits, newest first, and the {@code beforeId} of the next older page (0 if there is none). */
+    public record Page(List<ChatMessage> hits, long nextBeforeId) {
+    }
+
+    private record Hit(SearchSegment segment, int local) {
+    }
+
+    private final Path dir;
+    private final int segmentMessages;
+    private final MessageStore store;
+    private final boolean shared;
+    private final List<SearchSegment> segments = new CopyOnWriteArrayList<>();
+    // Held while adding to the index
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile long documents;
+    // Guarded by writeLock
+    private SearchSegment active;
+    private long indexedTo;
+    private boolean behind;
+
+    private SearchIndex(Path dir, int segmentMessages, MessageStore store, boolean shared) {
+        this.dir = dir;
+        this.segmentMessages = Math.max(1, Math.min(segmentMessages, TermDictionary.MAX_DOCUMENTS));
+        this.store = store;
+        this.shared = shared;
+    }
+
+    /**
+     * Opens (or creates) the index of {@code store}'s private messages in
+     * {@code dir} and indexes what the store holds beyond it.
+     */
+    public static SearchIndex open(Path dir, int segmentMessages, MessageStore store, boolean shared) throws IOException {
+        SearchIndex index = new SearchIndex(dir, segmentMessages, store, shared);
+        index.recover();
+        Metrics.gauge("chat_search_documents", "Private messages in the search index", () -> index.documents);
+        Metrics.gauge("chat_search_segments", "Segments of the search index, the live one included", index.segments::size);
+        return index;
+    }
+
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(dir)) {
+            for (Path path : listing.sorted().toList()) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".terms")) {
+                    files.add(path);
+                } else if (name.endsWith(".tmp") || name.endsWith(".log")) {
+                    // An unfinished terms file, or documents copied by an older version
+                    Files.delete(path);
+                }
+            }
+        }
+        boolean damaged = false;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (!damaged) {
+                try {
+                    SearchSegment segment = SearchSegment.open(file);
+                    if (segment.id(0) > indexedTo) {
+                        segments.add(segment);
+                        indexedTo = segment.id(segment.documents() - 1);
+                        documents += segment.documents();
+                        continue;
+                    }
+                    Log.warn("  ⚠ [Search] {} overlaps the segment before it; indexing from there again", name);
+                } catch (IOException e) {
+                    Log.warn("  ⚠ [Search] Cannot read {} ({}); indexing from there again", name, e.getMessage());
+                }
+                damaged = true;
+            }
+            Files.delete(file);
+        }
+        int sealed = segments.size();
+        long kept = documents;
+        active = SearchSegment.create();
+        segments.add(active);
+        writeLock.lock();
+        try {
+            catchUp();
+        } finally {
+            writeLock.unlock();
+        }
+        Log.info("✓ Search index ready: {} message(s), {} from {} sealed segment(s) and {} read from the store, opened in {} ms",
+                documents, kept, sealed, documents - kept, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Indexes a batch the store has just committed, with the ids the store
+     * gave it; called by the write-behind thread. With a shared store, or
+     * after a batch that could not be indexed, reads the store instead.
+     */
+    public void add(List<ChatMessage> stored) {
+        writeLock.lock();
+        try {
+            if (shared || behind) {
+                catchUp();
+            } else if (!index(stored, Long.MAX_VALUE)) {
+                behind = true;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Indexes what the store holds above the highest id indexed, up to its latest committed one. */
+    private void catchUp() {
+        long upTo = store.latestPrivateMessageId();
+        while (indexedTo < upTo) {
+            long from = indexedTo;
+            boolean[] indexed = {true};
+            int read = store.streamAllPrivateMessagesAfter(from, CATCH_UP_ROWS, CATCH_UP_ROWS, chunk -> {
+                if (indexed[0]) {
+                    indexed[0] = index(chunk, upTo);
+                }
+            });
+            if (read < 0 || !indexed[0]) {
+                behind = true;
+                return;
+            }
+            if (read < CATCH_UP_ROWS || indexedTo == from) {
+                break;
+            }
+        }
+        behind = false;
+    }
+
+    /**
+     * Indexes the messages with an id above the highest indexed and at most
+     * {@code upTo}, in order; false if a full segment could not be sealed.
+     */
+    private boolean index(List<ChatMessage> messages, long upTo) {
+        long start = System.nanoTime();
+        int added = 0;
+        try {
+            for (ChatMessage message : messages) {
+                if (message.id() <= indexedTo) {
+                    continue;
+                }
+                if (message.id() > upTo) {
+                    break;
+                }
+                if (active.documents() == segmentMessages) {
+                    roll();
+                }
+                active.add(message);
+                added++;
+                indexedTo = message.id();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.error("    ✗ [Search] Cannot seal a full segment, {} message(s) not indexed yet: {}",
+                    messages.size() - added, e.getMessage(), e);
+            return false;
+        } finally {
+            documents += added;
+            DbCall.SEARCH_INDEX.record(start);
+        }
+    }
+
+    /** Seals the full live segment and starts a new one. */
+    private void roll() throws IOException {
+        long start = System.nanoTime();
+        active.seal(dir);
+        Log.debug("    → [Search] Sealed a segment of {} messages in {} ms", active.documents(),
+                (System.nanoTime() - start) / 1_000_000);
+        active = SearchSegment.create();
+        segments.add(active);
+    }
+
+    /**
+     * Up to {@code limit} of {@code user}'s private messages that contain
+     * every term of {@code query} (at most {@value #MAX_QUERY_TERMS} are
+     * used), newest first: from the conversation with {@code otherUser},
+     * or from all of them when it is null, and with an id below
+     * {@code beforeId} (0 = from the newest). A query without terms finds
+     * nothing.
+     */
+    public Page search(String user, String otherUser, String query, long beforeId, int limit) {
+        long start = System.nanoTime();
+        // Someone else catching up already is as good; do not wait for them
+        if (shared && writeLock.tryLock()) {
+            try {
+                catchUp();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        List<String> keys = SearchTerms.queryKeys(user, otherUser, query, MAX_QUERY_TERMS);
+        List<Hit> hits = new ArrayList<>();
+        if (!keys.isEmpty() && limit > 0) {
+            // A copy, so a segment started meanwhile does not shift the positions
+            List<SearchSegment> all = List.copyOf(segments);
+            for (int s = all.size() - 1; s >= 0 && hits.size() <= limit; s--) {
+                SearchSegment segment = all.get(s);
+                int visible = segment.documents();
+                int below = beforeId > 0 ? segment.countBelow(beforeId, visible) : visible;
+                if (below == 0) {
+                    continue;
+                }
+                // One more than asked for tells whether there is a next page
+                segment.match(keys, below, local -> {
+                    hits.add(new Hit(segment, local));
+                    return hits.size() <= limit;
+                });
+            }
+        }
+        long[] ids = new long[Math.min(limit, hits.size())];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = hits.get(i).segment().id(hits.get(i).local());
+        }
+        List<ChatMessage> page = ids.length == 0 ? List.of() : store.getPrivateMessagesById(ids);
+        long nextBeforeId = hits.size() > limit ? ids[limit - 1] : 0;
+        Log.debug("    ✓ [Search] {} hit(s) for {} in {}", page.size(), user, otherUser == null ? "all conversations" : otherUser);
+        DbCall.SEARCH.record(start);
+        return new Page(page, nextBeforeId);
+    }
+}
@@ -0,0 +1,234 @@
+package messageserver.chatserver.Storage;
+
+import messageserver.chatserver.Database.ChatMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * One segment of the search index: up to {@link TermDictionary#MAX_DOCUMENTS}
+ * private messages, its documents, known within the segment by their local
+ * number, the order they were added in. The messages themselves stay in
+ * the message store; a segment only knows their ids.
+ *
+ * The newest segment is live: documents are added to it and its ids and
+ * postings, one {@link PostingList} per key, are kept in memory. Once it
+ * is full, both are written to a {@link TermDictionary} and the segment is
+ * sealed; from then on it never changes and is read from that file. Only
+ * the index's writer adds or seals; searches run from any thread without
+ * a lock.
+ */
+final class SearchSegment {
+
+    /** A posting list read newest (highest local number) first. */
+    interface Postings {
+        int size();
+
+        int get(int index);
+    }
+
+    // Ids and postings while the segment is live; set to null only after sealed is set
+    private volatile LiveIds ids;
+    private volatile Map<String, PostingList> live;
+    private volatile TermDictionary sealed;
+
+    private SearchSegment(LiveIds ids, Map<String, PostingList> live, TermDictionary sealed) {
+        this.ids = ids;
+        this.live = live;
+        this.sealed = sealed;
+    }
+
+    /** A new, empty, live segment. */
+    static SearchSegment create() {
+        return new SearchSegment(new LiveIds(), new ConcurrentHashMap<>(), null);
+    }
+
+    /** A sealed segment from its terms file; fails if the file is not intact. */
+    static SearchSegment open(Path terms) throws IOException {
+        return new SearchSegment(null, null, TermDictionary.open(terms));
+    }
+
+    /** Documents that are completely indexed; a search looks at no others. */
+    int documents() {
+        TermDictionary terms = sealed;
+        if (terms != null) {
+            return terms.documents();
+        }
+        LiveIds current = ids;
+        return current != null ? current.size() : sealed.documents();
+    }
+
+    /** The message id of document {@code local}, which is below {@link #documents}. */
+    long id(int local) {
+        TermDictionary terms = sealed;
+        if (terms == null) {
+            LiveIds current = ids;
+            if (current != null) {
+                return current.get(local);
+            }
+            // Sealed since the first look
+            terms = sealed;
+        }
+        return terms.id(local);
+    }
+
+    /** How many of the first {@code documents} documents are messages with an id below {@code id}. */
+    int countBelow(long id, int documents) {
+        int low = 0;
+        int high = documents;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (id(mid) < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    boolean isSealed() {
+        return sealed != null;
+    }
+
+    /**
+     * Adds a stored message, with an id above every one in the segment;
+     * its postings go in before its id, so a search never sees it half
+     * indexed.
+     */
+    void add(ChatMessage message) {
+        int local = ids.size();
+        Map<String, PostingList> postings = live;
+        for (String key : SearchTerms.keys(message.sender(), message.receiver(), message.content())) {
+            postings.computeIfAbsent(key, k -> new PostingList()).add(local);
+        }
+        ids.add(message.id());
+    }
+
+    /** Writes the ids and postings to {@code dir} and serves them from there from now on; the segment must not be empty. */
+    void seal(Path dir) throws IOException {
+        long[] values = ids.toArray();
+        Path path = TermDictionary.fileFor(dir, values[0]);
+        TermDictionary.write(path, live, values);
+        sealed = TermDictionary.open(path);
+        live = null;
+        ids = null;
+    }
+
+    /**
+     * Hands the local numbers of the documents below {@code below} that have
+     * every one of {@code keys} to {@code hits}, newest first, until it
+     * returns false. The shortest posting list drives; the others are
+     * searched forward from where the last match left them.
+     */
+    void match(List<String> keys, int below, IntPredicate hits) {
+        Postings[] lists = new Postings[keys.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = postings(keys.get(i));
+            if (lists[i] == null) {
+                return;
+            }
+        }
+        Arrays.sort(lists, Comparator.comparingInt(Postings::size));
+        Postings driver = lists[0];
+        int[] cursors = new int[lists.length];
+        candidates:
+        for (int i = seek(driver, 0, below - 1); i < driver.size(); i++) {
+            int doc = driver.get(i);
+            for (int l = 1; l < lists.length; l++) {
+                cursors[l] = seek(lists[l], cursors[l], doc);
+                if (cursors[l] == lists[l].size()) {
+                    return;
+                }
+                if (lists[l].get(cursors[l]) != doc) {
+                    continue candidates;
+                }
+            }
+            if (!hits.test(doc)) {
+                return;
+            }
+        }
+    }
+
+    private Postings postings(String key) {
+        TermDictionary terms = sealed;
+        if (terms == null) {
+            Map<String, PostingList> postings = live;
+            if (postings != null) {
+                PostingList list = postings.get(key);
+                return list == null ? null : list.newestFirst();
+            }
+            // Sealed since the first look
+            terms = sealed;
+        }
+        return terms.postings(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The first index at or after {@code from} whose value is at most
+     * {@code doc}, or the list's size if there is none: a galloping search,
+     * so skipping far ahead costs a few reads rather than one per entry.
+     */
+    static int seek(Postings list, int from, int doc) {
+        int size = list.size();
+        if (from >= size || list.get(from) <= doc) {
+            return from;
+        }
+        int low = from;
+        int step = 1;
+        int high = from + 1;
+        while (high < size && list.get(high) > doc) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        // Everything up to low is above doc; the answer is in (low, min(high, size)]
+        int first = low + 1;
+        int last = Math.min(high, size);
+        while (first < last) {
+            int mid = (first + last) >>> 1;
+            if (list.get(mid) > doc) {
+                first = mid + 1;
+            } else {
+                last = mid;
+            }
+        }
+        return first;
+    }
+
+    /** The message ids of a live segment's documents; published like {@link PostingList}, array before size. */
+    private static final class LiveIds {
+        private volatile long[] values = new long[1024];
+        private volatile int size;
+
+        void add(long id) {
+            long[] current = values;
+            int n = size;
+            if (n == current.length) {
+                current = Arrays.copyOf(current, n * 2);
+                values = current;
+            }
+            current[n] = id;
+            size = n + 1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
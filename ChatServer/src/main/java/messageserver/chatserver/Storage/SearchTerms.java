@@ -0,0 +1,99 @@
+package messageserver.chatserver.Storage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * How the search index splits text into terms and names its keys.
+ *
+ * A term is a run of letters and digits, lower-cased; single characters
+ * are dropped and terms are cut to {@value #MAX_TERM_CHARS} characters,
+ * the same way for messages and queries. Every key belongs to one user,
+ * so a search only ever reads postings of the user asking:
+ * {@code user NUL term} for each term of a message the user sent or
+ * received, and {@code user NUL NUL partner} for every message of the
+ * conversation with {@code partner}, which narrows a search to one
+ * conversation. No username contains a NUL.
+ */
+final class SearchTerms {
+    static final int MAX_TERM_CHARS = 64;
+
+    private SearchTerms() {
+    }
+
+    /** The distinct terms of {@code text}, in order of first appearance. */
+    static Set<String> of(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        int chars = 0;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (chars < MAX_TERM_CHARS) {
+                    term.appendCodePoint(Character.toLowerCase(codePoint));
+                    chars++;
+                }
+            } else {
+                add(terms, term, chars);
+                term.setLength(0);
+                chars = 0;
+            }
+        }
+        add(terms, term, chars);
+        return terms;
+    }
+
+    private static void add(Set<String> terms, StringBuilder term, int chars) {
+        if (chars > 1) {
+            terms.add(term.toString());
+        }
+    }
+
+    /** Every key a message is indexed under, for both people in the conversation. */
+    static List<String> keys(String sender, String receiver, String content) {
+        Set<String> terms = of(content);
+        List<String> keys = new ArrayList<>((terms.size() + 1) * 2);
+        addKeys(keys, sender, receiver, terms);
+        if (!receiver.equals(sender)) {
+            addKeys(keys, receiver, sender, terms);
+        }
+        return keys;
+    }
+
+    private static void addKeys(List<String> keys, String user, String partner, Set<String> terms) {
+        for (String term : terms) {
+            keys.add(termKey(user, term));
+        }
+        keys.add(conversationKey(user, partner));
+    }
+
+    /**
+     * The keys a search by {@code user} must find all of: the first
+     * {@code maxTerms} terms of the query, plus the conversation with
+     * {@code otherUser} unless that is null. Empty if the query has no terms.
+     */
+    static List<String> queryKeys(String user, String otherUser, String query, int maxTerms) {
+        List<String> keys = new ArrayList<>();
+        for (String term : of(query)) {
+            if (keys.size() == maxTerms) {
+                break;
+            }
+            keys.add(termKey(user, term));
+        }
+        if (!keys.isEmpty() && otherUser != null) {
+            keys.add(conversationKey(user, otherUser));
+        }
+        return keys;
+    }
+
+    private static String termKey(String user, String term) {
+        return user + '\u0000' + term;
+    }
+
+    private static String conversationKey(String user, String partner) {
+        return user + "\u0000\u0000" + partner;
+    }
+}
@@ -0,0 +1,13 @@
+package messageserver.chatserver.Storage;
+
+/**
+ * Thrown by a save when the store cannot be reached at all (no connection,
+ * or the connection was lost) rather than refusing the rows. Nothing of
+ * the batch is stored, and the same batch can be tried again later.
+ */
+public final class StoreUnavailableException extends RuntimeException {
+
+    public StoreUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,107 @@
+package messageserver.chatserver.Storage;
+
+import messageserver.chatserver.Database.MySqlMessageStore;
+import messageserver.chatserver.Database.MySqlUserStore;
+import messageserver.chatserver.Logging.Log;
+import messageserver.chatserver.ServerConfig;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Opens the stores named by {@code chat.store} and {@code chat.users}:
+ * one of the built-in names, or the class name of an implementation with
+ * a public no-argument constructor. Also puts the recent-message cache and
+ * the search index in front of the message store.
+ */
+public final class Stores {
+
+    private Stores() {
+    }
+
+    /** {@code mysql}, {@code log}, {@code memory} or a {@link MessageStore} class name. */
+    public static MessageStore openMessageStore(String kind) {
+        Log.info("Message store: {}", kind);
+        return switch (kind.toLowerCase(Locale.ROOT)) {
+            case "mysql" -> new MySqlMessageStore();
+            case "memory" -> new InMemoryMessageStore();
+            case "log" -> openMessageLog();
+            default -> instantiate(kind, MessageStore.class);
+        };
+    }
+
+    /**
+     * Puts the recent-message cache in front of {@code store}, unless
+     * {@code chat.history.cacheBytes} is 0 or the server is part of a
+     * cluster: the cache only sees this node's commits, so messages stored
+     * through other nodes would be missing from it.
+     */
+    public static MessageStore withRecentCache(MessageStore store) {
+        if (ServerConfig.HISTORY_CACHE_BYTES <= 0) {
+            return store;
+        }
+        if (ServerConfig.CLUSTER_PORT > 0) {
+            Log.info("Recent-message cache: off in a cluster");
+            return store;
+        }
+        return new RecentMessageCache(store, ServerConfig.HISTORY_CACHE_BYTES, ServerConfig.HISTORY_LEGACY_LIMIT);
+    }
+
+    /**
+     * The search index of {@code store} in {@code chat.search.dir}, or null
+     * if {@code chat.search.enabled} is false. With the memory store it
+     * goes in a new temporary directory, as the messages it points to are
+     * gone after a restart too. In a cluster it follows the store rather
+     * than this node's commits, as other nodes write to it as well.
+     */
+    public static SearchIndex openSearchIndex(MessageStore store) {
+        if (!ServerConfig.SEARCH_ENABLED) {
+            return null;
+        }
+        try {
+            Path dir = "memory".equalsIgnoreCase(ServerConfig.STORE)
+                    ? Files.createTempDirectory("chat-search")
+                    : Path.of(ServerConfig.SEARCH_DIR).toAbsolutePath();
+            Log.info("Opening search index in {}", dir);
+            return SearchIndex.open(dir, ServerConfig.SEARCH_SEGMENT_MESSAGES, store, ServerConfig.CLUSTER_PORT > 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the search index", e);
+        }
+    }
+
+    /** Indexes what {@code store} commits in {@code index}, unless that is null. */
+    public static MessageStore withSearchIndex(MessageStore store, SearchIndex index) {
+        return index == null ? store : new IndexedMessageStore(store, index);
+    }
+
+    /** {@code mysql}, {@code memory} or a {@link UserStore} class name. */
+    public static UserStore openUserStore(String kind) {
+        Log.info("User store: {}", kind);
+        return switch (kind.toLowerCase(Locale.ROOT)) {
+            case "mysql" -> new MySqlUserStore();
+            case "memory" -> new InMemoryUserStore();
+            default -> instantiate(kind, UserStore.class);
+        };
+    }
+
+    private static MessageStore openMessageLog() {
+        Path dir = Path.of(ServerConfig.STORE_DIR).toAbsolutePath();
+        Log.info("Opening message log in {} (fsync {})", dir, ServerConfig.STORE_FSYNC ? "on" : "off");
+        try {
+            return LogMessageStore.open(dir, ServerConfig.STORE_SEGMENT_BYTES, ServerConfig.STORE_FSYNC);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the message log in " + dir, e);
+        }
+    }
+
+    private static <T> T instantiate(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getConstructor().newInstance());
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Not a " + type.getSimpleName() + ": " + className, e);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package messageserver.chatserver.Storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A full search segment: the message ids of its documents, and its keys
+ * and postings, memory-mapped read-only:
+ * <pre>
+ *   int magic, int document count, int key count
+ *   long[] message ids, ascending (a document's local number is its position)
+ *   per key, in unsigned byte order:
+ *     varint bytes shared with the key before, varint length of the rest,
+ *     the rest (UTF-8), varint posting count,
+ *     short[] postings (unsigned local numbers, newest first)
+ * </pre>
+ * Keys share long prefixes (the user's name), so each is stored as what
+ * differs from the one before, except every {@value #SPARSE_EVERY}th,
+ * which is stored whole. A segment holds at most {@value #MAX_DOCUMENTS}
+ * documents, so a posting takes two bytes.
+ *
+ * Opening walks the keys once and keeps the whole ones in memory. A
+ * lookup binary-searches those and then reads at most
+ * {@value #SPARSE_EVERY} keys of the file, so the heap holds a small
+ * fraction of the keys and no postings at all. The file is written under
+ * a temporary name and renamed into place, so it is either complete or
+ * missing.
+ */
+final class TermDictionary {
+    static final int MAX_DOCUMENTS = 1 << 16;
+
+    private static final int MAGIC = 0x43535832; // "CSX2"
+    private static final int HEADER_BYTES = 12;
+    private static final int SPARSE_EVERY = 64;
+
+    private record Entry(byte[] key, PostingList postings) {
+    }
+
+    private final MappedByteBuffer map;
+    private final int documents;
+    private final byte[][] sparseKeys;
+    private final int[] sparseOffsets;
+    private final int keysEnd;
+
+    private TermDictionary(MappedByteBuffer map, int documents, byte[][] sparseKeys, int[] sparseOffsets, int keysEnd) {
+        this.map = map;
+        this.documents = documents;
+        this.sparseKeys = sparseKeys;
+        this.sparseOffsets = sparseOffsets;
+        this.keysEnd = keysEnd;
+    }
+
+    /** The file of the segment whose first document is message {@code firstId}. */
+    static Path fileFor(Path dir, long firstId) {
+        return dir.resolve(String.format("%020d.terms", firstId));
+    }
+
+    /** Writes the postings of a segment whose documents are messages {@code ids} and forces the file to disk. */
+    static void write(Path path, Map<String, PostingList> postings, long[] ids) throws IOException {
+        List<Entry> entries = new ArrayList<>(postings.size());
+        postings.forEach((key, list) -> entries.add(new Entry(key.getBytes(StandardCharsets.UTF_8), list)));
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.key(), b.key()));
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(ids.length);
+            out.writeInt(entries.size());
+            for (long id : ids) {
+                out.writeLong(id);
+            }
+            byte[] previous = new byte[0];
+            for (int e = 0; e < entries.size(); e++) {
+                byte[] key = entries.get(e).key();
+                int shared = e % SPARSE_EVERY == 0 ? 0 : Math.max(0, Arrays.mismatch(previous, key));
+                int[] values = entries.get(e).postings().toArray();
+                writeVarint(out, shared);
+                writeVarint(out, key.length - shared);
+                out.write(key, shared, key.length - shared);
+                writeVarint(out, values.length);
+                for (int i = values.length - 1; i >= 0; i--) {
+                    out.writeShort(values[i]);
+                }
+                previous = key;
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /** Maps a terms file and builds its sparse key index; fails if the file is not intact. */
+    static TermDictionary open(Path path) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Terms file too large: " + path);
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int capacity = map.capacity();
+        if (capacity < HEADER_BYTES || map.getInt(0) != MAGIC) {
+            throw new IOException("Not a terms file: " + path);
+        }
+        int documents = map.getInt(4);
+        int keys = map.getInt(8);
+        if (documents <= 0 || documents > MAX_DOCUMENTS || keys < 0 || HEADER_BYTES + 8L * documents > capacity) {
+            throw new IOException("Bad terms file header: " + path);
+        }
+        for (int i = 1; i < documents; i++) {
+            if (map.getLong(HEADER_BYTES + 8 * i) <= map.getLong(HEADER_BYTES + 8 * (i - 1))) {
+                throw new IOException("Message ids out of order in terms file: " + path);
+            }
+        }
+        int sparse = (keys + SPARSE_EVERY - 1) / SPARSE_EVERY;
+        byte[][] sparseKeys = new byte[sparse][];
+        int[] sparseOffsets = new int[sparse];
+        int[] cursor = {HEADER_BYTES + 8 * documents};
+        try {
+            for (int i = 0; i < keys; i++) {
+                int offset = cursor[0];
+                int shared = readVarint(map, cursor);
+                int rest = readVarint(map, cursor);
+                if (i % SPARSE_EVERY == 0) {
+                    if (shared != 0) {
+                        throw new IOException("Bad terms file: " + path);
+                    }
+                    byte[] key = new byte[rest];
+                    map.get(cursor[0], key);
+                    sparseKeys[i / SPARSE_EVERY] = key;
+                    sparseOffsets[i / SPARSE_EVERY] = offset;
+                }
+                cursor[0] += rest;
+                int count = readVarint(map, cursor);
+                cursor[0] = Math.addExact(cursor[0], Math.multiplyExact(2, count));
+                if (cursor[0] > capacity) {
+                    throw new IOException("Truncated terms file: " + path);
+                }
+            }
+        } catch (IndexOutOfBoundsException | ArithmeticException e) {
+            throw new IOException("Truncated terms file: " + path, e);
+        }
+        if (cursor[0] != capacity) {
+            throw new IOException("Truncated terms file: " + path);
+        }
+        return new TermDictionary(map, documents, sparseKeys, sparseOffsets, capacity);
+    }
+
+    /** Reads the varint at {@code cursor[0]} and moves the cursor past it. */
+    private static int readVarint(MappedByteBuffer map, int[] cursor) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = map.get(cursor[0]++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /** How many documents the segment has. */
+    int documents() {
+        return documents;
+    }
+
+    /** The message id of the document with local number {@code local}. */
+    long id(int local) {
+        return map.getLong(HEADER_BYTES + 8 * local);
+    }
+
+    /** The postings of {@code key}, newest first, or null if no document has it. */
+    SearchSegment.Postings postings(byte[] key) {
+        int low = 0;
+        int high = sparseKeys.length - 1;
+        int block = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Arrays.compareUnsigned(sparseKeys[mid], key) <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return null;
+        }
+        // The key being read, rebuilt from what it shares with the one before
+        byte[] current = new byte[Math.max(key.length, sparseKeys[block].length) + 16];
+        int[] cursor = {sparseOffsets[block]};
+        for (int i = 0; i < SPARSE_EVERY && cursor[0] < keysEnd; i++) {
+            int shared = readVarint(map, cursor);
+            int rest = readVarint(map, cursor);
+            if (shared + rest > current.length) {
+                current = Arrays.copyOf(current, shared + rest);
+            }
+            map.get(cursor[0], current, shared, rest);
+            cursor[0] += rest;
+            int count = readVarint(map, cursor);
+            int comparison = Arrays.compareUnsigned(current, 0, shared + rest, key, 0, key.length);
+            if (comparison == 0) {
+                return new Mapped(map, cursor[0], count);
+            }
+            if (comparison > 0) {
+                return null;
+            }
+            cursor[0] += 2 * count;
+        }
+        return null;
+    }
+
+    private record Mapped(MappedByteBuffer map, int offset, int size) implements SearchSegment.Postings {
+        @Override
+        public int get(int index) {
+            return map.getShort(offset + 2 * index) & 0xFFFF;
+        }
+    }
+}
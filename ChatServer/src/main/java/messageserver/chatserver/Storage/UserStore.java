@@ -0,0 +1,19 @@
+package messageserver.chatserver.Storage;
+
+import java.util.List;
+
+/**
+ * Where accounts are kept ({@code chat.users}). Only registration and
+ * login reach it; GET_USERS is served from the
+ * {@link messageserver.chatserver.Database.UserDirectory} it loads.
+ */
+public interface UserStore {
+
+    boolean authenticateUser(String username, String password);
+
+    /** Creates the account; false if the username is taken or the store failed. */
+    boolean registerUser(String username, String password);
+
+    /** Every registered username, in any order. */
+    List<String> getAllUsernames();
+}